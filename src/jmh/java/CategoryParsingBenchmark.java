@@ -0,0 +1,79 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.cloud.language.v1.ClassificationCategory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.FormatUtils;
+import com.google.sps.servlets.ReceiptTextParser;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of turning Cloud Natural Language categories into the categories stored with a
+ * receipt, and of sanitizing categories entered by users.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CategoryParsingBenchmark {
+  // Categories Cloud Natural Language commonly gives receipts.
+  private final List<ClassificationCategory> categories =
+      ImmutableList
+          .of("/Food & Drink/Restaurants/Fast Food", "/Food & Drink/Grocery & Food Retailers",
+              "/Shopping/Consumer Resources/Coupons & Discount Offers",
+              "/Food & Drink/Beverages/Coffee & Tea")
+          .stream()
+          .map(name -> ClassificationCategory.newBuilder().setName(name).build())
+          .collect(Collectors.toList());
+  // Categories as a user might enter them when editing a receipt.
+  private final List<String> userCategories =
+      ImmutableList.of("  Groceries ", "FAST food", "Coffee", "restaurants  ", "Work Lunch");
+
+  /** Parses the categories of a classification response. */
+  @Benchmark
+  public ImmutableSet<String> parseCategory() {
+    return categories.stream()
+        .flatMap(ReceiptTextParser::parseCategory)
+        .collect(ImmutableSet.toImmutableSet());
+  }
+
+  /** Parses and sanitizes the categories of a classification response, as they are stored. */
+  @Benchmark
+  public ImmutableSet<String> parseAndSanitizeCategories() {
+    return FormatUtils.sanitizeCategories(
+        categories.stream().flatMap(ReceiptTextParser::parseCategory));
+  }
+
+  /** Sanitizes categories entered by a user. */
+  @Benchmark
+  public ImmutableSet<String> sanitizeCategories() {
+    return FormatUtils.sanitizeCategories(userCategories.stream());
+  }
+}
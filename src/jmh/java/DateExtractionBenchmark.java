@@ -0,0 +1,72 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.common.io.Resources;
+import com.google.sps.servlets.DateExtractor;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link DateExtractor} with the regex token matching and formatter it replaced, from the
+ * receipt text to the timestamp. The legacy path only finds the U.S. dates of the short, medium,
+ * and long receipts, and returns nothing for the European and month name receipts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DateExtractionBenchmark {
+  @Param({"short", "medium", "long", "european", "month_names"})
+  private String receipt;
+
+  private final DateExtractor extractor = new DateExtractor(Clock.systemUTC());
+  private String text;
+
+  @Setup(Level.Trial)
+  public void loadReceipt() throws IOException {
+    text = Resources.toString(
+        Resources.getResource("receipts/" + receipt + ".txt"), StandardCharsets.UTF_8);
+  }
+
+  /** Matches each token against the U.S. date regex and parses it with a new formatter. */
+  @Benchmark
+  public Optional<Long> legacyParseDate() {
+    return LegacyDateParser.checkForParsableDate(text);
+  }
+
+  /** Searches the text for a date in any recognized format. */
+  @Benchmark
+  public Optional<Long> extractTimestamp() {
+    return extractor.extractTimestamp(text);
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * The date parsing that receipt analysis used before {@link
+ * com.google.sps.servlets.DateExtractor}, kept unchanged so that the two can be compared. It only
+ * recognizes U.S. dates, runs a regex on every whitespace-separated token, and builds a formatter
+ * for every date.
+ */
+final class LegacyDateParser {
+  // Matches U.S. dates such as 5/8/20 or 05-08-2020.
+  private static final Pattern dateRegex =
+      Pattern.compile("\\d?\\d([/-])\\d?\\d\\1\\d{2}(\\d{2})?");
+
+  /**
+   * Prevents instantiation.
+   */
+  private LegacyDateParser() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Checks the raw text for a date that can be parsed. If one is found, it is returned as a
+   * timestamp.
+   */
+  static Optional<Long> checkForParsableDate(String rawText) {
+    // Assume that the first date on the receipt is the transaction date.
+    return Stream.of(rawText.split("\\s"))
+        .filter(token -> dateRegex.matcher(token).matches())
+        .findFirst()
+        .flatMap(LegacyDateParser::parseDateIfValid);
+  }
+
+  /**
+   * Returns the timestamp of a valid date. If the date has an invalid month or day, then an empty
+   * Optional is returned.
+   */
+  static Optional<Long> parseDateIfValid(String date) {
+    String separator = date.contains("-") ? "-" : "/";
+    String formatterPattern = "M" + separator + "d" + separator;
+
+    // Determine if the date has 2 or 4 digits for the year
+    if (date.lastIndexOf(separator) + 3 == date.length()) {
+      formatterPattern += "yy";
+    } else {
+      formatterPattern += "yyyy";
+    }
+
+    DateTimeFormatter formatter = DateTimeFormatter.ofPattern(formatterPattern);
+
+    try {
+      ZonedDateTime dateAndTime = LocalDate.parse(date, formatter).atStartOfDay(ZoneOffset.UTC);
+      dateAndTime = fixYearIfInFuture(dateAndTime);
+
+      return Optional.of(dateAndTime.toInstant().toEpochMilli());
+    } catch (DateTimeParseException e) {
+      // Invalid month or day
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * DateTimeFormatter assumes that two-digit years are in the 2000s. This method checks if the
+   * given date is after the current date and if so, subtracts 100 years to move it to the 1900s.
+   */
+  private static ZonedDateTime fixYearIfInFuture(ZonedDateTime dateAndTime) {
+    if (dateAndTime.isAfter(ZonedDateTime.now())) {
+      return dateAndTime.minusYears(100);
+    }
+    return dateAndTime;
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * The price parsing that receipt analysis used before {@link
+ * com.google.sps.servlets.ReceiptTextScanner}, kept unchanged so that the two can be compared. It
+ * splits the text into strings, runs a regex on every token, and parses each price with
+ * Double.parseDouble.
+ */
+final class LegacyPriceParser {
+  // Matches strings formatted as prices in dollars.
+  private static final Pattern priceRegex = Pattern.compile("\\$?\\d+\\.\\d\\d");
+
+  /**
+   * Prevents instantiation.
+   */
+  private LegacyPriceParser() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Checks the raw text for prices that can be parsed. The largest price found, if it exists, is
+   * returned.
+   */
+  static Optional<Double> checkForParsablePrices(String rawText) {
+    // Assume that the largest price on the receipt is the total price.
+    double largestPrice = Stream.of(rawText.split("\\s"))
+                              .filter(LegacyPriceParser::isPrice)
+                              .mapToDouble(LegacyPriceParser::parsePrice)
+                              .reduce(Double.NEGATIVE_INFINITY, Double::max);
+
+    if (largestPrice == Double.NEGATIVE_INFINITY) {
+      return Optional.empty();
+    }
+    return Optional.of(largestPrice);
+  }
+
+  /**
+   * Returns the price represented by the string as a double, or Double.NEGATIVE_INFINITY if the
+   * string cannot be parsed.
+   */
+  private static double parsePrice(String price) {
+    if (price.startsWith("$")) {
+      price = price.substring(1);
+    }
+
+    try {
+      return Double.parseDouble(price);
+    } catch (NumberFormatException e) {
+      return Double.NEGATIVE_INFINITY;
+    }
+  }
+
+  /**
+   * Checks if the token is formatted as a price.
+   */
+  private static boolean isPrice(String token) {
+    return priceRegex.matcher(token).matches();
+  }
+}
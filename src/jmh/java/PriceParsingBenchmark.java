@@ -0,0 +1,77 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.common.base.Strings;
+import com.google.common.io.Resources;
+import com.google.sps.servlets.ReceiptTextParser;
+import com.google.sps.servlets.ReceiptTextScanner;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link ReceiptTextScanner} with the split and regex price parsing it replaced, from the
+ * receipt text to the total price. The long grocery receipt is also repeated 20 times, about 60 KB
+ * of text, to show how both paths grow with the length of a receipt.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PriceParsingBenchmark {
+  @Param({"short", "medium", "long"})
+  private String receipt;
+
+  // Number of times the receipt text is repeated.
+  @Param({"1", "20"})
+  private int copies;
+
+  private String text;
+
+  @Setup(Level.Trial)
+  public void loadReceipt() throws IOException {
+    String receiptText = Resources.toString(
+        Resources.getResource("receipts/" + receipt + ".txt"), StandardCharsets.UTF_8);
+    text = Strings.repeat(receiptText, copies);
+  }
+
+  /** Splits the text on whitespace and parses the tokens that match the price regex. */
+  @Benchmark
+  public Optional<Double> legacyParsePrice() {
+    return LegacyPriceParser.checkForParsablePrices(text);
+  }
+
+  /** Scans the text and parses the price, as an analysis does. */
+  @Benchmark
+  public Optional<Double> scanAndParsePrice() {
+    return ReceiptTextParser.checkForParsablePrices(ReceiptTextScanner.scan(text));
+  }
+}
@@ -0,0 +1,74 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.common.io.Resources;
+import com.google.sps.servlets.FormatUtils;
+import com.google.sps.servlets.ReceiptTextScanner;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the text scan and store name sanitizing done on the detected text of every
+ * receipt, over the receipts in src/jmh/resources/receipts: a coffee shop receipt, a fast food
+ * receipt, and a long grocery receipt. Price parsing is compared with the parsing it replaced in
+ * {@link PriceParsingBenchmark}, and date extraction in {@link DateExtractionBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReceiptTextParserBenchmark {
+  @Param({"short", "medium", "long"})
+  private String receipt;
+
+  private String text;
+  private String store;
+
+  @Setup(Level.Trial)
+  public void loadReceipt() throws IOException {
+    text = Resources.toString(
+        Resources.getResource("receipts/" + receipt + ".txt"), StandardCharsets.UTF_8);
+    // Uses the first line as the store name, which is where Cloud Vision usually finds it.
+    store = text.substring(0, text.indexOf('\n'));
+  }
+
+  /** Finds the largest price in the text. */
+  @Benchmark
+  public ReceiptTextScanner scan() {
+    return ReceiptTextScanner.scan(text);
+  }
+
+  /** Sanitizes the store name, as it is before it is stored. */
+  @Benchmark
+  public String sanitizeStore() {
+    return FormatUtils.sanitize(store);
+  }
+}
@@ -57,6 +57,14 @@ public class AnalysisResults {
     return price;
   }
 
+  /**
+   * Returns whether text was detected and categorized. Failed Cloud API requests leave these
+   * fields empty, so only complete results are worth reusing.
+   */
+  public boolean isComplete() {
+    return rawText.isPresent() && !categories.isEmpty();
+  }
+
   public static class Builder {
     private Optional<String> rawText = Optional.empty();
     private ImmutableSet<String> categories = ImmutableSet.of();
@@ -78,6 +86,10 @@ public class AnalysisResults {
       return this;
     }
 
+    public Optional<String> getStore() {
+      return store;
+    }
+
     public Builder setStore(String store) {
       this.store = Optional.of(store);
       return this;
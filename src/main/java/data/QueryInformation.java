@@ -29,29 +29,36 @@ public class QueryInformation {
   private final ImmutableSet<String> category;
   private final long startTimestamp;
   private final long endTimestamp;
-  private final String store;
+  private final ImmutableSet<String> stores;
   private final double minPrice;
   private final double maxPrice;
+  private final TextQuery textQuery;
 
   public QueryInformation(String timeZoneId, String category, String dateRange, String store,
       String minPrice, String maxPrice) throws ParseException, NumberFormatException {
-    this.timeZone = TimeZone.getTimeZone(timeZoneId);
+    this(timeZoneId, category, dateRange, store, minPrice, maxPrice, /* text = */ null);
+  }
 
-    String formattedCategory = formatInput(category);
+  /**
+   * @param category Comma-separated categories. Receipts with any of them match.
+   * @param store Comma-separated stores. Receipts from any of them match.
+   * @param text Query over the text of receipts, parsed by {@link TextQuery}. Every receipt matches
+   *     if it is null or empty.
+   */
+  public QueryInformation(String timeZoneId, String category, String dateRange, String store,
+      String minPrice, String maxPrice, String text) throws ParseException, NumberFormatException {
+    this.timeZone = TimeZone.getTimeZone(timeZoneId);
 
-    if (Strings.isNullOrEmpty(formattedCategory)) {
-      this.category = ImmutableSet.of();
-    } else {
-      this.category = ImmutableSet.of(formattedCategory);
-    }
+    this.category = formatList(category);
 
     String[] dates = dateRange.split("-");
     this.startTimestamp = dateToMilliseconds(formatInput(dates[0]));
     this.endTimestamp = dateToMilliseconds(formatInput(dates[1])) + MILLISECONDS_TO_END_OF_DAY;
 
-    this.store = formatInput(store);
+    this.stores = formatList(store);
     this.minPrice = Double.parseDouble(formatInput(minPrice));
     this.maxPrice = Double.parseDouble(formatInput(maxPrice));
+    this.textQuery = Strings.isNullOrEmpty(text) ? TextQuery.empty() : TextQuery.parse(text);
   }
 
   /** Sets input to lowercase and replaces all extra whitespace before/after/between. */
@@ -59,6 +66,18 @@ public class QueryInformation {
     return rawInput.toLowerCase().replaceAll("\\s+", " ").trim();
   }
 
+  /** Splits comma-separated input into formatted values, leaving out empty ones. */
+  private ImmutableSet<String> formatList(String rawInput) {
+    ImmutableSet.Builder<String> values = ImmutableSet.builder();
+    for (String value : rawInput.split(",")) {
+      String formattedValue = formatInput(value);
+      if (!formattedValue.isEmpty()) {
+        values.add(formattedValue);
+      }
+    }
+    return values.build();
+  }
+
   /** Converts a formatted date (month day, year) to milliseconds since epoch. */
   private long dateToMilliseconds(String date) throws ParseException {
     DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.LONG);
@@ -83,8 +102,8 @@ public class QueryInformation {
     return endTimestamp;
   }
 
-  public String getStore() {
-    return store;
+  public ImmutableSet<String> getStores() {
+    return stores;
   }
 
   public double getMinPrice() {
@@ -94,4 +113,8 @@ public class QueryInformation {
   public double getMaxPrice() {
     return maxPrice;
   }
+
+  public TextQuery getTextQuery() {
+    return textQuery;
+  }
 }
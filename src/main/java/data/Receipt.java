@@ -15,7 +15,11 @@
 package com.google.sps.data;
 
 import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
+import java.util.Collection;
 
 /** Class to represent a receipt and its properties. */
 public class Receipt {
@@ -40,11 +44,53 @@ public class Receipt {
     this.rawText = rawText;
   }
 
+  /** Creates a {@link Receipt} from a receipt {@link Entity}. */
+  public static Receipt fromEntity(Entity entity) {
+    long id = entity.getKey().getId();
+    String userId = (String) entity.getProperty("userId");
+    long timestamp = (long) entity.getProperty("timestamp");
+    String imageUrl = (String) entity.getProperty("imageUrl");
+    double price = (double) entity.getProperty("price");
+    String store = (String) entity.getProperty("store");
+    ImmutableSet<String> categories =
+        ImmutableSet.copyOf((Collection<String>) entity.getProperty("categories"));
+    // Raw text is stored as Text since it can be longer than a string property allows.
+    Object rawTextProperty = entity.getProperty("rawText");
+    String rawText = Strings.nullToEmpty(rawTextProperty instanceof Text
+            ? ((Text) rawTextProperty).getValue()
+            : (String) rawTextProperty);
+    return new Receipt(id, userId, timestamp, imageUrl, price, store, categories, rawText);
+  }
+
   public long getId() {
     return id;
   }
 
+  public String getUserId() {
+    return userId;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getImageUrl() {
+    return imageUrl;
+  }
+
   public double getPrice() {
     return price;
   }
+
+  public String getStore() {
+    return store;
+  }
+
+  public ImmutableSet<String> getCategories() {
+    return categories;
+  }
+
+  public String getRawText() {
+    return rawText;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,31 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/**
+ * Progress of the analysis of a receipt uploaded in asynchronous mode. The status is stored in the
+ * "status" property of the receipt entity. Receipts without a status were analyzed synchronously
+ * and are complete.
+ */
+public enum ReceiptStatus {
+  /** The receipt is waiting in the task queue to be analyzed. */
+  PENDING,
+  /** The receipt image is being analyzed. */
+  ANALYZING,
+  /** Analysis finished and the extracted fields were added to the receipt. */
+  DONE,
+  /** Analysis failed and the receipt image was deleted. */
+  FAILED
+}
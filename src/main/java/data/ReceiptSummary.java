@@ -0,0 +1,70 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Fields of a {@link Receipt} that are shown in lists of receipts. The raw text, which can be much
+ * larger than the other fields together, is left out and is loaded with the receipt's details.
+ */
+public class ReceiptSummary {
+  private final long id;
+  private final long timestamp;
+  private final String imageUrl;
+  private final double price;
+  private final String store;
+  private final ImmutableSet<String> categories;
+
+  public ReceiptSummary(long id, long timestamp, String imageUrl, double price, String store,
+      ImmutableSet<String> categories) {
+    this.id = id;
+    this.timestamp = timestamp;
+    this.imageUrl = imageUrl;
+    this.price = price;
+    this.store = store;
+    this.categories = ImmutableSet.copyOf(categories);
+  }
+
+  /** Returns the summary of the receipt. */
+  public static ReceiptSummary of(Receipt receipt) {
+    return new ReceiptSummary(receipt.getId(), receipt.getTimestamp(), receipt.getImageUrl(),
+        receipt.getPrice(), receipt.getStore(), receipt.getCategories());
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getImageUrl() {
+    return imageUrl;
+  }
+
+  public double getPrice() {
+    return price;
+  }
+
+  public String getStore() {
+    return store;
+  }
+
+  public ImmutableSet<String> getCategories() {
+    return categories;
+  }
+}
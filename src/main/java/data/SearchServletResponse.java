@@ -16,13 +16,38 @@ package com.google.sps.data;
 
 import com.google.common.collect.ImmutableList;
 
-/** Wrapper class for information sent on a search servlet doGet response. */
+/**
+ * Wrapper class for information sent on a search servlet doGet response. Receipts are sent as
+ * summaries, without their raw text. A page that stopped because the search read as many receipts
+ * as it may, rather than because the results ran out, has scanLimitReached set, so that a page
+ * with few or no receipts is not taken for the end of the results.
+ */
 public class SearchServletResponse {
-  private final ImmutableList<Receipt> matchingReceipts;
+  private final ImmutableList<ReceiptSummary> matchingReceipts;
   private final String encodedCursor;
+  private final boolean scanLimitReached;
 
-  public SearchServletResponse(ImmutableList<Receipt> matchingReceipts, String encodedCursor) {
+  public SearchServletResponse(
+      ImmutableList<ReceiptSummary> matchingReceipts, String encodedCursor) {
+    this(matchingReceipts, encodedCursor, /* scanLimitReached = */ false);
+  }
+
+  public SearchServletResponse(ImmutableList<ReceiptSummary> matchingReceipts,
+      String encodedCursor, boolean scanLimitReached) {
     this.matchingReceipts = ImmutableList.copyOf(matchingReceipts);
     this.encodedCursor = encodedCursor;
+    this.scanLimitReached = scanLimitReached;
+  }
+
+  public ImmutableList<ReceiptSummary> getMatchingReceipts() {
+    return matchingReceipts;
+  }
+
+  public String getEncodedCursor() {
+    return encodedCursor;
+  }
+
+  public boolean isScanLimitReached() {
+    return scanLimitReached;
   }
-}
\ No newline at end of file
+}
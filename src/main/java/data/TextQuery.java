@@ -0,0 +1,191 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.common.collect.ImmutableList;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Query over the OCR text of receipts. A query is a list of clauses that a receipt's text must all
+ * contain:
+ *
+ * <ul>
+ *   <li>a term, such as {@code avocado}, matches a word of the text;
+ *   <li>a prefix, such as {@code avoc*}, matches a word that starts with it;
+ *   <li>a phrase in double quotes, such as {@code "receipt 1234"}, matches consecutive words, and
+ *       its last word can be a prefix.
+ * </ul>
+ *
+ * <p>Text is split into tokens at every character that is not a letter or a digit, and tokens
+ * are lowercased and stripped of accents, so {@code Café} matches {@code cafe}. A term that splits
+ * into several tokens, such as {@code #12.77}, is matched as a phrase.
+ */
+public final class TextQuery {
+  private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+  /** Consecutive tokens that a matching text must contain. */
+  public static final class Clause {
+    private final ImmutableList<String> tokens;
+    private final boolean isPrefix;
+
+    private Clause(ImmutableList<String> tokens, boolean isPrefix) {
+      this.tokens = tokens;
+      this.isPrefix = isPrefix;
+    }
+
+    /** Returns the tokens of the clause, of which there is at least one. */
+    public ImmutableList<String> getTokens() {
+      return tokens;
+    }
+
+    /** Returns whether the last token matches any token that starts with it. */
+    public boolean isPrefix() {
+      return isPrefix;
+    }
+
+    /** Returns whether the tokens contain the clause. */
+    private boolean isFoundIn(List<String> textTokens) {
+      int lastToken = tokens.size() - 1;
+      for (int start = 0; start + lastToken < textTokens.size(); start++) {
+        int i = 0;
+        while (i < lastToken && tokens.get(i).equals(textTokens.get(start + i))) {
+          i++;
+        }
+        if (i == lastToken && matchesLastToken(textTokens.get(start + i))) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean matchesLastToken(String token) {
+      String lastToken = tokens.get(tokens.size() - 1);
+      return isPrefix ? token.startsWith(lastToken) : token.equals(lastToken);
+    }
+  }
+
+  private static final TextQuery EMPTY = new TextQuery(ImmutableList.of());
+
+  private final ImmutableList<Clause> clauses;
+
+  private TextQuery(ImmutableList<Clause> clauses) {
+    this.clauses = clauses;
+  }
+
+  /** Parses the query typed by the user. Clauses without any token are left out. */
+  public static TextQuery parse(String text) {
+    ImmutableList.Builder<Clause> clauses = ImmutableList.builder();
+    int i = 0;
+
+    while (i < text.length()) {
+      char c = text.charAt(i);
+      int end;
+      String clauseText;
+
+      if (c == '"') {
+        end = text.indexOf('"', i + 1);
+        if (end < 0) {
+          end = text.length();
+        }
+        clauseText = text.substring(i + 1, end).trim();
+        end++;
+      } else if (Character.isWhitespace(c)) {
+        i++;
+        continue;
+      } else {
+        end = i;
+        while (end < text.length() && !Character.isWhitespace(text.charAt(end))
+            && text.charAt(end) != '"') {
+          end++;
+        }
+        clauseText = text.substring(i, end);
+      }
+
+      ImmutableList<String> tokens = tokenize(clauseText);
+      if (!tokens.isEmpty()) {
+        clauses.add(new Clause(tokens, clauseText.endsWith("*")));
+      }
+      i = end;
+    }
+
+    ImmutableList<Clause> parsedClauses = clauses.build();
+    return parsedClauses.isEmpty() ? EMPTY : new TextQuery(parsedClauses);
+  }
+
+  /** Returns a query that every text matches. */
+  public static TextQuery empty() {
+    return EMPTY;
+  }
+
+  /** Returns whether the query has no clauses, so every text matches it. */
+  public boolean isEmpty() {
+    return clauses.isEmpty();
+  }
+
+  public ImmutableList<Clause> getClauses() {
+    return clauses;
+  }
+
+  /**
+   * Returns whether the text contains every clause. This tokenizes the whole text, so searching
+   * many receipts should use an index of their tokens instead.
+   */
+  public boolean matches(String text) {
+    if (isEmpty()) {
+      return true;
+    }
+
+    ImmutableList<String> textTokens = tokenize(text == null ? "" : text);
+    for (Clause clause : clauses) {
+      if (!clause.isFoundIn(textTokens)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Splits the text into normalized tokens. */
+  public static ImmutableList<String> tokenize(CharSequence text) {
+    List<String> tokens = new ArrayList<>();
+    StringBuilder token = new StringBuilder();
+    boolean hasNonAscii = false;
+
+    for (int i = 0; i <= text.length(); i++) {
+      char c = i < text.length() ? text.charAt(i) : ' ';
+      if (Character.isLetterOrDigit(c) || Character.getType(c) == Character.NON_SPACING_MARK) {
+        token.append(c);
+        hasNonAscii |= c > 127;
+      } else if (token.length() > 0) {
+        tokens.add(normalize(token.toString(), hasNonAscii));
+        token.setLength(0);
+        hasNonAscii = false;
+      }
+    }
+
+    return ImmutableList.copyOf(tokens);
+  }
+
+  private static String normalize(String token, boolean hasNonAscii) {
+    if (hasNonAscii) {
+      token = COMBINING_MARKS.matcher(Normalizer.normalize(token, Normalizer.Form.NFD))
+                  .replaceAll("");
+    }
+    return token.toLowerCase(Locale.ROOT);
+  }
+}
@@ -0,0 +1,47 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.language.v1.ClassifyTextRequest;
+import com.google.cloud.language.v1.ClassifyTextResponse;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Service that receipt analysis sends its image and text requests to. The backend in use is chosen
+ * by {@link AnalysisBackends}, so the analysis can run against the Cloud APIs or against a local
+ * fake without changing the analysis code.
+ *
+ * <p>Each request is given a timeout, after which it fails with a DEADLINE_EXCEEDED {@link
+ * com.google.api.gax.rpc.ApiException}.
+ */
+public interface AnalysisBackend {
+  /** Detects text and logos in a batch of images, like the Cloud Vision API. */
+  BatchAnnotateImagesResponse batchAnnotateImages(
+      List<AnnotateImageRequest> requests, Duration timeout) throws IOException;
+
+  /** Classifies text into content categories, like the Cloud Natural Language API. */
+  ClassifyTextResponse classifyText(ClassifyTextRequest request, Duration timeout)
+      throws IOException;
+
+  /** Prepares the backend so that the first analysis is not slower than the others. */
+  default void warmUp() throws IOException {}
+
+  /** Releases the resources held by the backend. */
+  default void close() {}
+}
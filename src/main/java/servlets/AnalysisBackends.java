@@ -0,0 +1,71 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.logging.Logger;
+
+/**
+ * Holds the analysis backend used by every receipt analysis on this instance. The backend is
+ * chosen with the receiptAnalysis.backend system property: "cloud", the default, calls the Cloud
+ * APIs, and "fake" answers every request locally with {@link FakeAnalysisBackend} so that the
+ * upload path can be load tested without network access.
+ *
+ * <p>Either backend is wrapped in a {@link ResilientAnalysisBackend}, which gives calls deadlines
+ * and stops them while an API is failing.
+ */
+public final class AnalysisBackends {
+  private static final String BACKEND_PROPERTY = "receiptAnalysis.backend";
+  private static final String FAKE_BACKEND = "fake";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(AnalysisBackends.class.getName());
+
+  private static AnalysisBackend backend;
+
+  /**
+   * Prevents instantiation.
+   */
+  private AnalysisBackends() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the configured backend, creating it if it does not exist yet.
+   */
+  public static synchronized AnalysisBackend get() {
+    if (backend == null) {
+      AnalysisBackend remoteBackend;
+      if (FAKE_BACKEND.equals(System.getProperty(BACKEND_PROPERTY))) {
+        logger.warning("Receipts are analyzed by the fake backend and will get canned results.");
+        remoteBackend = FakeAnalysisBackend.fromSystemProperties();
+      } else {
+        remoteBackend = new CloudAnalysisBackend();
+      }
+      backend = ResilientAnalysisBackend.fromSystemProperties(remoteBackend);
+    }
+
+    return backend;
+  }
+
+  /**
+   * Closes the backend. The backend will be chosen and created again if it is requested again.
+   */
+  public static synchronized void close() {
+    if (backend != null) {
+      backend.close();
+      backend = null;
+    }
+  }
+}
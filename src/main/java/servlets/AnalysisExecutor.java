@@ -0,0 +1,51 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.ThreadManager;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates the threads that run the stages of a receipt analysis. App Engine standard only lets a
+ * request start threads that end with the request, so each analysis gets its own small pool of
+ * request threads, which the analysis shuts down before it returns. No thread outlives the
+ * request that started it.
+ *
+ * <p>Request threads run with the request's environment, so stages may call App Engine APIs, but
+ * they only call the Cloud APIs and parse text.
+ */
+public final class AnalysisExecutor {
+  // Number of threads of each analysis, which can be set with a system property in
+  // appengine-web.xml. At most three stages run at the same time.
+  private static final String THREADS_PROPERTY = "receiptAnalysis.executorThreads";
+  private static final int DEFAULT_THREADS = 3;
+
+  /**
+   * Prevents instantiation.
+   */
+  private AnalysisExecutor() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns a new pool of threads of the current request. The caller must shut it down before the
+   * request ends.
+   */
+  public static ExecutorService newRequestExecutor() {
+    int threads = Math.max(1, Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS));
+    return Executors.newFixedThreadPool(threads, ThreadManager.currentRequestThreadFactory());
+  }
+}
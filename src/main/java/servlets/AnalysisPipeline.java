@@ -0,0 +1,175 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Runs the stages of a single receipt analysis. Each stage declares the stage whose output it
+ * needs, so stages that depend on the same stage run at the same time on the executor.
+ *
+ * <p>Every stage records how long it ran, both in the pipeline and in {@link Metrics}. A stage
+ * created with a fallback value isolates its failures: if it throws, the failure is logged and the
+ * fallback is used, so the other stages are not affected. A stage without a fallback is required,
+ * and its failure is rethrown by {@link #await}.
+ *
+ * <p>Stages run with the deadline of the request that created the pipeline, so calls made by a
+ * stage on an executor thread still end before the request does. See {@link CallDeadline}. If the
+ * request is traced, each stage is a span under the span that created the pipeline.
+ */
+public class AnalysisPipeline {
+  /** Work done by a stage that does not depend on another stage. */
+  public interface Stage<T> {
+    T run() throws Exception;
+  }
+
+  /** Work done by a stage on the output of the stage it depends on. */
+  public interface DependentStage<I, T> {
+    T run(I input) throws Exception;
+  }
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(AnalysisPipeline.class.getName());
+
+  private final Executor executor;
+  // Deadline of the request that created the pipeline, passed to every stage.
+  private final long deadlineNanos;
+  // Span of the request's trace that stages are recorded under.
+  private final RequestTrace.Parent traceParent;
+  // Milliseconds each finished stage ran for, by stage name.
+  private final Map<String, Long> stageMillis = new ConcurrentHashMap<>();
+
+  public AnalysisPipeline(Executor executor) {
+    this.executor = executor;
+    this.deadlineNanos = CallDeadline.getDeadlineNanos();
+    this.traceParent = RequestTrace.currentParent();
+  }
+
+  /**
+   * Starts a required stage that does not depend on another stage.
+   */
+  public <T> CompletableFuture<T> start(String name, Stage<T> stage) {
+    return CompletableFuture.supplyAsync(() -> runRequired(name, stage), executor);
+  }
+
+  /**
+   * Adds a required stage that runs once the stage it depends on has finished.
+   */
+  public <I, T> CompletableFuture<T> then(
+      String name, CompletableFuture<I> dependency, DependentStage<I, T> stage) {
+    return dependency.thenApplyAsync(input -> runRequired(name, () -> stage.run(input)), executor);
+  }
+
+  /**
+   * Adds a stage that runs once the stage it depends on has finished. If either stage fails, the
+   * fallback value is used instead.
+   */
+  public <I, T> CompletableFuture<T> then(
+      String name, CompletableFuture<I> dependency, DependentStage<I, T> stage, T fallback) {
+    return dependency.thenApplyAsync(input -> runIsolated(name, () -> stage.run(input)), executor)
+        .exceptionally(e -> {
+          // The stage did not run because the stage it depends on failed.
+          logger.warning("Skipped analysis stage " + name + ": " + e);
+          return null;
+        })
+        .thenApply(result -> result == null ? fallback : result);
+  }
+
+  /**
+   * Waits for the stage to finish and returns its output. Failures of required stages are
+   * rethrown, unwrapped from the executor's exceptions.
+   */
+  public static <T> T await(CompletableFuture<T> stage) throws IOException {
+    try {
+      return stage.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for receipt analysis.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CompletionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Returns how many milliseconds each finished stage ran for, by stage name.
+   */
+  public ImmutableMap<String, Long> getStageMillis() {
+    return ImmutableMap.copyOf(stageMillis);
+  }
+
+  /**
+   * Runs the stage and records its time. Exceptions are rethrown wrapped in a
+   * CompletionException so that they fail the stage's future.
+   */
+  private <T> T runRequired(String name, Stage<T> stage) {
+    long start = System.nanoTime();
+
+    try {
+      return runInRequestContext(name, stage);
+    } catch (Exception e) {
+      Metrics.countStageFailure(name);
+      throw new CompletionException(e);
+    } finally {
+      recordTime(name, start);
+    }
+  }
+
+  /**
+   * Runs the stage and records its time. Returns null if the stage fails, which is replaced by
+   * the stage's fallback value.
+   */
+  private <T> T runIsolated(String name, Stage<T> stage) {
+    long start = System.nanoTime();
+
+    try {
+      return runInRequestContext(name, stage);
+    } catch (Exception e) {
+      Metrics.countStageFailure(name);
+      logger.warning("Analysis stage " + name + " failed: " + e);
+      return null;
+    } finally {
+      recordTime(name, start);
+    }
+  }
+
+  /** Runs the stage with the deadline of the request and in a span of its trace. */
+  private <T> T runInRequestContext(String name, Stage<T> stage) throws Exception {
+    return RequestTrace.callInSpan(
+        traceParent, name, () -> CallDeadline.callWithDeadline(deadlineNanos, stage::run));
+  }
+
+  private void recordTime(String name, long startNanos) {
+    stageMillis.put(name, (System.nanoTime() - startNanos) / 1_000_000);
+    Metrics.recordStage(name, startNanos);
+  }
+}
@@ -0,0 +1,181 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import com.google.sps.data.AnalysisResults;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Two-tier cache of receipt analysis results, keyed by the SHA-256 hash of the image bytes. The
+ * first tier is a bounded in-memory LRU cache on this instance and the second tier is Datastore,
+ * which is shared by all instances and survives restarts.
+ */
+public final class AnalysisResultsCache {
+  // Maximum number of results kept in memory, which can be set with a system property in
+  // appengine-web.xml.
+  private static final String MAX_ENTRIES_PROPERTY = "receiptAnalysis.cacheSize";
+  private static final long DEFAULT_MAX_ENTRIES = 1000;
+  private static final String KIND = "AnalysisResults";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(AnalysisResultsCache.class.getName());
+
+  private static final Cache<String, AnalysisResults> memoryCache =
+      CacheBuilder.newBuilder()
+          .maximumSize(Long.getLong(MAX_ENTRIES_PROPERTY, DEFAULT_MAX_ENTRIES))
+          .build();
+  private static final AtomicLong memoryHitCount = new AtomicLong();
+  private static final AtomicLong datastoreHitCount = new AtomicLong();
+  private static final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Prevents instantiation.
+   */
+  private AnalysisResultsCache() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the cache key of the image, which is the hex-encoded SHA-256 hash of its bytes.
+   */
+  public static String getKey(ByteString imageBytes) {
+    return Hashing.sha256().hashBytes(imageBytes.asReadOnlyByteBuffer()).toString();
+  }
+
+  /**
+   * Looks up the results for the given key in memory, then in Datastore. Results found in
+   * Datastore are copied into memory.
+   */
+  public static Optional<AnalysisResults> get(String key) {
+    AnalysisResults results = memoryCache.getIfPresent(key);
+
+    if (results != null) {
+      memoryHitCount.incrementAndGet();
+      return Optional.of(results);
+    }
+
+    Optional<AnalysisResults> storedResults = getFromDatastore(key);
+
+    if (storedResults.isPresent()) {
+      datastoreHitCount.incrementAndGet();
+      memoryCache.put(key, storedResults.get());
+    } else {
+      missCount.incrementAndGet();
+    }
+
+    return storedResults;
+  }
+
+  /**
+   * Stores the results in both tiers of the cache.
+   */
+  public static void put(String key, AnalysisResults results) {
+    memoryCache.put(key, results);
+
+    Entity entity = new Entity(KIND, key);
+    results.getRawText().ifPresent(
+        rawText -> entity.setUnindexedProperty("rawText", new Text(rawText)));
+    entity.setUnindexedProperty("categories", new ArrayList<>(results.getCategories()));
+    results.getStore().ifPresent(store -> entity.setUnindexedProperty("store", store));
+    results.getTransactionTimestamp().ifPresent(
+        timestamp -> entity.setUnindexedProperty("transactionTimestamp", timestamp));
+    results.getPrice().ifPresent(price -> entity.setUnindexedProperty("price", price));
+
+    try {
+      getDatastore().put(entity);
+    } catch (DatastoreFailureException | DatastoreTimeoutException e) {
+      // The results are still cached in memory, so the upload does not need to fail.
+      logger.warning("Failed to store analysis results: " + e);
+    }
+  }
+
+  /**
+   * Removes all results from the in-memory tier. Results stored in Datastore are kept.
+   */
+  public static void clearMemory() {
+    memoryCache.invalidateAll();
+  }
+
+  public static long getMemoryHitCount() {
+    return memoryHitCount.get();
+  }
+
+  public static long getDatastoreHitCount() {
+    return datastoreHitCount.get();
+  }
+
+  public static long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Reads the results stored in Datastore for the given key, if there are any.
+   */
+  private static Optional<AnalysisResults> getFromDatastore(String key) {
+    Entity entity;
+
+    try {
+      entity = getDatastore().get(KeyFactory.createKey(KIND, key));
+    } catch (EntityNotFoundException e) {
+      return Optional.empty();
+    } catch (DatastoreFailureException | DatastoreTimeoutException e) {
+      logger.warning("Failed to read analysis results: " + e);
+      return Optional.empty();
+    }
+
+    AnalysisResults.Builder analysisBuilder = new AnalysisResults.Builder();
+
+    if (entity.hasProperty("rawText")) {
+      analysisBuilder.setRawText(((Text) entity.getProperty("rawText")).getValue());
+    }
+    // Datastore stores empty lists as null.
+    Collection<String> categories = (Collection<String>) entity.getProperty("categories");
+    if (categories != null) {
+      analysisBuilder.setCategories(ImmutableSet.copyOf(categories));
+    }
+    if (entity.hasProperty("store")) {
+      analysisBuilder.setStore((String) entity.getProperty("store"));
+    }
+    if (entity.hasProperty("transactionTimestamp")) {
+      analysisBuilder.setTransactionTimestamp((long) entity.getProperty("transactionTimestamp"));
+    }
+    if (entity.hasProperty("price")) {
+      analysisBuilder.setPrice((double) entity.getProperty("price"));
+    }
+
+    return Optional.of(analysisBuilder.build());
+  }
+
+  private static DatastoreService getDatastore() {
+    return DatastoreServiceFactory.getDatastoreService();
+  }
+}
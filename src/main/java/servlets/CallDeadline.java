@@ -0,0 +1,99 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.apphosting.api.ApiProxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks when the current request must finish, so that calls to the Cloud APIs can be given a
+ * deadline that ends before the request does. On request threads the deadline comes from App
+ * Engine. A deadline can also be set for a task with {@link #callWithDeadline}, which takes
+ * precedence over App Engine's. The analysis pipeline uses it so that stages keep the deadline of
+ * the request that created the pipeline whatever executor runs them, including plain threads in
+ * tests, and calls made on behalf of several requests, such as a {@link VisionBatcher} batch or
+ * hedged calls, use it to run with a deadline other than the current thread's.
+ */
+public final class CallDeadline {
+  /** Deadline of threads that are not bound by a request. */
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  // Requests never run this long, so longer budgets are treated as no deadline.
+  private static final long MAX_REMAINING_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  // System.nanoTime() deadline passed to the current thread, or null if none was passed.
+  private static final ThreadLocal<Long> threadDeadline = new ThreadLocal<>();
+
+  /**
+   * Prevents instantiation.
+   */
+  private CallDeadline() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the System.nanoTime() value at which the current request must finish, or {@link
+   * #NO_DEADLINE} if the current thread is not bound by a request.
+   */
+  public static long getDeadlineNanos() {
+    Long deadline = threadDeadline.get();
+    if (deadline != null) {
+      return deadline;
+    }
+
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    if (environment == null) {
+      return NO_DEADLINE;
+    }
+
+    long remainingMillis = environment.getRemainingMillis();
+    if (remainingMillis > MAX_REMAINING_MILLIS) {
+      return NO_DEADLINE;
+    }
+    return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remainingMillis);
+  }
+
+  /**
+   * Returns how many milliseconds the current request has left, which is negative once its
+   * deadline has passed, or {@link #NO_DEADLINE} if the current thread is not bound by a request.
+   */
+  public static long getRemainingMillis() {
+    long deadline = getDeadlineNanos();
+    if (deadline == NO_DEADLINE) {
+      return NO_DEADLINE;
+    }
+    return TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+  }
+
+  /**
+   * Runs the task with the given deadline on the current thread, then restores the thread's
+   * previous deadline.
+   */
+  public static <T> T callWithDeadline(long deadlineNanos, Callable<T> task) throws Exception {
+    Long previousDeadline = threadDeadline.get();
+    threadDeadline.set(deadlineNanos);
+
+    try {
+      return task.call();
+    } finally {
+      if (previousDeadline == null) {
+        threadDeadline.remove();
+      } else {
+        threadDeadline.set(previousDeadline);
+      }
+    }
+  }
+}
@@ -0,0 +1,175 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to a remote API while it is failing, so that requests fail fast instead of waiting
+ * for calls that are likely to fail too.
+ *
+ * <p>The breaker is closed while the share of failures among the most recent calls stays below a
+ * threshold. Once the threshold is reached, and enough calls have been made to judge, the breaker
+ * opens and rejects every call. After it has been open for a while, a single trial call is let
+ * through: the breaker closes again if the trial succeeds and stays open for another period if it
+ * fails.
+ */
+public class CircuitBreaker {
+  /** States of a circuit breaker. */
+  public enum State {
+    /** Calls are allowed and their outcomes are recorded. */
+    CLOSED,
+    /** Calls are rejected. */
+    OPEN,
+    /** A single trial call is allowed to check whether the remote API has recovered. */
+    HALF_OPEN
+  }
+
+  private final String name;
+  private final int minimumCalls;
+  private final double failureRateThreshold;
+  private final long openNanos;
+  private final LongSupplier nanoClock;
+
+  // Ring buffer of whether each of the most recent calls failed.
+  private final boolean[] outcomes;
+  private int outcomeCount;
+  private int nextOutcome;
+  private int failureCount;
+
+  private State state = State.CLOSED;
+  private long openedAtNanos;
+  private boolean trialCallStarted;
+  private long rejectedCount;
+
+  /**
+   * @param name Name of the remote API, used in log messages and errors.
+   * @param windowSize Number of recent calls whose outcomes are used to compute the failure rate.
+   * @param minimumCalls Number of calls in the window needed before the breaker can open.
+   * @param failureRateThreshold Share of failed calls in the window, between 0 and 1, that opens
+   *     the breaker.
+   * @param openMillis How long the breaker stays open before it lets a trial call through.
+   * @param nanoClock Source of System.nanoTime() values, which can be replaced in tests.
+   */
+  public CircuitBreaker(String name, int windowSize, int minimumCalls, double failureRateThreshold,
+      long openMillis, LongSupplier nanoClock) {
+    this.name = name;
+    this.outcomes = new boolean[Math.max(1, windowSize)];
+    this.minimumCalls = Math.max(1, Math.min(minimumCalls, outcomes.length));
+    this.failureRateThreshold = failureRateThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMillis));
+    this.nanoClock = nanoClock;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns whether a call may be made. A call that is allowed must report its outcome with {@link
+   * #onSuccess}, {@link #onFailure}, or {@link #onIgnored}.
+   */
+  public synchronized boolean tryAcquirePermission() {
+    if (state == State.OPEN && nanoClock.getAsLong() - openedAtNanos >= openNanos) {
+      state = State.HALF_OPEN;
+      trialCallStarted = false;
+    }
+
+    switch (state) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (!trialCallStarted) {
+          trialCallStarted = true;
+          return true;
+        }
+        rejectedCount++;
+        return false;
+      default:
+        rejectedCount++;
+        return false;
+    }
+  }
+
+  /** Records a call that succeeded, which closes the breaker if it was the trial call. */
+  public synchronized void onSuccess() {
+    if (state == State.HALF_OPEN) {
+      close();
+    } else if (state == State.CLOSED) {
+      recordOutcome(false);
+    }
+  }
+
+  /** Records a call that failed, which opens the breaker if the failure rate is too high. */
+  public synchronized void onFailure() {
+    if (state == State.HALF_OPEN) {
+      open();
+    } else if (state == State.CLOSED) {
+      recordOutcome(true);
+      if (outcomeCount >= minimumCalls && failureCount >= failureRateThreshold * outcomeCount) {
+        open();
+      }
+    }
+  }
+
+  /**
+   * Records a call whose outcome says nothing about the health of the remote API, such as a call
+   * that was never made or was cancelled. If it was the trial call, another trial call is allowed.
+   */
+  public synchronized void onIgnored() {
+    if (state == State.HALF_OPEN) {
+      trialCallStarted = false;
+    }
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  /** Returns how many calls the breaker has rejected. */
+  public synchronized long getRejectedCount() {
+    return rejectedCount;
+  }
+
+  private void recordOutcome(boolean failed) {
+    if (outcomeCount == outcomes.length) {
+      // Replace the oldest outcome.
+      if (outcomes[nextOutcome]) {
+        failureCount--;
+      }
+    } else {
+      outcomeCount++;
+    }
+
+    outcomes[nextOutcome] = failed;
+    if (failed) {
+      failureCount++;
+    }
+    nextOutcome = (nextOutcome + 1) % outcomes.length;
+  }
+
+  private void open() {
+    state = State.OPEN;
+    openedAtNanos = nanoClock.getAsLong();
+  }
+
+  private void close() {
+    state = State.CLOSED;
+    outcomeCount = 0;
+    nextOutcome = 0;
+    failureCount = 0;
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.api.gax.grpc.GrpcCallContext;
+import com.google.cloud.language.v1.ClassifyTextRequest;
+import com.google.cloud.language.v1.ClassifyTextResponse;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Sends analysis requests to the Cloud Vision and Cloud Natural Language APIs through the clients
+ * shared by this instance. The timeout of each request is set on its gRPC call, replacing the
+ * clients' default timeout.
+ */
+public class CloudAnalysisBackend implements AnalysisBackend {
+  @Override
+  public BatchAnnotateImagesResponse batchAnnotateImages(
+      List<AnnotateImageRequest> requests, Duration timeout) throws IOException {
+    BatchAnnotateImagesRequest request =
+        BatchAnnotateImagesRequest.newBuilder().addAllRequests(requests).build();
+    return ReceiptAnalysisClients.getImageAnnotatorClient().batchAnnotateImagesCallable().call(
+        request, createCallContext(timeout));
+  }
+
+  @Override
+  public ClassifyTextResponse classifyText(ClassifyTextRequest request, Duration timeout)
+      throws IOException {
+    return ReceiptAnalysisClients.getLanguageServiceClient().classifyTextCallable().call(
+        request, createCallContext(timeout));
+  }
+
+  @Override
+  public void warmUp() throws IOException {
+    ReceiptAnalysisClients.warmUp();
+  }
+
+  @Override
+  public void close() {
+    ReceiptAnalysisClients.close();
+  }
+
+  /** Returns a call context that fails the call once the timeout has passed. */
+  private static GrpcCallContext createCallContext(Duration timeout) {
+    return GrpcCallContext.createDefault().withTimeout(
+        org.threeten.bp.Duration.ofNanos(timeout.toNanos()));
+  }
+}
@@ -0,0 +1,516 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.Month;
+import java.time.Year;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the transaction date in the text of a receipt. These date formats are recognized:
+ *
+ * <ul>
+ *   <li>U.S. dates with the month first, such as 5/8/20 or 05-08-2020
+ *   <li>ISO dates, such as 2020-05-08, and dates with the year first, such as 2020/5/8
+ *   <li>Dates with the day first separated by periods, such as 8.5.20 or 08.05.2020
+ *   <li>Dates with month names, such as May 8, 2020, Sept. 8th 2020, 8 May 2020, or 08-MAY-20
+ * </ul>
+ *
+ * <p>Any of them can be followed by a 24-hour or 12-hour time, such as 14:30, 2:30:15 PM, or the
+ * T10:15:30 of an ISO date-time. A date cannot be part of a longer number or word, such as a phone
+ * or card number. The first match that is a real date is used. Two-digit years are in the 2000s
+ * unless that would put the date in the future, in which case they are in the 1900s.
+ *
+ * <p>The formats are matched by hand in a single pass over the text, like {@link
+ * ReceiptTextScanner}: each word is looked at once, and the digits of a match are turned into a
+ * date directly, without a regex or a date formatter. Extractors are immutable and thread-safe.
+ * The current date comes from the given clock.
+ */
+public final class DateExtractor {
+  /** A date found in the text, with the time printed next to it if there was one. */
+  public static final class ExtractedDate {
+    private final LocalDate date;
+    private final Optional<LocalTime> time;
+
+    private ExtractedDate(LocalDate date, Optional<LocalTime> time) {
+      this.date = date;
+      this.time = time;
+    }
+
+    public LocalDate getDate() {
+      return date;
+    }
+
+    public Optional<LocalTime> getTime() {
+      return time;
+    }
+  }
+
+  /** Fields of the date being matched, filled in as the text is read. */
+  private static final class Match {
+    private final CharSequence text;
+    private int year;
+    private int month;
+    private int day;
+    private boolean twoDigitYear;
+    // Index after the last character of the date, and of the time if there is one.
+    private int dateEnd;
+    private int end;
+    private int hour = -1;
+    private int minute;
+    private int second;
+
+    private Match(CharSequence text) {
+      this.text = text;
+    }
+  }
+
+  private static final long MILLIS_PER_DAY = TimeUnit.DAYS.toMillis(1);
+  // Full month names. A month can also be written as its first three letters, or as "sept".
+  private static final String[] MONTH_NAMES = {"january", "february", "march", "april", "may",
+      "june", "july", "august", "september", "october", "november", "december"};
+
+  private final Clock clock;
+
+  public DateExtractor(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the first valid date in the text, with its time if one follows it.
+   */
+  public Optional<ExtractedDate> extract(CharSequence text) {
+    Match match = new Match(text);
+    int length = text.length();
+    LocalDate today = null;
+    int i = 0;
+
+    // The loop only stops at the start of a word, since a date cannot start inside one.
+    while (i < length) {
+      char c = text.charAt(i);
+
+      if ((isDigit(c) || mayStartMonthName(c)) && matchDate(match, i)
+          && isValidDate(match.year, match.month, match.day)) {
+        LocalDate date = LocalDate.of(match.year, match.month, match.day);
+        if (match.twoDigitYear) {
+          if (today == null) {
+            today = LocalDate.now(clock);
+          }
+          if (date.isAfter(today)) {
+            date = date.minusYears(100);
+          }
+        }
+
+        Optional<LocalTime> time = match.hour >= 0
+            ? Optional.of(LocalTime.of(match.hour, match.minute, match.second))
+            : Optional.empty();
+        return Optional.of(new ExtractedDate(date, time));
+      }
+
+      // Skips the rest of the word and the characters after it that cannot start a date.
+      i = skipWord(text, i);
+    }
+
+    return Optional.empty();
+  }
+
+  /**
+   * Returns the first valid date in the text as the timestamp of the start of that day in UTC.
+   * The time is left out since the time zone of the receipt is not known.
+   */
+  public Optional<Long> extractTimestamp(CharSequence text) {
+    return extract(text).map(extracted -> extracted.getDate().toEpochDay() * MILLIS_PER_DAY);
+  }
+
+  /**
+   * Returns whether a date in one of the formats starts at the index and ends at a word boundary,
+   * filling in the match. A time after the date is included if it is a real time of day.
+   */
+  private static boolean matchDate(Match match, int start) {
+    boolean matched = isDigit(match.text.charAt(start))
+        ? matchNumericDate(match, start)
+        : matchMonthNameFirst(match, start);
+    if (!matched) {
+      return false;
+    }
+
+    match.hour = -1;
+    match.end = match.dateEnd;
+    if (matchTime(match) && isWordEnd(match.text, match.end)) {
+      return true;
+    }
+
+    match.hour = -1;
+    match.end = match.dateEnd;
+    return isWordEnd(match.text, match.end);
+  }
+
+  /**
+   * Matches a date that starts with a number: year first, month first, or day first with periods
+   * or a month name.
+   */
+  private static boolean matchNumericDate(Match match, int start) {
+    CharSequence text = match.text;
+    int firstEnd = skipDigits(text, start);
+    int firstDigits = firstEnd - start;
+    if (firstEnd == text.length()) {
+      return false;
+    }
+
+    char separator = text.charAt(firstEnd);
+    boolean numericSeparator = separator == '/' || separator == '-' || separator == '.';
+    if (numericSeparator && firstEnd + 1 < text.length() && isDigit(text.charAt(firstEnd + 1))) {
+      int secondStart = firstEnd + 1;
+      int secondEnd = skipDigits(text, secondStart);
+      if (secondEnd - secondStart > 2 || secondEnd == text.length()
+          || text.charAt(secondEnd) != separator) {
+        return false;
+      }
+
+      int thirdStart = secondEnd + 1;
+      int thirdEnd = skipDigits(text, thirdStart);
+      int thirdDigits = thirdEnd - thirdStart;
+      int first = parseDigits(text, start, firstEnd);
+      int second = parseDigits(text, secondStart, secondEnd);
+      int third = parseDigits(text, thirdStart, thirdEnd);
+      match.dateEnd = thirdEnd;
+
+      if (firstDigits == 4 && separator != '.' && thirdDigits >= 1 && thirdDigits <= 2) {
+        return setDate(match, first, second, third, false);
+      }
+      if (firstDigits > 2 || (thirdDigits != 2 && thirdDigits != 4)) {
+        return false;
+      }
+      return separator == '.'
+          ? setDate(match, third, second, first, thirdDigits == 2)
+          : setDate(match, third, first, second, thirdDigits == 2);
+    }
+
+    return firstDigits <= 2 && matchDayBeforeMonthName(match, start, firstEnd);
+  }
+
+  /** Matches a date such as 8 May 2020, 8th May, 2020, or 08-MAY-20. */
+  private static boolean matchDayBeforeMonthName(Match match, int start, int dayEnd) {
+    CharSequence text = match.text;
+    int i = skipOrdinal(text, dayEnd);
+    int monthStart = skipSpacesOrDashes(text, i);
+    if (monthStart == i) {
+      return false;
+    }
+
+    int monthEnd = matchMonthName(match, monthStart);
+    if (monthEnd < 0) {
+      return false;
+    }
+
+    i = monthEnd < text.length() && text.charAt(monthEnd) == ',' ? monthEnd + 1 : monthEnd;
+    int yearStart = skipSpacesOrDashes(text, i);
+    int yearEnd = skipDigits(text, yearStart);
+    int yearDigits = yearEnd - yearStart;
+    if (yearStart == i || (yearDigits != 2 && yearDigits != 4)) {
+      return false;
+    }
+
+    match.dateEnd = yearEnd;
+    return setDate(match, parseDigits(text, yearStart, yearEnd), match.month,
+        parseDigits(text, start, dayEnd), yearDigits == 2);
+  }
+
+  /** Matches a date such as May 8, 2020 or SEPT. 8th 2020. */
+  private static boolean matchMonthNameFirst(Match match, int start) {
+    CharSequence text = match.text;
+    int monthEnd = matchMonthName(match, start);
+    if (monthEnd < 0) {
+      return false;
+    }
+
+    int dayStart = skipWhitespace(text, monthEnd);
+    int dayEnd = skipDigits(text, dayStart);
+    if (dayStart == monthEnd || dayEnd == dayStart || dayEnd - dayStart > 2) {
+      return false;
+    }
+
+    int i = skipOrdinal(text, dayEnd);
+    i = i < text.length() && text.charAt(i) == ',' ? i + 1 : i;
+    int yearStart = skipWhitespace(text, i);
+    int yearEnd = skipDigits(text, yearStart);
+    if (yearStart == i || yearEnd - yearStart != 4) {
+      return false;
+    }
+
+    match.dateEnd = yearEnd;
+    return setDate(match, parseDigits(text, yearStart, yearEnd), match.month,
+        parseDigits(text, dayStart, dayEnd), false);
+  }
+
+  /**
+   * Matches a month name or abbreviation, optionally followed by a period, and sets the month of
+   * the match. Returns the index after it, or -1 if there is none.
+   */
+  private static int matchMonthName(Match match, int start) {
+    CharSequence text = match.text;
+    int end = start;
+    while (end < text.length() && isLetter(text.charAt(end))) {
+      end++;
+    }
+
+    // Month names are three to nine letters long.
+    int length = end - start;
+    if (length < 3 || length > 9) {
+      return -1;
+    }
+
+    for (int month = 0; month < MONTH_NAMES.length; month++) {
+      String name = MONTH_NAMES[month];
+      boolean abbreviation = length == 3 || (month == 8 && length == 4);
+      if ((abbreviation || length == name.length()) && length <= name.length()
+          && startsWithIgnoreCase(text, start, name, length)) {
+        match.month = month + 1;
+        return end < text.length() && text.charAt(end) == '.' ? end + 1 : end;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Matches a time after the date, such as 14:30, 2:30:15 PM, or T10:15:30, and sets the time and
+   * end of the match. Returns false if there is no time or it is not a real time of day.
+   */
+  private static boolean matchTime(Match match) {
+    CharSequence text = match.text;
+    int i = match.dateEnd;
+    if (i < text.length() && (text.charAt(i) == 'T' || text.charAt(i) == 't')) {
+      i++;
+    } else {
+      int afterWhitespace = skipWhitespace(text, i);
+      if (afterWhitespace == i) {
+        return false;
+      }
+      i = afterWhitespace;
+    }
+
+    int hourEnd = skipDigits(text, i);
+    if (hourEnd == i || hourEnd - i > 2 || !hasDigitsAfterColon(text, hourEnd)) {
+      return false;
+    }
+    int hour = parseDigits(text, i, hourEnd);
+    int minute = parseDigits(text, hourEnd + 1, hourEnd + 3);
+    int second = 0;
+    i = hourEnd + 3;
+
+    if (hasDigitsAfterColon(text, i)) {
+      second = parseDigits(text, i + 1, i + 3);
+      i += 3;
+    }
+
+    int meridiemEnd = matchMeridiem(text, i);
+    if (meridiemEnd > i) {
+      if (hour < 1 || hour > 12) {
+        return false;
+      }
+      boolean pm = Character.toLowerCase(text.charAt(skipWhitespace(text, i))) == 'p';
+      hour = hour % 12 + (pm ? 12 : 0);
+      i = meridiemEnd;
+    }
+
+    if (hour > 23 || minute > 59 || second > 59) {
+      return false;
+    }
+
+    match.hour = hour;
+    match.minute = minute;
+    match.second = second;
+    match.end = i;
+    return true;
+  }
+
+  /**
+   * Matches AM or PM, optionally with periods and after whitespace. Returns the index after it, or
+   * the given index if there is none.
+   */
+  private static int matchMeridiem(CharSequence text, int start) {
+    int i = skipWhitespace(text, start);
+    if (i >= text.length()) {
+      return start;
+    }
+
+    char letter = Character.toLowerCase(text.charAt(i));
+    if (letter != 'a' && letter != 'p') {
+      return start;
+    }
+    i = skipPeriod(text, i + 1);
+    if (i >= text.length() || Character.toLowerCase(text.charAt(i)) != 'm') {
+      return start;
+    }
+    return skipPeriod(text, i + 1);
+  }
+
+  /** Sets the date of the match. Always returns true, so it can end a successful match. */
+  private static boolean setDate(Match match, int year, int month, int day, boolean twoDigitYear) {
+    match.year = twoDigitYear ? 2000 + year : year;
+    match.month = month;
+    match.day = day;
+    match.twoDigitYear = twoDigitYear;
+    return true;
+  }
+
+  /** Returns whether the year, month, and day make a real date. */
+  private static boolean isValidDate(int year, int month, int day) {
+    return month >= 1 && month <= 12 && day >= 1
+        && day <= Month.of(month).length(Year.isLeap(year));
+  }
+
+  /**
+   * Returns whether a match may end at the index: it must not be followed by more of a word or
+   * number, though it can end a sentence.
+   */
+  private static boolean isWordEnd(CharSequence text, int index) {
+    if (index >= text.length()) {
+      return true;
+    }
+
+    char c = text.charAt(index);
+    if (c == '.' || c == ',') {
+      return index + 1 >= text.length() || !isDigit(text.charAt(index + 1));
+    }
+    return !isLetterOrDigit(c) && c != '_' && c != '/' && c != '-' && c != ':';
+  }
+
+  private static boolean hasDigitsAfterColon(CharSequence text, int index) {
+    return index + 2 < text.length() && text.charAt(index) == ':'
+        && isDigit(text.charAt(index + 1)) && isDigit(text.charAt(index + 2));
+  }
+
+  private static boolean startsWithIgnoreCase(
+      CharSequence text, int start, String lowerCasePrefix, int length) {
+    for (int i = 0; i < length; i++) {
+      if (Character.toLowerCase(text.charAt(start + i)) != lowerCasePrefix.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int parseDigits(CharSequence text, int start, int end) {
+    int value = 0;
+    for (int i = start; i < end; i++) {
+      value = value * 10 + (text.charAt(i) - '0');
+    }
+    return value;
+  }
+
+  /** Skips an ordinal suffix such as "st" or "th" after a day. */
+  private static int skipOrdinal(CharSequence text, int start) {
+    if (start + 1 >= text.length()) {
+      return start;
+    }
+
+    char first = Character.toLowerCase(text.charAt(start));
+    char second = Character.toLowerCase(text.charAt(start + 1));
+    boolean ordinal = (first == 's' && second == 't') || (first == 'n' && second == 'd')
+        || (first == 'r' && second == 'd') || (first == 't' && second == 'h');
+    return ordinal ? start + 2 : start;
+  }
+
+  private static int skipDigits(CharSequence text, int start) {
+    int i = start;
+    while (i < text.length() && isDigit(text.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int skipWhitespace(CharSequence text, int start) {
+    int i = start;
+    while (i < text.length() && isWhitespace(text.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int skipSpacesOrDashes(CharSequence text, int start) {
+    int i = start;
+    while (i < text.length() && (isWhitespace(text.charAt(i)) || text.charAt(i) == '-')) {
+      i++;
+    }
+    return i;
+  }
+
+  private static int skipPeriod(CharSequence text, int index) {
+    return index < text.length() && text.charAt(index) == '.' ? index + 1 : index;
+  }
+
+  /**
+   * Returns the index of the next word start after the index: the first character after the
+   * index that follows a character that is not part of a word.
+   */
+  private static int skipWord(CharSequence text, int start) {
+    int length = text.length();
+    int i = start;
+    boolean previousIsWordPart = isWordPart(text.charAt(i));
+    i++;
+
+    while (i < length) {
+      if (!previousIsWordPart) {
+        char c = text.charAt(i);
+        if (isDigit(c) || mayStartMonthName(c)) {
+          return i;
+        }
+        previousIsWordPart = isWordPart(c);
+      } else {
+        previousIsWordPart = isWordPart(text.charAt(i));
+      }
+      i++;
+    }
+    return i;
+  }
+
+  /** Returns whether the character is the first letter of a month name, in either case. */
+  private static boolean mayStartMonthName(char c) {
+    switch (c) {
+      case 'a': case 'A': case 'd': case 'D': case 'f': case 'F': case 'j': case 'J':
+      case 'm': case 'M': case 'n': case 'N': case 'o': case 'O': case 's': case 'S':
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /** Returns whether the character continues a word or number that a date cannot start inside. */
+  private static boolean isWordPart(char c) {
+    return isLetterOrDigit(c) || c == '_' || c == '.' || c == '/' || c == '-';
+  }
+
+  private static boolean isLetterOrDigit(char c) {
+    return isLetter(c) || isDigit(c);
+  }
+
+  private static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /** Matches the characters of the \s regex class. */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+}
@@ -49,7 +49,15 @@ public class DeleteReceiptServlet extends HttpServlet {
 
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    if (!userService.isUserLoggedIn()) {
+    boolean isUserLoggedIn;
+    int userSpan = RequestTrace.startSpan("user_lookup");
+    try {
+      isUserLoggedIn = userService.isUserLoggedIn();
+    } finally {
+      RequestTrace.endSpan(userSpan);
+    }
+
+    if (!isUserLoggedIn) {
       response.setStatus(HttpServletResponse.SC_FORBIDDEN);
       response.getWriter().println(NO_AUTHENTICATION_MESSAGE);
       return;
@@ -67,12 +75,20 @@ public class DeleteReceiptServlet extends HttpServlet {
     }
 
     Key key = KeyFactory.createKey("Receipt", id);
+    long startNanos = System.nanoTime();
+    int span = RequestTrace.startSpan("delete");
     try {
       datastore.delete(key);
+      ReceiptIndexes.removeReceipt(id);
+      SearchResultsCache.invalidate(userService.getCurrentUser().getUserId());
     } catch (DatastoreFailureException exception) {
+      Metrics.countStageFailure("delete");
       response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       response.getWriter().println(
           "Datastore Error: Receipt unable to be deleted at this time, please try again.");
+    } finally {
+      RequestTrace.endSpan(span);
+      Metrics.recordStage("delete", startNanos);
     }
   }
 }
\ No newline at end of file
@@ -67,7 +67,15 @@ public class EditReceiptServlet extends HttpServlet {
    */
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    if (!userService.isUserLoggedIn()) {
+    boolean isUserLoggedIn;
+    int userSpan = RequestTrace.startSpan("user_lookup");
+    try {
+      isUserLoggedIn = userService.isUserLoggedIn();
+    } finally {
+      RequestTrace.endSpan(userSpan);
+    }
+
+    if (!isUserLoggedIn) {
       logger.warning(USER_NOT_LOGGED_IN_WARNING);
       response.setStatus(HttpServletResponse.SC_FORBIDDEN);
       response.getWriter().println(USER_NOT_LOGGED_IN_WARNING);
@@ -86,17 +94,31 @@ public class EditReceiptServlet extends HttpServlet {
       return;
     }
 
+    long startNanos = System.nanoTime();
+    int putSpan = RequestTrace.startSpan("edit_put");
     try {
       datastore.put(receipt);
     } catch (DatastoreFailureException datastoreException) {
+      Metrics.countStageFailure("edit_put");
       logger.warning(datastoreException.toString());
       response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       response.getWriter().println(datastoreException.toString());
       return;
+    } finally {
+      RequestTrace.endSpan(putSpan);
+      Metrics.recordStage("edit_put", startNanos);
     }
+    ReceiptIndexes.updateReceipt(receipt);
+    SearchResultsCache.invalidate((String) receipt.getProperty("userId"));
 
     // Send the JSON receipt as the response.
-    String json = new Gson().toJson(receipt);
+    String json;
+    int jsonSpan = RequestTrace.startSpan("json");
+    try {
+      json = new Gson().toJson(receipt);
+    } finally {
+      RequestTrace.endSpan(jsonSpan);
+    }
     response.setContentType("application/json;");
     response.getWriter().println(json);
   }
@@ -108,7 +130,15 @@ public class EditReceiptServlet extends HttpServlet {
   private Entity createUpdatedReceipt(HttpServletRequest request, long id)
       throws EntityNotFoundException, InvalidPriceException, InvalidDateException {
     Key key = KeyFactory.createKey("Receipt", id);
-    Entity receipt = datastore.get(key);
+    long startNanos = System.nanoTime();
+    int getSpan = RequestTrace.startSpan("edit_get");
+    Entity receipt;
+    try {
+      receipt = datastore.get(key);
+    } finally {
+      RequestTrace.endSpan(getSpan);
+    }
+    Metrics.recordStage("edit_get", startNanos);
 
     String store = FormatUtils.sanitize(request.getParameter("store"));
     double price = FormatUtils.roundPrice(request.getParameter("price"));
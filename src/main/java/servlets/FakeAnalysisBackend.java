@@ -0,0 +1,175 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.DeadlineExceededException;
+import com.google.cloud.language.v1.ClassificationCategory;
+import com.google.cloud.language.v1.ClassifyTextRequest;
+import com.google.cloud.language.v1.ClassifyTextResponse;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import io.grpc.Status;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Analysis backend that answers every request in-process with canned responses after a simulated
+ * delay, so the whole analysis pipeline can be benchmarked and soak tested without network access.
+ * The delay follows a configurable distribution, and a configurable share of requests fails with
+ * an UNAVAILABLE error like a degraded Cloud API. Requests whose delay is longer than their timeout
+ * fail with a DEADLINE_EXCEEDED error once the timeout has passed.
+ *
+ * <p>The Vision response contains the text of a grocery receipt with a date and prices, and a
+ * store logo. The classification response contains a single category.
+ */
+public class FakeAnalysisBackend implements AnalysisBackend {
+  /** Shapes of the simulated delay of each request. */
+  public enum LatencyDistribution {
+    /** Every request takes the configured latency. */
+    FIXED,
+    /** Latency is normally distributed around the configured latency with the given spread. */
+    NORMAL,
+    /**
+     * Latency is log-normally distributed with the configured latency as its median and the given
+     * spread as the standard deviation of its logarithm, so a few requests are much slower.
+     */
+    LONG_TAIL
+  }
+
+  public static final String RECEIPT_TEXT = "WALMART\nSupercenter\n05/08/2020 14:32\nBANANAS 1.29\n"
+      + "MILK 3.49\nBREAD 2.99\nSUBTOTAL 7.77\nTAX 0.62\nTOTAL $8.39\n";
+  public static final String STORE = "Walmart";
+  public static final String CATEGORY = "/Food & Drink/Groceries";
+  private static final float LOGO_SCORE = 0.9f;
+
+  private final LatencyDistribution distribution;
+  private final long latencyMillis;
+  private final double spread;
+  private final double errorRate;
+  private final Supplier<Random> random;
+
+  /**
+   * @param latencyMillis Latency of a fixed delay, mean of a normal delay, or median of a long-tail
+   *     delay.
+   * @param spread Standard deviation in milliseconds of a normal delay, or standard deviation of
+   *     the logarithm of a long-tail delay. Ignored for a fixed delay.
+   * @param errorRate Share of requests, between 0 and 1, that fail.
+   */
+  public FakeAnalysisBackend(LatencyDistribution distribution, long latencyMillis, double spread,
+      double errorRate, Supplier<Random> random) {
+    this.distribution = distribution;
+    this.latencyMillis = Math.max(0, latencyMillis);
+    this.spread = Math.max(0, spread);
+    this.errorRate = errorRate;
+    this.random = random;
+  }
+
+  /**
+   * Creates a fake backend configured by the receiptAnalysis.fake.latency ("fixed", "normal", or
+   * "long_tail"), receiptAnalysis.fake.latencyMillis, receiptAnalysis.fake.latencySpread, and
+   * receiptAnalysis.fake.errorRate system properties.
+   */
+  public static FakeAnalysisBackend fromSystemProperties() {
+    LatencyDistribution distribution = LatencyDistribution.valueOf(
+        System.getProperty("receiptAnalysis.fake.latency", "fixed").toUpperCase(Locale.ROOT));
+    long latencyMillis = Long.getLong("receiptAnalysis.fake.latencyMillis", 200);
+    double spread =
+        Double.parseDouble(System.getProperty("receiptAnalysis.fake.latencySpread", "0"));
+    double errorRate =
+        Double.parseDouble(System.getProperty("receiptAnalysis.fake.errorRate", "0"));
+
+    return new FakeAnalysisBackend(
+        distribution, latencyMillis, spread, errorRate, ThreadLocalRandom::current);
+  }
+
+  @Override
+  public BatchAnnotateImagesResponse batchAnnotateImages(
+      List<AnnotateImageRequest> requests, Duration timeout) throws IOException {
+    simulateRequest(timeout);
+
+    EntityAnnotation text = EntityAnnotation.newBuilder().setDescription(RECEIPT_TEXT).build();
+    EntityAnnotation logo =
+        EntityAnnotation.newBuilder().setDescription(STORE).setScore(LOGO_SCORE).build();
+    AnnotateImageResponse response = AnnotateImageResponse.newBuilder()
+                                         .addTextAnnotations(text)
+                                         .addLogoAnnotations(logo)
+                                         .build();
+
+    BatchAnnotateImagesResponse.Builder batchResponse = BatchAnnotateImagesResponse.newBuilder();
+    for (int i = 0; i < requests.size(); i++) {
+      batchResponse.addResponses(response);
+    }
+    return batchResponse.build();
+  }
+
+  @Override
+  public ClassifyTextResponse classifyText(ClassifyTextRequest request, Duration timeout)
+      throws IOException {
+    simulateRequest(timeout);
+
+    ClassificationCategory category =
+        ClassificationCategory.newBuilder().setName(CATEGORY).setConfidence(0.9f).build();
+    return ClassifyTextResponse.newBuilder().addCategories(category).build();
+  }
+
+  /**
+   * Returns a delay in milliseconds drawn from the configured distribution.
+   */
+  public long sampleLatencyMillis() {
+    switch (distribution) {
+      case NORMAL:
+        return Math.max(0, Math.round(latencyMillis + spread * random.get().nextGaussian()));
+      case LONG_TAIL:
+        return Math.round(latencyMillis * Math.exp(spread * random.get().nextGaussian()));
+      default:
+        return latencyMillis;
+    }
+  }
+
+  /**
+   * Waits for a simulated delay, then fails the request with the configured error rate. If the
+   * delay is longer than the timeout, waits for the timeout and fails the request.
+   */
+  private void simulateRequest(Duration timeout) throws IOException {
+    long latencyMillis = sampleLatencyMillis();
+    long timeoutMillis = timeout.toMillis();
+
+    try {
+      Thread.sleep(Math.min(latencyMillis, timeoutMillis));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted during simulated request.", e);
+    }
+
+    if (latencyMillis > timeoutMillis) {
+      throw new DeadlineExceededException("Simulated request timed out.", null,
+          GrpcStatusCode.of(Status.Code.DEADLINE_EXCEEDED), true);
+    }
+
+    if (random.get().nextDouble() < errorRate) {
+      throw new ApiException(
+          "Simulated failure.", null, GrpcStatusCode.of(Status.Code.UNAVAILABLE), true);
+    }
+  }
+}
@@ -14,14 +14,18 @@
 
 package com.google.sps.servlets;
 
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
 import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.AnalysisResults;
 import java.time.Clock;
 import java.util.Arrays;
 import java.util.stream.Stream;
 import javax.servlet.http.HttpServletRequest;
 
 /**
- * Contains methods used by the upload and edit servlets for formatting receipt fields.
+ * Contains methods used by the upload, processing, and edit servlets for formatting receipt
+ * fields.
  */
 public final class FormatUtils {
   /**
@@ -45,6 +49,43 @@ public final class FormatUtils {
     return categories.map(FormatUtils::sanitize).collect(ImmutableSet.toImmutableSet());
   }
 
+  /**
+   * Sets the receipt properties extracted by receipt analysis. Dates in the future and negative
+   * prices are left out since they must have been parsed incorrectly.
+   */
+  public static void setAnalysisResults(Entity receipt, AnalysisResults results, Clock clock) {
+    // Set the timestamp if a date was parsed.
+    results.getTransactionTimestamp().ifPresent(timestamp -> {
+      try {
+        checkTimestampIsInPast(timestamp, clock);
+      } catch (InvalidDateException exception) {
+        // Don't add timestamp property if parsing is invalid.
+        return;
+      }
+
+      receipt.setProperty("timestamp", timestamp);
+    });
+
+    // Set the price if it was parsed.
+    results.getPrice().ifPresent(price -> {
+      try {
+        receipt.setProperty("price", roundPrice(price));
+      } catch (InvalidPriceException exception) {
+        // Don't add price property if parsing is invalid
+        return;
+      }
+    });
+
+    // Text objects wrap around a string of unlimited size while strings are limited to 1500 bytes.
+    results.getRawText().ifPresent(
+        rawText -> receipt.setUnindexedProperty("rawText", new Text(rawText)));
+    receipt.setProperty(
+        "categories", sanitizeCategories(results.getCategories().stream()));
+    // If a logo was detected, set the store name.
+    results.getStore().ifPresent(
+        store -> receipt.setProperty("store", sanitize(store)));
+  }
+
   /**
    * Converts the date parameter from the request to a timestamp and verifies that the date is in
    * the past.
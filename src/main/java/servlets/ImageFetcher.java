@@ -0,0 +1,220 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Optional;
+
+/**
+ * Fetches images from URLs with connect and read timeouts and a cap on the number of bytes read.
+ * The cap is enforced while the body is read, so a server that sends more than it announced, or
+ * announces nothing, cannot make the instance hold more than the cap in memory.
+ *
+ * <p>Connections are reused: the JDK keeps HTTP connections alive when their response body is read
+ * to the end and the stream is closed, so every successful fetch, and every error response whose
+ * body is small, returns its connection to the keep-alive pool. The pool size is set with the
+ * {@code http.maxConnections} system property. Connections are only dropped when a body is too
+ * large to drain.
+ *
+ * <p>Fetches can be conditional: given the ETag and Last-Modified validators of an earlier
+ * response, an unchanged image is answered with 304 Not Modified and no body.
+ */
+public class ImageFetcher {
+  /** The outcome of a fetch: either the image and its validators, or that it has not changed. */
+  public static final class Response {
+    private final boolean notModified;
+    private final ByteString bytes;
+    private final Optional<String> eTag;
+    private final Optional<String> lastModified;
+
+    private Response(boolean notModified, ByteString bytes, Optional<String> eTag,
+        Optional<String> lastModified) {
+      this.notModified = notModified;
+      this.bytes = bytes;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+    }
+
+    /** Returns a response holding the image and the validators sent with it. */
+    public static Response of(
+        ByteString bytes, Optional<String> eTag, Optional<String> lastModified) {
+      return new Response(false, bytes, eTag, lastModified);
+    }
+
+    /** Returns a response saying that the image has not changed since the given validators. */
+    public static Response notModified() {
+      return new Response(true, ByteString.EMPTY, Optional.empty(), Optional.empty());
+    }
+
+    /** Returns whether the server said the image has not changed, in which case it has no bytes. */
+    public boolean isNotModified() {
+      return notModified;
+    }
+
+    public ByteString getBytes() {
+      return bytes;
+    }
+
+    public Optional<String> getETag() {
+      return eTag;
+    }
+
+    public Optional<String> getLastModified() {
+      return lastModified;
+    }
+  }
+
+  // Error bodies up to this size are read and discarded so that the connection can be reused.
+  private static final int MAX_DRAINED_BYTES = 64 * 1024;
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final int maxBytes;
+
+  /**
+   * @param connectTimeoutMillis Longest time to wait for a connection to the server.
+   * @param readTimeoutMillis Longest time to wait for each read from the server.
+   * @param maxBytes Largest image that is read. Larger images fail the fetch.
+   */
+  public ImageFetcher(int connectTimeoutMillis, int readTimeoutMillis, int maxBytes) {
+    this.connectTimeoutMillis = Math.max(1, connectTimeoutMillis);
+    this.readTimeoutMillis = Math.max(1, readTimeoutMillis);
+    this.maxBytes = Math.max(0, maxBytes);
+  }
+
+  /**
+   * Creates a fetcher configured with system properties.
+   */
+  public static ImageFetcher fromSystemProperties() {
+    return new ImageFetcher(Integer.getInteger("receiptAnalysis.fetchConnectTimeoutMillis", 5_000),
+        Integer.getInteger("receiptAnalysis.fetchReadTimeoutMillis", 10_000),
+        Integer.getInteger("receiptAnalysis.fetchMaxBytes", 10 * 1024 * 1024));
+  }
+
+  /** Fetches the image at the URL. */
+  public Response fetch(URL url) throws IOException {
+    return fetch(url, Optional.empty(), Optional.empty());
+  }
+
+  /**
+   * Fetches the image at the URL, unless the server says it has not changed since the response
+   * that had the given ETag and Last-Modified validators.
+   */
+  public Response fetch(URL url, Optional<String> eTag, Optional<String> lastModified)
+      throws IOException {
+    URLConnection connection = url.openConnection();
+    connection.setConnectTimeout(getTimeoutMillis(connectTimeoutMillis));
+    connection.setReadTimeout(getTimeoutMillis(readTimeoutMillis));
+    connection.setUseCaches(false);
+
+    if (!(connection instanceof HttpURLConnection)) {
+      // Other protocols have no status or validators, but the timeouts and cap still apply.
+      try (InputStream input = connection.getInputStream()) {
+        return Response.of(readBounded(input, connection.getContentLengthLong()), Optional.empty(),
+            Optional.empty());
+      }
+    }
+
+    HttpURLConnection httpConnection = (HttpURLConnection) connection;
+    eTag.ifPresent(value -> httpConnection.setRequestProperty("If-None-Match", value));
+    lastModified.ifPresent(value -> httpConnection.setRequestProperty("If-Modified-Since", value));
+
+    int status = httpConnection.getResponseCode();
+    if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      drain(httpConnection.getInputStream());
+      return Response.notModified();
+    }
+    if (status < 200 || status >= 300) {
+      drain(httpConnection.getErrorStream());
+      throw new IOException("Fetching " + url + " failed with HTTP status " + status + ".");
+    }
+
+    ByteString bytes;
+    try (InputStream input = httpConnection.getInputStream()) {
+      bytes = readBounded(input, httpConnection.getContentLengthLong());
+    } catch (IOException e) {
+      // The rest of the body was not read, so the connection cannot be reused.
+      httpConnection.disconnect();
+      throw e;
+    }
+
+    return Response.of(bytes, Optional.ofNullable(httpConnection.getHeaderField("ETag")),
+        Optional.ofNullable(httpConnection.getHeaderField("Last-Modified")));
+  }
+
+  /**
+   * Reads the stream to the end, failing as soon as more than the maximum number of bytes has been
+   * read. The buffer is sized from the announced length when there is one.
+   */
+  private ByteString readBounded(InputStream input, long contentLength) throws IOException {
+    if (contentLength > maxBytes) {
+      throw new IOException(
+          "Image is " + contentLength + " bytes, larger than the limit of " + maxBytes + ".");
+    }
+
+    int initialSize = contentLength > 0 ? (int) contentLength : BUFFER_SIZE;
+    ByteArrayOutputStream output = new ByteArrayOutputStream(initialSize);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int read;
+
+    while ((read = input.read(buffer)) != -1) {
+      if (output.size() + read > maxBytes) {
+        throw new IOException("Image is larger than the limit of " + maxBytes + " bytes.");
+      }
+      output.write(buffer, 0, read);
+    }
+
+    // The array is a copy that nothing else refers to, so it is safe to share with the ByteString.
+    return UnsafeByteOperations.unsafeWrap(output.toByteArray());
+  }
+
+  /**
+   * Reads and discards a small response body and closes the stream, which returns the connection
+   * to the keep-alive pool.
+   */
+  private static void drain(InputStream input) {
+    if (input == null) {
+      return;
+    }
+
+    try (InputStream body = input) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int drained = 0;
+      int read;
+      while (drained <= MAX_DRAINED_BYTES && (read = body.read(buffer)) != -1) {
+        drained += read;
+      }
+    } catch (IOException e) {
+      // The connection is closed instead of reused, which needs no handling.
+    }
+  }
+
+  /**
+   * Returns the timeout, shortened so that it ends before the current request does. A timeout of
+   * zero means no timeout, so at least one millisecond is returned.
+   */
+  private static int getTimeoutMillis(int timeoutMillis) {
+    long remainingMillis = CallDeadline.getRemainingMillis();
+    return (int) Math.max(1, Math.min(timeoutMillis, remainingMillis));
+  }
+}
@@ -0,0 +1,314 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.protobuf.ByteString;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Shrinks receipt images before they are sent to Cloud Vision. Phone photos are much larger than
+ * text detection needs, so images are downscaled to a maximum edge length, optionally converted to
+ * grayscale, and encoded again as JPEG.
+ *
+ * <p>Images about twice the maximum edge or longer are subsampled while they are decoded, skipping
+ * whole rows and columns, so that the decoded image is less than twice the maximum edge long.
+ * Subsampling may leave the image slightly shorter than the maximum edge, which text detection does
+ * not notice, so that a 4032 by 3024 phone photo is decoded at 2016 by 1512 with the default edge
+ * of 2048 rather than at full size. Streams are cached in memory rather than in temporary files.
+ * Images that cannot be decoded, or that would not get smaller, are returned unchanged.
+ *
+ * <p>The processed image has no metadata, so the EXIF orientation of a phone photo taken sideways
+ * is applied to its pixels, and the text stays upright for Cloud Vision.
+ */
+public class ImagePreprocessor {
+  // Share of the maximum edge that subsampling may take an image below, so that common photos
+  // slightly less than twice the maximum edge long are still subsampled.
+  private static final double SUBSAMPLING_TOLERANCE = 0.05;
+  // EXIF orientation of an image that is stored upright.
+  private static final int UPRIGHT = 1;
+  private static final int ORIENTATION_TAG = 0x0112;
+  private static final ByteString EXIF_IDENTIFIER =
+      ByteString.copyFrom(new byte[] {'E', 'x', 'i', 'f', 0, 0});
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ImagePreprocessor.class.getName());
+
+  private final int maxEdge;
+  private final boolean grayscale;
+  private final float jpegQuality;
+
+  /**
+   * @param maxEdge Maximum width and height of the processed image in pixels. Images are not
+   *     resized if this is zero.
+   * @param grayscale Whether to convert images to grayscale.
+   * @param jpegQuality JPEG quality of the processed image, between 0 and 1.
+   */
+  public ImagePreprocessor(int maxEdge, boolean grayscale, float jpegQuality) {
+    this.maxEdge = Math.max(0, maxEdge);
+    this.grayscale = grayscale;
+    this.jpegQuality = Math.max(0, Math.min(jpegQuality, 1));
+  }
+
+  /**
+   * Returns the processed image, or the original image if it could not be processed or would not
+   * get smaller. The sizes and time taken are logged.
+   */
+  public ByteString process(ByteString imageBytes) {
+    long startNanos = System.nanoTime();
+    ByteString processedBytes;
+
+    try {
+      processedBytes = resize(imageBytes);
+    } catch (IOException | RuntimeException e) {
+      logger.warning("Image pre-processing failed, using the original image: " + e);
+      return imageBytes;
+    }
+
+    if (processedBytes.size() >= imageBytes.size()) {
+      processedBytes = imageBytes;
+    }
+
+    logger.info(String.format("Pre-processed image from %d to %d bytes in %d ms.",
+        imageBytes.size(), processedBytes.size(), (System.nanoTime() - startNanos) / 1_000_000));
+    return processedBytes;
+  }
+
+  /**
+   * Decodes, resizes, and encodes the image. Returns the original image if it does not need to
+   * change.
+   */
+  private ByteString resize(ByteString imageBytes) throws IOException {
+    BufferedImage image;
+
+    try (InputStream input = imageBytes.newInput();
+         ImageInputStream imageInput = new MemoryCacheImageInputStream(input)) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInput);
+      if (!readers.hasNext()) {
+        // Not an image format that can be decoded.
+        return imageBytes;
+      }
+
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(imageInput, /* seekForwardOnly = */ true, /* ignoreMetadata = */ true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        boolean tooLarge = maxEdge > 0 && Math.max(width, height) > maxEdge;
+
+        if (!tooLarge && !grayscale) {
+          return imageBytes;
+        }
+
+        // Skip whole rows and columns while decoding, keeping the image about maxEdge pixels long
+        // or longer so that it can then be scaled smoothly to the exact size.
+        ImageReadParam param = reader.getDefaultReadParam();
+        int subsampling = tooLarge ? getSubsampling(Math.max(width, height)) : 1;
+        if (subsampling >= 2) {
+          param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        image = reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+
+    return encode(scale(image, readOrientation(imageBytes)));
+  }
+
+  /**
+   * Returns the largest subsampling factor that keeps an edge of the given length within the
+   * tolerance of the maximum edge or longer. Subsampling by n keeps every nth pixel, rounding the
+   * length up.
+   */
+  private int getSubsampling(int edge) {
+    int minEdge = (int) Math.ceil(maxEdge * (1 - SUBSAMPLING_TOLERANCE));
+    if (minEdge <= 1) {
+      return edge;
+    }
+    return Math.max(1, (edge - 1) / (minEdge - 1));
+  }
+
+  /**
+   * Scales the image so that its longest edge is at most the maximum edge, turns it upright, and
+   * converts it to the output color model.
+   *
+   * @param orientation EXIF orientation of the image, from 1 to 8.
+   */
+  private BufferedImage scale(BufferedImage image, int orientation) {
+    double scale = 1;
+    if (maxEdge > 0) {
+      scale = Math.min(1, (double) maxEdge / Math.max(image.getWidth(), image.getHeight()));
+    }
+
+    int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+    int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+    int type = grayscale ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+
+    // Orientations 5 to 8 turn the image a quarter, which swaps its width and height.
+    boolean isTransposed = orientation >= 5;
+    BufferedImage scaled = isTransposed ? new BufferedImage(height, width, type)
+                                        : new BufferedImage(width, height, type);
+    Graphics2D graphics = scaled.createGraphics();
+    try {
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.transform(getUprightTransform(orientation, width, height));
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+
+    return scaled;
+  }
+
+  /**
+   * Returns the transform that maps a stored image of the given size to its upright position, as
+   * defined for each EXIF orientation.
+   */
+  private static AffineTransform getUprightTransform(int orientation, int width, int height) {
+    // Arguments are m00, m10, m01, m11, m02, m12, where x' = m00 x + m01 y + m02 and
+    // y' = m10 x + m11 y + m12.
+    switch (orientation) {
+      case 2: // Mirrored horizontally.
+        return new AffineTransform(-1, 0, 0, 1, width, 0);
+      case 3: // Rotated 180 degrees.
+        return new AffineTransform(-1, 0, 0, -1, width, height);
+      case 4: // Mirrored vertically.
+        return new AffineTransform(1, 0, 0, -1, 0, height);
+      case 5: // Mirrored along the top-left to bottom-right diagonal.
+        return new AffineTransform(0, 1, 1, 0, 0, 0);
+      case 6: // Needs a quarter turn clockwise.
+        return new AffineTransform(0, 1, -1, 0, height, 0);
+      case 7: // Mirrored along the top-right to bottom-left diagonal.
+        return new AffineTransform(0, -1, -1, 0, height, width);
+      case 8: // Needs a quarter turn counterclockwise.
+        return new AffineTransform(0, -1, 1, 0, 0, width);
+      default:
+        return new AffineTransform();
+    }
+  }
+
+  /**
+   * Returns the EXIF orientation of a JPEG image, or {@link #UPRIGHT} if it has none. The
+   * orientation is read from the first directory of the Exif APP1 segment.
+   */
+  private static int readOrientation(ByteString imageBytes) {
+    int size = imageBytes.size();
+    if (size < 4 || readUnsignedShort(imageBytes, 0, false) != 0xFFD8) {
+      return UPRIGHT;
+    }
+
+    int offset = 2;
+    while (offset + 4 <= size) {
+      int marker = readUnsignedShort(imageBytes, offset, false);
+      // Metadata segments come before the start of the compressed data.
+      if ((marker & 0xFF00) != 0xFF00 || marker == 0xFFDA || marker == 0xFFD9) {
+        return UPRIGHT;
+      }
+
+      int length = readUnsignedShort(imageBytes, offset + 2, false);
+      int segmentStart = offset + 4;
+      int segmentEnd = Math.min(size, offset + 2 + length);
+      if (marker == 0xFFE1 && isExifSegment(imageBytes, segmentStart, segmentEnd)) {
+        return readTiffOrientation(
+            imageBytes, segmentStart + EXIF_IDENTIFIER.size(), segmentEnd);
+      }
+      offset += 2 + length;
+    }
+
+    return UPRIGHT;
+  }
+
+  /** Returns whether the segment starts with the Exif identifier, "Exif" and two zero bytes. */
+  private static boolean isExifSegment(ByteString bytes, int start, int end) {
+    return end - start >= EXIF_IDENTIFIER.size()
+        && bytes.substring(start, start + EXIF_IDENTIFIER.size()).equals(EXIF_IDENTIFIER);
+  }
+
+  /** Reads the orientation tag of the first directory of the TIFF structure at tiffStart. */
+  private static int readTiffOrientation(ByteString bytes, int tiffStart, int end) {
+    if (end - tiffStart < 8) {
+      return UPRIGHT;
+    }
+
+    // "II" for little-endian values, "MM" for big-endian.
+    boolean isLittleEndian = bytes.byteAt(tiffStart) == 'I';
+    long directoryOffset = readUnsignedInt(bytes, tiffStart + 4, isLittleEndian);
+    if (directoryOffset > end - tiffStart - 2) {
+      return UPRIGHT;
+    }
+
+    int directory = tiffStart + (int) directoryOffset;
+    int entryCount = readUnsignedShort(bytes, directory, isLittleEndian);
+    for (int i = 0; i < entryCount; i++) {
+      int entry = directory + 2 + 12 * i;
+      if (entry + 12 > end) {
+        break;
+      }
+      if (readUnsignedShort(bytes, entry, isLittleEndian) == ORIENTATION_TAG) {
+        int orientation = readUnsignedShort(bytes, entry + 8, isLittleEndian);
+        return orientation >= 1 && orientation <= 8 ? orientation : UPRIGHT;
+      }
+    }
+
+    return UPRIGHT;
+  }
+
+  private static int readUnsignedShort(ByteString bytes, int offset, boolean isLittleEndian) {
+    int first = bytes.byteAt(offset) & 0xFF;
+    int second = bytes.byteAt(offset + 1) & 0xFF;
+    return isLittleEndian ? second << 8 | first : first << 8 | second;
+  }
+
+  private static long readUnsignedInt(ByteString bytes, int offset, boolean isLittleEndian) {
+    long first = readUnsignedShort(bytes, offset, isLittleEndian);
+    long second = readUnsignedShort(bytes, offset + 2, isLittleEndian);
+    return isLittleEndian ? second << 16 | first : first << 16 | second;
+  }
+
+  /** Encodes the image as a JPEG with the configured quality. */
+  private ByteString encode(BufferedImage image) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(jpegQuality);
+
+    ByteString.Output output = ByteString.newOutput();
+    try (ImageOutputStream imageOutput = new MemoryCacheImageOutputStream(output)) {
+      writer.setOutput(imageOutput);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+
+    return output.toByteString();
+  }
+}
@@ -0,0 +1,469 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.blobstore.UploadOptions;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueConstants;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.Gson;
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.data.ReceiptStatus;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that imports many receipt images at once, for users moving their old receipts into the
+ * app. The GET handler creates a Blobstore upload URL for a form whose file input accepts many
+ * JPEG images, and the POST handler analyzes the uploaded images and stores a receipt for each.
+ *
+ * <p>A few images are analyzed at a time, and the next image only starts once one has finished, so
+ * a large import does not hold more images in memory or send more Cloud API calls than a few
+ * uploads would. Receipts are stored in batches with a single Datastore call per batch.
+ *
+ * <p>The response is newline-delimited JSON with one line per image. App Engine sends the whole
+ * response once the handler returns, so the lines arrive together rather than as each image
+ * finishes. Images that cannot be analyzed before the request runs out of time are stored as
+ * pending receipts and analyzed by the task queue, like asynchronous uploads, and clients follow
+ * their progress by polling /receipt-status with the receipt ID from their line.
+ */
+@WebServlet("/import-receipts")
+public class ImportReceiptsServlet extends HttpServlet {
+  /** Outcome of importing one image. */
+  public enum ItemStatus {
+    /** The receipt was analyzed and stored. */
+    DONE,
+    /** A pending receipt was stored, and the image will be analyzed by the task queue. */
+    PENDING,
+    /** The analysis or storing failed, so no receipt was stored and the image was deleted. */
+    FAILED,
+    /** The file is not a JPEG image, so it was deleted. */
+    INVALID
+  }
+
+  // Max upload size of 10 MB per image, like single uploads.
+  private static final long MAX_UPLOAD_SIZE_BYTES = 10 * 1024 * 1024;
+  private static final String FORM_INPUT_NAME = "receipt-images";
+  private static final String CONTENT_TYPE = "application/x-ndjson";
+  // Matches JPEG image filenames.
+  private static final Pattern validFilename = Pattern.compile("([^\\s]+(\\.(?i)(jpe?g))$)");
+  // Task queue that analyzes receipts in the background, configured in queue.yaml.
+  private static final String ANALYSIS_QUEUE_NAME = "receipt-analysis";
+
+  // Number of images analyzed at the same time and number of receipts stored with one Datastore
+  // call, which can be set with system properties.
+  private static final int CONCURRENCY =
+      Math.max(1, Integer.getInteger("receiptAnalysis.importConcurrency", 4));
+  private static final int BATCH_SIZE =
+      Math.max(1, Integer.getInteger("receiptAnalysis.importBatchSize", 20));
+  // Once the request has less time left than this, no more images are analyzed during the request.
+  private static final long RESERVE_MILLIS =
+      Long.getLong("receiptAnalysis.importReserveMillis", 15_000);
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ImportReceiptsServlet.class.getName());
+  private final BlobstoreService blobstoreService;
+  private final DatastoreService datastore;
+  private final Queue analysisQueue;
+  private final UserService userService = UserServiceFactory.getUserService();
+  private final Clock clock;
+
+  public ImportReceiptsServlet() {
+    this.blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+    this.datastore = DatastoreServiceFactory.getDatastoreService();
+    this.analysisQueue = QueueFactory.getQueue(ANALYSIS_QUEUE_NAME);
+    this.clock = Clock.systemDefaultZone();
+  }
+
+  public ImportReceiptsServlet(BlobstoreService blobstoreService, DatastoreService datastore,
+      Queue analysisQueue, Clock clock) {
+    this.blobstoreService = blobstoreService;
+    this.datastore = datastore;
+    this.analysisQueue = analysisQueue;
+    this.clock = clock;
+  }
+
+  /**
+   * Creates a URL that uploads the selected images to Blobstore and then forwards the request to
+   * this servlet.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    UploadOptions uploadOptions =
+        UploadOptions.Builder.withMaxUploadSizeBytesPerBlob(MAX_UPLOAD_SIZE_BYTES);
+    String uploadUrl = blobstoreService.createUploadUrl("/import-receipts", uploadOptions);
+
+    response.setContentType("text/html");
+    response.getWriter().println(uploadUrl);
+  }
+
+  /**
+   * Analyzes the uploaded images and stores a receipt for each, writing one JSON line per image.
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    // The upload already carries the filename and size of every file, so no Blobstore reads are
+    // needed to validate them.
+    Map<String, List<BlobInfo>> uploads = blobstoreService.getBlobInfos(request);
+    List<BlobInfo> blobInfos = uploads.get(FORM_INPUT_NAME);
+
+    if (blobInfos == null || blobInfos.isEmpty()) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println("No files were uploaded.");
+      return;
+    }
+
+    if (!userService.isUserLoggedIn()) {
+      blobInfos.forEach(blobInfo -> blobstoreService.delete(blobInfo.getBlobKey()));
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println("User must be logged in to import receipts.");
+      return;
+    }
+
+    response.setContentType(CONTENT_TYPE);
+    String userId = userService.getCurrentUser().getUserId();
+    List<Item> items = new ArrayList<>();
+    ItemWriter writer = new ItemWriter(response);
+
+    for (int i = 0; i < blobInfos.size(); i++) {
+      BlobInfo blobInfo = blobInfos.get(i);
+      Item item = new Item(i, blobInfo.getBlobKey(), userId);
+      item.filename = blobInfo.getFilename();
+      if (isValidImage(blobInfo)) {
+        items.add(item);
+      } else {
+        blobstoreService.delete(item.blobKey);
+        writer.write(item.toResult(ItemStatus.INVALID, "File must be a non-empty JPEG image."));
+      }
+    }
+
+    importItems(items, writer);
+  }
+
+  /**
+   * Analyzes the images a few at a time on threads of this request, since analysis reads the
+   * images from Blobstore. Each finished receipt joins the next batch to store. Images that were
+   * not started before the request ran low on time, or before the import was interrupted, are
+   * queued for background analysis. Images still being analyzed when the import is interrupted are
+   * reported as failed and deleted.
+   */
+  private void importItems(List<Item> items, ItemWriter writer) throws IOException {
+    ExecutorService executor =
+        Executors.newFixedThreadPool(CONCURRENCY, ThreadManager.currentRequestThreadFactory());
+    CompletionService<Item> analyses = new ExecutorCompletionService<>(executor);
+    Iterator<Item> remaining = items.iterator();
+    List<Item> batch = new ArrayList<>();
+    // Items whose analysis was started but has not been taken from the completion service.
+    Map<Future<Item>, Item> inFlight = new HashMap<>();
+
+    try {
+      while (remaining.hasNext() || !inFlight.isEmpty()) {
+        // Starts images until the limit is reached, so at most CONCURRENCY are in flight.
+        while (inFlight.size() < CONCURRENCY && remaining.hasNext() && hasTimeForAnalysis()) {
+          Item item = remaining.next();
+          inFlight.put(analyses.submit(() -> analyze(item)), item);
+        }
+
+        if (inFlight.isEmpty()) {
+          break;
+        }
+
+        Future<Item> analysis = analyses.take();
+        Item item = analysis.get();
+        inFlight.remove(analysis);
+
+        if (item.receipt == null) {
+          writer.write(item.toResult(ItemStatus.FAILED, "Receipt analysis failed."));
+          continue;
+        }
+
+        batch.add(item);
+        if (batch.size() >= BATCH_SIZE) {
+          storeBatch(batch, writer);
+        }
+      }
+    } catch (InterruptedException e) {
+      abortImport(executor, inFlight.values(), batch, remaining, writer);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while importing receipts.", e);
+    } catch (ExecutionException e) {
+      abortImport(executor, inFlight.values(), batch, remaining, writer);
+      throw new IOException("Failed to import receipts.", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    finishImport(batch, remaining, writer);
+  }
+
+  /**
+   * Stops the analyses that are still running, reports their items as failed and deletes their
+   * images, then finishes the import with the receipts analyzed so far.
+   */
+  private void abortImport(ExecutorService executor, Collection<Item> inFlight, List<Item> batch,
+      Iterator<Item> remaining, ItemWriter writer) throws IOException {
+    executor.shutdownNow();
+
+    for (Item item : inFlight) {
+      blobstoreService.delete(item.blobKey);
+      // The receipt may be set by an analysis that is still running, so it is left out.
+      writer.write(new ItemResult(
+          item.index, item.filename, ItemStatus.FAILED, null, "Receipt analysis was stopped."));
+    }
+    inFlight.clear();
+
+    finishImport(batch, remaining, writer);
+  }
+
+  /**
+   * Stores the receipts analyzed so far and queues the images that were not started for
+   * background analysis. The interrupt flag of the thread is cleared meanwhile, so that the
+   * Datastore and task queue calls are not cut short, and restored afterwards.
+   */
+  private void finishImport(List<Item> batch, Iterator<Item> remaining, ItemWriter writer)
+      throws IOException {
+    boolean interrupted = Thread.interrupted();
+    try {
+      storeBatch(batch, writer);
+
+      List<Item> pending = new ArrayList<>();
+      remaining.forEachRemaining(pending::add);
+      queueAnalysis(pending, writer);
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Analyzes the image of the item and creates its receipt. If the analysis fails, including when
+   * a Cloud API request fails, the image is deleted and the item is left without a receipt, so that
+   * it is reported as failed rather than stored with empty fields.
+   */
+  private Item analyze(Item item) {
+    try {
+      AnalysisResults results = ReceiptAnalysis.analyzeImageAtOrThrow(item.blobKey);
+      Entity receipt = createReceipt(item);
+      FormatUtils.setAnalysisResults(receipt, results, clock);
+      item.receipt = receipt;
+    } catch (IOException | RuntimeException e) {
+      logger.warning("Receipt analysis failed for " + item.filename + ": " + e);
+      blobstoreService.delete(item.blobKey);
+    }
+
+    return item;
+  }
+
+  /**
+   * Stores the receipts of the batch with one Datastore call, writes their results, and empties
+   * the batch. If the receipts cannot be stored, their images are deleted and the items are
+   * reported as failed.
+   */
+  private void storeBatch(List<Item> batch, ItemWriter writer) throws IOException {
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    List<Entity> receipts = new ArrayList<>();
+    for (Item item : batch) {
+      receipts.add(item.receipt);
+    }
+    try {
+      datastore.put(receipts);
+    } catch (RuntimeException e) {
+      logger.warning("Storing a batch of " + receipts.size() + " receipts failed: " + e);
+      for (Item item : batch) {
+        blobstoreService.delete(item.blobKey);
+        writer.write(item.toResult(ItemStatus.FAILED, "Receipt could not be stored."));
+      }
+      batch.clear();
+      return;
+    }
+
+    receipts.forEach(ReceiptIndexes::updateReceipt);
+    // Every item of an import belongs to the user who started it.
+    SearchResultsCache.invalidate(batch.get(0).userId);
+
+    for (Item item : batch) {
+      writer.write(item.toResult(ItemStatus.DONE, null));
+    }
+    batch.clear();
+  }
+
+  /**
+   * Stores pending receipts for the items and adds tasks that analyze them, with one Datastore
+   * call and one task queue call per group of items, so that many items are queued quickly when
+   * the request is low on time. If a group cannot be stored or queued, its receipts and images are
+   * deleted, so that no receipt is left pending without a task.
+   */
+  private void queueAnalysis(List<Item> items, ItemWriter writer) {
+    int groupSize = QueueConstants.maxTasksPerAdd();
+
+    for (int start = 0; start < items.size(); start += groupSize) {
+      List<Item> group = items.subList(start, Math.min(start + groupSize, items.size()));
+      List<Entity> receipts = new ArrayList<>();
+      for (Item item : group) {
+        Entity receipt = createReceipt(item);
+        receipt.setProperty("status", ReceiptStatus.PENDING.name());
+        receipts.add(receipt);
+      }
+
+      List<Key> keys = null;
+      try {
+        keys = datastore.put(receipts);
+        List<TaskOptions> tasks = new ArrayList<>();
+        for (int i = 0; i < group.size(); i++) {
+          tasks.add(TaskOptions.Builder.withUrl("/process-receipt")
+                        .param("id", Long.toString(keys.get(i).getId()))
+                        .param("blob-key", group.get(i).blobKey.getKeyString()));
+        }
+        analysisQueue.add(tasks);
+      } catch (RuntimeException e) {
+        logger.warning("Queueing a group of " + group.size() + " receipts failed: " + e);
+        if (keys != null) {
+          deleteReceipts(keys);
+        }
+        for (Item item : group) {
+          blobstoreService.delete(item.blobKey);
+          writer.write(item.toResult(ItemStatus.FAILED, "Receipt could not be queued."));
+        }
+        continue;
+      }
+
+      for (int i = 0; i < group.size(); i++) {
+        Item item = group.get(i);
+        item.receipt = receipts.get(i);
+        writer.write(item.toResult(ItemStatus.PENDING, null));
+      }
+    }
+  }
+
+  /** Deletes receipts that were stored as pending but could not be queued. */
+  private void deleteReceipts(List<Key> keys) {
+    try {
+      datastore.delete(keys);
+    } catch (RuntimeException e) {
+      logger.warning("Deleting " + keys.size() + " unqueued pending receipts failed: " + e);
+    }
+  }
+
+  /** Returns whether the request has enough time left to analyze another image. */
+  private static boolean hasTimeForAnalysis() {
+    return CallDeadline.getRemainingMillis() > RESERVE_MILLIS;
+  }
+
+  /** Returns whether the uploaded file is a non-empty JPEG image. */
+  private static boolean isValidImage(BlobInfo blobInfo) {
+    String filename = blobInfo.getFilename();
+    return blobInfo.getSize() > 0 && filename != null && validFilename.matcher(filename).matches();
+  }
+
+  /**
+   * Creates a receipt entity for the item's image and user. Like receipts uploaded synchronously,
+   * analyzed receipts have no status.
+   */
+  private static Entity createReceipt(Item item) {
+    Entity receipt = new Entity("Receipt");
+    String imageUrl = "/serve-image?blob-key=" + item.blobKey.getKeyString();
+    receipt.setUnindexedProperty("imageUrl", imageUrl);
+    receipt.setProperty("userId", item.userId);
+    return receipt;
+  }
+
+  /** One uploaded image and, once it is analyzed, its receipt. */
+  private static class Item {
+    private final int index;
+    private final BlobKey blobKey;
+    private final String userId;
+    private String filename;
+    private Entity receipt;
+
+    private Item(int index, BlobKey blobKey, String userId) {
+      this.index = index;
+      this.blobKey = blobKey;
+      this.userId = userId;
+    }
+
+    private ItemResult toResult(ItemStatus status, String error) {
+      return new ItemResult(index, filename, status, receipt, error);
+    }
+  }
+
+  /** A line of the response. Null fields are left out of the JSON. */
+  private static class ItemResult {
+    private final int index;
+    private final String filename;
+    private final ItemStatus status;
+    private final Long id;
+    private final Entity receipt;
+    private final String error;
+
+    private ItemResult(
+        int index, String filename, ItemStatus status, Entity receipt, String error) {
+      this.index = index;
+      this.filename = filename;
+      this.status = status;
+      this.id = receipt == null ? null : receipt.getKey().getId();
+      this.receipt = status == ItemStatus.DONE ? receipt : null;
+      this.error = error;
+    }
+  }
+
+  /** Writes one JSON line per result. */
+  private static class ItemWriter {
+    private final PrintWriter writer;
+    private final Gson gson = new Gson();
+
+    private ItemWriter(HttpServletResponse response) throws IOException {
+      this.writer = response.getWriter();
+    }
+
+    private void write(ItemResult result) {
+      writer.println(gson.toJson(result));
+    }
+  }
+}
@@ -0,0 +1,159 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds. Each power of two between about a microsecond
+ * and two minutes is split into four buckets, so quantiles estimated from the counts are off by
+ * less than a quarter of the value. Recording a value only increments counters, so it never blocks
+ * and can be called from any thread on every request.
+ *
+ * <p>Counts are kept since the histogram was created. Use {@link #snapshot} to read them.
+ */
+public final class LatencyHistogram {
+  // Values below 2^MIN_EXPONENT nanoseconds (about 1 microsecond) share the first bucket, and
+  // values of 2^MAX_EXPONENT nanoseconds (about 137 seconds) or more share the last one.
+  private static final int MIN_EXPONENT = 10;
+  private static final int MAX_EXPONENT = 37;
+  private static final int SUB_BUCKET_BITS = 2;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int NUM_BUCKETS = 2 + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final LongAdder sumNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+  /** Records a duration. Negative durations are recorded as zero. */
+  public void record(long nanos) {
+    nanos = Math.max(0, nanos);
+    counts.incrementAndGet(bucketIndex(nanos));
+    sumNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+  }
+
+  /** Records the time since the given System.nanoTime() value. */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Returns a copy of the counts. Values recorded while the copy is made may be missing from it,
+   * but every quantile of a snapshot is computed from the same counts.
+   */
+  public Snapshot snapshot() {
+    long[] bucketCounts = new long[NUM_BUCKETS];
+    long count = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      bucketCounts[i] = counts.get(i);
+      count += bucketCounts[i];
+    }
+
+    return new Snapshot(bucketCounts, count, sumNanos.sum(), maxNanos.get());
+  }
+
+  /** Counts of a histogram at one point in time. */
+  public static final class Snapshot {
+    private final long[] bucketCounts;
+    private final long count;
+    private final long sumNanos;
+    private final long maxNanos;
+
+    private Snapshot(long[] bucketCounts, long count, long sumNanos, long maxNanos) {
+      this.bucketCounts = bucketCounts;
+      this.count = count;
+      this.sumNanos = sumNanos;
+      this.maxNanos = maxNanos;
+    }
+
+    /** Returns the number of recorded values. */
+    public long getCount() {
+      return count;
+    }
+
+    /** Returns the sum of the recorded values. */
+    public long getSumNanos() {
+      return sumNanos;
+    }
+
+    /** Returns the largest recorded value, or zero if there are none. */
+    public long getMaxNanos() {
+      return maxNanos;
+    }
+
+    /**
+     * Returns an estimate of the given quantile between 0 and 1, interpolated within the bucket
+     * that holds it. Returns zero if no values were recorded.
+     */
+    public long getQuantileNanos(double quantile) {
+      if (count == 0) {
+        return 0;
+      }
+
+      long rank = Math.max(1, (long) Math.ceil(Math.max(0, Math.min(quantile, 1)) * count));
+      long seen = 0;
+      for (int i = 0; i < bucketCounts.length; i++) {
+        if (bucketCounts[i] == 0 || seen + bucketCounts[i] < rank) {
+          seen += bucketCounts[i];
+          continue;
+        }
+
+        long lower = bucketLowerBound(i);
+        long upper = Math.min(bucketUpperBound(i), maxNanos);
+        double fraction = (double) (rank - seen) / bucketCounts[i];
+        return Math.min(lower + (long) ((upper - lower) * fraction), maxNanos);
+      }
+
+      return maxNanos;
+    }
+  }
+
+  /**
+   * Returns the bucket of the value. Bucket 0 holds values below 2^MIN_EXPONENT, and the buckets
+   * after it split each power of two into SUB_BUCKETS equal parts.
+   */
+  private static int bucketIndex(long nanos) {
+    if (nanos < 1L << MIN_EXPONENT) {
+      return 0;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    if (exponent >= MAX_EXPONENT) {
+      return NUM_BUCKETS - 1;
+    }
+
+    // The bits after the leading one pick the part of the power of two.
+    int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long bucketLowerBound(int index) {
+    if (index == 0) {
+      return 0;
+    }
+
+    int exponent = MIN_EXPONENT + (index - 1) / SUB_BUCKETS;
+    int subBucket = (index - 1) % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  /** Returns the first value after the bucket, or Long.MAX_VALUE for the last bucket. */
+  private static long bucketUpperBound(int index) {
+    return index == NUM_BUCKETS - 1 ? Long.MAX_VALUE : bucketLowerBound(index + 1);
+  }
+}
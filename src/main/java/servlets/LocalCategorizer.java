@@ -0,0 +1,393 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueConstants;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.NaiveBayesClassifier.Prediction;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Holds the {@link NaiveBayesClassifier} that categorizes receipts on this instance before the
+ * Cloud Natural Language API is called. Its categories are only used when it is confident, so the
+ * API is still called for receipts unlike the ones it has learned. The confidence of a naive Bayes
+ * classifier is not calibrated, so every so often the API is called anyway for a receipt the
+ * classifier is confident about, and the classifier learns the API's categories. Wrong categories
+ * the classifier is confident about are corrected this way instead of being kept forever.
+ *
+ * <p>The classifier learns every receipt categorized by the API. It is saved to Datastore and
+ * loaded when an instance starts, so new instances start with a trained classifier. If no
+ * classifier has been saved yet, a task is queued that trains one on the text and categories of the
+ * receipts already stored in Datastore, so instances do not train when they start.
+ *
+ * <p>Receipts learned since the last save are also kept in a separate classifier. Every so often
+ * it is handed to a task on the default queue, which adds its counts to the saved classifier in a
+ * transaction, so uploads never wait for a save and the receipts learned by every instance are
+ * kept. Instances keep using the classifier they loaded plus what they learned themselves.
+ *
+ * <p>Loading and saving use Datastore, so every method must be called from a request thread.
+ */
+public final class LocalCategorizer {
+  private static final String KIND = "CategoryModel";
+  private static final String KEY_NAME = "receipts";
+  // Blob properties are limited to 1 MB, which leaves room for the rest of the entity.
+  private static final int MAX_SAVED_BYTES = 1_000_000 - 1024;
+  // Number of times a save is tried when other saves commit first.
+  private static final int MAX_SAVE_ATTEMPTS = 3;
+
+  private static final int MAX_VOCABULARY_SIZE =
+      Integer.getInteger("receiptAnalysis.localCategorizerVocabularySize", 20_000);
+  // Probability the classifier must give its categories for them to be used.
+  private static final double MIN_CONFIDENCE = Double.parseDouble(
+      System.getProperty("receiptAnalysis.localCategorizerConfidence", "0.95"));
+  // Number of receipts the classifier must have learned before its categories are used.
+  private static final long MIN_RECEIPTS =
+      Long.getLong("receiptAnalysis.localCategorizerMinReceipts", 50);
+  // Every this many confident classifications, the API is called anyway.
+  private static final int VERIFY_INTERVAL =
+      Math.max(1, Integer.getInteger("receiptAnalysis.localCategorizerVerifyInterval", 20));
+  // Number of newly learned receipts after which the classifier is saved.
+  private static final long SAVE_INTERVAL =
+      Math.max(1, Long.getLong("receiptAnalysis.localCategorizerSaveInterval", 50));
+  // Maximum number of stored receipts the first classifier is trained on.
+  private static final int TRAINING_LIMIT =
+      Integer.getInteger("receiptAnalysis.localCategorizerTrainingLimit", 5000);
+  // Named so that the first classifier is trained once, however many instances start.
+  private static final String TRAINING_TASK_NAME = "train-receipt-categorizer";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(LocalCategorizer.class.getName());
+
+  private static final AtomicLong hitCount = new AtomicLong();
+  private static final AtomicLong missCount = new AtomicLong();
+  private static final AtomicLong confidentCount = new AtomicLong();
+  // Read by every classification without locking. Set while holding the class lock.
+  private static volatile NaiveBayesClassifier classifier;
+
+  // Guards the receipts learned since they were last handed to a save task.
+  private static final Object unsavedLock = new Object();
+  private static NaiveBayesClassifier unsaved = new NaiveBayesClassifier(MAX_VOCABULARY_SIZE);
+  private static long unsavedCount;
+
+  /**
+   * Prevents instantiation.
+   */
+  private LocalCategorizer() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Loads the saved classifier. If none has been saved, queues a task on the default queue that
+   * trains one on the stored receipts. Called when the instance starts.
+   */
+  public static void warmUp() {
+    warmUp(QueueFactory.getDefaultQueue());
+  }
+
+  /**
+   * Loads the saved classifier. If none has been saved, queues a task on the given queue that
+   * trains one on the stored receipts.
+   */
+  public static synchronized void warmUp(Queue queue) {
+    if (classifier != null) {
+      return;
+    }
+
+    Optional<NaiveBayesClassifier> savedClassifier = load();
+    if (savedClassifier.isPresent()) {
+      classifier = savedClassifier.get();
+      return;
+    }
+
+    classifier = new NaiveBayesClassifier(MAX_VOCABULARY_SIZE);
+    try {
+      queue.add(TaskOptions.Builder.withUrl("/train-categorizer").taskName(TRAINING_TASK_NAME));
+    } catch (TaskAlreadyExistsException e) {
+      // Another instance queued the training.
+    }
+  }
+
+  /**
+   * Trains a classifier on the stored receipts and saves it, unless one has been saved already.
+   * Called by the task queued by {@link #warmUp}, since training reads many receipts.
+   */
+  public static void train() throws IOException {
+    if (load().isPresent()) {
+      return;
+    }
+
+    // Receipts this instance learned before training are learned by the trained classifier too
+    // once they are stored, so they are not kept.
+    NaiveBayesClassifier trained = trainOnStoredReceipts();
+    classifier = trained;
+    saveMerged(trained);
+  }
+
+  /**
+   * Adds the receipts serialized in the payload of a save task to the saved classifier. Called by
+   * the task queued by {@link #learn}. Throws an exception if the classifier could not be saved,
+   * so that the task is retried.
+   */
+  public static void saveLearned(byte[] bytes) throws IOException {
+    saveMerged(NaiveBayesClassifier.fromBytes(bytes, MAX_VOCABULARY_SIZE));
+  }
+
+  /**
+   * Returns the categories of the text if the classifier is confident in them, or an empty
+   * Optional if the API should be called. The API is also called for every {@code
+   * VERIFY_INTERVAL}th confident classification, and its categories should then be passed to
+   * {@link #learn} like any other.
+   */
+  public static Optional<ImmutableSet<String>> classify(String text) {
+    NaiveBayesClassifier currentClassifier = get();
+
+    // A classifier that has learned a single set of categories is always confident.
+    if (currentClassifier.getReceiptCount() >= MIN_RECEIPTS
+        && currentClassifier.getCategorySetCount() > 1) {
+      Optional<Prediction> prediction = currentClassifier.classify(text);
+      if (prediction.isPresent() && prediction.get().getConfidence() >= MIN_CONFIDENCE
+          && confidentCount.incrementAndGet() % VERIFY_INTERVAL != 0) {
+        hitCount.incrementAndGet();
+        return Optional.of(prediction.get().getCategories());
+      }
+    }
+
+    missCount.incrementAndGet();
+    return Optional.empty();
+  }
+
+  /**
+   * Learns the categories the API gave the text, and queues a task on the default queue that saves
+   * them once enough receipts were learned since the last save. Categories are sanitized like the
+   * categories stored on receipts.
+   */
+  public static void learn(String text, Set<String> categories) {
+    learn(text, categories, QueueFactory.getDefaultQueue());
+  }
+
+  /**
+   * Learns the categories the API gave the text, and queues a task on the given queue that saves
+   * them once enough receipts were learned since the last save.
+   */
+  public static void learn(String text, Set<String> categories, Queue queue) {
+    ImmutableSet<String> sanitizedCategories = FormatUtils.sanitizeCategories(categories.stream());
+    get().learn(text, sanitizedCategories);
+    if (sanitizedCategories.isEmpty()) {
+      return;
+    }
+
+    NaiveBayesClassifier learned = null;
+    synchronized (unsavedLock) {
+      unsaved.learn(text, sanitizedCategories);
+      if (++unsavedCount >= SAVE_INTERVAL) {
+        learned = unsaved;
+        unsaved = new NaiveBayesClassifier(MAX_VOCABULARY_SIZE);
+        unsavedCount = 0;
+      }
+    }
+
+    if (learned != null) {
+      queueSave(learned, queue);
+    }
+  }
+
+  /**
+   * Discards the classifier on this instance. The saved classifier is loaded again on next use.
+   */
+  public static synchronized void clear() {
+    classifier = null;
+    confidentCount.set(0);
+    synchronized (unsavedLock) {
+      unsaved = new NaiveBayesClassifier(MAX_VOCABULARY_SIZE);
+      unsavedCount = 0;
+    }
+  }
+
+  public static long getHitCount() {
+    return hitCount.get();
+  }
+
+  public static long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the classifier, loading the saved one if the instance was not warmed up. An empty
+   * classifier is used until one is saved, since training on the stored receipts is too slow for a
+   * user's request. Only the first call takes the class lock.
+   */
+  private static NaiveBayesClassifier get() {
+    NaiveBayesClassifier currentClassifier = classifier;
+    if (currentClassifier != null) {
+      return currentClassifier;
+    }
+
+    synchronized (LocalCategorizer.class) {
+      if (classifier == null) {
+        classifier = load().orElseGet(() -> new NaiveBayesClassifier(MAX_VOCABULARY_SIZE));
+      }
+      return classifier;
+    }
+  }
+
+  /**
+   * Reads the saved classifier, if there is one that can be read.
+   */
+  private static Optional<NaiveBayesClassifier> load() {
+    try {
+      Entity entity = getDatastore().get(KeyFactory.createKey(KIND, KEY_NAME));
+      return Optional.of(fromEntity(entity));
+    } catch (EntityNotFoundException e) {
+      return Optional.empty();
+    } catch (IOException | DatastoreFailureException | DatastoreTimeoutException e) {
+      logger.warning("Failed to load the receipt classifier: " + e);
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Queues a task that adds the learned receipts to the saved classifier. If the task cannot be
+   * queued, the receipts are kept and saved with the next ones.
+   */
+  private static void queueSave(NaiveBayesClassifier learned, Queue queue) {
+    try {
+      byte[] bytes = learned.toBytes();
+      if (bytes.length > QueueConstants.maxPushTaskSizeBytes()) {
+        logger.warning("Learned receipts are too large to save: " + bytes.length + " bytes.");
+        return;
+      }
+
+      queue.add(TaskOptions.Builder.withUrl("/save-categorizer")
+                    .payload(bytes, "application/octet-stream"));
+    } catch (IOException | RuntimeException e) {
+      logger.warning("Failed to queue saving the receipt classifier: " + e);
+      synchronized (unsavedLock) {
+        unsaved.merge(learned);
+      }
+    }
+  }
+
+  /**
+   * Adds the learned receipts to the saved classifier in a transaction, or saves them as the
+   * classifier if none was saved. The transaction is tried again if another save commits first, so
+   * no instance's receipts are dropped.
+   */
+  private static void saveMerged(NaiveBayesClassifier learned) throws IOException {
+    DatastoreService datastore = getDatastore();
+    Key key = KeyFactory.createKey(KIND, KEY_NAME);
+
+    for (int attempt = 1;; attempt++) {
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Entity saved = null;
+        try {
+          saved = datastore.get(transaction, key);
+        } catch (EntityNotFoundException e) {
+          // Nothing was saved yet.
+        }
+
+        NaiveBayesClassifier merged = learned;
+        if (saved != null) {
+          merged = fromEntity(saved);
+          merged.merge(learned);
+        }
+
+        byte[] bytes = merged.toBytes();
+        if (bytes.length > MAX_SAVED_BYTES) {
+          logger.warning("Receipt classifier is too large to save: " + bytes.length + " bytes.");
+          return;
+        }
+
+        Entity entity = new Entity(key);
+        entity.setUnindexedProperty("classifier", new Blob(bytes));
+        entity.setUnindexedProperty("version", saved == null ? 1 : getVersion(saved) + 1);
+        datastore.put(transaction, entity);
+        transaction.commit();
+        return;
+      } catch (ConcurrentModificationException e) {
+        if (attempt >= MAX_SAVE_ATTEMPTS) {
+          throw new IOException("Receipt classifier kept being saved by other instances.", e);
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  private static NaiveBayesClassifier fromEntity(Entity entity) throws IOException {
+    byte[] bytes = ((Blob) entity.getProperty("classifier")).getBytes();
+    return NaiveBayesClassifier.fromBytes(bytes, MAX_VOCABULARY_SIZE);
+  }
+
+  /** Returns the version of the saved classifier. Classifiers saved without one are version 1. */
+  private static long getVersion(Entity entity) {
+    Object version = entity.getProperty("version");
+    return version == null ? 1 : (Long) version;
+  }
+
+  /** Trains a classifier on the text and categories of the stored receipts. */
+  private static NaiveBayesClassifier trainOnStoredReceipts() {
+    long startNanos = System.nanoTime();
+    NaiveBayesClassifier newClassifier = new NaiveBayesClassifier(MAX_VOCABULARY_SIZE);
+
+    try {
+      Iterable<Entity> receipts = getDatastore().prepare(new Query("Receipt"))
+          .asIterable(FetchOptions.Builder.withLimit(TRAINING_LIMIT));
+      for (Entity receipt : receipts) {
+        Text rawText = (Text) receipt.getProperty("rawText");
+        // Datastore stores empty lists as null.
+        Collection<String> categories = (Collection<String>) receipt.getProperty("categories");
+        if (rawText != null && categories != null) {
+          newClassifier.learn(rawText.getValue(), ImmutableSet.copyOf(categories));
+        }
+      }
+    } catch (DatastoreFailureException | DatastoreTimeoutException e) {
+      logger.warning("Failed to read receipts to train the receipt classifier: " + e);
+    }
+
+    logger.info(String.format("Trained receipt classifier on %d receipts in %d ms.",
+        newClassifier.getReceiptCount(), (System.nanoTime() - startNanos) / 1_000_000));
+    return newClassifier;
+  }
+
+  private static DatastoreService getDatastore() {
+    return DatastoreServiceFactory.getDatastoreService();
+  }
+}
@@ -0,0 +1,231 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Datastore queries for the same receipts sorted newest first, by timestamp and then key, read as
+ * one stream. Searches for several categories or stores run a query for each value, and the
+ * queries are merged here instead of using an IN filter, which Datastore runs as subqueries that
+ * its cursors cannot resume.
+ *
+ * <p>The newest receipt at the head of any query is read next, and receipts returned by several
+ * queries are read once. The cursor records the position of every query, so the next page resumes
+ * each query where it stopped.
+ */
+final class MergedQuery {
+  private static final String CURSOR_PREFIX = "merge:";
+  private static final String CURSOR_SEPARATOR = ":";
+  // Position of a query that has not returned a receipt yet.
+  private static final String START = "";
+  // Position of a query that has returned all of its receipts. Not a web-safe cursor character.
+  private static final String EXHAUSTED = "~";
+
+  // Newest receipts first.
+  private static final Comparator<Entity> NEWEST_FIRST =
+      Comparator.comparing((Entity entity) -> (Long) entity.getProperty("timestamp"))
+          .thenComparing(Entity::getKey)
+          .reversed();
+
+  private final DatastoreService datastore;
+  private final ImmutableList<Query> queries;
+
+  /**
+   * @param queries Queries sorted by timestamp and then key, both descending. Cursors of the
+   *     merged query are only valid for the same queries in the same order.
+   */
+  MergedQuery(DatastoreService datastore, List<Query> queries) {
+    this.datastore = datastore;
+    this.queries = ImmutableList.copyOf(queries);
+  }
+
+  /** Returns the number of merged queries. */
+  int size() {
+    return queries.size();
+  }
+
+  /** Returns whether the cursor was returned by a merged query. */
+  static boolean isMergedCursor(String encodedCursor) {
+    return encodedCursor != null && encodedCursor.startsWith(CURSOR_PREFIX);
+  }
+
+  /**
+   * Runs the queries from the start, or from the positions of the cursor. A cursor that was not
+   * returned by these queries is ignored, which starts the search over.
+   *
+   * @param isPreviousPage Whether to read from the start of each query up to its position in the
+   *     cursor instead of after it, like {@link FetchOptions.Builder#withEndCursor}.
+   * @param chunkSize Number of receipts each query fetches per Datastore call.
+   */
+  Results run(String encodedCursor, boolean isPreviousPage, int chunkSize) {
+    List<String> positions = parseCursor(encodedCursor);
+    List<Stream> streams = new ArrayList<>();
+
+    // Every query is started before any is read, so their first Datastore calls overlap.
+    for (int i = 0; i < queries.size(); i++) {
+      String position = positions.get(i);
+      FetchOptions options = FetchOptions.Builder.withChunkSize(chunkSize);
+
+      if (isPreviousPage) {
+        if (position.equals(START)) {
+          // The query had not returned a receipt, so none come before its position.
+          streams.add(new Stream(null, START, false));
+          continue;
+        }
+        if (!position.equals(EXHAUSTED)) {
+          options.endCursor(Cursor.fromWebSafeString(position));
+        }
+        streams.add(new Stream(prepare(i, options), START, position.equals(EXHAUSTED)));
+      } else {
+        if (position.equals(EXHAUSTED)) {
+          streams.add(new Stream(null, EXHAUSTED, false));
+          continue;
+        }
+        if (!position.equals(START)) {
+          options.startCursor(Cursor.fromWebSafeString(position));
+        }
+        streams.add(new Stream(prepare(i, options), position, true));
+      }
+    }
+
+    return new Results(streams);
+  }
+
+  private QueryResultIterator<Entity> prepare(int index, FetchOptions options) {
+    return datastore.prepare(queries.get(index)).asQueryResultIterator(options);
+  }
+
+  /** Returns the position of each query in the cursor, or the start of every query. */
+  private List<String> parseCursor(String encodedCursor) {
+    if (isMergedCursor(encodedCursor)) {
+      List<String> positions = Splitter.on(CURSOR_SEPARATOR).splitToList(
+          encodedCursor.substring(CURSOR_PREFIX.length()));
+      if (positions.size() == queries.size()) {
+        return positions;
+      }
+    }
+
+    List<String> positions = new ArrayList<>();
+    for (int i = 0; i < queries.size(); i++) {
+      positions.add(START);
+    }
+    return positions;
+  }
+
+  /** Receipts of the merged queries, newest first. */
+  static final class Results implements Iterator<Entity> {
+    private final List<Stream> streams;
+    // Streams with a receipt to read, by their next receipt.
+    private final PriorityQueue<Stream> heads =
+        new PriorityQueue<>((a, b) -> NEWEST_FIRST.compare(a.head, b.head));
+
+    private Results(List<Stream> streams) {
+      this.streams = streams;
+      for (Stream stream : streams) {
+        if (stream.advance()) {
+          heads.add(stream);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public Entity next() {
+      if (heads.isEmpty()) {
+        throw new NoSuchElementException();
+      }
+
+      Entity receipt = heads.peek().head;
+      Key key = receipt.getKey();
+
+      // A receipt in several queries is at the head of each of them at the same time.
+      while (!heads.isEmpty() && heads.peek().head.getKey().equals(key)) {
+        Stream stream = heads.poll();
+        stream.consume();
+        if (stream.advance()) {
+          heads.add(stream);
+        }
+      }
+
+      return receipt;
+    }
+
+    /** Returns the cursor that continues each query right after the last receipt read from it. */
+    String getCursor() {
+      List<String> positions = new ArrayList<>();
+      for (Stream stream : streams) {
+        positions.add(stream.position);
+      }
+      return CURSOR_PREFIX + Joiner.on(CURSOR_SEPARATOR).join(positions);
+    }
+  }
+
+  /** One of the merged queries, with the receipt it will return next. */
+  private static final class Stream {
+    // Null if the query is not run.
+    private final QueryResultIterator<Entity> results;
+    // Whether the query reads to its last receipt, so that running out means it is exhausted.
+    private final boolean isUnbounded;
+    private Entity head;
+    private String headCursor;
+    private String position;
+
+    private Stream(QueryResultIterator<Entity> results, String position, boolean isUnbounded) {
+      this.results = results;
+      this.position = position;
+      this.isUnbounded = isUnbounded;
+    }
+
+    /** Reads the next receipt into the head. Returns false if there is none. */
+    private boolean advance() {
+      if (results == null || !results.hasNext()) {
+        head = null;
+        if (results != null && isUnbounded) {
+          position = EXHAUSTED;
+        }
+        return false;
+      }
+
+      head = results.next();
+      headCursor = results.getCursor().toWebSafeString();
+      return true;
+    }
+
+    /** Moves the position of the query past its head. */
+    private void consume() {
+      position = headCursor;
+    }
+  }
+}
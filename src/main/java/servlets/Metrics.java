@@ -0,0 +1,257 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableList;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Holds the metrics of this instance and writes them in the Prometheus text format, which is
+ * served by {@link MetricsServlet}.
+ *
+ * <p>A metric is identified by its name and label values. Counters and {@link LatencyHistogram}s
+ * are created on first use and updated without locks. Once created, they are found by their label
+ * values with a lock-free map lookup, without rendering the labels again. Components that already
+ * count events, such as the caches, register a function that reads the count when the metrics are
+ * written instead. Label values must come from a small fixed set, like stage names or endpoints,
+ * since every combination is kept until the instance shuts down.
+ */
+public final class Metrics {
+  // Latency of each stage of a request, labeled by stage.
+  public static final String STAGE_SECONDS = "receipt_roundup_stage_seconds";
+  // Failures of each stage, labeled by stage.
+  public static final String STAGE_FAILURES = "receipt_roundup_stage_failures_total";
+  // Quantiles written for every histogram.
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+  private enum Type {
+    COUNTER("counter"),
+    GAUGE("gauge"),
+    SUMMARY("summary");
+
+    private final String name;
+
+    Type(String name) {
+      this.name = name;
+    }
+  }
+
+  /** Metrics with the same name, by their rendered labels. */
+  private static final class Family {
+    private final String help;
+    private final Type type;
+    private final ConcurrentMap<String, Object> series = new ConcurrentSkipListMap<>();
+    // Histograms and counters by their alternating label names and values, so that recording a
+    // value does not render the labels.
+    private final ConcurrentMap<List<String>, Object> seriesByLabels = new ConcurrentHashMap<>();
+
+    private Family(String help, Type type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  private static final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+  /**
+   * Prevents instantiation.
+   */
+  private Metrics() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the histogram with the given name and labels, creating it if it does not exist yet.
+   * It is written as a summary in seconds with the 0.5, 0.9 and 0.99 quantiles.
+   *
+   * @param labels Alternating label names and values.
+   */
+  public static LatencyHistogram histogram(String name, String help, String... labels) {
+    return (LatencyHistogram) getSeries(name, help, Type.SUMMARY, labels, LatencyHistogram::new);
+  }
+
+  /**
+   * Returns the counter with the given name and labels, creating it if it does not exist yet.
+   *
+   * @param labels Alternating label names and values.
+   */
+  public static LongAdder counter(String name, String help, String... labels) {
+    return (LongAdder) getSeries(name, help, Type.COUNTER, labels, LongAdder::new);
+  }
+
+  /**
+   * Registers a counter whose value is read from the function when the metrics are written. A
+   * function registered again with the same name and labels replaces the earlier one.
+   *
+   * @param labels Alternating label names and values.
+   */
+  public static void registerCounter(
+      String name, String help, LongSupplier value, String... labels) {
+    getFamily(name, help, Type.COUNTER).series.put(renderLabels(labels), value);
+  }
+
+  /**
+   * Registers a gauge whose value is read from the function when the metrics are written. A
+   * function registered again with the same name and labels replaces the earlier one.
+   *
+   * @param labels Alternating label names and values.
+   */
+  public static void registerGauge(
+      String name, String help, DoubleSupplier value, String... labels) {
+    getFamily(name, help, Type.GAUGE).series.put(renderLabels(labels), value);
+  }
+
+  /** Records the time since the given System.nanoTime() value as the latency of the stage. */
+  public static void recordStage(String stage, long startNanos) {
+    histogram(STAGE_SECONDS, "Time taken by each stage of a request.", "stage", stage)
+        .recordSince(startNanos);
+  }
+
+  /** Counts a failure of the stage. */
+  public static void countStageFailure(String stage) {
+    counter(STAGE_FAILURES, "Number of times each stage of a request failed.", "stage", stage)
+        .increment();
+  }
+
+  /**
+   * Writes every metric in the Prometheus text exposition format, sorted by name and labels.
+   * Durations are written in seconds.
+   */
+  public static void writeTo(PrintWriter writer) {
+    Map<String, Family> sortedFamilies = new ConcurrentSkipListMap<>(families);
+
+    for (Map.Entry<String, Family> entry : sortedFamilies.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      writeLine(writer, "# HELP " + name + " " + escapeHelp(family.help));
+      writeLine(writer, "# TYPE " + name + " " + family.type.name);
+
+      for (Map.Entry<String, Object> series : family.series.entrySet()) {
+        writeSeries(writer, name, series.getKey(), series.getValue());
+      }
+    }
+  }
+
+  /** Removes every metric. Functions registered by components are removed as well. */
+  public static void clear() {
+    families.clear();
+  }
+
+  private static void writeSeries(PrintWriter writer, String name, String labels, Object value) {
+    if (value instanceof LatencyHistogram) {
+      LatencyHistogram.Snapshot snapshot = ((LatencyHistogram) value).snapshot();
+      String separator = labels.isEmpty() ? "" : ",";
+      for (double quantile : QUANTILES) {
+        writeLine(writer, name + "{" + labels + separator + "quantile=\"" + quantile + "\"} "
+            + toSeconds(snapshot.getQuantileNanos(quantile)));
+      }
+      String wrappedLabels = wrapLabels(labels);
+      writeLine(writer, name + "_sum" + wrappedLabels + " " + toSeconds(snapshot.getSumNanos()));
+      writeLine(writer, name + "_count" + wrappedLabels + " " + snapshot.getCount());
+    } else if (value instanceof LongAdder) {
+      writeLine(writer, name + wrapLabels(labels) + " " + ((LongAdder) value).sum());
+    } else if (value instanceof LongSupplier) {
+      writeLine(writer, name + wrapLabels(labels) + " " + ((LongSupplier) value).getAsLong());
+    } else {
+      writeLine(writer, name + wrapLabels(labels) + " " + ((DoubleSupplier) value).getAsDouble());
+    }
+  }
+
+  /**
+   * Returns the histogram or counter with the given name and labels, creating it if it does not
+   * exist yet. Existing ones are found with plain lookups, since computeIfAbsent locks even when
+   * the key is present on Java 8.
+   */
+  private static Object getSeries(
+      String name, String help, Type type, String[] labels, Supplier<Object> newSeries) {
+    Family family = getFamily(name, help, type);
+    Object series = family.seriesByLabels.get(Arrays.asList(labels));
+    if (series != null) {
+      return series;
+    }
+
+    // The labels are copied, since the caller could change the array afterwards.
+    return family.seriesByLabels.computeIfAbsent(ImmutableList.copyOf(labels),
+        key -> family.series.computeIfAbsent(renderLabels(labels), rendered -> newSeries.get()));
+  }
+
+  /**
+   * Returns the family with the given name, creating it if it does not exist yet.
+   *
+   * @throws IllegalArgumentException if the name is already used by a metric of another type.
+   */
+  private static Family getFamily(String name, String help, Type type) {
+    Family family = families.get(name);
+    if (family == null) {
+      family = families.computeIfAbsent(name, key -> new Family(help, type));
+    }
+
+    if (family.type != type) {
+      throw new IllegalArgumentException(
+          "Metric " + name + " is a " + family.type.name + ", not a " + type.name + ".");
+    }
+
+    return family;
+  }
+
+  /** Renders alternating label names and values as name="value" pairs separated by commas. */
+  private static String renderLabels(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be pairs of names and values.");
+    }
+
+    StringBuilder rendered = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      if (i > 0) {
+        rendered.append(',');
+      }
+      rendered.append(labels[i]).append("=\"").append(escapeLabelValue(labels[i + 1])).append('"');
+    }
+
+    return rendered.toString();
+  }
+
+  /** Writes the line with the \n line ending that the format requires on every platform. */
+  private static void writeLine(PrintWriter writer, String line) {
+    writer.print(line);
+    writer.print('\n');
+  }
+
+  private static String wrapLabels(String labels) {
+    return labels.isEmpty() ? "" : "{" + labels + "}";
+  }
+
+  private static String escapeLabelValue(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static String escapeHelp(String help) {
+    return help.replace("\\", "\\\\").replace("\n", "\\n");
+  }
+
+  private static double toSeconds(long nanos) {
+    return nanos / 1e9;
+  }
+}
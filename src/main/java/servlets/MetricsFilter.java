@@ -0,0 +1,101 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.logging.Logger;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Records the latency and the status class of every request to the servlet endpoints in {@link
+ * Metrics}, labeled by endpoint and method. Only the endpoints listed here are recorded, so paths
+ * of static files and unknown URLs do not create new metrics.
+ *
+ * <p>Requests are also traced by the {@link RequestTracer}, and the traces of slow or sampled
+ * requests are logged as JSON lines.
+ */
+@WebFilter(urlPatterns = {"/delete-receipt", "/edit-receipt", "/import-receipts",
+               "/login-status", "/process-receipt", "/receipt-analysis", "/receipt-details",
+               "/receipt-status", "/search-receipts", "/serve-image", "/compute-analytics",
+               "/save-categorizer", "/train-categorizer", "/upload-receipt"})
+public class MetricsFilter implements Filter {
+  private static final String REQUEST_SECONDS = "receipt_roundup_request_seconds";
+  private static final String REQUESTS = "receipt_roundup_requests_total";
+  // Methods recorded by name. Others are recorded as "other", since clients can send any method.
+  private static final ImmutableSet<String> METHODS =
+      ImmutableSet.of("GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS");
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(MetricsFilter.class.getName());
+
+  private final RequestTracer tracer;
+
+  public MetricsFilter() {
+    this.tracer = RequestTracer.fromSystemProperties();
+  }
+
+  public MetricsFilter(RequestTracer tracer) {
+    this.tracer = tracer;
+  }
+
+  // The App Engine runtime implements Servlet 3.1, where these methods have no default.
+  @Override
+  public void init(FilterConfig config) {}
+
+  @Override
+  public void destroy() {}
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    String endpoint = httpRequest.getServletPath();
+    String method = METHODS.contains(httpRequest.getMethod()) ? httpRequest.getMethod() : "other";
+    long startNanos = System.nanoTime();
+    Optional<RequestTrace> trace = tracer.begin(method + " " + endpoint);
+    boolean failed = true;
+
+    try {
+      chain.doFilter(request, response);
+      failed = false;
+    } finally {
+      // Exceptions that escape the servlet are turned into server errors by the container.
+      int status = failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR
+                          : ((HttpServletResponse) response).getStatus();
+      String code = getStatusClass(status);
+
+      Metrics.histogram(REQUEST_SECONDS, "Time taken to handle requests to each endpoint.",
+          "endpoint", endpoint, "method", method).recordSince(startNanos);
+      Metrics.counter(REQUESTS, "Number of requests to each endpoint by status class.",
+          "endpoint", endpoint, "method", method, "code", code).increment();
+      trace.flatMap(finishedTrace -> tracer.finish(finishedTrace, status)).ifPresent(logger::info);
+    }
+  }
+
+  /** Returns the class of the status code, such as 2xx, which keeps the number of labels small. */
+  private static String getStatusClass(int status) {
+    return (status / 100) + "xx";
+  }
+}
@@ -0,0 +1,89 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet with a GET handler that returns the {@link Metrics} of this instance in the Prometheus
+ * text format. Each App Engine instance keeps its own metrics, so a scrape only sees the instance
+ * that served it.
+ *
+ * <p>Scrapers send the token set in the receiptAnalysis.metricsToken system property as a bearer
+ * token in the Authorization header. Administrators of the app who are logged in can read the
+ * metrics in a browser without it. If no token is set, only administrators can read them.
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+  // Content type of version 0.0.4 of the Prometheus text exposition format.
+  private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  private static final String BEARER_PREFIX = "Bearer ";
+  private static final String NOT_AUTHORIZED_WARNING =
+      "Metrics can only be read with the scrape token or by an administrator.";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(MetricsServlet.class.getName());
+
+  private final UserService userService = UserServiceFactory.getUserService();
+  // Empty if scrapers cannot read the metrics.
+  private final byte[] scrapeToken;
+
+  public MetricsServlet() {
+    this.scrapeToken =
+        System.getProperty("receiptAnalysis.metricsToken", "").getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!hasScrapeToken(request) && !isAdmin()) {
+      logger.warning(NOT_AUTHORIZED_WARNING);
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println(NOT_AUTHORIZED_WARNING);
+      return;
+    }
+
+    response.setContentType(CONTENT_TYPE);
+    Metrics.writeTo(response.getWriter());
+  }
+
+  /**
+   * Returns whether the request carries the scrape token as a bearer token. Tokens are compared in
+   * constant time, so the time taken does not reveal how much of a guess was right.
+   */
+  private boolean hasScrapeToken(HttpServletRequest request) {
+    String authorization = request.getHeader("Authorization");
+    if (scrapeToken.length == 0 || authorization == null
+        || !authorization.startsWith(BEARER_PREFIX)) {
+      return false;
+    }
+
+    byte[] token =
+        authorization.substring(BEARER_PREFIX.length()).trim().getBytes(StandardCharsets.UTF_8);
+    return MessageDigest.isEqual(scrapeToken, token);
+  }
+
+  private boolean isAdmin() {
+    return userService.isUserLoggedIn() && userService.isUserAdmin();
+  }
+}
@@ -0,0 +1,322 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Multiset;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Multinomial naive Bayes classifier that predicts the categories of a receipt from the words of
+ * its text. Each distinct set of categories is one class, so a prediction is always a set of
+ * categories that a receipt was actually given.
+ *
+ * <p>The classifier learns one receipt at a time, and can be serialized into a compact byte array
+ * and read back. The number of distinct words is bounded, and words seen after the bound is reached
+ * are ignored. The classifier is safe to use from several threads.
+ */
+public class NaiveBayesClassifier {
+  /** Predicted categories and the classifier's confidence in them. */
+  public static class Prediction {
+    private final ImmutableSortedSet<String> categories;
+    private final double confidence;
+
+    private Prediction(ImmutableSortedSet<String> categories, double confidence) {
+      this.categories = categories;
+      this.confidence = confidence;
+    }
+
+    public ImmutableSortedSet<String> getCategories() {
+      return categories;
+    }
+
+    /** Returns the probability, between 0 and 1, that the categories are right. */
+    public double getConfidence() {
+      return confidence;
+    }
+  }
+
+  /** Word counts of the receipts given one set of categories. */
+  private static class CategoryStats {
+    private long receiptCount;
+    private long wordCount;
+    private final Multiset<String> wordCounts = HashMultiset.create();
+  }
+
+  private static final int SERIALIZATION_VERSION = 1;
+  // Words shorter than this, such as single letters left by text detection, are ignored.
+  private static final int MIN_WORD_LENGTH = 2;
+
+  private final int maxVocabularySize;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<ImmutableSortedSet<String>, CategoryStats> statsByCategories = new HashMap<>();
+  private final Set<String> vocabulary = new HashSet<>();
+  private long receiptCount;
+
+  /**
+   * @param maxVocabularySize Maximum number of distinct words the classifier learns.
+   */
+  public NaiveBayesClassifier(int maxVocabularySize) {
+    this.maxVocabularySize = maxVocabularySize;
+  }
+
+  /**
+   * Learns that the text belongs to a receipt with the given categories. Receipts without
+   * categories are ignored.
+   */
+  public void learn(String text, Set<String> categories) {
+    if (categories.isEmpty()) {
+      return;
+    }
+
+    List<String> words = tokenize(text);
+    lock.writeLock().lock();
+    try {
+      CategoryStats stats = statsByCategories.computeIfAbsent(
+          ImmutableSortedSet.copyOf(categories), key -> new CategoryStats());
+      stats.receiptCount++;
+      receiptCount++;
+
+      for (String word : words) {
+        if (vocabulary.contains(word) || vocabulary.size() < maxVocabularySize) {
+          vocabulary.add(word);
+          stats.wordCounts.add(word);
+          stats.wordCount++;
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Adds the receipts learned by the other classifier to this one. Words past this classifier's
+   * vocabulary bound are ignored, as when learning.
+   */
+  public void merge(NaiveBayesClassifier other) {
+    // Copies the other classifier's counts first, so that both locks are never held at once.
+    Map<ImmutableSortedSet<String>, CategoryStats> otherStats = new HashMap<>();
+    other.lock.readLock().lock();
+    try {
+      for (Map.Entry<ImmutableSortedSet<String>, CategoryStats> entry :
+          other.statsByCategories.entrySet()) {
+        CategoryStats copy = new CategoryStats();
+        copy.receiptCount = entry.getValue().receiptCount;
+        copy.wordCounts.addAll(entry.getValue().wordCounts);
+        otherStats.put(entry.getKey(), copy);
+      }
+    } finally {
+      other.lock.readLock().unlock();
+    }
+
+    lock.writeLock().lock();
+    try {
+      for (Map.Entry<ImmutableSortedSet<String>, CategoryStats> entry : otherStats.entrySet()) {
+        CategoryStats stats =
+            statsByCategories.computeIfAbsent(entry.getKey(), key -> new CategoryStats());
+        stats.receiptCount += entry.getValue().receiptCount;
+        receiptCount += entry.getValue().receiptCount;
+
+        for (Multiset.Entry<String> wordCount : entry.getValue().wordCounts.entrySet()) {
+          String word = wordCount.getElement();
+          if (vocabulary.contains(word) || vocabulary.size() < maxVocabularySize) {
+            vocabulary.add(word);
+            stats.wordCounts.add(word, wordCount.getCount());
+            stats.wordCount += wordCount.getCount();
+          }
+        }
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the most likely categories of the text, or an empty Optional if the classifier has not
+   * learned any receipts.
+   */
+  public Optional<Prediction> classify(String text) {
+    List<String> words = tokenize(text);
+    lock.readLock().lock();
+    try {
+      if (statsByCategories.isEmpty()) {
+        return Optional.empty();
+      }
+
+      // Log-probabilities of the text for each set of categories, with add-one smoothing so that
+      // words not seen with a set of categories do not rule it out.
+      int vocabularySize = vocabulary.size();
+      List<ImmutableSortedSet<String>> classes = new ArrayList<>(statsByCategories.keySet());
+      double[] logProbabilities = new double[classes.size()];
+      double maxLogProbability = Double.NEGATIVE_INFINITY;
+      int best = 0;
+
+      for (int i = 0; i < classes.size(); i++) {
+        CategoryStats stats = statsByCategories.get(classes.get(i));
+        double logProbability = Math.log((double) stats.receiptCount / receiptCount);
+        double logDenominator = Math.log(stats.wordCount + vocabularySize);
+
+        for (String word : words) {
+          if (vocabulary.contains(word)) {
+            logProbability += Math.log(stats.wordCounts.count(word) + 1) - logDenominator;
+          }
+        }
+
+        logProbabilities[i] = logProbability;
+        if (logProbability > maxLogProbability) {
+          maxLogProbability = logProbability;
+          best = i;
+        }
+      }
+
+      // Normalizes the probabilities, shifted by the largest one so that they do not underflow.
+      double sum = 0;
+      for (double logProbability : logProbabilities) {
+        sum += Math.exp(logProbability - maxLogProbability);
+      }
+      return Optional.of(new Prediction(classes.get(best), 1 / sum));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Returns the number of receipts the classifier has learned. */
+  public long getReceiptCount() {
+    lock.readLock().lock();
+    try {
+      return receiptCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Returns the number of distinct sets of categories the classifier has learned. */
+  public int getCategorySetCount() {
+    lock.readLock().lock();
+    try {
+      return statsByCategories.size();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Serializes the classifier into a compressed byte array. */
+  public byte[] toBytes() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    lock.readLock().lock();
+    try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(bytes))) {
+      output.writeInt(SERIALIZATION_VERSION);
+      output.writeInt(statsByCategories.size());
+
+      for (Map.Entry<ImmutableSortedSet<String>, CategoryStats> entry :
+          statsByCategories.entrySet()) {
+        output.writeInt(entry.getKey().size());
+        for (String category : entry.getKey()) {
+          output.writeUTF(category);
+        }
+
+        CategoryStats stats = entry.getValue();
+        output.writeLong(stats.receiptCount);
+        output.writeInt(stats.wordCounts.elementSet().size());
+        for (Multiset.Entry<String> wordCount : stats.wordCounts.entrySet()) {
+          output.writeUTF(wordCount.getElement());
+          output.writeInt(wordCount.getCount());
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return bytes.toByteArray();
+  }
+
+  /** Reads a classifier serialized by {@link #toBytes}. */
+  public static NaiveBayesClassifier fromBytes(byte[] bytes, int maxVocabularySize)
+      throws IOException {
+    NaiveBayesClassifier classifier = new NaiveBayesClassifier(maxVocabularySize);
+
+    try (DataInputStream input =
+             new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)))) {
+      int version = input.readInt();
+      if (version != SERIALIZATION_VERSION) {
+        throw new IOException("Unsupported classifier version: " + version);
+      }
+
+      int classCount = input.readInt();
+      for (int i = 0; i < classCount; i++) {
+        ImmutableSortedSet.Builder<String> categories = ImmutableSortedSet.naturalOrder();
+        int categoryCount = input.readInt();
+        for (int j = 0; j < categoryCount; j++) {
+          categories.add(input.readUTF());
+        }
+
+        CategoryStats stats = new CategoryStats();
+        stats.receiptCount = input.readLong();
+        int distinctWords = input.readInt();
+        for (int j = 0; j < distinctWords; j++) {
+          String word = input.readUTF();
+          int count = input.readInt();
+          stats.wordCounts.add(word, count);
+          stats.wordCount += count;
+          classifier.vocabulary.add(word);
+        }
+
+        classifier.statsByCategories.put(categories.build(), stats);
+        classifier.receiptCount += stats.receiptCount;
+      }
+    }
+
+    return classifier;
+  }
+
+  /** Splits the text into lowercase words made of letters. Numbers are left out. */
+  private static List<String> tokenize(String text) {
+    List<String> words = new ArrayList<>();
+    int length = text.length();
+    int wordStart = -1;
+
+    for (int i = 0; i <= length; i++) {
+      if (i < length && Character.isLetter(text.charAt(i))) {
+        if (wordStart < 0) {
+          wordStart = i;
+        }
+      } else if (wordStart >= 0) {
+        if (i - wordStart >= MIN_WORD_LENGTH) {
+          words.add(text.substring(wordStart, i).toLowerCase(Locale.ROOT));
+        }
+        wordStart = -1;
+      }
+    }
+
+    return words;
+  }
+}
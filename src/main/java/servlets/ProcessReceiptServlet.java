@@ -0,0 +1,155 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreFailureException;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.data.ReceiptStatus;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ConcurrentModificationException;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet with a POST handler that is called by the receipt analysis task queue to analyze a
+ * receipt uploaded in asynchronous mode. The queue configuration in queue.yaml bounds how many
+ * receipts are analyzed at once.
+ */
+@WebServlet("/process-receipt")
+public class ProcessReceiptServlet extends HttpServlet {
+  // App Engine removes this header from external requests, so only tasks can set it.
+  private static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
+  private static final String RETRY_COUNT_HEADER = "X-AppEngine-TaskRetryCount";
+  // Matches task_retry_limit of the receipt-analysis queue in queue.yaml.
+  private static final int TASK_RETRY_LIMIT = 6;
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ProcessReceiptServlet.class.getName());
+
+  private final BlobstoreService blobstoreService;
+  private final DatastoreService datastore;
+  private final Clock clock;
+
+  public ProcessReceiptServlet() {
+    this.blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+    this.datastore = DatastoreServiceFactory.getDatastoreService();
+    this.clock = Clock.systemDefaultZone();
+  }
+
+  public ProcessReceiptServlet(
+      BlobstoreService blobstoreService, DatastoreService datastore, Clock clock) {
+    this.blobstoreService = blobstoreService;
+    this.datastore = datastore;
+    this.clock = clock;
+  }
+
+  /**
+   * Analyzes the image of the pending receipt with the given ID and adds the extracted fields to
+   * the receipt. If the analysis fails with a temporary error, such as a Blobstore or Datastore
+   * error or a failed Cloud Vision or Cloud Natural Language request, a server error status is
+   * returned so that the queue backs off and retries the task. If it fails with
+   * any other error or on the last retry, the receipt is marked as failed and its image is deleted.
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (request.getHeader(QUEUE_NAME_HEADER) == null) {
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    Entity receipt;
+    BlobKey blobKey;
+    try {
+      long id = Long.parseLong(request.getParameter("id"));
+      Key key = KeyFactory.createKey("Receipt", id);
+      receipt = datastore.get(key);
+      blobKey = new BlobKey(request.getParameter("blob-key"));
+    } catch (EntityNotFoundException | NumberFormatException e) {
+      // Retrying the task would not help, so acknowledge it with a successful status.
+      logger.warning(e.toString());
+      return;
+    }
+
+    // Tasks can run more than once, so skip receipts that were already processed. Receipts that are
+    // still analyzing are retried, since the previous attempt may have been interrupted.
+    Object status = receipt.getProperty("status");
+    if (!ReceiptStatus.PENDING.name().equals(status)
+        && !ReceiptStatus.ANALYZING.name().equals(status)) {
+      return;
+    }
+
+    receipt.setProperty("status", ReceiptStatus.ANALYZING.name());
+    datastore.put(receipt);
+
+    try {
+      AnalysisResults results = ReceiptAnalysis.analyzeImageAtOrThrow(blobKey);
+      FormatUtils.setAnalysisResults(receipt, results, clock);
+      receipt.setProperty("status", ReceiptStatus.DONE.name());
+    } catch (IOException | RuntimeException e) {
+      if (isTemporary(e) && !isLastRetry(request)) {
+        // The receipt stays analyzing, which the retried task picks up again.
+        logger.warning("Receipt analysis failed and will be retried: " + e);
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return;
+      }
+
+      // Other failures are not retried, so that the receipt never stays analyzing.
+      logger.warning("Receipt analysis failed: " + e);
+      blobstoreService.delete(blobKey);
+      receipt.setProperty("status", ReceiptStatus.FAILED.name());
+    }
+
+    datastore.put(receipt);
+    ReceiptIndexes.updateReceipt(receipt);
+    SearchResultsCache.invalidate((String) receipt.getProperty("userId"));
+  }
+
+  /**
+   * Returns whether the failure may be temporary, like a failed Blobstore read, a Datastore
+   * timeout, or a Cloud API outage, so that retrying the task could succeed. Failed API requests
+   * are thrown as IOExceptions by {@link ReceiptAnalysis#analyzeImageAtOrThrow}.
+   */
+  private static boolean isTemporary(Exception e) {
+    return e instanceof IOException || e instanceof BlobstoreFailureException
+        || e instanceof DatastoreFailureException || e instanceof DatastoreTimeoutException
+        || e instanceof ConcurrentModificationException;
+  }
+
+  /** Returns whether the queue will not retry the task again if it fails. */
+  private static boolean isLastRetry(HttpServletRequest request) {
+    String retryCount = request.getHeader(RETRY_COUNT_HEADER);
+
+    try {
+      return retryCount != null && Integer.parseInt(retryCount) >= TASK_RETRY_LIMIT;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+}
@@ -15,45 +15,44 @@
 package com.google.sps.servlets;
 
 import com.google.api.gax.rpc.ApiException;
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.blobstore.BlobInfo;
 import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
-import com.google.cloud.language.v1.ClassificationCategory;
 import com.google.cloud.language.v1.ClassifyTextRequest;
 import com.google.cloud.language.v1.ClassifyTextResponse;
 import com.google.cloud.language.v1.Document;
 import com.google.cloud.language.v1.Document.Type;
-import com.google.cloud.language.v1.LanguageServiceClient;
 import com.google.cloud.vision.v1.AnnotateImageRequest;
 import com.google.cloud.vision.v1.AnnotateImageResponse;
-import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
 import com.google.cloud.vision.v1.EntityAnnotation;
 import com.google.cloud.vision.v1.Feature;
 import com.google.cloud.vision.v1.Image;
-import com.google.cloud.vision.v1.ImageAnnotatorClient;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Iterables;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.sps.data.AnalysisResults;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
-import java.time.LocalDate;
-import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
-import java.util.regex.Pattern;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
 /**
  * Class with static methods that return the text of a specified image using the Cloud Vision API,
- * as well as some categories the text falls into using the Cloud Natural Language API.
+ * as well as some categories the text falls into using the Cloud Natural Language API. Requests are
+ * sent to the backend chosen by {@link AnalysisBackends}.
  */
 public class ReceiptAnalysis {
   // Confidence scores are values in the range [0,1] that indicate how accurate the Cloud Vision API
@@ -61,80 +60,365 @@ public class ReceiptAnalysis {
   // minimum confidence score that a detected logo must have to be considered significant for
   // receipt analysis.
   private static final float LOGO_DETECTION_CONFIDENCE_THRESHOLD = 0.6f;
-  // Matches strings in U.S. date format.
-  private static final Pattern dateRegex =
-      Pattern.compile("\\d?\\d([/-])\\d?\\d\\1\\d{2}(\\d{2})?");
-  // Matches strings formatted as prices in dollars.
-  private static final Pattern priceRegex = Pattern.compile("\\$?\\d+\\.\\d\\d");
+  // How long an image request waits for concurrent requests to join its Cloud Vision batch, and
+  // how many requests and image bytes can join one batch. All can be set with system properties.
+  private static final long VISION_BATCH_WINDOW_MILLIS =
+      Long.getLong("receiptAnalysis.visionBatchWindowMillis", 10);
+  private static final int VISION_MAX_BATCH_SIZE =
+      Integer.getInteger("receiptAnalysis.visionMaxBatchSize", VisionBatcher.MAX_BATCH_SIZE);
+  private static final int VISION_MAX_BATCH_BYTES =
+      Integer.getInteger("receiptAnalysis.visionMaxBatchBytes", VisionBatcher.MAX_BATCH_BYTES);
+
+  // Longest time a Cloud Vision or Cloud Natural Language call may take, which can be set with
+  // system properties. Calls are also cut short so that they end before the upload request does.
+  private static final Duration VISION_TIMEOUT =
+      Duration.ofMillis(Long.getLong("receiptAnalysis.visionTimeoutMillis", 10_000));
+  private static final Duration LANGUAGE_TIMEOUT =
+      Duration.ofMillis(Long.getLong("receiptAnalysis.languageTimeoutMillis", 5_000));
+
+  // Maximum number of blob fragments fetched at the same time, which can be set with a system
+  // property. Fetching is sequential if this is 1.
+  private static final int BLOB_FETCH_CONCURRENCY =
+      Math.max(1, Integer.getInteger("receiptAnalysis.blobFetchConcurrency", 4));
+
+  // Names of the analysis stages, used to report their times.
+  private static final String PREPROCESS_STAGE = "preprocess";
+  private static final String TEXT_STAGE = "text";
+  private static final String CATEGORIES_STAGE = "categories";
+  private static final String SCAN_STAGE = "scan";
+  private static final String DATE_STAGE = "date";
+  private static final String PRICE_STAGE = "price";
+  // Names of the stages that read the image, recorded in Metrics.
+  private static final String IMAGE_FETCH_STAGE = "image_fetch";
+  private static final String BLOB_READ_STAGE = "blob_read";
+  // Number of blob fragments fetched to read images, recorded in Metrics.
+  private static final String BLOB_FRAGMENTS = "receipt_roundup_blob_fragments_total";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ReceiptAnalysis.class.getName());
+
+  // Images are shrunk before text detection, which can be tuned with system properties. The
+  // default edge keeps receipt text well above the size Cloud Vision needs.
+  private static final ImagePreprocessor imagePreprocessor = new ImagePreprocessor(
+      Integer.getInteger("receiptAnalysis.maxImageEdge", 2048),
+      Boolean.getBoolean("receiptAnalysis.grayscaleImages"),
+      Float.parseFloat(System.getProperty("receiptAnalysis.jpegQuality", "0.85")));
+
+  // Finds the transaction date in the detected text. Dates are kept as the start of their day in
+  // UTC, so the extractor's clock only decides the century of two-digit years.
+  private static final DateExtractor dateExtractor = new DateExtractor(Clock.systemUTC());
+
+  // Images at URLs are fetched with timeouts and a size cap over reused connections, and results
+  // of URLs analyzed again are cached. Both can be tuned with system properties.
+  private static final ImageFetcher imageFetcher = ImageFetcher.fromSystemProperties();
+  private static final UrlResultsCache urlResultsCache = UrlResultsCache.fromSystemProperties();
+
+  private static final VisionBatcher visionBatcher = new VisionBatcher(
+      requests -> AnalysisBackends.get().batchAnnotateImages(requests, VISION_TIMEOUT),
+      VISION_BATCH_WINDOW_MILLIS, VISION_MAX_BATCH_SIZE, VISION_MAX_BATCH_BYTES);
+
+  static {
+    registerCacheMetrics();
+  }
 
   /** Returns the text and categorization of the image at the requested URL. */
   public static AnalysisResults analyzeImageAt(URL url) throws IOException {
     ByteString imageBytes = readImageBytes(url);
 
-    return analyzeImage(imageBytes);
+    return analyzeImage(imageBytes, /* failOnApiError = */ false);
+  }
+
+  /**
+   * Returns the text and categorization of the image at the requested URL, reusing the results of
+   * an earlier analysis of the URL while they are fresh or while the server says the image has not
+   * changed. See {@link UrlResultsCache}.
+   */
+  public static AnalysisResults analyzeCachedImageAt(URL url) throws IOException {
+    return urlResultsCache.analyze(
+        url, imageFetcher, imageBytes -> analyzeImage(imageBytes, /* failOnApiError = */ false));
   }
 
   /** Returns the text and categorization of the image at the requested blob key. */
   public static AnalysisResults analyzeImageAt(BlobKey blobKey) throws IOException {
     ByteString imageBytes = readImageBytes(blobKey);
 
-    return analyzeImage(imageBytes);
+    return analyzeImage(imageBytes, /* failOnApiError = */ false);
+  }
+
+  /**
+   * Returns the text and categorization of the image at the requested blob key. Unlike {@link
+   * #analyzeImageAt(BlobKey)}, a failed Cloud Vision or Cloud Natural Language request, including
+   * one rejected by an open circuit breaker, throws an IOException instead of leaving fields empty.
+   * Used by background analysis, which can try again once the APIs recover.
+   */
+  public static AnalysisResults analyzeImageAtOrThrow(BlobKey blobKey) throws IOException {
+    ByteString imageBytes = readImageBytes(blobKey);
+
+    return analyzeImage(imageBytes, /* failOnApiError = */ true);
   }
 
   /** Reads the image bytes from the URL. */
   private static ByteString readImageBytes(URL url) throws IOException {
-    ByteString imageBytes;
+    long startNanos = System.nanoTime();
+    int span = RequestTrace.startSpan(IMAGE_FETCH_STAGE);
 
-    try (InputStream imageInputStream = url.openStream()) {
-      imageBytes = ByteString.readFrom(imageInputStream);
+    try {
+      return imageFetcher.fetch(url).getBytes();
+    } catch (IOException e) {
+      Metrics.countStageFailure(IMAGE_FETCH_STAGE);
+      throw e;
+    } finally {
+      RequestTrace.endSpan(span);
+      Metrics.recordStage(IMAGE_FETCH_STAGE, startNanos);
     }
-
-    return imageBytes;
   }
 
-  /** Retrieves the binary data stored at the given blob key. */
+  /**
+   * Retrieves the binary data stored at the given blob key. The fragments are copied straight into
+   * a buffer sized from the blob info, which the returned ByteString wraps without another copy.
+   * Blobs larger than one fragment are fetched with several fragment requests at a time.
+   */
   private static ByteString readImageBytes(BlobKey blobKey) throws IOException {
+    long startNanos = System.nanoTime();
+    int span = RequestTrace.startSpan(BLOB_READ_STAGE);
+
+    try {
+      return readBlob(blobKey, startNanos);
+    } catch (IOException e) {
+      Metrics.countStageFailure(BLOB_READ_STAGE);
+      throw e;
+    } finally {
+      RequestTrace.endSpan(span);
+      Metrics.recordStage(BLOB_READ_STAGE, startNanos);
+    }
+  }
+
+  /**
+   * Reads the blob for {@link #readImageBytes(BlobKey)}, which records it as a span and a stage.
+   * The fragments are counted before they are fetched, so reads that fail are counted too.
+   */
+  private static ByteString readBlob(BlobKey blobKey, long startNanos) throws IOException {
     BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
     BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
     long blobSize = blobInfo.getSize();
 
-    ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
+    if (blobSize > Integer.MAX_VALUE) {
+      throw new IOException("Blob is too large to analyze: " + blobSize + " bytes.");
+    }
+
+    byte[] imageBytes = new byte[(int) blobSize];
     int fetchSize = BlobstoreService.MAX_BLOB_FETCH_SIZE;
-    long currentByteIndex = 0;
-
-    // Fetch all the bytes from the blob in fragments of the maximum fetch size.
-    while (currentByteIndex < blobSize) {
-      // End index is inclusive, so subtract 1 to get fetchSize bytes.
-      // Get data starting at currentByteIndex until either the fetch size or
-      // the end of the blob is reached.
-      byte[] bytes =
-          blobstoreService.fetchData(blobKey, currentByteIndex, currentByteIndex + fetchSize - 1);
-      outputBytes.write(bytes);
-
-      currentByteIndex += fetchSize;
+    int numFragments = (int) ((blobSize + fetchSize - 1) / fetchSize);
+    int concurrency = Math.min(numFragments, BLOB_FETCH_CONCURRENCY);
+    Metrics.counter(BLOB_FRAGMENTS, "Number of blob fragments fetched to read images.")
+        .add(numFragments);
+
+    if (concurrency <= 1) {
+      for (int i = 0; i < numFragments; i++) {
+        fetchFragment(blobstoreService, blobKey, imageBytes, i * fetchSize);
+      }
+    } else {
+      fetchFragmentsInParallel(blobstoreService, blobKey, imageBytes, numFragments, concurrency);
     }
 
-    return ByteString.copyFrom(outputBytes.toByteArray());
+    logger.info(String.format("Read blob of %d bytes in %d fragments in %d ms.", blobSize,
+        numFragments, (System.nanoTime() - startNanos) / 1_000_000));
+
+    // The buffer is never modified after this, so it is safe to share with the ByteString.
+    return UnsafeByteOperations.unsafeWrap(imageBytes);
   }
 
-  /** Analyzes the image represented by the given ByteString. */
-  private static AnalysisResults analyzeImage(ByteString imageBytes) throws IOException {
-    AnalysisResults.Builder analysisBuilder = retrieveText(imageBytes);
+  /**
+   * Fetches the fragments of the blob on up to the given number of threads. App Engine APIs can
+   * only be called from request threads, so the threads are created for the current request and
+   * stopped once the blob has been read.
+   */
+  private static void fetchFragmentsInParallel(BlobstoreService blobstoreService, BlobKey blobKey,
+      byte[] imageBytes, int numFragments, int concurrency) throws IOException {
+    ExecutorService executor =
+        Executors.newFixedThreadPool(concurrency, ThreadManager.currentRequestThreadFactory());
 
-    // Generate categories and parse date and price if text was extracted.
-    if (analysisBuilder.getRawText().isPresent()) {
-      ImmutableSet<String> categories = categorizeText(analysisBuilder.getRawText().get());
-      analysisBuilder.setCategories(categories);
+    try {
+      List<Future<?>> fragments = new ArrayList<>();
+      for (int i = 0; i < numFragments; i++) {
+        int start = i * BlobstoreService.MAX_BLOB_FETCH_SIZE;
+        fragments.add(executor.submit(() -> {
+          fetchFragment(blobstoreService, blobKey, imageBytes, start);
+          return null;
+        }));
+      }
 
-      checkForParsableDate(analysisBuilder);
-      checkForParsablePrices(analysisBuilder);
+      // Waiting on every fragment also makes the bytes written by the threads visible here.
+      for (Future<?> fragment : fragments) {
+        fragment.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading the blob.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Failed to read the blob.", cause);
+    } finally {
+      executor.shutdownNow();
     }
+  }
+
+  /**
+   * Fetches the fragment of the blob that starts at the given index and copies it into the
+   * buffer at the same position.
+   */
+  private static void fetchFragment(BlobstoreService blobstoreService, BlobKey blobKey,
+      byte[] imageBytes, int start) throws IOException {
+    // End index is inclusive, so subtract 1 to get at most MAX_BLOB_FETCH_SIZE bytes.
+    int length = Math.min(BlobstoreService.MAX_BLOB_FETCH_SIZE, imageBytes.length - start);
+    byte[] bytes = blobstoreService.fetchData(blobKey, start, start + length - 1);
+
+    if (bytes.length != length) {
+      throw new IOException(String.format(
+          "Expected %d bytes at index %d of the blob but got %d.", length, start, bytes.length));
+    }
+
+    System.arraycopy(bytes, 0, imageBytes, start, length);
+  }
+
+  /**
+   * Analyzes the image represented by the given ByteString. Results are cached by the hash of the
+   * image bytes, so analyzing the same image again skips the Cloud Vision and Cloud Natural
+   * Language requests. A failure to categorize the text or to parse the date or price leaves that
+   * field empty without affecting the others.
+   *
+   * @param failOnApiError Whether a failed API request throws an IOException rather than leaving
+   *     the fields it would have filled empty.
+   */
+  private static AnalysisResults analyzeImage(ByteString imageBytes, boolean failOnApiError)
+      throws IOException {
+    int span = RequestTrace.startSpan("analysis");
+
+    try {
+      return analyzeImageWithCache(imageBytes, failOnApiError);
+    } finally {
+      RequestTrace.endSpan(span);
+    }
+  }
+
+  /** Analyzes the image for {@link #analyzeImage}, which records it as a span. */
+  private static AnalysisResults analyzeImageWithCache(ByteString imageBytes,
+      boolean failOnApiError) throws IOException {
+    String cacheKey = AnalysisResultsCache.getKey(imageBytes);
+    Optional<AnalysisResults> cachedResults = AnalysisResultsCache.get(cacheKey);
+
+    if (cachedResults.isPresent()) {
+      return cachedResults.get();
+    }
+
+    ExecutorService executor = AnalysisExecutor.newRequestExecutor();
+    AnalysisResults results;
+    try {
+      results = runPipeline(imageBytes, executor, failOnApiError);
+    } finally {
+      // Request threads must not outlive the request. Every stage has finished by now, unless a
+      // required stage failed and the stages that are left are not needed.
+      executor.shutdownNow();
+    }
+
+    // Failed requests return empty results, so only cache complete results to let the image be
+    // analyzed again once the APIs recover.
+    if (results.isComplete()) {
+      AnalysisResultsCache.put(cacheKey, results);
+    }
+
+    return results;
+  }
+
+  /** Analyzes an image that is not cached, running its stages on the executor. */
+  private static AnalysisResults runPipeline(ByteString imageBytes, ExecutorService executor,
+      boolean failOnApiError) throws IOException {
+    // The image is shrunk and then its text is detected. The text scan and categorization, which
+    // calls the Cloud Natural Language API unless the store's categories are memoized, only need
+    // the text, so they run at the same time as the date extraction. The price is then taken from
+    // the largest price found by the scan. The cache key is the hash of the original image, so the
+    // shrunk image does not need to be computed for cache hits.
+    AnalysisPipeline pipeline = new AnalysisPipeline(executor);
+    CompletableFuture<ByteString> preprocessStage =
+        pipeline.start(PREPROCESS_STAGE, () -> imagePreprocessor.process(imageBytes));
+    CompletableFuture<AnalysisResults.Builder> textStage =
+        pipeline.then(TEXT_STAGE, preprocessStage, bytes -> retrieveText(bytes, failOnApiError));
+    CompletableFuture<Optional<ReceiptTextScanner>> scanStage = pipeline.then(SCAN_STAGE, textStage,
+        builder -> builder.getRawText().map(ReceiptTextScanner::scan), Optional.empty());
+    CompletableFuture<Optional<Long>> dateStage = pipeline.then(DATE_STAGE, textStage,
+        builder -> builder.getRawText().flatMap(dateExtractor::extractTimestamp), Optional.empty());
+    CompletableFuture<Optional<Double>> priceStage = pipeline.then(PRICE_STAGE, scanStage,
+        scanner -> scanner.flatMap(ReceiptTextParser::checkForParsablePrices), Optional.empty());
+
+    AnalysisResults.Builder analysisBuilder = AnalysisPipeline.await(textStage);
+    analysisBuilder.setCategories(
+        getCategories(pipeline, textStage, analysisBuilder, failOnApiError));
+    AnalysisPipeline.await(dateStage).ifPresent(analysisBuilder::setTransactionTimestamp);
+    AnalysisPipeline.await(priceStage).ifPresent(analysisBuilder::setPrice);
+    logger.info("Receipt analysis stage times in ms: " + pipeline.getStageMillis());
 
     return analysisBuilder.build();
   }
 
-  /** Detects and retrieves text and store logo in the provided image. */
-  private static AnalysisResults.Builder retrieveText(ByteString imageBytes) throws IOException {
+  /**
+   * Returns the categories of the receipt. If the store's receipts always get the same categories,
+   * they are taken from {@link StoreCategoryMemo}. Otherwise, the {@link LocalCategorizer} is
+   * tried unless the memo is due to be verified, and if it is not confident or is due to be
+   * verified itself, the text is categorized by the API in a pipeline stage while the date and
+   * price are parsed. Categories from the API are recorded for the store and learned by the local
+   * categorizer, which corrects its mistakes. Both are used on the
+   * calling request thread, since they use Datastore.
+   */
+  private static ImmutableSet<String> getCategories(AnalysisPipeline pipeline,
+      CompletableFuture<AnalysisResults.Builder> textStage, AnalysisResults.Builder analysisBuilder,
+      boolean failOnApiError) throws IOException {
+    if (!analysisBuilder.getRawText().isPresent()) {
+      return ImmutableSet.of();
+    }
+
+    Optional<String> store = analysisBuilder.getStore();
+    boolean verificationDue = false;
+    if (store.isPresent()) {
+      StoreCategoryMemo.Lookup memoLookup = StoreCategoryMemo.lookup(store.get());
+      if (memoLookup.getCategories().isPresent()) {
+        return memoLookup.getCategories().get();
+      }
+      verificationDue = memoLookup.isVerificationDue();
+    }
+
+    // A memoized store that is due to be verified goes straight to the API. The local categorizer
+    // would usually answer for it, and the memoized categories would never be checked.
+    String rawText = analysisBuilder.getRawText().get();
+    if (!verificationDue) {
+      Optional<ImmutableSet<String>> localCategories = LocalCategorizer.classify(rawText);
+      if (localCategories.isPresent()) {
+        return localCategories.get();
+      }
+    }
+
+    // If failures must be reported, the stage is required, so that its failure is rethrown.
+    CompletableFuture<ImmutableSet<String>> categoriesStage = failOnApiError
+        ? pipeline.then(CATEGORIES_STAGE, textStage,
+            builder -> categorizeText(builder.getRawText(), /* failOnApiError = */ true))
+        : pipeline.then(CATEGORIES_STAGE, textStage,
+            builder -> categorizeText(builder.getRawText(), /* failOnApiError = */ false),
+            ImmutableSet.of());
+    ImmutableSet<String> categories = AnalysisPipeline.await(categoriesStage);
+    store.ifPresent(storeName -> StoreCategoryMemo.record(storeName, categories));
+    LocalCategorizer.learn(rawText, categories);
+
+    return categories;
+  }
+
+  /**
+   * Detects and retrieves text and store logo in the provided image. If the request fails, the
+   * builder is returned empty, or an IOException is thrown if failOnApiError is set.
+   */
+  private static AnalysisResults.Builder retrieveText(ByteString imageBytes,
+      boolean failOnApiError) throws IOException {
     AnalysisResults.Builder analysisBuilder = new AnalysisResults.Builder();
 
     Image image = Image.newBuilder().setContent(imageBytes).build();
@@ -143,16 +427,9 @@ public class ReceiptAnalysis {
             Feature.newBuilder().setType(Feature.Type.LOGO_DETECTION).build());
     AnnotateImageRequest request =
         AnnotateImageRequest.newBuilder().addAllFeatures(features).setImage(image).build();
-    ImmutableList<AnnotateImageRequest> requests = ImmutableList.of(request);
 
-    try (ImageAnnotatorClient client = ImageAnnotatorClient.create()) {
-      BatchAnnotateImagesResponse batchResponse = client.batchAnnotateImages(requests);
-
-      if (batchResponse.getResponsesList().isEmpty()) {
-        return analysisBuilder;
-      }
-
-      AnnotateImageResponse response = Iterables.getOnlyElement(batchResponse.getResponsesList());
+    try {
+      AnnotateImageResponse response = visionBatcher.annotate(request);
 
       if (response.hasError()) {
         return analysisBuilder;
@@ -175,29 +452,47 @@ public class ReceiptAnalysis {
         analysisBuilder.setStore(store);
       }
     } catch (ApiException e) {
-      // Return default builder if image annotation request failed.
+      if (failOnApiError) {
+        throw new IOException("Image annotation request failed.", e);
+      }
+      // Return default builder if image annotation request failed, timed out, or was rejected.
+      logger.warning("Image annotation request failed: " + e);
       return analysisBuilder;
     }
 
     return analysisBuilder;
   }
 
-  /** Generates categories for the provided text. */
-  private static ImmutableSet<String> categorizeText(String text) throws IOException {
+  /**
+   * Generates categories for the provided text, if there is any. If the request fails, no
+   * categories are returned, or an IOException is thrown if failOnApiError is set.
+   */
+  private static ImmutableSet<String> categorizeText(Optional<String> rawText,
+      boolean failOnApiError) throws IOException {
     ImmutableSet<String> categories = ImmutableSet.of();
 
-    try (LanguageServiceClient client = LanguageServiceClient.create()) {
+    if (!rawText.isPresent()) {
+      return categories;
+    }
+    String text = rawText.get();
+
+    try {
       Document document = Document.newBuilder().setContent(text).setType(Type.PLAIN_TEXT).build();
       ClassifyTextRequest request = ClassifyTextRequest.newBuilder().setDocument(document).build();
 
-      ClassifyTextResponse response = client.classifyText(request);
+      ClassifyTextResponse response =
+          AnalysisBackends.get().classifyText(request, LANGUAGE_TIMEOUT);
 
       categories = response.getCategoriesList()
                        .stream()
-                       .flatMap(ReceiptAnalysis::parseCategory)
+                       .flatMap(ReceiptTextParser::parseCategory)
                        .collect(ImmutableSet.toImmutableSet());
     } catch (ApiException e) {
-      // Return empty set if classification request failed.
+      if (failOnApiError) {
+        throw new IOException("Text classification request failed.", e);
+      }
+      // Return empty set if classification request failed, timed out, or was rejected.
+      logger.warning("Text classification request failed: " + e);
       return categories;
     }
 
@@ -205,117 +500,32 @@ public class ReceiptAnalysis {
   }
 
   /**
-   * Parse category strings into more natural categories
-   * e.g. "/Food & Drink/Restaurants" becomes "Food", "Drink", and "Restaurants"
-   */
-  private static Stream<String> parseCategory(ClassificationCategory category) {
-    return Stream.of(category.getName().substring(1).split("/| & "));
-  }
-
-  /**
-   * Checks the raw text in the builder for a date that can be parsed. If one is found, it is added
-   * to the builder as a timestamp.
-   */
-  private static void checkForParsableDate(AnalysisResults.Builder analysisBuilder) {
-    Stream<String> dates =
-        getTokensFromRawText(analysisBuilder.getRawText().get()).filter(ReceiptAnalysis::isDate);
-    // Assume that the first date on the receipt is the transaction date.
-    Optional<String> firstDate = dates.findFirst();
-
-    firstDate.ifPresent(date -> ReceiptAnalysis.addDateIfValid(analysisBuilder, date));
-  }
-
-  /**
-   * Adds a valid date to the builder as a timestamp. If the date has an invalid month or day, then
-   * nothing is added.
-   */
-  private static void addDateIfValid(AnalysisResults.Builder analysisBuilder, String date) {
-    String separator = date.contains("-") ? "-" : "/";
-    String formatterPattern = "M" + separator + "d" + separator;
-
-    // Determine if the date has 2 or 4 digits for the year
-    if (date.lastIndexOf(separator) + 3 == date.length()) {
-      formatterPattern += "yy";
-    } else {
-      formatterPattern += "yyyy";
-    }
-
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern(formatterPattern);
-
-    try {
-      ZonedDateTime dateAndTime = LocalDate.parse(date, formatter).atStartOfDay(ZoneOffset.UTC);
-      dateAndTime = fixYearIfInFuture(dateAndTime);
-
-      long timestamp = dateAndTime.toInstant().toEpochMilli();
-      analysisBuilder.setTransactionTimestamp(timestamp);
-    } catch (DateTimeParseException e) {
-      // Invalid month or day
-      return;
-    }
-  }
-
-  /**
-   * DateTimeFormatter assumes that two-digit years are in the 2000s. This method checks if the
-   * given date is after the current date and if so, subtracts 100 years to move it to the 1900s.
-   */
-  private static ZonedDateTime fixYearIfInFuture(ZonedDateTime dateAndTime) {
-    if (dateAndTime.isAfter(ZonedDateTime.now())) {
-      return dateAndTime.minusYears(100);
-    }
-    return dateAndTime;
-  }
-
-  /**
-   * Splits a string on whitespace and returns a stream of the resulting strings.
-   */
-  private static Stream<String> getTokensFromRawText(String rawText) {
-    return Stream.of(rawText.split("\\s"));
-  }
-
-  /**
-   * Checks if the token is formatted as a date.
-   */
-  private static boolean isDate(String token) {
-    return dateRegex.matcher(token).matches();
-  }
-
-  /**
-   * Checks the raw text in the builder for prices that can be parsed. The largest price found, if
-   * it exists, is added to the builder.
-   */
-  private static void checkForParsablePrices(AnalysisResults.Builder analysisBuilder) {
-    // Assume that the largest price on the receipt is the total price.
-    double largestPrice = getTokensFromRawText(analysisBuilder.getRawText().get())
-                              .filter(ReceiptAnalysis::isPrice)
-                              .mapToDouble(ReceiptAnalysis::parsePrice)
-                              .reduce(Double.NEGATIVE_INFINITY, Double::max);
-
-    if (largestPrice != Double.NEGATIVE_INFINITY) {
-      analysisBuilder.setPrice(largestPrice);
-    }
-  }
-
-  /**
-   * Returns the price represented by the string as a double, or Double.NEGATIVE_INFINITY if the
-   * string cannot be parsed.
-   */
-  private static double parsePrice(String price) {
-    if (price.startsWith("$")) {
-      price = price.substring(1);
-    }
-
-    try {
-      return Double.parseDouble(price);
-    } catch (NumberFormatException e) {
-      return Double.NEGATIVE_INFINITY;
-    }
-  }
-
-  /**
-   * Checks if the token is formatted as a price.
+   * Registers the hit and miss counts of the caches that let analyses skip the Cloud APIs in
+   * {@link Metrics}.
    */
-  private static boolean isPrice(String token) {
-    return priceRegex.matcher(token).matches();
+  private static void registerCacheMetrics() {
+    String cacheRequests = "receipt_roundup_cache_requests_total";
+    String cacheHelp = "Number of lookups in each cache by result.";
+    Metrics.registerCounter(cacheRequests, cacheHelp, AnalysisResultsCache::getMemoryHitCount,
+        "cache", "analysis_results", "result", "memory_hit");
+    Metrics.registerCounter(cacheRequests, cacheHelp, AnalysisResultsCache::getDatastoreHitCount,
+        "cache", "analysis_results", "result", "datastore_hit");
+    Metrics.registerCounter(cacheRequests, cacheHelp, AnalysisResultsCache::getMissCount,
+        "cache", "analysis_results", "result", "miss");
+    Metrics.registerCounter(cacheRequests, cacheHelp, StoreCategoryMemo::getHitCount,
+        "cache", "store_categories", "result", "hit");
+    Metrics.registerCounter(cacheRequests, cacheHelp, StoreCategoryMemo::getMissCount,
+        "cache", "store_categories", "result", "miss");
+    Metrics.registerCounter(cacheRequests, cacheHelp, LocalCategorizer::getHitCount,
+        "cache", "local_categorizer", "result", "hit");
+    Metrics.registerCounter(cacheRequests, cacheHelp, LocalCategorizer::getMissCount,
+        "cache", "local_categorizer", "result", "miss");
+    Metrics.registerCounter(cacheRequests, cacheHelp, urlResultsCache::getHitCount,
+        "cache", "url_results", "result", "hit");
+    Metrics.registerCounter(cacheRequests, cacheHelp, urlResultsCache::getRevalidatedCount,
+        "cache", "url_results", "result", "revalidated");
+    Metrics.registerCounter(cacheRequests, cacheHelp, urlResultsCache::getMissCount,
+        "cache", "url_results", "result", "miss");
   }
 
   public static class ReceiptAnalysisException extends Exception {
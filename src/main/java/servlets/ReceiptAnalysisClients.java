@@ -0,0 +1,135 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.cloud.language.v1.ClassifyTextRequest;
+import com.google.cloud.language.v1.Document;
+import com.google.cloud.language.v1.Document.Type;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.cloud.language.v1.LanguageServiceSettings;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageAnnotatorSettings;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Holds the Cloud Vision and Cloud Natural Language clients shared by every receipt analysis on
+ * this instance. The clients are created once, either at startup by {@link
+ * ReceiptAnalysisListener} or on first use, and closed when the instance shuts down.
+ */
+public final class ReceiptAnalysisClients {
+  // Number of gRPC channels each client keeps open, which can be set with a system property in
+  // appengine-web.xml.
+  private static final String CHANNEL_POOL_SIZE_PROPERTY = "receiptAnalysis.channelPoolSize";
+  private static final int DEFAULT_CHANNEL_POOL_SIZE = 1;
+  // Text sent by the warm-up classification request. It is too short to be classified, so the
+  // request is rejected without being charged, but it still opens the channel.
+  private static final String WARM_UP_TEXT = "warm up";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ReceiptAnalysisClients.class.getName());
+
+  private static ImageAnnotatorClient imageClient;
+  private static LanguageServiceClient languageClient;
+
+  /**
+   * Prevents instantiation.
+   */
+  private ReceiptAnalysisClients() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the shared Cloud Vision client, creating it if it does not exist yet.
+   */
+  public static synchronized ImageAnnotatorClient getImageAnnotatorClient() throws IOException {
+    if (imageClient == null) {
+      ImageAnnotatorSettings settings =
+          ImageAnnotatorSettings.newBuilder()
+              .setTransportChannelProvider(
+                  ImageAnnotatorSettings.defaultGrpcTransportProviderBuilder()
+                      .setPoolSize(getChannelPoolSize())
+                      .build())
+              .build();
+      imageClient = ImageAnnotatorClient.create(settings);
+    }
+
+    return imageClient;
+  }
+
+  /**
+   * Returns the shared Cloud Natural Language client, creating it if it does not exist yet.
+   */
+  public static synchronized LanguageServiceClient getLanguageServiceClient() throws IOException {
+    if (languageClient == null) {
+      LanguageServiceSettings settings =
+          LanguageServiceSettings.newBuilder()
+              .setTransportChannelProvider(
+                  LanguageServiceSettings.defaultGrpcTransportProviderBuilder()
+                      .setPoolSize(getChannelPoolSize())
+                      .build())
+              .build();
+      languageClient = LanguageServiceClient.create(settings);
+    }
+
+    return languageClient;
+  }
+
+  /**
+   * Creates both clients and sends a request through each of them so that the channels,
+   * TLS sessions, and credentials are ready before the first receipt is analyzed. The warm-up
+   * requests are expected to be rejected by the APIs, so their errors are ignored.
+   */
+  public static void warmUp() throws IOException {
+    try {
+      getImageAnnotatorClient().batchAnnotateImages(ImmutableList.of());
+    } catch (ApiException e) {
+      logger.fine("Vision warm-up request returned " + e.getStatusCode().getCode());
+    }
+
+    try {
+      Document document =
+          Document.newBuilder().setContent(WARM_UP_TEXT).setType(Type.PLAIN_TEXT).build();
+      getLanguageServiceClient().classifyText(
+          ClassifyTextRequest.newBuilder().setDocument(document).build());
+    } catch (ApiException e) {
+      logger.fine("Language warm-up request returned " + e.getStatusCode().getCode());
+    }
+  }
+
+  /**
+   * Closes the shared clients. New clients will be created if they are requested again.
+   */
+  public static synchronized void close() {
+    if (imageClient != null) {
+      imageClient.close();
+      imageClient = null;
+    }
+
+    if (languageClient != null) {
+      languageClient.close();
+      languageClient = null;
+    }
+  }
+
+  /**
+   * Returns the configured number of channels per client.
+   */
+  private static int getChannelPoolSize() {
+    return Math.max(1, Integer.getInteger(CHANNEL_POOL_SIZE_PROPERTY, DEFAULT_CHANNEL_POOL_SIZE));
+  }
+}
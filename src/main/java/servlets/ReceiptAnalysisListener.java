@@ -0,0 +1,54 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Manages the lifecycle of the resources used for receipt analysis. They are created and warmed up
+ * when the instance starts so that the first upload does not pay for opening connections, and
+ * released when the instance shuts down.
+ */
+@WebListener
+public class ReceiptAnalysisListener implements ServletContextListener {
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ReceiptAnalysisListener.class.getName());
+
+  @Override
+  public void contextInitialized(ServletContextEvent event) {
+    try {
+      AnalysisBackends.get().warmUp();
+    } catch (IOException | RuntimeException e) {
+      // The clients will be created again on first use, so the instance can still start.
+      logger.warning("Receipt analysis warm-up failed: " + e);
+    }
+
+    try {
+      LocalCategorizer.warmUp();
+    } catch (RuntimeException e) {
+      // The categorizer starts empty and learns from new receipts, so the instance can still start.
+      logger.warning("Receipt categorizer warm-up failed: " + e);
+    }
+  }
+
+  @Override
+  public void contextDestroyed(ServletContextEvent event) {
+    AnalysisBackends.close();
+  }
+}
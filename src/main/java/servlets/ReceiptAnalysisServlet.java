@@ -25,7 +25,8 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet with a GET handler that serves the text of a specified image using the Cloud Vision API,
- * as well as some categories the text falls into using the Cloud Natural Language API.
+ * as well as some categories the text falls into using the Cloud Natural Language API. Results are
+ * cached by URL, so analyzing an unchanged image again does not fetch or analyze it again.
  */
 @WebServlet("/receipt-analysis")
 public class ReceiptAnalysisServlet extends HttpServlet {
@@ -40,7 +41,7 @@ public class ReceiptAnalysisServlet extends HttpServlet {
       return;
     }
 
-    results = ReceiptAnalysis.analyzeImageAt(new URL(url));
+    results = ReceiptAnalysis.analyzeCachedImageAt(new URL(url));
 
     Gson gson = new Gson();
     response.setContentType("application/json;");
@@ -0,0 +1,434 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.sps.data.QueryInformation;
+import com.google.sps.data.Receipt;
+import com.google.sps.data.ReceiptSummary;
+import com.google.sps.data.SearchServletResponse;
+import com.google.sps.data.TextQuery;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable in-memory index of one user's receipts that answers searches without querying
+ * Datastore. Receipts are sorted newest first by timestamp and then by ID, like the search query,
+ * and each receipt is identified by its position in that order, its ordinal.
+ *
+ * <p>For each store and category, the index keeps a bitmap of the ordinals of the receipts that
+ * have it, and it keeps the ordinals sorted by price. The OCR text of the receipts is indexed by a
+ * {@link ReceiptTextIndex}. A search intersects the range of ordinals in the date range with the
+ * bitmaps of the filters and the receipts that have the words of the text query, and reads the
+ * page from the result, checking that the words of phrases are consecutive.
+ *
+ * <p>Cursors of the index start with {@code "index:"} and hold the timestamp and ID of the last
+ * receipt of the page, so they stay valid when receipts are added or removed. Like Datastore
+ * cursors, the page after a cursor starts right after that receipt, and the page before a cursor
+ * is the first page of the results that end with it.
+ */
+public final class ReceiptIndex {
+  private static final String CURSOR_PREFIX = "index:";
+  // Cursor of a search that has no more results.
+  private static final String END_CURSOR = CURSOR_PREFIX + "end";
+
+  // Rough number of bytes taken by a receipt without its strings, and by a string without its
+  // characters, used to estimate the memory taken by an index.
+  private static final long RECEIPT_OVERHEAD_BYTES = 200;
+  private static final long STRING_OVERHEAD_BYTES = 48;
+
+  private static final Comparator<ReceiptSummary> NEWEST_FIRST =
+      Comparator.comparingLong(ReceiptSummary::getTimestamp)
+          .thenComparingLong(ReceiptSummary::getId)
+          .reversed();
+
+  // Receipts are kept as summaries, since search results do not include the raw text.
+  private final ImmutableList<ReceiptSummary> receipts;
+  // Tokens of the raw text of the receipt at each ordinal, kept to build patched indexes.
+  private final ImmutableList<ImmutableList<String>> tokens;
+  // Timestamp and ID of the receipt at each ordinal, searched to find the ordinals of a date range
+  // or a cursor.
+  private final long[] timestamps;
+  private final long[] ids;
+  private final ImmutableMap<Long, Integer> ordinalsById;
+  private final ImmutableMap<String, BitSet> ordinalsByStore;
+  private final ImmutableMap<String, BitSet> ordinalsByCategory;
+  // Prices in ascending order, and the ordinal of the receipt with each price.
+  private final double[] sortedPrices;
+  private final int[] ordinalsByPrice;
+  private final ReceiptTextIndex textIndex;
+  private final long estimatedBytes;
+
+  /**
+   * Use {@link #of} to create an index.
+   *
+   * @param receipts Receipts sorted newest first.
+   * @param tokens Tokens of the raw text of each receipt.
+   */
+  private ReceiptIndex(
+      ImmutableList<ReceiptSummary> receipts, ImmutableList<ImmutableList<String>> tokens) {
+    int size = receipts.size();
+    this.receipts = receipts;
+    this.tokens = tokens;
+    this.timestamps = new long[size];
+    this.ids = new long[size];
+    ImmutableMap.Builder<Long, Integer> ordinalsById = ImmutableMap.builder();
+    Map<String, BitSet> ordinalsByStore = new HashMap<>();
+    Map<String, BitSet> ordinalsByCategory = new HashMap<>();
+    long bytes = 0;
+
+    for (int ordinal = 0; ordinal < size; ordinal++) {
+      ReceiptSummary receipt = receipts.get(ordinal);
+      timestamps[ordinal] = receipt.getTimestamp();
+      ids[ordinal] = receipt.getId();
+      ordinalsById.put(receipt.getId(), ordinal);
+
+      if (receipt.getStore() != null) {
+        ordinalsByStore.computeIfAbsent(receipt.getStore(), store -> new BitSet(size)).set(ordinal);
+      }
+      for (String category : receipt.getCategories()) {
+        ordinalsByCategory.computeIfAbsent(category, key -> new BitSet(size)).set(ordinal);
+      }
+
+      bytes += RECEIPT_OVERHEAD_BYTES + estimateBytes(receipt.getImageUrl())
+          + estimateBytes(receipt.getStore());
+      for (String category : receipt.getCategories()) {
+        bytes += estimateBytes(category);
+      }
+    }
+
+    Integer[] ordinals = new Integer[size];
+    for (int ordinal = 0; ordinal < size; ordinal++) {
+      ordinals[ordinal] = ordinal;
+    }
+    Arrays.sort(
+        ordinals, Comparator.comparingDouble(ordinal -> receipts.get(ordinal).getPrice()));
+    this.sortedPrices = new double[size];
+    this.ordinalsByPrice = new int[size];
+    for (int i = 0; i < size; i++) {
+      ordinalsByPrice[i] = ordinals[i];
+      sortedPrices[i] = receipts.get(ordinals[i]).getPrice();
+    }
+
+    this.ordinalsById = ordinalsById.build();
+    this.ordinalsByStore = ImmutableMap.copyOf(ordinalsByStore);
+    this.ordinalsByCategory = ImmutableMap.copyOf(ordinalsByCategory);
+    this.textIndex = new ReceiptTextIndex(tokens);
+    // Bitmaps take a bit per receipt each, and the arrays take 28 bytes per receipt.
+    this.estimatedBytes = bytes + 28L * size + textIndex.getEstimatedBytes()
+        + (ordinalsByStore.size() + ordinalsByCategory.size()) * (size / 8 + STRING_OVERHEAD_BYTES);
+  }
+
+  /** Returns an index of the receipts, which must have distinct IDs. */
+  public static ReceiptIndex of(Collection<Receipt> receipts) {
+    List<ReceiptSummary> summaries = new ArrayList<>();
+    Map<Long, ImmutableList<String>> tokensById = new HashMap<>();
+    for (Receipt receipt : receipts) {
+      summaries.add(ReceiptSummary.of(receipt));
+      tokensById.put(receipt.getId(), TextQuery.tokenize(receipt.getRawText()));
+    }
+
+    summaries.sort(NEWEST_FIRST);
+    ImmutableList<ImmutableList<String>> tokens = summaries.stream()
+        .map(summary -> tokensById.get(summary.getId()))
+        .collect(ImmutableList.toImmutableList());
+    return new ReceiptIndex(ImmutableList.copyOf(summaries), tokens);
+  }
+
+  /**
+   * Returns a copy of the index with the receipt added, replacing the receipt with the same ID if
+   * there is one.
+   */
+  public ReceiptIndex withReceipt(Receipt receipt) {
+    ReceiptSummary summary = ReceiptSummary.of(receipt);
+    ImmutableList<String> receiptTokens = TextQuery.tokenize(receipt.getRawText());
+    ImmutableList.Builder<ReceiptSummary> newReceipts = ImmutableList.builder();
+    ImmutableList.Builder<ImmutableList<String>> newTokens = ImmutableList.builder();
+    boolean added = false;
+
+    for (int ordinal = 0; ordinal < receipts.size(); ordinal++) {
+      ReceiptSummary existing = receipts.get(ordinal);
+      if (existing.getId() == summary.getId()) {
+        continue;
+      }
+      if (!added && NEWEST_FIRST.compare(summary, existing) < 0) {
+        newReceipts.add(summary);
+        newTokens.add(receiptTokens);
+        added = true;
+      }
+      newReceipts.add(existing);
+      newTokens.add(tokens.get(ordinal));
+    }
+    if (!added) {
+      newReceipts.add(summary);
+      newTokens.add(receiptTokens);
+    }
+
+    return new ReceiptIndex(newReceipts.build(), newTokens.build());
+  }
+
+  /** Returns a copy of the index without the receipt with the given ID. */
+  public ReceiptIndex withoutReceipt(long id) {
+    if (!contains(id)) {
+      return this;
+    }
+
+    int ordinal = ordinalsById.get(id);
+    List<ReceiptSummary> newReceipts = new ArrayList<>(receipts);
+    newReceipts.remove(ordinal);
+    List<ImmutableList<String>> newTokens = new ArrayList<>(tokens);
+    newTokens.remove(ordinal);
+    return new ReceiptIndex(ImmutableList.copyOf(newReceipts), ImmutableList.copyOf(newTokens));
+  }
+
+  /** Returns whether the index has a receipt with the given ID. */
+  public boolean contains(long id) {
+    return ordinalsById.containsKey(id);
+  }
+
+  /** Returns the number of receipts in the index. */
+  public int size() {
+    return receipts.size();
+  }
+
+  /** Returns roughly how many bytes of memory the index takes. */
+  public long getEstimatedBytes() {
+    return estimatedBytes;
+  }
+
+  /** Returns whether the cursor was returned by an index rather than by Datastore. */
+  public static boolean isIndexCursor(String encodedCursor) {
+    return encodedCursor != null && encodedCursor.startsWith(CURSOR_PREFIX);
+  }
+
+  /**
+   * Returns the first page of receipts that match the query information.
+   *
+   * @param queryInformation Filters of the search, or null to match every receipt.
+   */
+  public SearchServletResponse getFirstPage(QueryInformation queryInformation, int pageSize) {
+    return getPage(queryInformation, 0, receipts.size(), pageSize, END_CURSOR);
+  }
+
+  /**
+   * Returns the page of matching receipts that starts right after the receipt of the cursor.
+   *
+   * @throws IllegalArgumentException if the cursor was not returned by an index.
+   */
+  public SearchServletResponse getPageAfter(
+      QueryInformation queryInformation, String encodedCursor, int pageSize) {
+    if (END_CURSOR.equals(encodedCursor)) {
+      return new SearchServletResponse(ImmutableList.of(), END_CURSOR);
+    }
+
+    int from = getOrdinalAfter(encodedCursor);
+    return getPage(queryInformation, from, receipts.size(), pageSize, END_CURSOR);
+  }
+
+  /**
+   * Returns the first page of matching receipts up to and including the receipt of the cursor.
+   *
+   * @throws IllegalArgumentException if the cursor was not returned by an index.
+   */
+  public SearchServletResponse getPageBefore(
+      QueryInformation queryInformation, String encodedCursor, int pageSize) {
+    if (END_CURSOR.equals(encodedCursor)) {
+      return getFirstPage(queryInformation, pageSize);
+    }
+
+    int to = getOrdinalAfter(encodedCursor);
+    return getPage(queryInformation, 0, to, pageSize, encodedCursor);
+  }
+
+  /**
+   * Returns the first matching receipts with ordinals from {@code from} to {@code to}, exclusive.
+   * The cursor points at the last receipt of the page if it is full, and is the given cursor
+   * otherwise.
+   */
+  private SearchServletResponse getPage(QueryInformation queryInformation, int from, int to,
+      int pageSize, String exhaustedCursor) {
+    List<ReceiptTextIndex.Phrase> phrases = new ArrayList<>();
+    BitSet matches = getMatches(queryInformation, from, to, phrases);
+    ImmutableList.Builder<ReceiptSummary> page = ImmutableList.builder();
+    int count = 0;
+
+    for (int ordinal = matches.nextSetBit(from); ordinal >= 0;
+         ordinal = matches.nextSetBit(ordinal + 1)) {
+      if (!containsPhrases(ordinal, phrases)) {
+        continue;
+      }
+      page.add(receipts.get(ordinal));
+      count++;
+      if (count == pageSize) {
+        return new SearchServletResponse(page.build(), encodeCursor(ordinal));
+      }
+    }
+
+    return new SearchServletResponse(page.build(), exhaustedCursor);
+  }
+
+  /**
+   * Returns the ordinals from {@code from} to {@code to}, exclusive, of the receipts that match the
+   * query information, except that receipts with every word of a phrase may not have them
+   * consecutively. Those phrases are added to the list, to be checked on each receipt read.
+   */
+  private BitSet getMatches(QueryInformation queryInformation, int from, int to,
+      List<ReceiptTextIndex.Phrase> phrasesToCheck) {
+    BitSet matches = new BitSet(receipts.size());
+    if (queryInformation == null) {
+      matches.set(from, to);
+      return matches;
+    }
+
+    // Receipts are sorted newest first, so the date range is a range of ordinals.
+    int newest = Math.max(from, getFirstOrdinalAtOrBefore(queryInformation.getEndTimestamp()));
+    int oldest = Math.min(to, getFirstOrdinalAtOrBefore(queryInformation.getStartTimestamp() - 1));
+    if (newest >= oldest) {
+      return matches;
+    }
+    matches.set(newest, oldest);
+
+    if (!queryInformation.getCategory().isEmpty()) {
+      BitSet categoryMatches = new BitSet(receipts.size());
+      for (String category : queryInformation.getCategory()) {
+        BitSet ordinals = ordinalsByCategory.get(category);
+        if (ordinals != null) {
+          categoryMatches.or(ordinals);
+        }
+      }
+      matches.and(categoryMatches);
+    }
+
+    if (!queryInformation.getStores().isEmpty()) {
+      BitSet storeMatches = new BitSet(receipts.size());
+      for (String store : queryInformation.getStores()) {
+        BitSet ordinals = ordinalsByStore.get(store);
+        if (ordinals != null) {
+          storeMatches.or(ordinals);
+        }
+      }
+      matches.and(storeMatches);
+    }
+
+    matches.and(getPriceMatches(queryInformation.getMinPrice(), queryInformation.getMaxPrice()));
+
+    for (TextQuery.Clause clause : queryInformation.getTextQuery().getClauses()) {
+      ReceiptTextIndex.Phrase phrase = textIndex.find(clause);
+      if (phrase == null) {
+        matches.clear();
+        return matches;
+      }
+      matches.and(textIndex.getCandidates(phrase, receipts.size()));
+      if (phrase.needsPositionCheck()) {
+        phrasesToCheck.add(phrase);
+      }
+    }
+    return matches;
+  }
+
+  private boolean containsPhrases(int ordinal, List<ReceiptTextIndex.Phrase> phrases) {
+    for (ReceiptTextIndex.Phrase phrase : phrases) {
+      if (!textIndex.contains(ordinal, phrase)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the ordinals of the receipts with prices from min to max, inclusive. */
+  private BitSet getPriceMatches(double minPrice, double maxPrice) {
+    BitSet matches = new BitSet(receipts.size());
+    for (int i = getFirstPriceIndexAtLeast(minPrice);
+         i < sortedPrices.length && sortedPrices[i] <= maxPrice; i++) {
+      matches.set(ordinalsByPrice[i]);
+    }
+    return matches;
+  }
+
+  /** Returns the index of the first sorted price that is at least the given price. */
+  private int getFirstPriceIndexAtLeast(double price) {
+    int low = 0;
+    int high = sortedPrices.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (sortedPrices[middle] >= price) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return low;
+  }
+
+  /** Returns the first ordinal whose timestamp is at or before the given one. */
+  private int getFirstOrdinalAtOrBefore(long timestamp) {
+    int low = 0;
+    int high = timestamps.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (timestamps[middle] <= timestamp) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Returns the first ordinal that comes after the receipt of the cursor in the sort order.
+   *
+   * @throws IllegalArgumentException if the cursor is malformed, including a NumberFormatException
+   *     if its timestamp or ID is not a number.
+   */
+  private int getOrdinalAfter(String encodedCursor) {
+    String[] parts = isIndexCursor(encodedCursor)
+        ? encodedCursor.substring(CURSOR_PREFIX.length()).split(":")
+        : new String[0];
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("Not a receipt index cursor: " + encodedCursor);
+    }
+    long timestamp = Long.parseLong(parts[0]);
+    long id = Long.parseLong(parts[1]);
+
+    int low = 0;
+    int high = timestamps.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (timestamps[middle] < timestamp
+          || (timestamps[middle] == timestamp && ids[middle] < id)) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return low;
+  }
+
+  private String encodeCursor(int ordinal) {
+    return CURSOR_PREFIX + timestamps[ordinal] + ":" + ids[ordinal];
+  }
+
+  private static long estimateBytes(String value) {
+    return value == null ? 0 : STRING_OVERHEAD_BYTES + 2L * value.length();
+  }
+}
@@ -0,0 +1,269 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.sps.data.Receipt;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Holds a {@link ReceiptIndex} for each user who searched recently on this instance, so that their
+ * searches are answered from memory rather than by Datastore queries.
+ *
+ * <p>A user's index is loaded with one query the first time they search, and indexes are evicted
+ * once their estimated size passes the memory budget set with the
+ * receiptAnalysis.searchIndexBudgetBytes system property. The budget is 0 by default, which turns
+ * indexes off. Users with more receipts than receiptAnalysis.searchIndexMaxReceipts are not
+ * indexed, and their searches query Datastore.
+ *
+ * <p>Servlets that store or delete receipts patch the indexes of this instance. Changes made on
+ * other instances are picked up when the index is loaded again, once it is older than
+ * receiptAnalysis.searchIndexTtlMillis.
+ */
+public final class ReceiptIndexes {
+  private static final String BUDGET_PROPERTY = "receiptAnalysis.searchIndexBudgetBytes";
+  private static final String MAX_RECEIPTS_PROPERTY = "receiptAnalysis.searchIndexMaxReceipts";
+  private static final String TTL_PROPERTY = "receiptAnalysis.searchIndexTtlMillis";
+  // Weight of a user who has too many receipts to be indexed.
+  private static final long UNINDEXED_USER_BYTES = 100;
+
+  /** Index of a user, or empty if they have too many receipts, and when it was loaded. */
+  private static final class Entry {
+    private final Optional<ReceiptIndex> index;
+    private final long loadedNanos;
+
+    private Entry(Optional<ReceiptIndex> index, long loadedNanos) {
+      this.index = index;
+      this.loadedNanos = loadedNanos;
+    }
+
+    private Entry withIndex(Optional<ReceiptIndex> newIndex) {
+      return new Entry(newIndex, loadedNanos);
+    }
+  }
+
+  // Number of times receipts were stored or deleted, which tells whether a change happened while
+  // an index was loaded.
+  private static final AtomicLong changeCount = new AtomicLong();
+  private static final AtomicLong hitCount = new AtomicLong();
+  private static final AtomicLong missCount = new AtomicLong();
+  private static final AtomicLong unindexedCount = new AtomicLong();
+
+  // Set once the fields below are, so that getCache only locks until the indexes are configured.
+  private static volatile boolean configured;
+  // Null if indexes are turned off.
+  private static Cache<String, Entry> indexes;
+  private static int maxReceipts;
+  private static long ttlNanos;
+
+  /**
+   * Prevents instantiation.
+   */
+  private ReceiptIndexes() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the index of the user's receipts, loading it if it is not in memory or is too old.
+   * Returns empty if indexes are turned off or the user has too many receipts to be indexed.
+   */
+  public static Optional<ReceiptIndex> get(DatastoreService datastore, String userId) {
+    Cache<String, Entry> cache = getCache();
+    if (cache == null) {
+      return Optional.empty();
+    }
+
+    Entry entry = cache.getIfPresent(userId);
+    if (entry != null && System.nanoTime() - entry.loadedNanos < ttlNanos) {
+      (entry.index.isPresent() ? hitCount : unindexedCount).incrementAndGet();
+      return entry.index;
+    }
+
+    missCount.incrementAndGet();
+    long changesBeforeLoad = changeCount.get();
+    entry = new Entry(load(datastore, userId), System.nanoTime());
+    cache.put(userId, entry);
+    // A change made during the load may be missing from the index, and it was not patched into
+    // the index since the index was not in the cache yet.
+    if (changeCount.get() != changesBeforeLoad) {
+      cache.invalidate(userId);
+    }
+
+    return entry.index;
+  }
+
+  /**
+   * Adds the receipt to the index of its user, or replaces it there, if the index is in memory.
+   * Receipts without a timestamp, such as pending receipts, are not searchable and are removed.
+   * Must be called after the receipt is stored.
+   */
+  public static void updateReceipt(Entity receipt) {
+    Cache<String, Entry> cache = getCache();
+    if (cache == null) {
+      return;
+    }
+
+    changeCount.incrementAndGet();
+    String userId = (String) receipt.getProperty("userId");
+    if (!receipt.hasProperty("timestamp")) {
+      long id = receipt.getKey().getId();
+      patch(cache, userId, index -> index.withoutReceipt(id));
+      return;
+    }
+
+    Receipt indexedReceipt = Receipt.fromEntity(receipt);
+    patch(cache, userId, index -> index.withReceipt(indexedReceipt));
+  }
+
+  /**
+   * Removes the receipt with the given ID from every index in memory. Must be called after the
+   * receipt is deleted.
+   */
+  public static void removeReceipt(long id) {
+    Cache<String, Entry> cache = getCache();
+    if (cache == null) {
+      return;
+    }
+
+    changeCount.incrementAndGet();
+    for (Map.Entry<String, Entry> entry : cache.asMap().entrySet()) {
+      if (entry.getValue().index.map(index -> index.contains(id)).orElse(false)) {
+        patch(cache, entry.getKey(), index -> index.withoutReceipt(id));
+      }
+    }
+  }
+
+  /** Returns the number of searches answered by an index in memory. */
+  public static long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of searches that loaded an index. */
+  public static long getMissCount() {
+    return missCount.get();
+  }
+
+  /** Returns the number of searches of users who have too many receipts to be indexed. */
+  public static long getUnindexedCount() {
+    return unindexedCount.get();
+  }
+
+  /**
+   * Removes every index and resets the counts. The system properties are read again the next time
+   * an index is used.
+   */
+  public static synchronized void clear() {
+    if (indexes != null) {
+      indexes.invalidateAll();
+      indexes = null;
+    }
+    configured = false;
+    hitCount.set(0);
+    missCount.set(0);
+    unindexedCount.set(0);
+  }
+
+  /** Returns the cache of indexes, creating it if needed, or null if indexes are turned off. */
+  private static Cache<String, Entry> getCache() {
+    if (!configured) {
+      configure();
+    }
+    return indexes;
+  }
+
+  /** Reads the system properties and creates the cache of indexes if they are turned on. */
+  private static synchronized void configure() {
+    if (!configured) {
+      long budgetBytes = Long.getLong(BUDGET_PROPERTY, 0);
+
+      if (budgetBytes > 0) {
+        maxReceipts = Integer.getInteger(MAX_RECEIPTS_PROPERTY, 2000);
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(TTL_PROPERTY, 60_000));
+        indexes = CacheBuilder.newBuilder()
+                      .maximumWeight(budgetBytes)
+                      .weigher(ReceiptIndexes::weigh)
+                      .expireAfterWrite(ttlNanos, TimeUnit.NANOSECONDS)
+                      .build();
+        registerMetrics();
+      }
+      configured = true;
+    }
+  }
+
+  /**
+   * Loads the user's searchable receipts, or returns empty if they have too many to be indexed.
+   * The query is the one a search without filters runs, so it uses the same Datastore index.
+   */
+  private static Optional<ReceiptIndex> load(DatastoreService datastore, String userId) {
+    long startNanos = System.nanoTime();
+    int span = RequestTrace.startSpan("search_index_load");
+
+    try {
+      Query query = new Query("Receipt")
+                        .addSort("timestamp", SortDirection.DESCENDING)
+                        .addSort("__key__", SortDirection.DESCENDING);
+      query.addFilter("userId", Query.FilterOperator.EQUAL, userId);
+      List<Entity> entities =
+          datastore.prepare(query).asList(FetchOptions.Builder.withLimit(maxReceipts + 1));
+
+      if (entities.size() > maxReceipts) {
+        return Optional.empty();
+      }
+      return Optional.of(ReceiptIndex.of(
+          entities.stream().map(Receipt::fromEntity).collect(Collectors.toList())));
+    } finally {
+      RequestTrace.endSpan(span);
+      Metrics.recordStage("search_index_load", startNanos);
+    }
+  }
+
+  /**
+   * Changes the user's index if it is in memory. An index that grows past the maximum number of
+   * receipts is replaced by an empty one, so the user's searches query Datastore.
+   */
+  private static void patch(
+      Cache<String, Entry> cache, String userId, UnaryOperator<ReceiptIndex> change) {
+    cache.asMap().computeIfPresent(userId, (key, entry) -> entry.withIndex(
+        entry.index.map(change).filter(index -> index.size() <= maxReceipts)));
+  }
+
+  private static int weigh(String userId, Entry entry) {
+    long bytes = entry.index.map(ReceiptIndex::getEstimatedBytes).orElse(UNINDEXED_USER_BYTES);
+    return (int) Math.min(bytes, Integer.MAX_VALUE);
+  }
+
+  private static void registerMetrics() {
+    String cacheRequests = "receipt_roundup_cache_requests_total";
+    String cacheHelp = "Number of lookups in each cache by result.";
+    Metrics.registerCounter(cacheRequests, cacheHelp, ReceiptIndexes::getHitCount,
+        "cache", "search_index", "result", "hit");
+    Metrics.registerCounter(cacheRequests, cacheHelp, ReceiptIndexes::getMissCount,
+        "cache", "search_index", "result", "miss");
+    Metrics.registerCounter(cacheRequests, cacheHelp, ReceiptIndexes::getUnindexedCount,
+        "cache", "search_index", "result", "unindexed");
+  }
+}
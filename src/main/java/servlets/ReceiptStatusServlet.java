@@ -0,0 +1,99 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.Gson;
+import com.google.sps.data.ReceiptStatus;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet with a GET handler that reports the analysis status of a receipt uploaded in
+ * asynchronous mode, so the upload page can poll until the receipt is ready.
+ */
+@WebServlet("/receipt-status")
+public class ReceiptStatusServlet extends HttpServlet {
+  private static final String USER_NOT_LOGGED_IN_WARNING =
+      "User must be logged in to check the status of a receipt.";
+  private static final String RECEIPT_NOT_FOUND_WARNING = "Receipt not found.";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ReceiptStatusServlet.class.getName());
+
+  private final DatastoreService datastore;
+  private final UserService userService = UserServiceFactory.getUserService();
+
+  public ReceiptStatusServlet() {
+    this.datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  public ReceiptStatusServlet(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  /**
+   * Responds with the JSON receipt with the given ID. Its status property is one of
+   * {@link ReceiptStatus}, and receipts that were analyzed synchronously are reported as done.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!userService.isUserLoggedIn()) {
+      logger.warning(USER_NOT_LOGGED_IN_WARNING);
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println(USER_NOT_LOGGED_IN_WARNING);
+      return;
+    }
+
+    Entity receipt;
+    try {
+      long id = Long.parseLong(request.getParameter("id"));
+      Key key = KeyFactory.createKey("Receipt", id);
+      receipt = datastore.get(key);
+    } catch (EntityNotFoundException | NumberFormatException exception) {
+      logger.warning(exception.toString());
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      response.getWriter().println(RECEIPT_NOT_FOUND_WARNING);
+      return;
+    }
+
+    // Receipts of other users are reported as missing so their IDs are not revealed.
+    String userId = userService.getCurrentUser().getUserId();
+    if (!userId.equals(receipt.getProperty("userId"))) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      response.getWriter().println(RECEIPT_NOT_FOUND_WARNING);
+      return;
+    }
+
+    if (!receipt.hasProperty("status")) {
+      receipt.setProperty("status", ReceiptStatus.DONE.name());
+    }
+
+    String json = new Gson().toJson(receipt);
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+}
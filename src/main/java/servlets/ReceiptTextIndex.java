@@ -0,0 +1,188 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableList;
+import com.google.sps.data.TextQuery;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Inverted index of the OCR text of the receipts in a {@link ReceiptIndex}. For each distinct
+ * token, it keeps the posting list of the ordinals of the receipts whose text contains it, so
+ * posting lists are sorted newest first like the ordinals. The tokens of each receipt are kept too,
+ * to check that the tokens of a phrase are consecutive.
+ *
+ * <p>Tokens get IDs in sorted order, so the tokens that start with a prefix have consecutive IDs.
+ */
+final class ReceiptTextIndex {
+  /** Clause of a {@link TextQuery} whose tokens were looked up in the index. */
+  static final class Phrase {
+    // IDs of every token but the last, and the range of IDs that match the last token.
+    private final int[] leadingTokenIds;
+    private final int lastTokenIdFrom;
+    private final int lastTokenIdTo;
+
+    private Phrase(int[] leadingTokenIds, int lastTokenIdFrom, int lastTokenIdTo) {
+      this.leadingTokenIds = leadingTokenIds;
+      this.lastTokenIdFrom = lastTokenIdFrom;
+      this.lastTokenIdTo = lastTokenIdTo;
+    }
+
+    /** Returns whether receipts with all of its tokens must still be checked for the phrase. */
+    boolean needsPositionCheck() {
+      return leadingTokenIds.length > 0;
+    }
+
+    private boolean matchesLastToken(int tokenId) {
+      return tokenId >= lastTokenIdFrom && tokenId < lastTokenIdTo;
+    }
+  }
+
+  private final String[] dictionary;
+  private final int[][] postings;
+  private final int[][] tokenIdsByOrdinal;
+  private final long estimatedBytes;
+
+  /**
+   * @param tokensByOrdinal Tokens of the text of each receipt of the index, in ordinal order.
+   */
+  ReceiptTextIndex(List<ImmutableList<String>> tokensByOrdinal) {
+    // Counts the receipts that contain each token, which is the length of its posting list.
+    Map<String, int[]> receiptCounts = new HashMap<>();
+    for (int ordinal = 0; ordinal < tokensByOrdinal.size(); ordinal++) {
+      for (String token : tokensByOrdinal.get(ordinal)) {
+        // Holds the count and the last ordinal counted, so a token counts once per receipt.
+        int[] count = receiptCounts.computeIfAbsent(token, key -> new int[] {0, -1});
+        if (count[1] != ordinal) {
+          count[0]++;
+          count[1] = ordinal;
+        }
+      }
+    }
+
+    this.dictionary = receiptCounts.keySet().toArray(new String[0]);
+    Arrays.sort(dictionary);
+    Map<String, Integer> tokenIds = new HashMap<>();
+    this.postings = new int[dictionary.length][];
+    long bytes = 0;
+    for (int id = 0; id < dictionary.length; id++) {
+      tokenIds.put(dictionary[id], id);
+      postings[id] = new int[receiptCounts.get(dictionary[id])[0]];
+      bytes += 64 + 2L * dictionary[id].length() + 4L * postings[id].length;
+    }
+
+    int[] postingLengths = new int[dictionary.length];
+    this.tokenIdsByOrdinal = new int[tokensByOrdinal.size()][];
+    for (int ordinal = 0; ordinal < tokensByOrdinal.size(); ordinal++) {
+      List<String> tokens = tokensByOrdinal.get(ordinal);
+      int[] ids = new int[tokens.size()];
+      for (int i = 0; i < ids.length; i++) {
+        int id = tokenIds.get(tokens.get(i));
+        ids[i] = id;
+        int length = postingLengths[id];
+        if (length == 0 || postings[id][length - 1] != ordinal) {
+          postings[id][length] = ordinal;
+          postingLengths[id]++;
+        }
+      }
+      tokenIdsByOrdinal[ordinal] = ids;
+      bytes += 16 + 4L * ids.length;
+    }
+
+    this.estimatedBytes = bytes;
+  }
+
+  /** Returns roughly how many bytes of memory the index takes. */
+  long getEstimatedBytes() {
+    return estimatedBytes;
+  }
+
+  /**
+   * Looks up the tokens of the clause, or returns null if no receipt contains all of them.
+   */
+  Phrase find(TextQuery.Clause clause) {
+    ImmutableList<String> tokens = clause.getTokens();
+    int[] leadingTokenIds = new int[tokens.size() - 1];
+    for (int i = 0; i < leadingTokenIds.length; i++) {
+      leadingTokenIds[i] = Arrays.binarySearch(dictionary, tokens.get(i));
+      if (leadingTokenIds[i] < 0) {
+        return null;
+      }
+    }
+
+    String lastToken = tokens.get(tokens.size() - 1);
+    int from = getFirstTokenIdAtLeast(lastToken);
+    int to;
+    if (clause.isPrefix()) {
+      // Every token that starts with the prefix sorts before the prefix followed by the largest
+      // character.
+      to = getFirstTokenIdAtLeast(lastToken + Character.MAX_VALUE);
+    } else {
+      to = from < dictionary.length && dictionary[from].equals(lastToken) ? from + 1 : from;
+    }
+
+    return from == to ? null : new Phrase(leadingTokenIds, from, to);
+  }
+
+  /**
+   * Returns the ordinals of the receipts that contain every token of the phrase, though not
+   * necessarily consecutively. See {@link #contains}.
+   *
+   * @param size Number of receipts in the index.
+   */
+  BitSet getCandidates(Phrase phrase, int size) {
+    BitSet candidates = new BitSet(size);
+    for (int id = phrase.lastTokenIdFrom; id < phrase.lastTokenIdTo; id++) {
+      for (int ordinal : postings[id]) {
+        candidates.set(ordinal);
+      }
+    }
+
+    for (int id : phrase.leadingTokenIds) {
+      BitSet tokenOrdinals = new BitSet(size);
+      for (int ordinal : postings[id]) {
+        tokenOrdinals.set(ordinal);
+      }
+      candidates.and(tokenOrdinals);
+    }
+    return candidates;
+  }
+
+  /** Returns whether the text of the receipt has the tokens of the phrase consecutively. */
+  boolean contains(int ordinal, Phrase phrase) {
+    int[] ids = tokenIdsByOrdinal[ordinal];
+    int leadingCount = phrase.leadingTokenIds.length;
+
+    for (int start = 0; start + leadingCount < ids.length; start++) {
+      int i = 0;
+      while (i < leadingCount && ids[start + i] == phrase.leadingTokenIds[i]) {
+        i++;
+      }
+      if (i == leadingCount && phrase.matchesLastToken(ids[start + i])) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int getFirstTokenIdAtLeast(String token) {
+    int id = Arrays.binarySearch(dictionary, token);
+    return id >= 0 ? id : -id - 1;
+  }
+}
@@ -0,0 +1,54 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.language.v1.ClassificationCategory;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Class with static methods that turn the raw output of the Cloud APIs into receipt fields: the
+ * total price from the scanned receipt text, and natural categories from Cloud Natural Language
+ * categories. These only use the CPU, so they are kept apart from the requests in {@link
+ * ReceiptAnalysis} and can be benchmarked on their own. Dates are found by {@link DateExtractor}.
+ */
+public final class ReceiptTextParser {
+  /**
+   * Prevents instantiation.
+   */
+  private ReceiptTextParser() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Parse category strings into more natural categories
+   * e.g. "/Food & Drink/Restaurants" becomes "Food", "Drink", and "Restaurants"
+   */
+  public static Stream<String> parseCategory(ClassificationCategory category) {
+    return Stream.of(category.getName().substring(1).split("/| & "));
+  }
+
+  /**
+   * Checks the scanned text for prices that can be parsed. The largest price found, if it exists,
+   * is returned.
+   */
+  public static Optional<Double> checkForParsablePrices(ReceiptTextScanner scanner) {
+    // Assume that the largest price on the receipt is the total price.
+    if (!scanner.hasPrice()) {
+      return Optional.empty();
+    }
+    return Optional.of(scanner.getLargestPriceCents() / 100.0);
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+/**
+ * Scans the raw text of a receipt once and finds its largest price, without splitting the text
+ * into strings or running a regex on each token.
+ *
+ * <p>Tokens are separated by single whitespace characters, like {@code rawText.split("\\s")}. A
+ * price is a token such as $12.77 or 12.77. Dates are found by {@link DateExtractor}.
+ */
+public final class ReceiptTextScanner {
+  // Prices with more dollar digits than this could overflow a long number of cents.
+  private static final int MAX_PRICE_DIGITS = 16;
+
+  private final CharSequence text;
+  private long largestPriceCents = -1;
+
+  /**
+   * Use {@link #scan} to create a scanner.
+   */
+  private ReceiptTextScanner(CharSequence text) {
+    this.text = text;
+  }
+
+  /**
+   * Scans the text and returns a scanner holding the tokens that were found.
+   */
+  public static ReceiptTextScanner scan(CharSequence text) {
+    ReceiptTextScanner scanner = new ReceiptTextScanner(text);
+    int length = text.length();
+    int tokenStart = 0;
+
+    for (int i = 0; i <= length; i++) {
+      if (i == length || isWhitespace(text.charAt(i))) {
+        if (i > tokenStart) {
+          scanner.scanToken(tokenStart, i);
+        }
+        tokenStart = i + 1;
+      }
+    }
+
+    return scanner;
+  }
+
+  /** Returns whether a price token was found. */
+  public boolean hasPrice() {
+    return largestPriceCents >= 0;
+  }
+
+  /** Returns the largest price found in cents, or -1 if none. */
+  public long getLargestPriceCents() {
+    return largestPriceCents;
+  }
+
+  private void scanToken(int start, int end) {
+    long priceCents = parsePriceCents(text, start, end);
+    if (priceCents >= 0) {
+      largestPriceCents = Math.max(largestPriceCents, priceCents);
+    }
+  }
+
+  /**
+   * Returns the price in cents if the token is an optional dollar sign, at least one digit, a
+   * period, and two digits. Otherwise, returns -1.
+   */
+  private static long parsePriceCents(CharSequence text, int start, int end) {
+    int dollarsStart = start < end && text.charAt(start) == '$' ? start + 1 : start;
+    int dollarsEnd = skipDigits(text, dollarsStart, end);
+    int dollarDigits = dollarsEnd - dollarsStart;
+
+    if (dollarDigits < 1 || end - dollarsEnd != 3 || text.charAt(dollarsEnd) != '.'
+        || !isDigit(text.charAt(end - 2)) || !isDigit(text.charAt(end - 1))) {
+      return -1;
+    }
+
+    if (dollarDigits > MAX_PRICE_DIGITS) {
+      // Too large to be a real price, so fall back to the slow path rather than overflowing.
+      double price = Double.parseDouble(text.subSequence(dollarsStart, end).toString());
+      return (long) Math.min(price * 100, Long.MAX_VALUE);
+    }
+
+    long cents = 0;
+    for (int i = dollarsStart; i < end; i++) {
+      char c = text.charAt(i);
+      if (c != '.') {
+        cents = cents * 10 + (c - '0');
+      }
+    }
+    return cents;
+  }
+
+  /** Returns the index of the first character at or after start that is not a digit. */
+  private static int skipDigits(CharSequence text, int start, int end) {
+    int i = start;
+    while (i < end && isDigit(text.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /** Matches the characters of the \s regex class. */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+}
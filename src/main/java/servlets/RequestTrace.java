@@ -0,0 +1,249 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Timed spans of the internal steps of one request, such as Datastore calls, Cloud API calls and
+ * JSON serialization. Traces are started by {@link RequestTracer}, which decides whether they are
+ * logged once the request has finished.
+ *
+ * <p>The trace of the current thread is found through a thread local, so code records spans with
+ * the static {@link #startSpan} and {@link #endSpan} methods without passing the trace around.
+ * They do nothing on threads without a trace, which keeps requests that are not traced at one
+ * thread local lookup per span. Spans are stored in arrays, so recording one does not allocate.
+ * Work on other threads, like analysis stages, is attached with {@link #callInSpan}.
+ */
+public final class RequestTrace {
+  /** Span returned when no span was recorded, which {@link #endSpan} ignores. */
+  public static final int NO_SPAN = -1;
+
+  // Number of spans the arrays start with, and the most a trace records. Further spans are only
+  // counted, since traces are meant for finding the slow step rather than for complete profiles.
+  private static final int INITIAL_CAPACITY = 16;
+  private static final int MAX_SPANS = 256;
+
+  /** A span of a trace that work on another thread is recorded under. */
+  public static final class Parent {
+    private static final Parent NONE = new Parent(null, NO_SPAN);
+
+    private final RequestTrace trace;
+    private final int span;
+
+    private Parent(RequestTrace trace, int span) {
+      this.trace = trace;
+      this.span = span;
+    }
+  }
+
+  /** The trace of a thread and the innermost span that is open on it. */
+  private static final class Scope {
+    private final RequestTrace trace;
+    private int span;
+
+    private Scope(RequestTrace trace, int span) {
+      this.trace = trace;
+      this.span = span;
+    }
+  }
+
+  private static final ThreadLocal<Scope> currentScope = new ThreadLocal<>();
+
+  private final String name;
+  private final boolean sampled;
+  private final long startNanos;
+
+  // Spans by the order they started in. Parents always start before their children. Ends are
+  // zero until the span ends. Guarded by this, since analysis stages add spans concurrently.
+  private String[] spanNames = new String[INITIAL_CAPACITY];
+  private int[] spanParents = new int[INITIAL_CAPACITY];
+  private long[] spanStarts = new long[INITIAL_CAPACITY];
+  private long[] spanEnds = new long[INITIAL_CAPACITY];
+  private int spanCount;
+  private int droppedSpanCount;
+
+  /**
+   * @param name Name of the traced request, such as its method and endpoint.
+   * @param sampled Whether the trace is logged even if the request is fast.
+   * @param startNanos System.nanoTime() value when the request started.
+   */
+  RequestTrace(String name, boolean sampled, long startNanos) {
+    this.name = name;
+    this.sampled = sampled;
+    this.startNanos = startNanos;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isSampled() {
+    return sampled;
+  }
+
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  /**
+   * Starts a span on the current thread, nested in the span that is open on it. Returns the span
+   * to pass to {@link #endSpan}, or {@link #NO_SPAN} if the thread has no trace.
+   */
+  public static int startSpan(String name) {
+    Scope scope = currentScope.get();
+    if (scope == null) {
+      return NO_SPAN;
+    }
+
+    int span = scope.trace.addSpan(name, scope.span, System.nanoTime());
+    if (span != NO_SPAN) {
+      scope.span = span;
+    }
+    return span;
+  }
+
+  /** Ends the span, which must be the innermost span open on the current thread. */
+  public static void endSpan(int span) {
+    Scope scope = currentScope.get();
+    if (span == NO_SPAN || scope == null) {
+      return;
+    }
+
+    scope.span = scope.trace.closeSpan(span, System.nanoTime());
+  }
+
+  /**
+   * Returns the span open on the current thread, for work that continues on another thread. The
+   * result has no trace if the current thread has none.
+   */
+  public static Parent currentParent() {
+    Scope scope = currentScope.get();
+    return scope == null ? Parent.NONE : new Parent(scope.trace, scope.span);
+  }
+
+  /**
+   * Runs the task on the current thread in a span nested in the given parent, then restores the
+   * thread's previous trace. The task runs without a span if the parent has no trace.
+   */
+  public static <T> T callInSpan(Parent parent, String name, Callable<T> task) throws Exception {
+    if (parent.trace == null) {
+      return task.call();
+    }
+
+    Scope previousScope = currentScope.get();
+    currentScope.set(new Scope(parent.trace, parent.span));
+    int span = startSpan(name);
+
+    try {
+      return task.call();
+    } finally {
+      endSpan(span);
+      if (previousScope == null) {
+        currentScope.remove();
+      } else {
+        currentScope.set(previousScope);
+      }
+    }
+  }
+
+  /** Makes this the trace of the current thread. */
+  void bind() {
+    currentScope.set(new Scope(this, NO_SPAN));
+  }
+
+  /** Removes the trace of the current thread. */
+  static void unbind() {
+    currentScope.remove();
+  }
+
+  /**
+   * Returns the trace as a JSON object with the total duration and the tree of spans. Times are
+   * in milliseconds, and span starts are relative to the start of the request. Spans that had not
+   * ended are marked as unfinished.
+   */
+  synchronized JsonObject toJson(long endNanos, int status) {
+    JsonObject trace = new JsonObject();
+    trace.addProperty("trace", name);
+    trace.addProperty("status", status);
+    trace.addProperty("durationMs", toMillis(endNanos - startNanos));
+    trace.addProperty("sampled", sampled);
+    if (droppedSpanCount > 0) {
+      trace.addProperty("droppedSpans", droppedSpanCount);
+    }
+
+    JsonArray rootSpans = new JsonArray();
+    JsonObject[] spans = new JsonObject[spanCount];
+    for (int i = 0; i < spanCount; i++) {
+      spans[i] = new JsonObject();
+      spans[i].addProperty("name", spanNames[i]);
+      spans[i].addProperty("startMs", toMillis(spanStarts[i] - startNanos));
+      if (spanEnds[i] == 0) {
+        spans[i].addProperty("unfinished", true);
+      } else {
+        spans[i].addProperty("durationMs", toMillis(spanEnds[i] - spanStarts[i]));
+      }
+
+      // Parents start before their children, so the parent's object already exists.
+      int parent = spanParents[i];
+      if (parent == NO_SPAN) {
+        rootSpans.add(spans[i]);
+      } else {
+        if (!spans[parent].has("spans")) {
+          spans[parent].add("spans", new JsonArray());
+        }
+        spans[parent].getAsJsonArray("spans").add(spans[i]);
+      }
+    }
+
+    trace.add("spans", rootSpans);
+    return trace;
+  }
+
+  private synchronized int addSpan(String spanName, int parent, long nowNanos) {
+    if (spanCount == MAX_SPANS) {
+      droppedSpanCount++;
+      return NO_SPAN;
+    }
+
+    if (spanCount == spanNames.length) {
+      int capacity = Math.min(spanCount * 2, MAX_SPANS);
+      spanNames = Arrays.copyOf(spanNames, capacity);
+      spanParents = Arrays.copyOf(spanParents, capacity);
+      spanStarts = Arrays.copyOf(spanStarts, capacity);
+      spanEnds = Arrays.copyOf(spanEnds, capacity);
+    }
+
+    spanNames[spanCount] = spanName;
+    spanParents[spanCount] = parent;
+    spanStarts[spanCount] = nowNanos;
+    return spanCount++;
+  }
+
+  /** Ends the span and returns its parent. */
+  private synchronized int closeSpan(int span, long nowNanos) {
+    // Zero marks unfinished spans, so a clock reading of exactly zero is moved by a nanosecond.
+    spanEnds[span] = nowNanos == 0 ? 1 : nowNanos;
+    return spanParents[span];
+  }
+
+  /** Converts nanoseconds to milliseconds, rounded to the microsecond. */
+  private static double toMillis(long nanos) {
+    return Math.round(nanos / 1_000.0) / 1_000.0;
+  }
+}
@@ -0,0 +1,87 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Decides which requests are traced and which traces are logged. A request is traced if it is
+ * sampled or if slow requests are logged, and its {@link RequestTrace} is written as one JSON line
+ * if it was sampled or took at least the slow request threshold.
+ *
+ * <p>When slow requests are not logged, requests that are not sampled get no trace at all, so
+ * recording their spans costs nothing beyond a thread local lookup.
+ */
+public class RequestTracer {
+  private final long thresholdNanos;
+  private final double sampleRate;
+  private final DoubleSupplier random;
+
+  /**
+   * @param thresholdMillis Duration of requests whose traces are logged. If zero, only sampled
+   *     requests are traced.
+   * @param sampleRate Share of requests, between 0 and 1, whose traces are logged however long
+   *     they take.
+   * @param random Source of random numbers between 0 and 1, replaced in tests.
+   */
+  public RequestTracer(long thresholdMillis, double sampleRate, DoubleSupplier random) {
+    this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, thresholdMillis));
+    this.sampleRate = Math.max(0, Math.min(sampleRate, 1));
+    this.random = random;
+  }
+
+  /**
+   * Creates a tracer with the settings of the receiptAnalysis.traceThresholdMillis and
+   * receiptAnalysis.traceSampleRate system properties.
+   */
+  public static RequestTracer fromSystemProperties() {
+    return new RequestTracer(Long.getLong("receiptAnalysis.traceThresholdMillis", 2_000),
+        Double.parseDouble(System.getProperty("receiptAnalysis.traceSampleRate", "0")),
+        () -> ThreadLocalRandom.current().nextDouble());
+  }
+
+  /**
+   * Starts a trace of the request on the current thread, or returns an empty Optional if the
+   * request will not be logged whatever it does. The trace must be passed to {@link #finish} on
+   * the same thread.
+   */
+  public Optional<RequestTrace> begin(String name) {
+    boolean sampled = sampleRate > 0 && random.getAsDouble() < sampleRate;
+    if (!sampled && thresholdNanos == 0) {
+      return Optional.empty();
+    }
+
+    RequestTrace trace = new RequestTrace(name, sampled, System.nanoTime());
+    trace.bind();
+    return Optional.of(trace);
+  }
+
+  /**
+   * Removes the trace from the current thread, and returns it as a JSON line if it was sampled or
+   * the request was slow.
+   */
+  public Optional<String> finish(RequestTrace trace, int status) {
+    RequestTrace.unbind();
+    long endNanos = System.nanoTime();
+
+    if (!trace.isSampled() && endNanos - trace.getStartNanos() < thresholdNanos) {
+      return Optional.empty();
+    }
+    return Optional.of(trace.toJson(endNanos, status).toString());
+  }
+}
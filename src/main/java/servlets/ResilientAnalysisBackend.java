@@ -0,0 +1,358 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.DeadlineExceededException;
+import com.google.api.gax.rpc.ResourceExhaustedException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.api.gax.rpc.UnavailableException;
+import com.google.appengine.api.ThreadManager;
+import com.google.cloud.language.v1.ClassifyTextRequest;
+import com.google.cloud.language.v1.ClassifyTextResponse;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import io.grpc.Status;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Protects receipt analysis from slow or failing Cloud APIs. Every request to the wrapped backend
+ * goes through the following checks, kept separately for Cloud Vision and Cloud Natural Language
+ * so that problems with one API do not affect calls to the other:
+ *
+ * <ul>
+ *   <li>The timeout of the call is cut so that it ends a reserved amount of time before the
+ *       current request does, leaving time to store the receipt. Calls are not made once the
+ *       request is out of time.
+ *   <li>A {@link CircuitBreaker} rejects calls while the API is failing.
+ *   <li>A bulkhead limits how many calls to the API can be in flight at once. Calls beyond the
+ *       limit are rejected rather than queued, so threads do not pile up behind a slow API.
+ * </ul>
+ *
+ * <p>Cloud Vision calls can also be hedged: if a call has not finished after a delay, a second
+ * identical call is made and the first response is used. Hedged calls count against the bulkhead,
+ * so hedging stops when the API is already busy. Both calls run on threads of the current request
+ * that are started for the call, with the request's deadline, and are stopped once it returns.
+ *
+ * <p>Rejected calls fail with an {@link ApiException}, like the calls themselves.
+ */
+public class ResilientAnalysisBackend implements AnalysisBackend {
+  // Status codes that show the API is unhealthy, as opposed to a problem with the request.
+  private static final ImmutableSet<StatusCode.Code> FAILURE_CODES =
+      ImmutableSet.of(StatusCode.Code.UNAVAILABLE, StatusCode.Code.DEADLINE_EXCEEDED,
+          StatusCode.Code.INTERNAL, StatusCode.Code.RESOURCE_EXHAUSTED, StatusCode.Code.UNKNOWN);
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ResilientAnalysisBackend.class.getName());
+
+  /** A request to the wrapped backend. */
+  private interface RemoteCall<T> {
+    T call(Duration timeout) throws IOException;
+  }
+
+  /** The circuit breaker and bulkhead of one API. */
+  private static class Dependency {
+    private final CircuitBreaker breaker;
+    private final Semaphore bulkhead;
+    // Name of the stage that calls to the API are recorded as in Metrics.
+    private final String stage;
+
+    private Dependency(CircuitBreaker breaker, int bulkheadSize, String stage) {
+      this.breaker = breaker;
+      this.bulkhead = new Semaphore(Math.max(1, bulkheadSize));
+      this.stage = stage;
+    }
+  }
+
+  private final AnalysisBackend backend;
+  private final Dependency vision;
+  private final Dependency language;
+  private final long reserveMillis;
+  private final long hedgeDelayMillis;
+  // Creates the threads of hedged Cloud Vision calls, which must belong to the current request.
+  private final Supplier<ThreadFactory> hedgeThreadFactory;
+
+  /**
+   * @param backend Backend that requests are sent to.
+   * @param visionBreaker Circuit breaker of Cloud Vision calls.
+   * @param visionBulkheadSize Maximum number of Cloud Vision calls in flight.
+   * @param languageBreaker Circuit breaker of Cloud Natural Language calls.
+   * @param languageBulkheadSize Maximum number of Cloud Natural Language calls in flight.
+   * @param reserveMillis Time left to the request after a call's deadline.
+   * @param hedgeDelayMillis How long a Cloud Vision call runs before a hedged call is made, or
+   *     zero to disable hedging.
+   */
+  public ResilientAnalysisBackend(AnalysisBackend backend, CircuitBreaker visionBreaker,
+      int visionBulkheadSize, CircuitBreaker languageBreaker, int languageBulkheadSize,
+      long reserveMillis, long hedgeDelayMillis) {
+    this(backend, visionBreaker, visionBulkheadSize, languageBreaker, languageBulkheadSize,
+        reserveMillis, hedgeDelayMillis, ThreadManager::currentRequestThreadFactory);
+  }
+
+  /**
+   * @param hedgeThreadFactory Returns the factory of the threads that hedged calls run on. App
+   *     Engine only allows threads of the current request.
+   */
+  public ResilientAnalysisBackend(AnalysisBackend backend, CircuitBreaker visionBreaker,
+      int visionBulkheadSize, CircuitBreaker languageBreaker, int languageBulkheadSize,
+      long reserveMillis, long hedgeDelayMillis, Supplier<ThreadFactory> hedgeThreadFactory) {
+    this.backend = backend;
+    this.vision = new Dependency(visionBreaker, visionBulkheadSize, "vision_call");
+    this.language = new Dependency(languageBreaker, languageBulkheadSize, "language_call");
+    this.reserveMillis = Math.max(0, reserveMillis);
+    this.hedgeDelayMillis = Math.max(0, hedgeDelayMillis);
+    this.hedgeThreadFactory = hedgeThreadFactory;
+  }
+
+  /**
+   * Wraps the backend with the settings of the receiptAnalysis.breakerWindowSize,
+   * receiptAnalysis.breakerMinimumCalls, receiptAnalysis.breakerFailureRate,
+   * receiptAnalysis.breakerOpenMillis, receiptAnalysis.visionBulkheadSize,
+   * receiptAnalysis.languageBulkheadSize, receiptAnalysis.deadlineReserveMillis, and
+   * receiptAnalysis.visionHedgeDelayMillis system properties. The state of its circuit breakers
+   * and bulkheads is registered in {@link Metrics}.
+   */
+  public static ResilientAnalysisBackend fromSystemProperties(AnalysisBackend backend) {
+    int windowSize = Integer.getInteger("receiptAnalysis.breakerWindowSize", 50);
+    int minimumCalls = Integer.getInteger("receiptAnalysis.breakerMinimumCalls", 20);
+    double failureRate =
+        Double.parseDouble(System.getProperty("receiptAnalysis.breakerFailureRate", "0.5"));
+    long openMillis = Long.getLong("receiptAnalysis.breakerOpenMillis", 30_000);
+
+    ResilientAnalysisBackend resilientBackend = new ResilientAnalysisBackend(backend,
+        new CircuitBreaker(
+            "Cloud Vision", windowSize, minimumCalls, failureRate, openMillis, System::nanoTime),
+        Integer.getInteger("receiptAnalysis.visionBulkheadSize", 16),
+        new CircuitBreaker("Cloud Natural Language", windowSize, minimumCalls, failureRate,
+            openMillis, System::nanoTime),
+        Integer.getInteger("receiptAnalysis.languageBulkheadSize", 16),
+        Long.getLong("receiptAnalysis.deadlineReserveMillis", 2_000),
+        Long.getLong("receiptAnalysis.visionHedgeDelayMillis", 0));
+    resilientBackend.registerMetrics();
+
+    return resilientBackend;
+  }
+
+  @Override
+  public BatchAnnotateImagesResponse batchAnnotateImages(
+      List<AnnotateImageRequest> requests, Duration timeout) throws IOException {
+    Duration callTimeout = getCallTimeout(timeout);
+    RemoteCall<BatchAnnotateImagesResponse> call =
+        attemptTimeout -> backend.batchAnnotateImages(requests, attemptTimeout);
+    // Hedged calls run on other threads, so the span covers both attempts.
+    int span = RequestTrace.startSpan(vision.stage);
+
+    try {
+      if (hedgeDelayMillis == 0 || callTimeout.toMillis() <= hedgeDelayMillis) {
+        return callWithProtection(vision, call, callTimeout);
+      }
+      return callHedged(vision, call, callTimeout);
+    } finally {
+      RequestTrace.endSpan(span);
+    }
+  }
+
+  @Override
+  public ClassifyTextResponse classifyText(ClassifyTextRequest request, Duration timeout)
+      throws IOException {
+    int span = RequestTrace.startSpan(language.stage);
+
+    try {
+      return callWithProtection(language,
+          callTimeout -> backend.classifyText(request, callTimeout), getCallTimeout(timeout));
+    } finally {
+      RequestTrace.endSpan(span);
+    }
+  }
+
+  @Override
+  public void warmUp() throws IOException {
+    backend.warmUp();
+  }
+
+  @Override
+  public void close() {
+    backend.close();
+  }
+
+  /**
+   * Registers the rejected calls, state, and free bulkhead permits of each API in {@link Metrics}.
+   * They replace the metrics of a backend registered before, such as one that was closed.
+   */
+  private void registerMetrics() {
+    for (Dependency dependency : ImmutableList.of(vision, language)) {
+      String api = dependency.breaker.getName();
+      Metrics.registerCounter("receipt_roundup_breaker_rejected_calls_total",
+          "Number of calls rejected by the circuit breaker of each API.",
+          dependency.breaker::getRejectedCount, "api", api);
+      for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+        Metrics.registerGauge("receipt_roundup_breaker_state",
+            "Whether the circuit breaker of each API is in the given state.",
+            () -> dependency.breaker.getState() == state ? 1 : 0, "api", api, "state",
+            state.name());
+      }
+      Metrics.registerGauge("receipt_roundup_bulkhead_available_permits",
+          "Number of calls to each API that can start before the bulkhead rejects calls.",
+          dependency.bulkhead::availablePermits, "api", api);
+    }
+  }
+
+  /**
+   * Returns the timeout of a call, which is the given timeout cut to end before the current request
+   * does. Throws an exception if the request has no time left for the call.
+   */
+  private Duration getCallTimeout(Duration timeout) {
+    long remainingMillis = CallDeadline.getRemainingMillis();
+    if (remainingMillis == CallDeadline.NO_DEADLINE) {
+      return timeout;
+    }
+
+    long availableMillis = remainingMillis - reserveMillis;
+    if (availableMillis <= 0) {
+      throw new DeadlineExceededException("Request has no time left for the call.", null,
+          GrpcStatusCode.of(Status.Code.DEADLINE_EXCEEDED), false);
+    }
+    return availableMillis < timeout.toMillis() ? Duration.ofMillis(availableMillis) : timeout;
+  }
+
+  /**
+   * Makes the call if the dependency's circuit breaker and bulkhead allow it, and records its
+   * outcome in the circuit breaker. The latency and failures of calls that were made are recorded
+   * in {@link Metrics}.
+   */
+  private static <T> T callWithProtection(Dependency dependency, RemoteCall<T> call,
+      Duration timeout) throws IOException {
+    if (!dependency.breaker.tryAcquirePermission()) {
+      throw new UnavailableException(dependency.breaker.getName() + " circuit breaker is open.",
+          null, GrpcStatusCode.of(Status.Code.UNAVAILABLE), false);
+    }
+
+    if (!dependency.bulkhead.tryAcquire()) {
+      dependency.breaker.onIgnored();
+      throw new ResourceExhaustedException(
+          "Too many " + dependency.breaker.getName() + " calls in flight.", null,
+          GrpcStatusCode.of(Status.Code.RESOURCE_EXHAUSTED), false);
+    }
+
+    long startNanos = System.nanoTime();
+    try {
+      T response = call.call(timeout);
+      dependency.breaker.onSuccess();
+      return response;
+    } catch (ApiException e) {
+      Metrics.countStageFailure(dependency.stage);
+      if (e.getStatusCode().getCode() == StatusCode.Code.CANCELLED) {
+        dependency.breaker.onIgnored();
+      } else if (FAILURE_CODES.contains(e.getStatusCode().getCode())) {
+        dependency.breaker.onFailure();
+      } else {
+        dependency.breaker.onSuccess();
+      }
+      throw e;
+    } catch (IOException | RuntimeException e) {
+      Metrics.countStageFailure(dependency.stage);
+      if (Thread.currentThread().isInterrupted()) {
+        // The call was cancelled, for example because a hedged call finished first.
+        dependency.breaker.onIgnored();
+      } else {
+        dependency.breaker.onFailure();
+      }
+      throw e;
+    } finally {
+      dependency.bulkhead.release();
+      Metrics.recordStage(dependency.stage, startNanos);
+    }
+  }
+
+  /**
+   * Makes the call, and makes it a second time if it has not finished after the hedge delay.
+   * Returns the first response. Fails only if every call that was made failed. The calls run on
+   * new threads of the current request with its deadline, which are stopped before returning.
+   */
+  private <T> T callHedged(Dependency dependency, RemoteCall<T> call, Duration timeout)
+      throws IOException {
+    long deadlineNanos = System.nanoTime() + timeout.toNanos();
+    long requestDeadlineNanos = CallDeadline.getDeadlineNanos();
+    // At most two calls are made.
+    ExecutorService hedgeExecutor = Executors.newFixedThreadPool(2, hedgeThreadFactory.get());
+    CompletionService<T> calls = new ExecutorCompletionService<>(hedgeExecutor);
+    List<Future<T>> started = new ArrayList<>();
+    started.add(calls.submit(() -> CallDeadline.callWithDeadline(
+        requestDeadlineNanos, () -> callWithProtection(dependency, call, timeout))));
+
+    try {
+      Future<T> finished = calls.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+      if (finished == null) {
+        Duration hedgeTimeout = Duration.ofNanos(deadlineNanos - System.nanoTime());
+        started.add(calls.submit(() -> CallDeadline.callWithDeadline(
+            requestDeadlineNanos, () -> callWithProtection(dependency, call, hedgeTimeout))));
+        finished = calls.take();
+      }
+
+      ExecutionException firstFailure;
+      try {
+        return finished.get();
+      } catch (ExecutionException e) {
+        if (started.size() == 1) {
+          throw e;
+        }
+        firstFailure = e;
+      }
+
+      try {
+        return calls.take().get();
+      } catch (ExecutionException e) {
+        // Report the failure of the call that finished first.
+        logger.warning(dependency.breaker.getName() + " hedged call also failed: " + e.getCause());
+        throw firstFailure;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a hedged call.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      // Stops the call that lost the race, if it is still running.
+      for (Future<T> future : started) {
+        future.cancel(true);
+      }
+      hedgeExecutor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,43 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet with a POST handler that is called by the tasks queued by
+ * {@link LocalCategorizer#learn} to add the receipts an instance learned to the saved receipt
+ * classifier, so that uploads do not wait for the save. Failed saves are retried by the queue.
+ */
+@WebServlet("/save-categorizer")
+public class SaveCategorizerServlet extends HttpServlet {
+  // App Engine removes this header from external requests, so only tasks can set it.
+  private static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (request.getHeader(QUEUE_NAME_HEADER) == null) {
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    LocalCategorizer.saveLearned(ByteStreams.toByteArray(request.getInputStream()));
+  }
+}
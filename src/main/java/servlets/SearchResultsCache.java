@@ -0,0 +1,236 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Two-tier cache of the JSON pages returned by {@link SearchServlet}. The first tier is a bounded
+ * in-memory cache on this instance and the second tier is Memcache, which is shared by all
+ * instances.
+ *
+ * <p>Pages are keyed by the user, the user's generation, and the search parameters that select the
+ * page. The generation is a counter kept in Memcache that every servlet that changes a user's
+ * receipts increments with {@link #invalidate}, so pages cached before the change are never looked
+ * up again and do not need to be found and removed. If Memcache cannot be reached, the generation
+ * is unknown and searches are not cached.
+ *
+ * <p>The in-memory tier holds at most receiptAnalysis.searchCacheBytes bytes of pages, and pages
+ * expire from both tiers after receiptAnalysis.searchCacheTtlSeconds. The cache is off unless the
+ * TTL is set, because Datastore queries are eventually consistent: a page cached just after a
+ * write may leave out the change until it expires.
+ */
+public final class SearchResultsCache {
+  private static final String BYTES_PROPERTY = "receiptAnalysis.searchCacheBytes";
+  private static final String TTL_PROPERTY = "receiptAnalysis.searchCacheTtlSeconds";
+  private static final String GENERATION_PREFIX = "search-generation:";
+  private static final String PAGE_PREFIX = "search-page:";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(SearchResultsCache.class.getName());
+
+  /** Key of a cached page, which includes the user's generation when it was created. */
+  public static final class Key {
+    private final String key;
+
+    private Key(String key) {
+      this.key = key;
+    }
+  }
+
+  private static final AtomicLong memoryHitCount = new AtomicLong();
+  private static final AtomicLong memcacheHitCount = new AtomicLong();
+  private static final AtomicLong missCount = new AtomicLong();
+
+  // Set once the fields below are, so that getMemoryCache only locks until the cache is configured.
+  private static volatile boolean configured;
+  // Null if the cache is turned off.
+  private static Cache<String, String> memoryCache;
+  private static int ttlSeconds;
+
+  /**
+   * Prevents instantiation.
+   */
+  private SearchResultsCache() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the key of the page that the search parameters select for the user, or empty if the
+   * cache is turned off or the user's generation cannot be read.
+   *
+   * @param searchParameters Normalized parameters of the search that select the page.
+   */
+  public static Optional<Key> getKey(String userId, String searchParameters) {
+    if (getMemoryCache() == null) {
+      return Optional.empty();
+    }
+
+    return getGeneration(userId).map(generation -> new Key(PAGE_PREFIX + Hashing.sha256()
+        .hashString(userId + "\n" + generation + "\n" + searchParameters, StandardCharsets.UTF_8)
+        .toString()));
+  }
+
+  /**
+   * Looks up the page in memory, then in Memcache. Pages found in Memcache are copied into memory.
+   */
+  public static Optional<String> get(Key key) {
+    Cache<String, String> cache = getMemoryCache();
+    if (cache == null) {
+      return Optional.empty();
+    }
+
+    String json = cache.getIfPresent(key.key);
+    if (json != null) {
+      memoryHitCount.incrementAndGet();
+      return Optional.of(json);
+    }
+
+    json = (String) getMemcache().get(key.key);
+    if (json != null) {
+      memcacheHitCount.incrementAndGet();
+      cache.put(key.key, json);
+    } else {
+      missCount.incrementAndGet();
+    }
+
+    return Optional.ofNullable(json);
+  }
+
+  /**
+   * Stores the page in both tiers of the cache.
+   */
+  public static void put(Key key, String json) {
+    Cache<String, String> cache = getMemoryCache();
+    if (cache == null) {
+      return;
+    }
+
+    cache.put(key.key, json);
+    getMemcache().put(key.key, json, Expiration.byDeltaSeconds(ttlSeconds));
+  }
+
+  /**
+   * Makes every cached page of the user stale by incrementing their generation. Must be called
+   * after the user's receipts change.
+   */
+  public static void invalidate(String userId) {
+    if (getMemoryCache() == null) {
+      return;
+    }
+
+    // A generation evicted from Memcache starts again from the current time, which is past the
+    // generation it had unless it was incremented more than once a millisecond, so it does not
+    // match pages cached before the eviction.
+    Long generation =
+        getMemcache().increment(GENERATION_PREFIX + userId, 1, System.currentTimeMillis());
+    if (generation == null) {
+      // Cached pages expire on their own, so searches can only be stale until then.
+      logger.warning("Failed to invalidate the cached searches of a user.");
+    }
+  }
+
+  public static long getMemoryHitCount() {
+    return memoryHitCount.get();
+  }
+
+  public static long getMemcacheHitCount() {
+    return memcacheHitCount.get();
+  }
+
+  public static long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Removes every page from the in-memory tier and resets the counts. The system properties are
+   * read again the next time the cache is used. Pages and generations in Memcache are kept.
+   */
+  public static synchronized void clear() {
+    if (memoryCache != null) {
+      memoryCache.invalidateAll();
+      memoryCache = null;
+    }
+    configured = false;
+    memoryHitCount.set(0);
+    memcacheHitCount.set(0);
+    missCount.set(0);
+  }
+
+  /** Returns the in-memory tier, creating it if needed, or null if the cache is turned off. */
+  private static Cache<String, String> getMemoryCache() {
+    if (!configured) {
+      configure();
+    }
+    return memoryCache;
+  }
+
+  /** Reads the system properties and creates the in-memory tier if the cache is turned on. */
+  private static synchronized void configure() {
+    if (!configured) {
+      ttlSeconds = Integer.getInteger(TTL_PROPERTY, 0);
+
+      if (ttlSeconds > 0) {
+        memoryCache = CacheBuilder.newBuilder()
+                          .maximumWeight(Long.getLong(BYTES_PROPERTY, 8_000_000))
+                          .weigher((String key, String json) -> 2 * json.length())
+                          .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                          .build();
+        registerMetrics();
+      }
+      configured = true;
+    }
+  }
+
+  /** Returns the user's generation, or empty if Memcache cannot be reached. */
+  private static Optional<Long> getGeneration(String userId) {
+    MemcacheService memcache = getMemcache();
+    String key = GENERATION_PREFIX + userId;
+    Object generation = memcache.get(key);
+
+    if (generation == null) {
+      memcache.put(key, System.currentTimeMillis(), null, SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      generation = memcache.get(key);
+    }
+
+    return Optional.ofNullable((Long) generation);
+  }
+
+  private static MemcacheService getMemcache() {
+    return MemcacheServiceFactory.getMemcacheService();
+  }
+
+  private static void registerMetrics() {
+    String cacheRequests = "receipt_roundup_cache_requests_total";
+    String cacheHelp = "Number of lookups in each cache by result.";
+    Metrics.registerCounter(cacheRequests, cacheHelp, SearchResultsCache::getMemoryHitCount,
+        "cache", "search_results", "result", "memory_hit");
+    Metrics.registerCounter(cacheRequests, cacheHelp, SearchResultsCache::getMemcacheHitCount,
+        "cache", "search_results", "result", "memcache_hit");
+    Metrics.registerCounter(cacheRequests, cacheHelp, SearchResultsCache::getMissCount,
+        "cache", "search_results", "result", "miss");
+  }
+}
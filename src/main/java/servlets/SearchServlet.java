@@ -19,34 +19,53 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.datastore.QueryResultList;
-import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
 import com.google.sps.data.QueryInformation;
 import com.google.sps.data.Receipt;
+import com.google.sps.data.ReceiptSummary;
 import com.google.sps.data.SearchServletResponse;
+import com.google.sps.data.TextQuery;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.stream.Stream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Servlet that searches and returns matching receipts from datastore. */
+/**
+ * Servlet that searches and returns matching receipts from datastore, or from the user's
+ * {@link ReceiptIndex} if indexes are turned on. See {@link ReceiptIndexes}. Pages that were
+ * already returned are answered from {@link SearchResultsCache}.
+ */
 @WebServlet("/search-receipts")
 public class SearchServlet extends HttpServlet {
   private static final int RECEIPTS_PER_PAGE = 10;
+  // Number of entities fetched per Datastore call while a page is filled with receipts that match
+  // the price range, which is filtered in memory.
+  private static final int PRICE_FILTER_CHUNK_SIZE = 50;
+  // Most entities one search reads, which can be set with a system property. A page that is not
+  // full by then ends early, and its cursor continues the search from the last entity read.
+  private static final int MAX_SCANNED_RECEIPTS =
+      Math.max(RECEIPTS_PER_PAGE, Integer.getInteger("receiptAnalysis.searchScanLimit", 1000));
+  // Most Datastore queries one search merges, one for each selected category and store pair.
+  // The same as the number of subqueries Datastore allows for an IN filter. Searches answered by
+  // a ReceiptIndex do not run these queries, so they have no limit.
+  private static final int MAX_MERGED_QUERIES = 30;
 
   /** Messages that show up on client-side banner on thrown exception. */
   private static final String NULL_EXCEPTION_MESSAGE =
@@ -57,6 +76,8 @@ public class SearchServlet extends HttpServlet {
       "Dates Unparseable: Receipt unable to be queried at this time, please try again.";
   private static final String AUTHENTICATION_ERROR_MESSAGE =
       "No Authentication: User must be logged in to search receipts.";
+  private static final String TOO_MANY_FILTERS_MESSAGE =
+      "Too Many Filters: Select fewer categories and stores, then search again.";
 
   private final DatastoreService datastore;
   private final UserService userService = UserServiceFactory.getUserService();
@@ -71,53 +92,113 @@ public class SearchServlet extends HttpServlet {
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    if (!userService.isUserLoggedIn()) {
+    boolean isUserLoggedIn;
+    int userSpan = RequestTrace.startSpan("user_lookup");
+    try {
+      isUserLoggedIn = userService.isUserLoggedIn();
+    } finally {
+      RequestTrace.endSpan(userSpan);
+    }
+
+    if (!isUserLoggedIn) {
       response.setStatus(HttpServletResponse.SC_FORBIDDEN);
       response.getWriter().println(AUTHENTICATION_ERROR_MESSAGE);
       return;
     }
 
-    Query query = null;
+    List<Query> queries = null;
     QueryInformation queryInformation = null;
+    int queryBuildSpan = RequestTrace.startSpan("query_build");
+
+    try {
+      // Query is set differently based on type of search.
+      if (checkParameter(request, "isPageLoad")) {
+        queries = getQueries(/* isPageLoad = */ true, queryInformation);
+      } else {
+        try {
+          queryInformation = createQueryInformation(request);
+        } catch (NullPointerException exception) {
+          response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+          response.getWriter().println(NULL_EXCEPTION_MESSAGE);
+          return;
+        } catch (NumberFormatException exception) {
+          response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+          response.getWriter().println(NUMBER_EXCEPTION_MESSAGE);
+          return;
+        } catch (ParseException exception) {
+          response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+          response.getWriter().println(PARSE_EXCEPTION_MESSAGE);
+          return;
+        }
+        queries = getQueries(/* isPageLoad = */ false, queryInformation);
+      }
+    } finally {
+      RequestTrace.endSpan(queryBuildSpan);
+    }
 
-    // Query is set differently based on type of search.
-    if (checkParameter(request, "isPageLoad")) {
-      query = getQuery(/* isPageLoad = */ true, queryInformation);
-    } else {
-      try {
-        queryInformation = createQueryInformation(request);
-      } catch (NullPointerException exception) {
-        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        response.getWriter().println(NULL_EXCEPTION_MESSAGE);
-        return;
-      } catch (NumberFormatException exception) {
-        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        response.getWriter().println(NUMBER_EXCEPTION_MESSAGE);
-        return;
-      } catch (ParseException exception) {
+    boolean isNextPage = checkParameter(request, "getNextPage");
+    boolean isPreviousPage = !isNextPage && checkParameter(request, "getPreviousPage");
+    String encodedCursor =
+        isNextPage || isPreviousPage ? request.getParameter("encodedCursor") : null;
+
+    String userId = userService.getCurrentUser().getUserId();
+    Optional<SearchResultsCache.Key> cacheKey;
+    Optional<String> cachedJson;
+    int cacheSpan = RequestTrace.startSpan("search_cache");
+    try {
+      cacheKey = SearchResultsCache.getKey(
+          userId, getSearchParameters(queryInformation, isPreviousPage, encodedCursor));
+      cachedJson = cacheKey.flatMap(SearchResultsCache::get);
+    } finally {
+      RequestTrace.endSpan(cacheSpan);
+    }
+
+    if (cachedJson.isPresent()) {
+      response.setContentType("application/json;");
+      response.getWriter().println(cachedJson.get());
+      return;
+    }
+
+    long startNanos = System.nanoTime();
+    int querySpan = RequestTrace.startSpan("search_query");
+    SearchServletResponse servletResponse;
+
+    try {
+      Optional<ReceiptIndex> index = ReceiptIndexes.get(datastore, userId);
+
+      // Pages of a search that was started in Datastore keep coming from Datastore.
+      if (index.isPresent()
+          && (encodedCursor == null || ReceiptIndex.isIndexCursor(encodedCursor))) {
+        servletResponse =
+            getIndexPage(index.get(), queryInformation, isPreviousPage, encodedCursor);
+      } else if (queries.size() > MAX_MERGED_QUERIES) {
+        // Only Datastore runs a query per category and store pair, so only it limits the pairs.
         response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-        response.getWriter().println(PARSE_EXCEPTION_MESSAGE);
+        response.getWriter().println(TOO_MANY_FILTERS_MESSAGE);
         return;
+      } else if (queries.size() == 1) {
+        servletResponse = getPage(
+            queries.get(0), getFetchOptions(isPreviousPage, encodedCursor), queryInformation);
+      } else {
+        servletResponse = getMergedPage(
+            new MergedQuery(datastore, queries), isPreviousPage, encodedCursor, queryInformation);
       }
-      query = getQuery(/* isPageLoad = */ false, queryInformation);
+    } finally {
+      RequestTrace.endSpan(querySpan);
+      Metrics.recordStage("search_query", startNanos);
     }
 
-    QueryResultList<Entity> results = null;
-
-    // Results retrieved differently based on type of search.
-    if (checkParameter(request, "getNextPage")) {
-      results = getNextPage(request.getParameter("encodedCursor"), query);
-    } else if (checkParameter(request, "getPreviousPage")) {
-      results = getPreviousPage(request.getParameter("encodedCursor"), query);
-    } else {
-      results = getFirstPage(query);
+    String json;
+    int jsonSpan = RequestTrace.startSpan("json");
+    try {
+      json = new Gson().toJson(servletResponse);
+    } finally {
+      RequestTrace.endSpan(jsonSpan);
     }
+    cacheKey.ifPresent(key -> SearchResultsCache.put(key, json));
 
-    SearchServletResponse servletResponse = createServletResponse(results, queryInformation);
-
-    Gson gson = new Gson();
     response.setContentType("application/json;");
-    response.getWriter().println(gson.toJson(servletResponse));
+    response.getWriter().println(json);
   }
 
   /**
@@ -138,117 +219,218 @@ public class SearchServlet extends HttpServlet {
     String store = request.getParameter("store");
     String minPrice = request.getParameter("min");
     String maxPrice = request.getParameter("max");
+    String text = request.getParameter("text");
 
-    return new QueryInformation(timeZoneId, category, dateRange, store, minPrice, maxPrice);
+    return new QueryInformation(timeZoneId, category, dateRange, store, minPrice, maxPrice, text);
   }
 
   /**
-   * Gets next receipts page from an existing query.
-   * @return list of receipts as entities.
+   * Returns the parameters that select a page of search results, normalized so that searches for
+   * the same page have the same parameters. Used as the key of {@link SearchResultsCache}.
+   *
+   * @param queryInformation Filters of the search, or null for the page load search.
    */
-  private QueryResultList<Entity> getNextPage(String encodedCursor, Query query) {
-    Cursor cursor = Cursor.fromWebSafeString(encodedCursor);
-    FetchOptions options = FetchOptions.Builder.withStartCursor(cursor);
-    options.limit(RECEIPTS_PER_PAGE);
+  private String getSearchParameters(
+      QueryInformation queryInformation, boolean isPreviousPage, String encodedCursor) {
+    StringBuilder parameters = new StringBuilder();
+    parameters.append(isPreviousPage ? "previous" : "next").append('\n');
+    parameters.append(Strings.nullToEmpty(encodedCursor)).append('\n');
+
+    if (queryInformation == null) {
+      return parameters.append("page-load").toString();
+    }
+
+    parameters.append(new TreeSet<>(queryInformation.getCategory())).append('\n');
+    parameters.append(new TreeSet<>(queryInformation.getStores())).append('\n');
+    parameters.append(queryInformation.getStartTimestamp()).append('\n');
+    parameters.append(queryInformation.getEndTimestamp()).append('\n');
+    parameters.append(queryInformation.getMinPrice()).append('\n');
+    parameters.append(queryInformation.getMaxPrice()).append('\n');
+    for (TextQuery.Clause clause : queryInformation.getTextQuery().getClauses()) {
+      parameters.append(clause.getTokens()).append(clause.isPrefix() ? "*" : "").append('\n');
+    }
 
-    return datastore.prepare(query).asQueryResultList(options);
+    return parameters.toString();
   }
 
   /**
-   * Gets previous receipts page from an existing query.
-   * @return list of receipts as entities.
+   * Returns the options that fetch the page after or before the cursor of an existing query, or
+   * the first page if there is no cursor. Datastore cannot continue from the cursor of a
+   * {@link ReceiptIndex} or a {@link MergedQuery}, so if the search no longer uses them, it starts
+   * over.
    */
-  private QueryResultList<Entity> getPreviousPage(String encodedCursor, Query query) {
-    Cursor cursor = Cursor.fromWebSafeString(encodedCursor);
-    FetchOptions options = FetchOptions.Builder.withEndCursor(cursor);
-    options.limit(RECEIPTS_PER_PAGE);
+  private FetchOptions getFetchOptions(boolean isPreviousPage, String encodedCursor) {
+    if (encodedCursor == null || ReceiptIndex.isIndexCursor(encodedCursor)
+        || MergedQuery.isMergedCursor(encodedCursor)) {
+      return FetchOptions.Builder.withDefaults();
+    }
 
-    return datastore.prepare(query).asQueryResultList(options);
+    Cursor cursor = Cursor.fromWebSafeString(encodedCursor);
+    return isPreviousPage ? FetchOptions.Builder.withEndCursor(cursor)
+                          : FetchOptions.Builder.withStartCursor(cursor);
   }
 
   /**
-   * Gets first receipts page from a new query.
-   * @return list of receipts as entities.
+   * Returns the page of the search from the user's receipt index. Like a merged query, the search
+   * starts over if the client sent a cursor that the index cannot read.
    */
-  private QueryResultList<Entity> getFirstPage(Query query) {
-    PreparedQuery preparedQuery = datastore.prepare(query);
-    QueryResultList<Entity> results =
-        preparedQuery.asQueryResultList(FetchOptions.Builder.withLimit(RECEIPTS_PER_PAGE));
+  private SearchServletResponse getIndexPage(ReceiptIndex index,
+      QueryInformation queryInformation, boolean isPreviousPage, String encodedCursor) {
+    if (encodedCursor == null) {
+      return index.getFirstPage(queryInformation, RECEIPTS_PER_PAGE);
+    }
 
-    return results;
+    try {
+      if (isPreviousPage) {
+        return index.getPageBefore(queryInformation, encodedCursor, RECEIPTS_PER_PAGE);
+      }
+      return index.getPageAfter(queryInformation, encodedCursor, RECEIPTS_PER_PAGE);
+    } catch (IllegalArgumentException e) {
+      // Also thrown for numbers that cannot be parsed, as a NumberFormatException.
+      return index.getFirstPage(queryInformation, RECEIPTS_PER_PAGE);
+    }
   }
 
   /**
-   * Creates query to be used to retrieve receipts from datastore.
+   * Creates the queries to be used to retrieve receipts from datastore, one for each pair of a
+   * selected category and a selected store. Their results are merged by {@link MergedQuery}.
    * @param isPageLoad If true, gets all receipts, else gets receipts matching queryInformation.
    */
-  private Query getQuery(boolean isPageLoad, QueryInformation queryInformation) {
+  private List<Query> getQueries(boolean isPageLoad, QueryInformation queryInformation) {
+    if (isPageLoad) {
+      // Don't need to set any other filters if it's a pageLoad event.
+      return ImmutableList.of(getQuery());
+    }
+
+    // A null value leaves the property unfiltered.
+    List<String> categories = getFilterValues(queryInformation.getCategory());
+    List<String> stores = getFilterValues(queryInformation.getStores());
+    List<Query> queries = new ArrayList<>();
+
+    for (String category : categories) {
+      for (String store : stores) {
+        Query query = getQuery();
+        setupQuery(query, queryInformation, category, store);
+        queries.add(query);
+      }
+    }
+
+    return queries;
+  }
+
+  /**
+   * Returns the selected values sorted, so that the queries of a search are always in the same
+   * order, or a single null if none are selected.
+   */
+  private static List<String> getFilterValues(Set<String> values) {
+    if (values.isEmpty()) {
+      return Collections.singletonList(null);
+    }
+    return new ArrayList<>(new TreeSet<>(values));
+  }
+
+  /** Creates a query for all of the user's receipts, newest first. */
+  private Query getQuery() {
     Query query = new Query("Receipt")
                       .addSort("timestamp", SortDirection.DESCENDING)
                       .addSort("__key__", SortDirection.DESCENDING);
     query.addFilter("userId", Query.FilterOperator.EQUAL, userService.getCurrentUser().getUserId());
-
-    // Don't need to set any other filters if it's a pageLoad event.
-    if (!isPageLoad) {
-      setupQuery(query, queryInformation);
-    }
-
     return query;
   }
 
-  /** Sets up a {@link Query} with filters set based on which values were input by user. */
-  private void setupQuery(Query query, QueryInformation queryInformation) {
+  /**
+   * Sets up a {@link Query} with filters set based on which values were input by user.
+   * @param category Category to filter by, or null to match every category.
+   * @param store Store to filter by, or null to match every store.
+   */
+  private void setupQuery(
+      Query query, QueryInformation queryInformation, String category, String store) {
     query.addFilter("timestamp", Query.FilterOperator.GREATER_THAN_OR_EQUAL,
         queryInformation.getStartTimestamp());
     query.addFilter(
         "timestamp", Query.FilterOperator.LESS_THAN_OR_EQUAL, queryInformation.getEndTimestamp());
 
-    if (queryInformation.getCategory() != null && queryInformation.getCategory().size() != 0) {
-      query.addFilter("categories", Query.FilterOperator.IN, queryInformation.getCategory());
+    if (category != null) {
+      query.addFilter("categories", Query.FilterOperator.EQUAL, category);
     }
 
-    if (!Strings.isNullOrEmpty(queryInformation.getStore())) {
-      query.addFilter("store", Query.FilterOperator.EQUAL, queryInformation.getStore());
+    if (store != null) {
+      query.addFilter("store", Query.FilterOperator.EQUAL, store);
     }
   }
 
-  /** Creates a SearchServletResponse object containing information for the client. */
-  private SearchServletResponse createServletResponse(
-      QueryResultList<Entity> results, QueryInformation queryInformation) {
-    ImmutableList<Receipt> receipts = entitiesListToReceiptsList(results, queryInformation);
-    String encodedCursor = results.getCursor().toWebSafeString();
-    return new SearchServletResponse(receipts, encodedCursor);
+  /**
+   * Reads receipts until the page has {@link #RECEIPTS_PER_PAGE} receipts in the price range of the
+   * query information that match its text query, the results run out, or
+   * {@link #MAX_SCANNED_RECEIPTS} entities were read.
+   * The returned cursor points right after the last entity read, so the next page starts with the
+   * first receipt that was not looked at and no matching receipt is skipped. A page that stopped at
+   * the scan limit is marked as such, so that the client does not take it for the last page.
+   *
+   * <p>Datastore allows an inequality filter on only one property, and results must be sorted by
+   * it first. The date range already uses it, and receipts are listed newest first, so the price
+   * range is checked here on each entity. Raw text is not indexed by Datastore, so the text query
+   * is checked here too. Searches answered by a {@link ReceiptIndex} use its inverted index.
+   *
+   * @param queryInformation Filters of the search, or null on page load, which shows every receipt.
+   */
+  private SearchServletResponse getPage(
+      Query query, FetchOptions options, QueryInformation queryInformation) {
+    // Without a price range, every entity read is on the page, so only a page is fetched.
+    int chunkSize = queryInformation == null ? RECEIPTS_PER_PAGE : PRICE_FILTER_CHUNK_SIZE;
+    QueryResultIterator<Entity> results =
+        datastore.prepare(query).asQueryResultIterator(options.chunkSize(chunkSize));
+    ImmutableList.Builder<ReceiptSummary> receipts = ImmutableList.builder();
+    boolean scanLimitReached = readPage(results, queryInformation, receipts);
+
+    return new SearchServletResponse(
+        receipts.build(), results.getCursor().toWebSafeString(), scanLimitReached);
   }
 
-  private ImmutableList<Receipt> entitiesListToReceiptsList(
-      QueryResultList<Entity> results, QueryInformation queryInformation) {
-    Stream<Receipt> receipts = results.stream().map(this::createReceiptFromEntity);
+  /**
+   * Reads a page like {@link #getPage} from the merged queries of a search for several categories
+   * or stores. The cursor records the position of each query, after the last entity read from it.
+   */
+  private SearchServletResponse getMergedPage(MergedQuery query, boolean isPreviousPage,
+      String encodedCursor, QueryInformation queryInformation) {
+    // Entities read are spread over the queries, so each fetches a share of a chunk at a time.
+    int chunkSize = Math.max(RECEIPTS_PER_PAGE, PRICE_FILTER_CHUNK_SIZE / query.size());
+    MergedQuery.Results results = query.run(encodedCursor, isPreviousPage, chunkSize);
+    ImmutableList.Builder<ReceiptSummary> receipts = ImmutableList.builder();
+    boolean scanLimitReached = readPage(results, queryInformation, receipts);
+
+    return new SearchServletResponse(receipts.build(), results.getCursor(), scanLimitReached);
+  }
 
-    if (queryInformation != null) {
-      /**
-       * Datastore doesn't support queries with multiple inequality filters
-       * (i.e price and timestamp) so price filtering is manually done here.
-       */
-      receipts = receipts.filter(receipt
-          -> receipt.getPrice() >= queryInformation.getMinPrice()
-              && receipt.getPrice() <= queryInformation.getMaxPrice());
+  /**
+   * Adds the receipts of a page from the results to the builder, as described by {@link #getPage}.
+   * Returns whether the page stopped at the scan limit before it was full.
+   */
+  private static boolean readPage(Iterator<Entity> results, QueryInformation queryInformation,
+      ImmutableList.Builder<ReceiptSummary> receipts) {
+    int matchingCount = 0;
+    int scannedCount = 0;
+
+    while (matchingCount < RECEIPTS_PER_PAGE && scannedCount < MAX_SCANNED_RECEIPTS
+        && results.hasNext()) {
+      Receipt receipt = Receipt.fromEntity(results.next());
+      scannedCount++;
+
+      if (matchesInMemoryFilters(receipt, queryInformation)) {
+        receipts.add(ReceiptSummary.of(receipt));
+        matchingCount++;
+      }
     }
 
-    return receipts.collect(ImmutableList.toImmutableList());
+    // Does not check whether results are left, which could fetch another chunk.
+    return matchingCount < RECEIPTS_PER_PAGE && scannedCount >= MAX_SCANNED_RECEIPTS;
   }
 
-  /** Creates a {@link Receipt} from an {@link Entity}. */
-  private Receipt createReceiptFromEntity(Entity entity) {
-    long id = entity.getKey().getId();
-    String userId = (String) entity.getProperty("userId");
-    long timestamp = (long) entity.getProperty("timestamp");
-    String imageUrl = (String) entity.getProperty("imageUrl");
-    double price = (double) entity.getProperty("price");
-    String store = (String) entity.getProperty("store");
-    ImmutableSet<String> categories =
-        ImmutableSet.copyOf((ArrayList) entity.getProperty("categories"));
-    // String rawText = (new Text((String) entity.getProperty("rawText"))).getValue();
-    String rawText = "Test";
-    return new Receipt(id, userId, timestamp, imageUrl, price, store, categories, rawText);
+  private static boolean matchesInMemoryFilters(
+      Receipt receipt, QueryInformation queryInformation) {
+    return queryInformation == null
+        || (receipt.getPrice() >= queryInformation.getMinPrice()
+            && receipt.getPrice() <= queryInformation.getMaxPrice()
+            && queryInformation.getTextQuery().matches(receipt.getRawText()));
   }
 }
@@ -52,7 +52,15 @@ public class SpendingAnalyticsServlet extends HttpServlet {
 
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
-    if (!userService.isUserLoggedIn()) {
+    boolean isUserLoggedIn;
+    int userSpan = RequestTrace.startSpan("user_lookup");
+    try {
+      isUserLoggedIn = userService.isUserLoggedIn();
+    } finally {
+      RequestTrace.endSpan(userSpan);
+    }
+
+    if (!isUserLoggedIn) {
       response.setStatus(HttpServletResponse.SC_FORBIDDEN);
       response.getWriter().println(AUTHENTICATION_ERROR_MESSAGE);
       return;
@@ -60,22 +68,40 @@ public class SpendingAnalyticsServlet extends HttpServlet {
 
     SpendingAnalytics analytics = getSpendingAnalytics();
 
-    Gson gson = new Gson();
+    String json;
+    int jsonSpan = RequestTrace.startSpan("json");
+    try {
+      json = new Gson().toJson(analytics);
+    } finally {
+      RequestTrace.endSpan(jsonSpan);
+    }
+
     response.setContentType("application/json;");
-    response.getWriter().println(gson.toJson(analytics));
+    response.getWriter().println(json);
   }
 
   /** Returns information for both category and store analytics. */
   private SpendingAnalytics getSpendingAnalytics() {
     Query query = new Query("Receipt");
     query.addFilter("userId", Query.FilterOperator.EQUAL, userService.getCurrentUser().getUserId());
-    ImmutableSet<Entity> allReceipts = datastore.prepare(query)
-                                           .asList(FetchOptions.Builder.withDefaults())
-                                           .stream()
-                                           .collect(ImmutableSet.toImmutableSet());
-
-    SpendingAnalytics analytics = new SpendingAnalytics(allReceipts);
+    long startNanos = System.nanoTime();
+    int querySpan = RequestTrace.startSpan("analytics_query");
+    ImmutableSet<Entity> allReceipts;
+    try {
+      allReceipts = datastore.prepare(query)
+                        .asList(FetchOptions.Builder.withDefaults())
+                        .stream()
+                        .collect(ImmutableSet.toImmutableSet());
+    } finally {
+      RequestTrace.endSpan(querySpan);
+      Metrics.recordStage("analytics_query", startNanos);
+    }
 
-    return analytics;
+    int computeSpan = RequestTrace.startSpan("analytics_compute");
+    try {
+      return new SpendingAnalytics(allReceipts);
+    } finally {
+      RequestTrace.endSpan(computeSpan);
+    }
   }
 }
\ No newline at end of file
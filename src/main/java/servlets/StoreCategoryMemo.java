@@ -0,0 +1,311 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Learns which categories the Cloud Natural Language API gives the receipts of each store, so that
+ * the call can be skipped for stores whose receipts always get the same categories.
+ *
+ * <p>Stores are keyed by their sanitized name, as stored on receipts by {@link FormatUtils}. For
+ * each store, the memo counts the classified receipts and how many of them got each category.
+ * Once a store has enough receipts and every category was given to either nearly all or nearly none
+ * of them, the categories given to nearly all of them are used without calling the API. Every so
+ * often the API is still called for a memoized store, so the memo keeps learning if the categories
+ * change.
+ *
+ * <p>Counts are stored in Datastore, which is shared by all instances, and a bounded number of
+ * stores are kept in memory. Old receipts count for less over time, since counts are halved once a
+ * store has 100 receipts.
+ */
+public final class StoreCategoryMemo {
+  private static final String KIND = "StoreCategories";
+  private static final long MAX_OBSERVATIONS = 100;
+
+  // Number of stores kept in memory, and how long they are kept before being read again from
+  // Datastore to pick up the receipts classified by other instances.
+  private static final long MAX_ENTRIES = Long.getLong("receiptAnalysis.storeMemoSize", 500);
+  private static final long EXPIRY_MINUTES = 10;
+  // Number of classified receipts a store needs before the API call can be skipped.
+  private static final long MIN_OBSERVATIONS =
+      Long.getLong("receiptAnalysis.storeMemoMinObservations", 5);
+  // Share of a store's receipts that must get a category for it to be memoized. Categories given
+  // to more than 1 - AGREEMENT but less than AGREEMENT of the receipts make the store uncertain.
+  private static final double AGREEMENT =
+      Double.parseDouble(System.getProperty("receiptAnalysis.storeMemoAgreement", "0.8"));
+  // Every this many lookups of a memoized store, the API is called anyway.
+  private static final int VERIFY_INTERVAL =
+      Math.max(1, Integer.getInteger("receiptAnalysis.storeMemoVerifyInterval", 20));
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(StoreCategoryMemo.class.getName());
+
+  /**
+   * Result of a lookup: the memoized categories of the store, or whether the API must be called to
+   * verify them.
+   */
+  public static final class Lookup {
+    private static final Lookup MISS = new Lookup(Optional.empty(), false);
+    private static final Lookup VERIFICATION_DUE = new Lookup(Optional.empty(), true);
+
+    private final Optional<ImmutableSet<String>> categories;
+    private final boolean verificationDue;
+
+    private Lookup(Optional<ImmutableSet<String>> categories, boolean verificationDue) {
+      this.categories = categories;
+      this.verificationDue = verificationDue;
+    }
+
+    /** Returns the memoized categories, or an empty Optional if the API should be called. */
+    public Optional<ImmutableSet<String>> getCategories() {
+      return categories;
+    }
+
+    /**
+     * Returns whether the store is memoized but its categories were skipped so that the API checks
+     * them. The API must then be called, rather than another categorizer.
+     */
+    public boolean isVerificationDue() {
+      return verificationDue;
+    }
+  }
+
+  private static final Cache<String, StoreCategories> memoryCache =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_ENTRIES)
+          .expireAfterWrite(EXPIRY_MINUTES, TimeUnit.MINUTES)
+          .build();
+  private static final AtomicLong hitCount = new AtomicLong();
+  private static final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * Prevents instantiation.
+   */
+  private StoreCategoryMemo() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the memoized categories of the store, or no categories if the API should be called.
+   * Reads Datastore, so it must be called from a request thread.
+   */
+  public static Lookup lookup(String store) {
+    StoreCategories storeCategories = load(FormatUtils.sanitize(store));
+    Optional<ImmutableSet<String>> categories = storeCategories.getConfidentCategories();
+
+    if (!categories.isPresent()) {
+      missCount.incrementAndGet();
+      return Lookup.MISS;
+    }
+    if (storeCategories.lookupCount.incrementAndGet() % VERIFY_INTERVAL == 0) {
+      missCount.incrementAndGet();
+      return Lookup.VERIFICATION_DUE;
+    }
+
+    hitCount.incrementAndGet();
+    return new Lookup(categories, false);
+  }
+
+  /**
+   * Records the categories the API gave a receipt of the store. Empty categories are ignored, since
+   * they mean that the classification failed. Writes to Datastore, so it must be called from a
+   * request thread.
+   */
+  public static void record(String store, ImmutableSet<String> categories) {
+    if (categories.isEmpty()) {
+      return;
+    }
+
+    String key = FormatUtils.sanitize(store);
+    DatastoreService datastore = getDatastore();
+    Transaction transaction = datastore.beginTransaction();
+
+    try {
+      StoreCategories storeCategories =
+          read(datastore, transaction, key).withObservation(categories);
+      datastore.put(transaction, storeCategories.toEntity(key));
+      transaction.commit();
+      memoryCache.put(key, storeCategories);
+    } catch (ConcurrentModificationException | DatastoreFailureException
+        | DatastoreTimeoutException e) {
+      // Losing an observation only delays memoization, so the upload does not need to fail.
+      logger.warning("Failed to record the categories of store " + key + ": " + e);
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /**
+   * Removes all stores from memory. Counts stored in Datastore are kept.
+   */
+  public static void clearMemory() {
+    memoryCache.invalidateAll();
+  }
+
+  public static long getHitCount() {
+    return hitCount.get();
+  }
+
+  public static long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Returns the share of lookups that skipped the API call, or 0 if there were no lookups.
+   */
+  public static double getHitRate() {
+    long hits = hitCount.get();
+    long lookups = hits + missCount.get();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  /**
+   * Returns the counts of the store from memory, reading them from Datastore if they are not in
+   * memory. Stores without counts are cached as well, so that they are not read again.
+   */
+  private static StoreCategories load(String key) {
+    StoreCategories storeCategories = memoryCache.getIfPresent(key);
+
+    if (storeCategories == null) {
+      try {
+        storeCategories = read(getDatastore(), null, key);
+      } catch (DatastoreFailureException | DatastoreTimeoutException e) {
+        logger.warning("Failed to read the categories of store " + key + ": " + e);
+        return StoreCategories.EMPTY;
+      }
+      memoryCache.put(key, storeCategories);
+    }
+
+    return storeCategories;
+  }
+
+  /** Reads the counts of the store from Datastore, in the transaction if it is not null. */
+  private static StoreCategories read(
+      DatastoreService datastore, Transaction transaction, String key) {
+    try {
+      return StoreCategories.fromEntity(
+          datastore.get(transaction, KeyFactory.createKey(KIND, key)));
+    } catch (EntityNotFoundException e) {
+      return StoreCategories.EMPTY;
+    }
+  }
+
+  private static DatastoreService getDatastore() {
+    return DatastoreServiceFactory.getDatastoreService();
+  }
+
+  /** Number of classified receipts of a store and how many of them got each category. */
+  private static final class StoreCategories {
+    private static final StoreCategories EMPTY = new StoreCategories(0, ImmutableMap.of());
+
+    private final long observations;
+    private final ImmutableMap<String, Long> categoryCounts;
+    // Number of lookups since this was loaded, used to call the API now and then.
+    private final AtomicInteger lookupCount = new AtomicInteger();
+
+    private StoreCategories(long observations, ImmutableMap<String, Long> categoryCounts) {
+      this.observations = observations;
+      this.categoryCounts = categoryCounts;
+    }
+
+    /**
+     * Returns the categories given to nearly all receipts of the store, if the store has enough
+     * receipts and no category was given to only some of them.
+     */
+    private Optional<ImmutableSet<String>> getConfidentCategories() {
+      if (observations < MIN_OBSERVATIONS) {
+        return Optional.empty();
+      }
+
+      ImmutableSet.Builder<String> categories = ImmutableSet.builder();
+      for (Map.Entry<String, Long> entry : categoryCounts.entrySet()) {
+        double share = (double) entry.getValue() / observations;
+        if (share >= AGREEMENT) {
+          categories.add(entry.getKey());
+        } else if (share > 1 - AGREEMENT) {
+          return Optional.empty();
+        }
+      }
+
+      ImmutableSet<String> confidentCategories = categories.build();
+      return confidentCategories.isEmpty() ? Optional.empty() : Optional.of(confidentCategories);
+    }
+
+    /** Returns the counts with another receipt that got the given categories. */
+    private StoreCategories withObservation(ImmutableSet<String> categories) {
+      long newObservations = observations + 1;
+      Map<String, Long> newCounts = new HashMap<>(categoryCounts);
+      for (String category : categories) {
+        newCounts.merge(category, 1L, Long::sum);
+      }
+
+      if (newObservations >= MAX_OBSERVATIONS) {
+        // Halve every count so that recent receipts weigh more, dropping categories that reach 0.
+        newObservations /= 2;
+        newCounts.replaceAll((category, count) -> count / 2);
+        newCounts.values().removeIf(count -> count == 0);
+      }
+
+      return new StoreCategories(newObservations, ImmutableMap.copyOf(newCounts));
+    }
+
+    private Entity toEntity(String key) {
+      Entity entity = new Entity(KIND, key);
+      entity.setUnindexedProperty("observations", observations);
+      entity.setUnindexedProperty("categories", new ArrayList<>(categoryCounts.keySet()));
+      entity.setUnindexedProperty("categoryCounts", new ArrayList<>(categoryCounts.values()));
+      return entity;
+    }
+
+    private static StoreCategories fromEntity(Entity entity) {
+      // The categories and their counts are stored as lists in the same order. Datastore stores
+      // empty lists as null.
+      List<String> categories = (List<String>) entity.getProperty("categories");
+      List<Long> counts = (List<Long>) entity.getProperty("categoryCounts");
+      ImmutableMap.Builder<String, Long> categoryCounts = ImmutableMap.builder();
+      if (categories != null && counts != null) {
+        for (int i = 0; i < Math.min(categories.size(), counts.size()); i++) {
+          categoryCounts.put(categories.get(i), counts.get(i));
+        }
+      }
+
+      return new StoreCategories((long) entity.getProperty("observations"), categoryCounts.build());
+    }
+  }
+}
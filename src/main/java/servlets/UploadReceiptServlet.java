@@ -24,12 +24,16 @@ import com.google.appengine.api.blobstore.UploadOptions.Builder;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
 import com.google.sps.data.AnalysisResults;
+import com.google.sps.data.ReceiptStatus;
 import com.google.sps.servlets.FormatUtils;
 import com.google.sps.servlets.FormatUtils.InvalidDateException;
 import com.google.sps.servlets.FormatUtils.InvalidPriceException;
@@ -51,7 +55,8 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet with a GET handler that creates a URL that uploads a receipt image to Blobstore and
- * a POST handler that extracts data from the image and inserts it into Datastore.
+ * a POST handler that extracts data from the image and inserts it into Datastore. In asynchronous
+ * mode, the POST handler stores a pending receipt and leaves the analysis to a task queue.
  */
 @WebServlet("/upload-receipt")
 public class UploadReceiptServlet extends HttpServlet {
@@ -61,12 +66,15 @@ public class UploadReceiptServlet extends HttpServlet {
   private static final String DEV_SERVER_BASE_URL = "http://0.0.0.0:80";
   // Matches JPEG image filenames.
   private static final Pattern validFilename = Pattern.compile("([^\\s]+(\\.(?i)(jpe?g))$)");
+  // Task queue that analyzes receipts uploaded in asynchronous mode, configured in queue.yaml.
+  private static final String ANALYSIS_QUEUE_NAME = "receipt-analysis";
 
   // Logs to System.err by default.
   private static final Logger logger = Logger.getLogger(UploadReceiptServlet.class.getName());
   private final BlobstoreService blobstoreService;
   private final BlobInfoFactory blobInfoFactory;
   private final DatastoreService datastore;
+  private final Queue analysisQueue;
   private final UserService userService = UserServiceFactory.getUserService();
   private final Clock clock;
 
@@ -74,14 +82,16 @@ public class UploadReceiptServlet extends HttpServlet {
     this.blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
     this.blobInfoFactory = new BlobInfoFactory();
     this.datastore = DatastoreServiceFactory.getDatastoreService();
+    this.analysisQueue = QueueFactory.getQueue(ANALYSIS_QUEUE_NAME);
     this.clock = Clock.systemDefaultZone();
   }
 
   public UploadReceiptServlet(BlobstoreService blobstoreService, BlobInfoFactory blobInfoFactory,
-      DatastoreService datastore, Clock clock) {
+      DatastoreService datastore, Queue analysisQueue, Clock clock) {
     this.blobstoreService = blobstoreService;
     this.blobInfoFactory = blobInfoFactory;
     this.datastore = datastore;
+    this.analysisQueue = analysisQueue;
     this.clock = clock;
   }
 
@@ -105,13 +115,18 @@ public class UploadReceiptServlet extends HttpServlet {
    * When the user submits the upload form, Blobstore processes the image and then forwards the
    * request to this servlet, which analyzes the receipt image and inserts information
    * about the receipt into Datastore. The JSON response contains the receipt that was added.
+   *
+   * <p>If the "async" parameter is true, a pending receipt is inserted and a task to analyze the
+   * image is queued. The response has status 202 and contains the pending receipt, whose progress
+   * can be followed with {@link ReceiptStatusServlet}.
    */
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    boolean isAsync = Boolean.parseBoolean(request.getParameter("async"));
     Entity receipt = null;
 
     try {
-      receipt = createReceiptEntity(request);
+      receipt = isAsync ? storePendingReceipt(request) : createReceiptEntity(request);
     } catch (FileNotSelectedException | InvalidFileException | InvalidPriceException
         | InvalidDateException e) {
       logger.warning(e.toString());
@@ -130,11 +145,31 @@ public class UploadReceiptServlet extends HttpServlet {
       return;
     }
 
-    // Store the receipt entity in Datastore.
-    datastore.put(receipt);
+    if (isAsync) {
+      // The pending receipt was already stored, and its analysis will finish in the background.
+      response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    } else {
+      // Store the receipt entity in Datastore.
+      long startNanos = System.nanoTime();
+      int putSpan = RequestTrace.startSpan("upload_put");
+      try {
+        datastore.put(receipt);
+      } finally {
+        RequestTrace.endSpan(putSpan);
+        Metrics.recordStage("upload_put", startNanos);
+      }
+      ReceiptIndexes.updateReceipt(receipt);
+      SearchResultsCache.invalidate((String) receipt.getProperty("userId"));
+    }
 
     // Convert the receipt to JSON.
-    String json = new Gson().toJson(receipt);
+    String json;
+    int jsonSpan = RequestTrace.startSpan("json");
+    try {
+      json = new Gson().toJson(receipt);
+    } finally {
+      RequestTrace.endSpan(jsonSpan);
+    }
 
     // Send the JSON as the response.
     response.setContentType("application/json;");
@@ -149,13 +184,7 @@ public class UploadReceiptServlet extends HttpServlet {
       throws FileNotSelectedException, InvalidFileException, UserNotLoggedInException,
              InvalidPriceException, InvalidDateException, ReceiptAnalysisException {
     BlobKey blobKey = getUploadedBlobKey(request, "receipt-image");
-
-    if (!userService.isUserLoggedIn()) {
-      blobstoreService.delete(blobKey);
-      throw new UserNotLoggedInException("User must be logged in to upload a receipt.");
-    }
-
-    String userId = userService.getCurrentUser().getUserId();
+    String userId = getUserId(blobKey);
 
     // Populate a receipt entity with the information extracted from the image with Cloud Vision.
     Entity receipt = analyzeReceiptImage(blobKey, request);
@@ -164,11 +193,86 @@ public class UploadReceiptServlet extends HttpServlet {
     return receipt;
   }
 
+  /**
+   * Stores and returns a receipt entity that only has the receipt image, the user, and a pending
+   * status, and queues the analysis of the image. The other fields are added once the image is
+   * analyzed by {@link ProcessReceiptServlet}.
+   */
+  private Entity storePendingReceipt(HttpServletRequest request)
+      throws FileNotSelectedException, InvalidFileException, UserNotLoggedInException {
+    BlobKey blobKey = getUploadedBlobKey(request, "receipt-image");
+    String userId = getUserId(blobKey);
+
+    Entity receipt = new Entity("Receipt");
+    receipt.setUnindexedProperty("imageUrl", getBlobServingUrl(blobKey));
+    receipt.setProperty("userId", userId);
+    receipt.setProperty("status", ReceiptStatus.PENDING.name());
+    storeAndQueueAnalysis(receipt, blobKey);
+
+    return receipt;
+  }
+
+  /**
+   * Returns the ID of the logged in user. If no user is logged in, the uploaded blob is deleted
+   * and an exception is thrown.
+   */
+  private String getUserId(BlobKey blobKey) throws UserNotLoggedInException {
+    int span = RequestTrace.startSpan("user_lookup");
+
+    try {
+      if (!userService.isUserLoggedIn()) {
+        blobstoreService.delete(blobKey);
+        throw new UserNotLoggedInException("User must be logged in to upload a receipt.");
+      }
+
+      return userService.getCurrentUser().getUserId();
+    } finally {
+      RequestTrace.endSpan(span);
+    }
+  }
+
+  /**
+   * Stores the pending receipt and adds a task that analyzes it to the task queue. Both happen in
+   * one transaction so that a receipt is never left pending without a task.
+   */
+  private void storeAndQueueAnalysis(Entity receipt, BlobKey blobKey) {
+    long startNanos = System.nanoTime();
+    int span = RequestTrace.startSpan("upload_queue");
+    Transaction transaction = datastore.beginTransaction();
+
+    try {
+      datastore.put(transaction, receipt);
+      TaskOptions task = TaskOptions.Builder.withUrl("/process-receipt")
+                             .param("id", Long.toString(receipt.getKey().getId()))
+                             .param("blob-key", blobKey.getKeyString());
+      analysisQueue.add(transaction, task);
+      transaction.commit();
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+      RequestTrace.endSpan(span);
+      Metrics.recordStage("upload_queue", startNanos);
+    }
+  }
+
   /**
    * Returns a blob key that points to the uploaded file.
    */
   private BlobKey getUploadedBlobKey(HttpServletRequest request, String formInputElementName)
       throws FileNotSelectedException, InvalidFileException {
+    int span = RequestTrace.startSpan("blob_info");
+
+    try {
+      return loadUploadedBlobKey(request, formInputElementName);
+    } finally {
+      RequestTrace.endSpan(span);
+    }
+  }
+
+  /** Finds the uploaded blob for {@link #getUploadedBlobKey}, which records it as a span. */
+  private BlobKey loadUploadedBlobKey(HttpServletRequest request, String formInputElementName)
+      throws FileNotSelectedException, InvalidFileException {
     Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
     List<BlobKey> blobKeys = blobs.get(formInputElementName);
 
@@ -232,36 +336,7 @@ public class UploadReceiptServlet extends HttpServlet {
     Entity receipt = new Entity("Receipt");
     receipt.setUnindexedProperty("imageUrl", imageUrl);
 
-    // Set the timestamp if a date was parsed.
-    results.getTransactionTimestamp().ifPresent(timestamp -> {
-      try {
-        FormatUtils.checkTimestampIsInPast(timestamp, clock);
-      } catch (InvalidDateException exception) {
-        // Don't add timestamp property if parsing is invalid.
-        return;
-      }
-
-      receipt.setProperty("timestamp", timestamp);
-    });
-
-    // Set the price if it was parsed.
-    results.getPrice().ifPresent(price -> {
-      try {
-        receipt.setProperty("price", FormatUtils.roundPrice(price));
-      } catch (InvalidPriceException exception) {
-        // Don't add price property if parsing is invalid
-        return;
-      }
-    });
-
-    // Text objects wrap around a string of unlimited size while strings are limited to 1500 bytes.
-    results.getRawText().ifPresent(
-        rawText -> receipt.setUnindexedProperty("rawText", new Text(rawText)));
-    receipt.setProperty(
-        "categories", FormatUtils.sanitizeCategories(results.getCategories().stream()));
-    // If a logo was detected, set the store name.
-    results.getStore().ifPresent(
-        store -> receipt.setProperty("store", FormatUtils.sanitize(store)));
+    FormatUtils.setAnalysisResults(receipt, results, clock);
 
     return receipt;
   }
@@ -0,0 +1,155 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.protobuf.ByteString;
+import com.google.sps.data.AnalysisResults;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory cache of receipt analysis results keyed by image URL. Results are reused without any
+ * request for a short time after they were fetched. After that, the image is fetched again with
+ * the ETag and Last-Modified validators of the cached response, and the results are reused if the
+ * server answers that the image has not changed.
+ *
+ * <p>Images that did change are analyzed again, which still skips the Cloud APIs when the new
+ * bytes are in {@link AnalysisResultsCache}.
+ */
+public class UrlResultsCache {
+  /** Analyzes fetched image bytes. */
+  public interface Analyzer {
+    AnalysisResults analyze(ByteString imageBytes) throws IOException;
+  }
+
+  /** Cached results and the validators of the response they were computed from. */
+  private static final class Entry {
+    private final AnalysisResults results;
+    private final Optional<String> eTag;
+    private final Optional<String> lastModified;
+    // System.nanoTime() value when the image was last fetched or confirmed unchanged.
+    private volatile long validatedNanos;
+
+    private Entry(AnalysisResults results, Optional<String> eTag, Optional<String> lastModified,
+        long validatedNanos) {
+      this.results = results;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+      this.validatedNanos = validatedNanos;
+    }
+
+    private boolean hasValidators() {
+      return eTag.isPresent() || lastModified.isPresent();
+    }
+  }
+
+  private final Cache<String, Entry> cache;
+  private final long ttlNanos;
+  private final LongSupplier nanoClock;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong revalidatedCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  /**
+   * @param maxEntries Number of URLs whose results are kept.
+   * @param ttlMillis How long results are reused before the image is fetched again. If zero, every
+   *     use fetches the image, conditionally when the cached response had validators.
+   * @param nanoClock Source of System.nanoTime() values, replaced in tests.
+   */
+  public UrlResultsCache(long maxEntries, long ttlMillis, LongSupplier nanoClock) {
+    this.cache = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMillis));
+    this.nanoClock = nanoClock;
+  }
+
+  /**
+   * Creates a cache configured with system properties.
+   */
+  public static UrlResultsCache fromSystemProperties() {
+    return new UrlResultsCache(Long.getLong("receiptAnalysis.urlCacheSize", 500),
+        Long.getLong("receiptAnalysis.urlCacheTtlMillis", 60_000), System::nanoTime);
+  }
+
+  /**
+   * Returns the analysis results of the image at the URL. Fresh cached results are returned
+   * without a request. Otherwise the image is fetched, conditionally if the cached response had
+   * validators, and analyzed if it changed. Only complete results are cached.
+   */
+  public AnalysisResults analyze(URL url, ImageFetcher fetcher, Analyzer analyzer)
+      throws IOException {
+    String key = url.toString();
+    Entry entry = cache.getIfPresent(key);
+    long now = nanoClock.getAsLong();
+
+    if (entry != null && now - entry.validatedNanos < ttlNanos) {
+      hitCount.incrementAndGet();
+      return entry.results;
+    }
+
+    ImageFetcher.Response response = entry != null && entry.hasValidators()
+        ? fetcher.fetch(url, entry.eTag, entry.lastModified)
+        : fetcher.fetch(url);
+
+    if (response.isNotModified()) {
+      if (entry == null) {
+        throw new IOException("Server sent 304 Not Modified for " + url + " without validators.");
+      }
+      entry.validatedNanos = now;
+      revalidatedCount.incrementAndGet();
+      return entry.results;
+    }
+
+    missCount.incrementAndGet();
+    AnalysisResults results = analyzer.analyze(response.getBytes());
+
+    if (results.isComplete()) {
+      cache.put(
+          key, new Entry(results, response.getETag(), response.getLastModified(), now));
+    } else {
+      // The image changed, so the cached results no longer describe it.
+      cache.invalidate(key);
+    }
+
+    return results;
+  }
+
+  /**
+   * Removes all cached results.
+   */
+  public void clear() {
+    cache.invalidateAll();
+  }
+
+  /** Returns the number of uses answered from the cache without a request. */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /** Returns the number of uses answered from the cache after the server said it was unchanged. */
+  public long getRevalidatedCount() {
+    return revalidatedCount.get();
+  }
+
+  /** Returns the number of uses that analyzed a fetched image. */
+  public long getMissCount() {
+    return missCount.get();
+  }
+}
@@ -0,0 +1,232 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Combines Cloud Vision requests made by concurrent uploads into a single batch request.
+ *
+ * <p>The first request to arrive opens a batch and waits for the batch window to pass or for the
+ * batch to fill up. Requests that arrive in the meantime join the open batch. The first request's
+ * thread then sends the whole batch and every caller receives the response at its own position.
+ * No background threads are needed, so this works within App Engine's request threads.
+ *
+ * <p>A batch is full once it holds the maximum number of images or the maximum number of image
+ * bytes. The batch is sent with the latest deadline of its callers, and an interrupt of the sending
+ * thread does not cancel the call, so one caller's request does not fail the images of the others.
+ * Every other caller waits for the response only until its own request's deadline.
+ */
+public class VisionBatcher {
+  // Cloud Vision accepts at most 16 images in one batch request.
+  public static final int MAX_BATCH_SIZE = 16;
+  // Cloud Vision rejects requests larger than about 10 MB, so batches stop short of that.
+  public static final int MAX_BATCH_BYTES = 8 * 1024 * 1024;
+
+  /** Sends a batch of image requests to Cloud Vision. */
+  public interface BatchAnnotator {
+    BatchAnnotateImagesResponse batchAnnotateImages(List<AnnotateImageRequest> requests)
+        throws IOException;
+  }
+
+  private final BatchAnnotator annotator;
+  private final long windowMillis;
+  private final int maxBatchSize;
+  private final int maxBatchBytes;
+  // The batch that new requests join, or null if there is none. Guarded by this.
+  private Batch openBatch;
+
+  /**
+   * @param windowMillis How long the first request of a batch waits for others to join. Batching
+   *     is disabled if this is zero.
+   * @param maxBatchSize Number of requests that closes a batch before the window has passed.
+   */
+  public VisionBatcher(BatchAnnotator annotator, long windowMillis, int maxBatchSize) {
+    this(annotator, windowMillis, maxBatchSize, MAX_BATCH_BYTES);
+  }
+
+  /**
+   * @param windowMillis How long the first request of a batch waits for others to join. Batching
+   *     is disabled if this is zero.
+   * @param maxBatchSize Number of requests that closes a batch before the window has passed.
+   * @param maxBatchBytes Total size of the requests in a batch. A request that would take a batch
+   *     past this size starts a new batch instead.
+   */
+  public VisionBatcher(
+      BatchAnnotator annotator, long windowMillis, int maxBatchSize, int maxBatchBytes) {
+    this.annotator = annotator;
+    this.windowMillis = Math.max(0, windowMillis);
+    this.maxBatchSize = Math.max(1, Math.min(maxBatchSize, MAX_BATCH_SIZE));
+    this.maxBatchBytes = Math.max(1, maxBatchBytes);
+  }
+
+  /**
+   * Annotates the image as part of a batch and returns its response. If Cloud Vision returned no
+   * response for the image, an empty response is returned.
+   */
+  public AnnotateImageResponse annotate(AnnotateImageRequest request) throws IOException {
+    if (windowMillis == 0 || maxBatchSize == 1) {
+      return getResponse(annotator.batchAnnotateImages(ImmutableList.of(request)), 0);
+    }
+
+    int requestBytes = request.getSerializedSize();
+    long deadlineNanos = CallDeadline.getDeadlineNanos();
+    Batch batch;
+    int index;
+    boolean isFirstRequest;
+
+    synchronized (this) {
+      if (openBatch != null && openBatch.bytes + requestBytes > maxBatchBytes) {
+        // The request does not fit, so the open batch is sent as it is.
+        openBatch.full.countDown();
+        openBatch = null;
+      }
+
+      isFirstRequest = openBatch == null;
+      if (isFirstRequest) {
+        openBatch = new Batch(deadlineNanos);
+      }
+
+      batch = openBatch;
+      index = batch.requests.size();
+      batch.requests.add(request);
+      batch.bytes += requestBytes;
+      batch.deadlineNanos = Math.max(batch.deadlineNanos, deadlineNanos);
+
+      if (batch.requests.size() == maxBatchSize || batch.bytes >= maxBatchBytes) {
+        openBatch = null;
+        batch.full.countDown();
+      }
+    }
+
+    if (isFirstRequest) {
+      sendWhenReady(batch);
+    }
+
+    return getResponse(batch.awaitResponse(deadlineNanos), index);
+  }
+
+  /**
+   * Waits for the batch window to pass or for the batch to fill up, then sends the batch with the
+   * latest deadline of its callers. The thread's interrupt status is cleared while the batch is
+   * sent, so that interrupting this caller does not cancel the call for the others.
+   */
+  private void sendWhenReady(Batch batch) {
+    boolean interrupted = false;
+    try {
+      batch.full.await(windowMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      // Send the batch right away instead of leaving the other callers waiting.
+      interrupted = true;
+    }
+
+    ImmutableList<AnnotateImageRequest> requests;
+    long deadlineNanos;
+    synchronized (this) {
+      if (openBatch == batch) {
+        openBatch = null;
+      }
+      requests = ImmutableList.copyOf(batch.requests);
+      deadlineNanos = batch.deadlineNanos;
+    }
+
+    interrupted |= Thread.interrupted();
+    try {
+      batch.response.complete(CallDeadline.callWithDeadline(
+          deadlineNanos, () -> annotator.batchAnnotateImages(requests)));
+    } catch (Throwable e) {
+      // Every caller is waiting on the response, so it must be completed whatever was thrown.
+      batch.response.completeExceptionally(e);
+      if (e instanceof Error) {
+        throw (Error) e;
+      }
+    } finally {
+      if (interrupted || Thread.interrupted()) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Returns the response at the given position in the batch, or an empty response if Cloud Vision
+   * returned fewer responses than requests.
+   */
+  private static AnnotateImageResponse getResponse(
+      BatchAnnotateImagesResponse batchResponse, int index) {
+    if (index >= batchResponse.getResponsesCount()) {
+      return AnnotateImageResponse.getDefaultInstance();
+    }
+
+    return batchResponse.getResponses(index);
+  }
+
+  /** Requests that are sent together and the response they share. */
+  private static class Batch {
+    private final List<AnnotateImageRequest> requests = new ArrayList<>();
+    private final CountDownLatch full = new CountDownLatch(1);
+    private final CompletableFuture<BatchAnnotateImagesResponse> response =
+        new CompletableFuture<>();
+    // Total serialized size of the requests. Guarded by the VisionBatcher.
+    private int bytes;
+    // Latest System.nanoTime() deadline of the callers. Guarded by the VisionBatcher.
+    private long deadlineNanos;
+
+    private Batch(long deadlineNanos) {
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Waits for the batch response until the given deadline of the caller. Exceptions thrown while
+     * sending the batch are rethrown to every caller in the batch.
+     */
+    private BatchAnnotateImagesResponse awaitResponse(long callerDeadlineNanos)
+        throws IOException {
+      try {
+        if (callerDeadlineNanos == CallDeadline.NO_DEADLINE) {
+          return response.get();
+        }
+        return response.get(callerDeadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (TimeoutException e) {
+        throw new IOException("Request ran out of time waiting for the image batch.", e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for the image batch.", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+  }
+}
@@ -95,6 +95,7 @@ function appendQueryInformation(params) {
   params.append('store', document.getElementById('store-name-input').value);
   params.append('min', document.getElementById('min-price-input').value);
   params.append('max', document.getElementById('max-price-input').value);
+  params.append('text', document.getElementById('text-input').value);
   const dateTimeFormat = new Intl.DateTimeFormat();
   params.append('timeZoneId', dateTimeFormat.resolvedOptions().timeZone);
 }
@@ -111,7 +112,7 @@ async function searchReceipts(params) {
   encodedCursor = info.encodedCursor;
 
   clearExistingDisplay();
-  displayReceipts(receipts);
+  displayReceipts(receipts, info.scanLimitReached);
   document.body.style.cursor = 'default';
 }
 
@@ -129,11 +130,18 @@ function clearExistingDisplay() {
 /**
  * Populates receipt display with newly queried receipts.
  * @param {JSON Object} receipts Receipts returned from search query.
+ * @param {boolean} scanLimitReached Whether the search stopped reading
+ *     receipts before it ran out of them.
  */
-function displayReceipts(receipts) {
+function displayReceipts(receipts, scanLimitReached) {
   // If no receipts returned, display an error message. Else, display receipts.
-  if (Object.keys(receipts).length == 0) {
-    createErrorMessageElement();
+  if (Object.keys(receipts).length == 0 && scanLimitReached) {
+    createErrorMessageElement(
+        'No matches in the receipts searched so far. ' +
+        'Go to the next page to keep searching.');
+  } else if (Object.keys(receipts).length == 0) {
+    createErrorMessageElement(
+        'Sorry, no results found. Please try again or refine your search.');
   } else {
     receipts.forEach((receipt) => {
       createReceiptCardElement(receipt);
@@ -141,15 +149,17 @@ function displayReceipts(receipts) {
   }
 }
 
-/** Creates error message based on existing HTML template. */
-function createErrorMessageElement() {
+/**
+ * Creates error message based on existing HTML template.
+ * @param {string} message Text of the error message.
+ */
+function createErrorMessageElement(message) {
   // Clone error message from template.
   const errorMessageClone =
       document.querySelector('#error-message-template').content.cloneNode(true);
 
   // Fill in template fields with correct information.
-  errorMessageClone.querySelector('h3').innerText =
-      'Sorry, no results found. Please try again or refine your search.';
+  errorMessageClone.querySelector('h3').innerText = message;
 
   // Attach error message clone to parent div.
   document.getElementById('receipts-display').appendChild(errorMessageClone);
@@ -238,13 +248,8 @@ function attachEditButtonEventListener(receipt, receiptCardClone) {
     const params = new URLSearchParams();
     params.append('show-edit-text', true);
     params.append('id', receipt.id);
-    params.append('categories', receipt.categories);
-    params.append('image-url', receipt.imageUrl);
-    params.append('price', receipt.price);
-    params.append('store', receipt.store);
-    params.append('timestamp', receipt.timestamp);
 
-    // Redirect to the receipt analysis page.
+    // Redirect to the receipt analysis page, which loads the receipt by ID.
     window.location.href = `/receipt-analysis.html?${params.toString()}`;
   });
 }
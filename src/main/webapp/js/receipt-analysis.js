@@ -14,6 +14,10 @@
 
 /* global capitalizeFirstLetters */
 
+// The receipt as last saved, which the form is compared against to find
+// unsaved changes.
+let savedReceipt = null;
+
 /**
  * Loads the page if the user is logged in. Otherwise, redirects to the
  * login page.
@@ -24,8 +28,12 @@ function load() {
 }
 
 /** Fetches receipt properties from the server and adds them to the page. */
-function loadReceiptAnalysis() {
-  const receipt = getReceiptFromQueryString();
+async function loadReceiptAnalysis() {
+  const receipt = await getReceipt();
+  if (!receipt) {
+    return;
+  }
+  savedReceipt = receipt;
 
   // Set the value and max value of the date input field.
   const dateInput = document.getElementById('date-input');
@@ -53,6 +61,38 @@ function loadReceiptAnalysis() {
   document.getElementById('receipt-image').src = receipt.imageUrl;
 }
 
+/**
+ * Gets the receipt to show. A receipt opened for editing from the home page is
+ * loaded from the server by ID, since search results leave out some of its
+ * fields. If it cannot be loaded, the user is sent back to the home page.
+ * Other receipts are passed in the query string.
+ * @return {?object} The receipt, or null if it could not be loaded.
+ */
+async function getReceipt() {
+  const parameters = new URLSearchParams(location.search);
+  if (!parameters.get('show-edit-text') || parameters.has('image-url')) {
+    return getReceiptFromQueryString();
+  }
+
+  const response =
+      await fetch(`/receipt-details?id=${parameters.get('id')}`);
+  if (!response.ok) {
+    alert('The receipt could not be loaded. Please try again.');
+    window.location.href = '/';
+    return null;
+  }
+
+  const receipt = await response.json();
+  return {
+    showEditText: true,
+    date: getDateFromTimestamp(receipt.timestamp),
+    storeName: receipt.store ? capitalizeFirstLetters(receipt.store) : null,
+    price: receipt.price,
+    categories: formatCategories(receipt.categories.join(',')),
+    imageUrl: receipt.imageUrl,
+  };
+}
+
 /**
  * Extracts the receipt properties from the query string.
  * @return {object} The extracted receipt.
@@ -274,7 +314,10 @@ function redirectHomeIfComplete() {
  * @return {boolean} Whether the form data matches the stored receipt.
  */
 function isFormSaved() {
-  const savedReceipt = getReceiptFromQueryString();
+  if (!savedReceipt) {
+    return false;
+  }
+
   const formReceipt = getReceiptFromForm();
 
   return savedReceipt.date === getDateFromTimestamp(formReceipt.date) &&
@@ -288,8 +331,6 @@ function isFormSaved() {
  * @return {boolean} Whether all fields have been set.
  */
 function isReceiptComplete() {
-  const savedReceipt = getReceiptFromQueryString();
-
-  return savedReceipt.date && savedReceipt.storeName && savedReceipt.price &&
-      savedReceipt.categories;
+  return savedReceipt && savedReceipt.date && savedReceipt.storeName &&
+      savedReceipt.price && savedReceipt.categories;
 }
@@ -40,42 +40,114 @@ async function uploadReceipt(event) {
   const image = fileInput.files[0];
   const formData = new FormData();
   formData.append('receipt-image', image);
+  // Analyze the receipt in the background so the upload returns right away.
+  formData.append('async', 'true');
 
   const response = await fetch(uploadUrl, {method: 'POST', body: formData});
 
-  // Restore the cursor after the upload request has loaded.
-  document.body.style.cursor = 'default';
-
   // Create an alert and re-enable the submit button and file input if there is
   // an error.
-  if (response.status !== 200) {
-    const submitButton = document.getElementById('submit-receipt');
-    submitButton.innerText = 'Error!';
-
-    // Stop the loading animation.
-    document.getElementById('loading').classList.add('hidden');
-    clearInterval(loadingIntervalId);
-
-    // Delay the alert so the above changes can render first.
-    const error = await response.text();
-    setTimeout(() => {
-      alert(error);
-
-      // Restore the file input and submit button.
-      fileInput.disabled = false;
-      submitButton.disabled = false;
-      submitButton.innerText = 'Add Receipt';
-    }, 10);
+  if (response.status !== 200 && response.status !== 202) {
+    showUploadError(await response.text(), loadingIntervalId);
     return;
   }
 
-  const json = (await response.json());
+  let json = (await response.json());
+
+  // Wait for the analysis of a receipt that was accepted for processing.
+  if (response.status === 202) {
+    json = await pollReceiptStatus(json.key.id);
+    if (json === null) {
+      showUploadError(
+          'Receipt analysis is taking too long. Please check your receipts ' +
+              'later or try again.',
+          loadingIntervalId);
+      return;
+    }
+    if (json.propertyMap.status === 'FAILED') {
+      showUploadError(
+          'Receipt analysis failed. Please try again.', loadingIntervalId);
+      return;
+    }
+  }
+
+  // Restore the cursor after the receipt has been analyzed.
+  document.body.style.cursor = 'default';
+
   const params = setUrlParameters(json);
 
   // Redirect to the receipt analysis page.
   window.location.href = `/receipt-analysis.html?${params.toString()}`;
 }
 
+/**
+ * Polls the status of a receipt until its analysis has finished. The wait
+ * between requests doubles up to a maximum, and polling stops after a while or
+ * once the server says the receipt cannot be read.
+ * @param {number} id The ID of the receipt.
+ * @return {?object} The JSON receipt once its analysis is done or has failed,
+ *     or null if its status could not be read in time.
+ */
+async function pollReceiptStatus(id) {
+  const INITIAL_POLL_INTERVAL_MS = 1000;
+  const MAX_POLL_INTERVAL_MS = 8000;
+  const MAX_WAIT_MS = 2 * 60 * 1000;
+
+  const deadline = Date.now() + MAX_WAIT_MS;
+  let pollInterval = INITIAL_POLL_INTERVAL_MS;
+
+  while (Date.now() + pollInterval <= deadline) {
+    await new Promise((resolve) => setTimeout(resolve, pollInterval));
+    pollInterval = Math.min(2 * pollInterval, MAX_POLL_INTERVAL_MS);
+
+    const response = await fetch(`/receipt-status?id=${id}`);
+    if (response.status === 403 || response.status === 404) {
+      // Asking again will not change the answer.
+      return null;
+    }
+    if (response.status !== 200) {
+      continue;
+    }
+
+    const json = await response.json();
+    const status = json.propertyMap.status;
+    if (status !== 'PENDING' && status !== 'ANALYZING') {
+      return json;
+    }
+  }
+
+  return null;
+}
+
+/**
+ * Stops the loading animation, alerts the user of the error, and re-enables the
+ * submit button and file input.
+ * @param {string} error The error message to display.
+ * @param {number} loadingIntervalId The ID of the loading animation timer.
+ */
+function showUploadError(error, loadingIntervalId) {
+  // Restore the cursor after the upload request has loaded.
+  document.body.style.cursor = 'default';
+
+  const submitButton = document.getElementById('submit-receipt');
+  submitButton.innerText = 'Error!';
+
+  // Stop the loading animation.
+  document.getElementById('loading').classList.add('hidden');
+  clearInterval(loadingIntervalId);
+
+  // Delay the alert so the above changes can render first.
+  setTimeout(() => {
+    alert(error);
+
+    // Restore the file input and submit button.
+    const fileInput = document.getElementById('receipt-image-input');
+    fileInput.disabled = false;
+    submitButton.disabled = false;
+    submitButton.innerText = 'Add Receipt';
+  }, 10);
+}
+
 /**
  * Gets a Blobstore upload URL for uploading a receipt image.
  * @return {string} A Blobstore upload URL.
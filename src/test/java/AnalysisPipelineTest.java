@@ -0,0 +1,119 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.AnalysisPipeline;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AnalysisPipelineTest {
+  private ExecutorService executor;
+  private AnalysisPipeline pipeline;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+    pipeline = new AnalysisPipeline(executor);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void then_stagesWithSameDependency_runConcurrently() throws IOException {
+    // Each dependent stage waits for the other, so they only finish if they run at the same time.
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    CompletableFuture<String> text = pipeline.start("text", () -> "receipt");
+    CompletableFuture<Boolean> first =
+        pipeline.then("first", text, input -> awaitOther(bothStarted), false);
+    CompletableFuture<Boolean> second =
+        pipeline.then("second", text, input -> awaitOther(bothStarted), false);
+
+    Assert.assertTrue(AnalysisPipeline.await(first));
+    Assert.assertTrue(AnalysisPipeline.await(second));
+  }
+
+  @Test
+  public void then_passesDependencyOutput() throws IOException {
+    CompletableFuture<String> text = pipeline.start("text", () -> "receipt");
+    CompletableFuture<Integer> length = pipeline.then("length", text, String::length, 0);
+
+    Assert.assertEquals(Integer.valueOf(7), AnalysisPipeline.await(length));
+  }
+
+  @Test
+  public void then_stageFails_returnsFallbackWithoutAffectingOtherStages() throws IOException {
+    CompletableFuture<String> text = pipeline.start("text", () -> "receipt");
+    CompletableFuture<Integer> failed = pipeline.then("failed", text, input -> {
+      throw new IOException("Stage failed.");
+    }, -1);
+    CompletableFuture<Integer> length = pipeline.then("length", text, String::length, 0);
+
+    Assert.assertEquals(Integer.valueOf(-1), AnalysisPipeline.await(failed));
+    Assert.assertEquals(Integer.valueOf(7), AnalysisPipeline.await(length));
+  }
+
+  @Test
+  public void then_dependencyFails_returnsFallback() throws IOException {
+    CompletableFuture<String> text = pipeline.start("text", () -> {
+      throw new IOException("Text stage failed.");
+    });
+    CompletableFuture<Integer> length = pipeline.then("length", text, String::length, 0);
+
+    Assert.assertEquals(Integer.valueOf(0), AnalysisPipeline.await(length));
+  }
+
+  @Test(expected = IOException.class)
+  public void await_requiredStageFails_rethrowsException() throws IOException {
+    CompletableFuture<String> text = pipeline.start("text", () -> {
+      throw new IOException("Text stage failed.");
+    });
+
+    AnalysisPipeline.await(text);
+  }
+
+  @Test
+  public void getStageMillis_recordsEveryFinishedStage() throws IOException {
+    CompletableFuture<String> text = pipeline.start("text", () -> {
+      Thread.sleep(20);
+      return "receipt";
+    });
+    CompletableFuture<Integer> length = pipeline.then("length", text, String::length, 0);
+    AnalysisPipeline.await(length);
+
+    Assert.assertEquals(ImmutableSet.of("text", "length"), pipeline.getStageMillis().keySet());
+    Assert.assertTrue(pipeline.getStageMillis().get("text") >= 20);
+  }
+
+  /** Counts down the latch and waits for another stage to count it down too. */
+  private static boolean awaitOther(CountDownLatch latch) throws InterruptedException {
+    latch.countDown();
+    return latch.await(5, TimeUnit.SECONDS);
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.servlets.AnalysisResultsCache;
+import java.util.Optional;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AnalysisResultsCacheTest {
+  private static final ByteString IMAGE_BYTES = ByteString.copyFromUtf8("image bytes");
+  private static final ByteString OTHER_IMAGE_BYTES = ByteString.copyFromUtf8("other image bytes");
+
+  private static final String RAW_TEXT = "raw text";
+  private static final ImmutableSet<String> CATEGORIES = ImmutableSet.of("food", "drink");
+  private static final String STORE = "walmart";
+  private static final long TIMESTAMP = 1045237591000L;
+  private static final double PRICE = 26.12;
+  private static final AnalysisResults ANALYSIS_RESULTS =
+      new AnalysisResults.Builder()
+          .setRawText(RAW_TEXT)
+          .setCategories(CATEGORIES)
+          .setStore(STORE)
+          .setTransactionTimestamp(TIMESTAMP)
+          .setPrice(PRICE)
+          .build();
+
+  // Uses local Datastore.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    AnalysisResultsCache.clearMemory();
+    helper.tearDown();
+  }
+
+  @Test
+  public void getKey_sameBytes_returnsSameKey() {
+    Assert.assertEquals(AnalysisResultsCache.getKey(IMAGE_BYTES),
+        AnalysisResultsCache.getKey(ByteString.copyFromUtf8("image bytes")));
+  }
+
+  @Test
+  public void getKey_differentBytes_returnsDifferentKeys() {
+    Assert.assertNotEquals(
+        AnalysisResultsCache.getKey(IMAGE_BYTES), AnalysisResultsCache.getKey(OTHER_IMAGE_BYTES));
+  }
+
+  @Test
+  public void get_missingKey_returnsEmptyAndCountsMiss() {
+    long misses = AnalysisResultsCache.getMissCount();
+
+    Optional<AnalysisResults> results =
+        AnalysisResultsCache.get(AnalysisResultsCache.getKey(IMAGE_BYTES));
+
+    Assert.assertEquals(Optional.empty(), results);
+    Assert.assertEquals(misses + 1, AnalysisResultsCache.getMissCount());
+  }
+
+  @Test
+  public void get_afterPut_returnsResultsFromMemory() {
+    String key = AnalysisResultsCache.getKey(IMAGE_BYTES);
+    long memoryHits = AnalysisResultsCache.getMemoryHitCount();
+
+    AnalysisResultsCache.put(key, ANALYSIS_RESULTS);
+    Optional<AnalysisResults> results = AnalysisResultsCache.get(key);
+
+    Assert.assertTrue(results.isPresent());
+    assertResultsEqual(ANALYSIS_RESULTS, results.get());
+    Assert.assertEquals(memoryHits + 1, AnalysisResultsCache.getMemoryHitCount());
+  }
+
+  @Test
+  public void get_afterMemoryCleared_returnsResultsFromDatastore() {
+    String key = AnalysisResultsCache.getKey(IMAGE_BYTES);
+    long datastoreHits = AnalysisResultsCache.getDatastoreHitCount();
+
+    AnalysisResultsCache.put(key, ANALYSIS_RESULTS);
+    AnalysisResultsCache.clearMemory();
+    Optional<AnalysisResults> results = AnalysisResultsCache.get(key);
+
+    Assert.assertTrue(results.isPresent());
+    assertResultsEqual(ANALYSIS_RESULTS, results.get());
+    Assert.assertEquals(datastoreHits + 1, AnalysisResultsCache.getDatastoreHitCount());
+  }
+
+  @Test
+  public void get_resultsWithoutOptionalFields_returnsEmptyFields() {
+    String key = AnalysisResultsCache.getKey(IMAGE_BYTES);
+    AnalysisResults partialResults = new AnalysisResults.Builder().setRawText(RAW_TEXT).build();
+
+    AnalysisResultsCache.put(key, partialResults);
+    AnalysisResultsCache.clearMemory();
+    AnalysisResults results = AnalysisResultsCache.get(key).get();
+
+    assertResultsEqual(partialResults, results);
+  }
+
+  private void assertResultsEqual(AnalysisResults expected, AnalysisResults actual) {
+    Assert.assertEquals(expected.getRawText(), actual.getRawText());
+    Assert.assertEquals(expected.getCategories(), actual.getCategories());
+    Assert.assertEquals(expected.getStore(), actual.getStore());
+    Assert.assertEquals(expected.getTransactionTimestamp(), actual.getTransactionTimestamp());
+    Assert.assertEquals(expected.getPrice(), actual.getPrice());
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.servlets.CircuitBreaker;
+import com.google.sps.servlets.CircuitBreaker.State;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class CircuitBreakerTest {
+  private static final long OPEN_MILLIS = 1000;
+
+  private long nowNanos;
+  private CircuitBreaker breaker;
+
+  @Before
+  public void setUp() {
+    // Opens when half of the last 10 calls failed, once at least 4 calls were made.
+    breaker = new CircuitBreaker("API", 10, 4, 0.5, OPEN_MILLIS, () -> nowNanos);
+  }
+
+  @Test
+  public void onFailure_belowMinimumCalls_staysClosed() {
+    recordCalls(0, 3);
+
+    Assert.assertEquals(State.CLOSED, breaker.getState());
+    Assert.assertTrue(breaker.tryAcquirePermission());
+  }
+
+  @Test
+  public void onFailure_failureRateReached_opensAndRejectsCalls() {
+    recordCalls(2, 2);
+
+    Assert.assertEquals(State.OPEN, breaker.getState());
+    Assert.assertFalse(breaker.tryAcquirePermission());
+    Assert.assertEquals(1, breaker.getRejectedCount());
+  }
+
+  @Test
+  public void onFailure_oldFailureLeftWindow_staysClosed() {
+    recordCalls(0, 1);
+    recordCalls(10, 0);
+    // The window now holds 6 successes and 4 failures, below the failure rate.
+    recordCalls(0, 4);
+
+    Assert.assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void tryAcquirePermission_afterOpenPeriod_allowsOneTrialCall() {
+    recordCalls(0, 4);
+    advanceMillis(OPEN_MILLIS);
+
+    Assert.assertTrue(breaker.tryAcquirePermission());
+    Assert.assertEquals(State.HALF_OPEN, breaker.getState());
+    Assert.assertFalse(breaker.tryAcquirePermission());
+  }
+
+  @Test
+  public void onSuccess_trialCall_closesBreaker() {
+    recordCalls(0, 4);
+    advanceMillis(OPEN_MILLIS);
+    breaker.tryAcquirePermission();
+
+    breaker.onSuccess();
+
+    Assert.assertEquals(State.CLOSED, breaker.getState());
+    // The failures that opened the breaker are forgotten.
+    recordCalls(0, 3);
+    Assert.assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void onFailure_trialCall_reopensBreaker() {
+    recordCalls(0, 4);
+    advanceMillis(OPEN_MILLIS);
+    breaker.tryAcquirePermission();
+
+    breaker.onFailure();
+
+    Assert.assertEquals(State.OPEN, breaker.getState());
+    advanceMillis(OPEN_MILLIS - 1);
+    Assert.assertFalse(breaker.tryAcquirePermission());
+  }
+
+  @Test
+  public void onIgnored_trialCall_allowsAnotherTrialCall() {
+    recordCalls(0, 4);
+    advanceMillis(OPEN_MILLIS);
+    breaker.tryAcquirePermission();
+
+    breaker.onIgnored();
+
+    Assert.assertTrue(breaker.tryAcquirePermission());
+  }
+
+  /** Records the given numbers of successful and then failed calls. */
+  private void recordCalls(int successes, int failures) {
+    for (int i = 0; i < successes; i++) {
+      breaker.tryAcquirePermission();
+      breaker.onSuccess();
+    }
+    for (int i = 0; i < failures; i++) {
+      breaker.tryAcquirePermission();
+      breaker.onFailure();
+    }
+  }
+
+  private void advanceMillis(long millis) {
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.servlets.DateExtractor;
+import com.google.sps.servlets.DateExtractor.ExtractedDate;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class DateExtractorTest {
+  private static final LocalDate DATE = LocalDate.of(2020, 5, 8);
+  private static final Instant NOW = Instant.parse("2020-06-22T10:15:30Z");
+
+  private DateExtractor extractor;
+
+  @Before
+  public void setUp() {
+    extractor = new DateExtractor(Clock.fixed(NOW, ZoneOffset.UTC));
+  }
+
+  @Test
+  public void extract_usDates() {
+    assertDate(DATE, "Date: 05/08/2020");
+    assertDate(DATE, "the date is 5-8-20");
+    assertDate(DATE, "05-08-2020.");
+  }
+
+  @Test
+  public void extract_isoAndYearFirstDates() {
+    assertDate(DATE, "2020-05-08");
+    assertDate(DATE, "printed 2020/5/8 at the register");
+  }
+
+  @Test
+  public void extract_dayFirstDatesWithPeriods() {
+    assertDate(DATE, "Datum 08.05.2020");
+    assertDate(DATE, "8.5.20");
+  }
+
+  @Test
+  public void extract_monthNames() {
+    assertDate(DATE, "May 8, 2020");
+    assertDate(LocalDate.of(2020, 9, 8), "SEPT. 8th 2020");
+    assertDate(DATE, "8 May 2020");
+    assertDate(DATE, "08-MAY-20");
+    assertDate(LocalDate.of(2019, 12, 24), "December 24 2019");
+  }
+
+  @Test
+  public void extract_returnsTimeAfterDate() {
+    Assert.assertEquals(Optional.of(LocalTime.of(14, 30)), getTime("05/08/2020 14:30"));
+    Assert.assertEquals(Optional.of(LocalTime.of(20, 14)), getTime("05/08/2020 8:14 PM"));
+    Assert.assertEquals(Optional.of(LocalTime.of(0, 5, 9)), getTime("05/08/2020 12:05:09am"));
+    Assert.assertEquals(Optional.of(LocalTime.of(10, 15, 30)), getTime("2020-05-08T10:15:30"));
+    Assert.assertEquals(Optional.empty(), getTime("05/08/2020 25:30"));
+    Assert.assertEquals(Optional.empty(), getTime("05/08/2020"));
+  }
+
+  @Test
+  public void extract_twoDigitYearInFuture_usesPreviousCentury() {
+    assertDate(LocalDate.of(1999, 5, 8), "05-08-99");
+    assertDate(LocalDate.of(2020, 6, 22), "06/22/20");
+    assertDate(LocalDate.of(1920, 6, 23), "06/23/20");
+  }
+
+  @Test
+  public void extract_invalidDate_usesNextValidDate() {
+    assertDate(DATE, "13/45/2020 then 05/08/2020");
+    assertDate(LocalDate.of(2020, 2, 29), "2/30/20 2/29/20");
+  }
+
+  @Test
+  public void extract_numbersThatAreNotDates_returnsEmpty() {
+    Assert.assertEquals(Optional.empty(), extractor.extract("Total $12.77"));
+    Assert.assertEquals(Optional.empty(), extractor.extract("Phone 650-965-1512"));
+    Assert.assertEquals(Optional.empty(), extractor.extract("Card 1234/05/08/2020"));
+    Assert.assertEquals(Optional.empty(), extractor.extract("Version 1.05.2020.5"));
+    Assert.assertEquals(Optional.empty(), extractor.extract("2/29/21 05/08/2020x"));
+    Assert.assertEquals(Optional.empty(), extractor.extract(""));
+  }
+
+  @Test
+  public void extractTimestamp_returnsStartOfDayInUtc() {
+    long expected = DATE.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+
+    Assert.assertEquals(
+        Optional.of(expected), extractor.extractTimestamp("May 8, 2020 11:59 PM"));
+  }
+
+  private void assertDate(LocalDate expected, String text) {
+    Optional<ExtractedDate> extracted = extractor.extract(text);
+
+    Assert.assertTrue(text, extracted.isPresent());
+    Assert.assertEquals(text, expected, extracted.get().getDate());
+  }
+
+  private Optional<LocalTime> getTime(String text) {
+    return extractor.extract(text).flatMap(ExtractedDate::getTime);
+  }
+}
@@ -0,0 +1,185 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.cloud.language.v1.ClassifyTextRequest;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.servlets.AnalysisBackends;
+import com.google.sps.servlets.AnalysisResultsCache;
+import com.google.sps.servlets.FakeAnalysisBackend;
+import com.google.sps.servlets.FakeAnalysisBackend.LatencyDistribution;
+import com.google.sps.servlets.LocalCategorizer;
+import com.google.sps.servlets.ReceiptAnalysis;
+import com.google.sps.servlets.StoreCategoryMemo;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class FakeAnalysisBackendTest {
+  private static final AnnotateImageRequest IMAGE_REQUEST =
+      AnnotateImageRequest.getDefaultInstance();
+  private static final ClassifyTextRequest TEXT_REQUEST = ClassifyTextRequest.getDefaultInstance();
+  private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  // Uses local Datastore for the analysis results cache.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty("receiptAnalysis.backend");
+    AnalysisBackends.close();
+    AnalysisResultsCache.clearMemory();
+    StoreCategoryMemo.clearMemory();
+    LocalCategorizer.clear();
+    helper.tearDown();
+  }
+
+  @Test
+  public void batchAnnotateImages_returnsResponseForEveryRequest() throws IOException {
+    FakeAnalysisBackend backend = createBackend(LatencyDistribution.FIXED, 0, 0, 0);
+
+    BatchAnnotateImagesResponse response =
+        backend.batchAnnotateImages(ImmutableList.of(IMAGE_REQUEST, IMAGE_REQUEST), TIMEOUT);
+
+    Assert.assertEquals(2, response.getResponsesCount());
+    Assert.assertEquals(FakeAnalysisBackend.RECEIPT_TEXT,
+        response.getResponses(1).getTextAnnotations(0).getDescription());
+  }
+
+  @Test
+  public void classifyText_fixedLatency_waitsForLatency() throws IOException {
+    FakeAnalysisBackend backend = createBackend(LatencyDistribution.FIXED, 50, 0, 0);
+
+    long start = System.nanoTime();
+    backend.classifyText(TEXT_REQUEST, TIMEOUT);
+
+    Assert.assertTrue((System.nanoTime() - start) / 1_000_000 >= 50);
+  }
+
+  @Test
+  public void classifyText_errorRateOne_throwsUnavailable() throws IOException {
+    FakeAnalysisBackend backend = createBackend(LatencyDistribution.FIXED, 0, 0, 1);
+
+    try {
+      backend.classifyText(TEXT_REQUEST, TIMEOUT);
+      Assert.fail("Expected a simulated failure.");
+    } catch (ApiException e) {
+      Assert.assertEquals(StatusCode.Code.UNAVAILABLE, e.getStatusCode().getCode());
+    }
+  }
+
+  @Test
+  public void classifyText_latencyAboveTimeout_throwsDeadlineExceeded() throws IOException {
+    FakeAnalysisBackend backend = createBackend(LatencyDistribution.FIXED, 10_000, 0, 0);
+
+    long start = System.nanoTime();
+    try {
+      backend.classifyText(TEXT_REQUEST, Duration.ofMillis(20));
+      Assert.fail("Expected the simulated request to time out.");
+    } catch (ApiException e) {
+      Assert.assertEquals(StatusCode.Code.DEADLINE_EXCEEDED, e.getStatusCode().getCode());
+    }
+
+    Assert.assertTrue((System.nanoTime() - start) / 1_000_000 < 5_000);
+  }
+
+  @Test
+  public void sampleLatencyMillis_normal_centersOnLatency() {
+    FakeAnalysisBackend backend = createBackend(LatencyDistribution.NORMAL, 100, 10, 0);
+
+    double mean = Arrays.stream(sampleLatencies(backend, 10000)).average().getAsDouble();
+
+    Assert.assertEquals(100, mean, 1);
+  }
+
+  @Test
+  public void sampleLatencyMillis_longTail_hasSlowTail() {
+    FakeAnalysisBackend backend = createBackend(LatencyDistribution.LONG_TAIL, 100, 1, 0);
+
+    long[] latencies = sampleLatencies(backend, 10000);
+    Arrays.sort(latencies);
+
+    // The median stays at the latency while the 99th percentile is about ten times slower.
+    Assert.assertEquals(100, latencies[5000], 5);
+    Assert.assertTrue(latencies[9900] > 500);
+  }
+
+  @Test
+  public void analyzeImageAt_fakeBackend_analyzesWithoutNetwork() throws IOException {
+    System.setProperty("receiptAnalysis.backend", "fake");
+    System.setProperty("receiptAnalysis.fake.latencyMillis", "0");
+    AnalysisBackends.close();
+    File image = folder.newFile("receipt.jpg");
+    Files.write(image.toPath(), "image bytes".getBytes(StandardCharsets.UTF_8));
+
+    try {
+      AnalysisResults results = ReceiptAnalysis.analyzeImageAt(image.toURI().toURL());
+
+      Assert.assertEquals(Optional.of(FakeAnalysisBackend.RECEIPT_TEXT), results.getRawText());
+      Assert.assertEquals(ImmutableSet.of("Food", "Drink", "Groceries"), results.getCategories());
+      Assert.assertEquals(Optional.of(FakeAnalysisBackend.STORE), results.getStore());
+      Assert.assertEquals(Optional.of(8.39), results.getPrice());
+      Assert.assertEquals(Optional.of(Instant.parse("2020-05-08T00:00:00Z").toEpochMilli()),
+          results.getTransactionTimestamp());
+    } finally {
+      System.clearProperty("receiptAnalysis.fake.latencyMillis");
+    }
+  }
+
+  private static FakeAnalysisBackend createBackend(
+      LatencyDistribution distribution, long latencyMillis, double spread, double errorRate) {
+    Random random = new Random(1);
+    return new FakeAnalysisBackend(distribution, latencyMillis, spread, errorRate, () -> random);
+  }
+
+  private static long[] sampleLatencies(FakeAnalysisBackend backend, int count) {
+    long[] latencies = new long[count];
+    for (int i = 0; i < count; i++) {
+      latencies[i] = backend.sampleLatencyMillis();
+    }
+    return latencies;
+  }
+}
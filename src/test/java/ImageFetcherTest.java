@@ -0,0 +1,127 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.protobuf.ByteString;
+import com.google.sps.servlets.ImageFetcher;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class ImageFetcherTest {
+  private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  private static final int READ_TIMEOUT_MILLIS = 2000;
+  private static final int MAX_BYTES = 16;
+  private static final byte[] IMAGE = "image bytes".getBytes();
+  private static final String ETAG = "\"abc\"";
+  private static final String LAST_MODIFIED = "Mon, 22 Jun 2020 10:15:30 GMT";
+
+  private HttpURLConnection connection;
+  private URL url;
+  private ImageFetcher fetcher;
+
+  @Before
+  public void setUp() throws IOException {
+    connection = mock(HttpURLConnection.class);
+    // Every URL opened through this handler returns the mock connection.
+    URLStreamHandler handler = new URLStreamHandler() {
+      @Override
+      protected URLConnection openConnection(URL url) {
+        return connection;
+      }
+    };
+    url = new URL(null, "https://example.com/receipt.jpg", handler);
+    fetcher = new ImageFetcher(CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS, MAX_BYTES);
+  }
+
+  @Test
+  public void fetch_returnsImageAndValidators() throws IOException {
+    stubResponse(HttpURLConnection.HTTP_OK, IMAGE, -1);
+    when(connection.getHeaderField("ETag")).thenReturn(ETAG);
+    when(connection.getHeaderField("Last-Modified")).thenReturn(LAST_MODIFIED);
+
+    ImageFetcher.Response response = fetcher.fetch(url);
+
+    Assert.assertFalse(response.isNotModified());
+    Assert.assertEquals(ByteString.copyFrom(IMAGE), response.getBytes());
+    Assert.assertEquals(Optional.of(ETAG), response.getETag());
+    Assert.assertEquals(Optional.of(LAST_MODIFIED), response.getLastModified());
+    verify(connection).setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    verify(connection).setReadTimeout(READ_TIMEOUT_MILLIS);
+    // The connection is returned to the keep-alive pool rather than closed.
+    verify(connection, never()).disconnect();
+  }
+
+  @Test
+  public void fetch_withValidators_sendsConditionalRequest() throws IOException {
+    stubResponse(HttpURLConnection.HTTP_NOT_MODIFIED, new byte[0], 0);
+
+    ImageFetcher.Response response =
+        fetcher.fetch(url, Optional.of(ETAG), Optional.of(LAST_MODIFIED));
+
+    Assert.assertTrue(response.isNotModified());
+    verify(connection).setRequestProperty("If-None-Match", ETAG);
+    verify(connection).setRequestProperty("If-Modified-Since", LAST_MODIFIED);
+  }
+
+  @Test(expected = IOException.class)
+  public void fetch_announcedLengthOverLimit_throwsException() throws IOException {
+    stubResponse(HttpURLConnection.HTTP_OK, IMAGE, MAX_BYTES + 1);
+
+    fetcher.fetch(url);
+  }
+
+  @Test
+  public void fetch_bodyOverLimit_throwsExceptionAndClosesConnection() throws IOException {
+    // The server announces no length, so the cap is only found while reading.
+    stubResponse(HttpURLConnection.HTTP_OK, new byte[MAX_BYTES + 1], -1);
+
+    try {
+      fetcher.fetch(url);
+      Assert.fail("Expected an IOException.");
+    } catch (IOException e) {
+      verify(connection).disconnect();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void fetch_errorStatus_throwsException() throws IOException {
+    when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_NOT_FOUND);
+    when(connection.getErrorStream()).thenReturn(new ByteArrayInputStream("Not found".getBytes()));
+
+    fetcher.fetch(url);
+  }
+
+  private void stubResponse(int status, byte[] body, long contentLength) throws IOException {
+    when(connection.getResponseCode()).thenReturn(status);
+    when(connection.getInputStream()).thenReturn(new ByteArrayInputStream(body));
+    when(connection.getContentLengthLong()).thenReturn(contentLength);
+  }
+}
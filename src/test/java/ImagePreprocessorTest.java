@@ -0,0 +1,169 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.protobuf.ByteString;
+import com.google.sps.servlets.ImagePreprocessor;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class ImagePreprocessorTest {
+  private static final float JPEG_QUALITY = 0.85f;
+
+  @Test
+  public void process_largeImage_downscalesToMaxEdge() throws IOException {
+    ByteString original = createJpeg(3000, 1200);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(1000, false, JPEG_QUALITY);
+
+    ByteString processed = preprocessor.process(original);
+
+    BufferedImage image = decode(processed);
+    Assert.assertEquals(1000, image.getWidth());
+    Assert.assertEquals(400, image.getHeight());
+    Assert.assertTrue(processed.size() < original.size());
+  }
+
+  @Test
+  public void process_imageJustUnderTwiceMaxEdge_downscalesToMaxEdge() throws IOException {
+    // Subsampling by 2 keeps 1000 of the 1999 columns, so the image is still scaled to size.
+    ByteString original = createJpeg(1999, 800);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(1000, false, JPEG_QUALITY);
+
+    BufferedImage image = decode(preprocessor.process(original));
+
+    Assert.assertEquals(1000, image.getWidth());
+    Assert.assertEquals(400, image.getHeight());
+  }
+
+  @Test
+  public void process_phonePhoto_decodesSubsampled() throws IOException {
+    // Subsampling by 2 leaves the photo slightly shorter than the maximum edge, which is kept
+    // rather than scaled up, instead of decoding the photo at full size.
+    ByteString original = createJpeg(4032, 3024);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(2048, false, JPEG_QUALITY);
+
+    BufferedImage image = decode(preprocessor.process(original));
+
+    Assert.assertEquals(2016, image.getWidth());
+    Assert.assertEquals(1512, image.getHeight());
+  }
+
+  @Test
+  public void process_grayscale_removesColor() throws IOException {
+    ByteString original = createJpeg(3000, 1200);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(1000, true, JPEG_QUALITY);
+
+    BufferedImage image = decode(preprocessor.process(original));
+
+    Assert.assertEquals(1, image.getColorModel().getNumColorComponents());
+  }
+
+  @Test
+  public void process_smallImage_returnsOriginal() throws IOException {
+    ByteString original = createJpeg(800, 600);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(1000, false, JPEG_QUALITY);
+
+    Assert.assertSame(original, preprocessor.process(original));
+  }
+
+  @Test
+  public void process_resizingDisabled_returnsOriginal() throws IOException {
+    ByteString original = createJpeg(3000, 1200);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(0, false, JPEG_QUALITY);
+
+    Assert.assertSame(original, preprocessor.process(original));
+  }
+
+  @Test
+  public void process_notAnImage_returnsOriginal() {
+    ByteString original = ByteString.copyFromUtf8("not an image");
+    ImagePreprocessor preprocessor = new ImagePreprocessor(1000, true, JPEG_QUALITY);
+
+    Assert.assertSame(original, preprocessor.process(original));
+  }
+
+  @Test
+  public void process_exifOrientation_turnsImageUpright() throws IOException {
+    // The left quarter of the stored image is black, so it is at the top once turned clockwise.
+    BufferedImage stored = new BufferedImage(3000, 1200, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = stored.createGraphics();
+    graphics.setColor(Color.WHITE);
+    graphics.fillRect(750, 0, 2250, 1200);
+    graphics.dispose();
+    ByteString original = withExifOrientation(encode(stored), 6);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(1000, false, JPEG_QUALITY);
+
+    BufferedImage image = decode(preprocessor.process(original));
+
+    Assert.assertEquals(400, image.getWidth());
+    Assert.assertEquals(1000, image.getHeight());
+    Assert.assertTrue(isDark(image.getRGB(200, 100)));
+    Assert.assertFalse(isDark(image.getRGB(200, 900)));
+  }
+
+  /** Creates a JPEG of the given size with noisy content, like a photo of a receipt. */
+  private static ByteString createJpeg(int width, int height) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = image.createGraphics();
+    Random random = new Random(1);
+    for (int i = 0; i < 2000; i++) {
+      graphics.setColor(new Color(random.nextInt(0xFFFFFF)));
+      graphics.fillRect(random.nextInt(width), random.nextInt(height), 40, 20);
+    }
+    graphics.dispose();
+
+    return encode(image);
+  }
+
+  private static ByteString encode(BufferedImage image) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", output);
+    return ByteString.copyFrom(output.toByteArray());
+  }
+
+  /**
+   * Inserts an Exif APP1 segment with the orientation right after the start of the JPEG. Its TIFF
+   * structure is big-endian with a single directory entry.
+   */
+  private static ByteString withExifOrientation(ByteString jpeg, int orientation) {
+    byte[] segment = {
+        (byte) 0xFF, (byte) 0xE1, 0, 34, // APP1 marker and length.
+        'E', 'x', 'i', 'f', 0, 0,
+        'M', 'M', 0, 42, 0, 0, 0, 8, // TIFF header and offset of the first directory.
+        0, 1, // Entry count.
+        0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0, // Orientation, one short.
+        0, 0, 0, 0 // No next directory.
+    };
+    return jpeg.substring(0, 2).concat(ByteString.copyFrom(segment)).concat(jpeg.substring(2));
+  }
+
+  private static boolean isDark(int rgb) {
+    return (rgb & 0xFF) < 64;
+  }
+
+  private static BufferedImage decode(ByteString imageBytes) throws IOException {
+    return ImageIO.read(imageBytes.newInput());
+  }
+}
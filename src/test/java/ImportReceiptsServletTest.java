@@ -0,0 +1,406 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.UploadOptions;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TransientFailureException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.data.ReceiptStatus;
+import com.google.sps.servlets.CallDeadline;
+import com.google.sps.servlets.ImportReceiptsServlet;
+import com.google.sps.servlets.ReceiptAnalysis;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@PowerMockIgnore("jdk.internal.reflect.*")
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(ReceiptAnalysis.class)
+public final class ImportReceiptsServletTest {
+  private static final String INSTANT = "2020-06-22T10:15:30Z";
+  private static final long PAST_TIMESTAMP =
+      Instant.parse(INSTANT).minusMillis(1234).toEpochMilli();
+
+  private static final long MAX_UPLOAD_SIZE_BYTES = 10 * 1024 * 1024;
+  private static final String UPLOAD_URL = "/blobstore/import-receipts";
+  private static final String VALID_FILENAME = "image.jpg";
+  private static final String INVALID_FILENAME = "image.png";
+  private static final String CONTENT_TYPE = "image/jpeg";
+  private static final long IMAGE_SIZE_1MB = 1024 * 1024;
+  private static final String HASH = "35454B055CC325EA1AF2126E27707052";
+
+  private static final AnalysisResults ANALYSIS_RESULTS =
+      new AnalysisResults.Builder()
+          .setRawText("raw text")
+          .setCategories(ImmutableSet.of("burger", "fast food"))
+          .setTransactionTimestamp(PAST_TIMESTAMP)
+          .setPrice(5.89)
+          .setStore("mcdonald's")
+          .build();
+
+  private static final String DOMAIN_NAME = "gmail.com";
+  private static final String USER_EMAIL = "test@gmail.com";
+  private static final String USER_ID = "testID";
+
+  // Uses local Datastore.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalUserServiceTestConfig())
+          .setEnvEmail(USER_EMAIL)
+          .setEnvAuthDomain(DOMAIN_NAME)
+          .setEnvAttributes(new HashMap(
+              ImmutableMap.of("com.google.appengine.api.users.UserService.user_id_key", USER_ID)));
+
+  @Mock private BlobstoreService blobstoreService;
+  @Mock private Queue analysisQueue;
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+
+  private ImportReceiptsServlet servlet;
+  private DatastoreService datastore;
+  private StringWriter stringWriter;
+  private PrintWriter writer;
+  // Upload information of the blobs returned by the mocked Blobstore.
+  private List<BlobInfo> uploadedBlobInfos;
+
+  @Before
+  public void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    helper.setUp();
+    helper.setEnvIsLoggedIn(true);
+    datastore = DatastoreServiceFactory.getDatastoreService();
+
+    stringWriter = new StringWriter();
+    writer = new PrintWriter(stringWriter);
+    when(response.getWriter()).thenReturn(writer);
+
+    Clock clock = Clock.fixed(Instant.parse(INSTANT), ZoneId.systemDefault());
+    servlet = new ImportReceiptsServlet(blobstoreService, datastore, analysisQueue, clock);
+    mockStatic(ReceiptAnalysis.class);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void doGet_returnsBlobstoreUploadUrl() throws IOException {
+    UploadOptions uploadOptions =
+        UploadOptions.Builder.withMaxUploadSizeBytesPerBlob(MAX_UPLOAD_SIZE_BYTES);
+    when(blobstoreService.createUploadUrl("/import-receipts", uploadOptions))
+        .thenReturn(UPLOAD_URL);
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Assert.assertTrue(stringWriter.toString().contains(UPLOAD_URL));
+  }
+
+  @Test
+  public void doPost_analyzesAndStoresEveryImage() throws IOException {
+    List<BlobKey> blobKeys = createMockBlobs(45, VALID_FILENAME);
+    for (BlobKey blobKey : blobKeys) {
+      when(ReceiptAnalysis.analyzeImageAtOrThrow(blobKey)).thenReturn(ANALYSIS_RESULTS);
+    }
+
+    servlet.doPost(request, response);
+
+    List<Entity> receipts = getReceipts();
+    Assert.assertEquals(45, receipts.size());
+    for (Entity receipt : receipts) {
+      Assert.assertEquals(USER_ID, receipt.getProperty("userId"));
+      Assert.assertEquals(5.89, receipt.getProperty("price"));
+      Assert.assertFalse(receipt.hasProperty("status"));
+    }
+
+    List<JsonObject> lines = getResponseLines();
+    Assert.assertEquals(45, lines.size());
+    for (JsonObject line : lines) {
+      Assert.assertEquals("DONE", line.get("status").getAsString());
+      Assert.assertTrue(line.has("id"));
+      Assert.assertTrue(line.has("receipt"));
+    }
+    verify(response).setContentType("application/x-ndjson");
+  }
+
+  @Test
+  public void doPost_invalidAndFailedImages_reportsThemAndDeletesBlobs() throws IOException {
+    List<BlobKey> blobKeys = createMockBlobs(3, VALID_FILENAME);
+    BlobKey invalidKey = blobKeys.get(0);
+    BlobKey failedKey = blobKeys.get(1);
+    BlobKey validKey = blobKeys.get(2);
+    stubBlobInfo(invalidKey, INVALID_FILENAME, IMAGE_SIZE_1MB);
+    when(ReceiptAnalysis.analyzeImageAtOrThrow(failedKey)).thenThrow(new IOException("failed"));
+    when(ReceiptAnalysis.analyzeImageAtOrThrow(validKey)).thenReturn(ANALYSIS_RESULTS);
+
+    servlet.doPost(request, response);
+
+    Map<Integer, String> statuses = new HashMap<>();
+    for (JsonObject line : getResponseLines()) {
+      statuses.put(line.get("index").getAsInt(), line.get("status").getAsString());
+    }
+    Assert.assertEquals(ImmutableMap.of(0, "INVALID", 1, "FAILED", 2, "DONE"), statuses);
+    Assert.assertEquals(1, getReceipts().size());
+    verify(blobstoreService).delete(invalidKey);
+    verify(blobstoreService).delete(failedKey);
+    verify(blobstoreService, never()).delete(validKey);
+  }
+
+  @Test
+  public void doPost_storingBatchFails_reportsFailuresAndDeletesBlobs() throws IOException {
+    List<BlobKey> blobKeys = createMockBlobs(2, VALID_FILENAME);
+    when(ReceiptAnalysis.analyzeImageAtOrThrow(any(BlobKey.class))).thenReturn(ANALYSIS_RESULTS);
+    DatastoreService failingDatastore = mock(DatastoreService.class);
+    when(failingDatastore.put(anyListOf(Entity.class)))
+        .thenThrow(new DatastoreFailureException("unavailable"));
+    servlet = new ImportReceiptsServlet(blobstoreService, failingDatastore, analysisQueue,
+        Clock.fixed(Instant.parse(INSTANT), ZoneId.systemDefault()));
+
+    servlet.doPost(request, response);
+
+    List<JsonObject> lines = getResponseLines();
+    Assert.assertEquals(2, lines.size());
+    for (JsonObject line : lines) {
+      Assert.assertEquals("FAILED", line.get("status").getAsString());
+    }
+    for (BlobKey blobKey : blobKeys) {
+      verify(blobstoreService).delete(blobKey);
+    }
+  }
+
+  @Test
+  public void doPost_notEnoughTimeLeft_queuesPendingReceipts() throws Exception {
+    List<BlobKey> blobKeys = createMockBlobs(2, VALID_FILENAME);
+
+    // Runs the request with less time left than the import keeps in reserve.
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    CallDeadline.callWithDeadline(deadlineNanos, () -> {
+      servlet.doPost(request, response);
+      return null;
+    });
+
+    List<Entity> receipts = getReceipts();
+    Assert.assertEquals(2, receipts.size());
+    for (Entity receipt : receipts) {
+      Assert.assertEquals(ReceiptStatus.PENDING.name(), receipt.getProperty("status"));
+    }
+    for (JsonObject line : getResponseLines()) {
+      Assert.assertEquals("PENDING", line.get("status").getAsString());
+    }
+    // Every pending receipt is queued with one call.
+    verify(analysisQueue).add(anyListOf(TaskOptions.class));
+    PowerMockito.verifyStatic(ReceiptAnalysis.class, never());
+    ReceiptAnalysis.analyzeImageAtOrThrow(any(BlobKey.class));
+  }
+
+  @Test
+  public void doPost_queueingFails_deletesPendingReceiptsAndBlobs() throws Exception {
+    List<BlobKey> blobKeys = createMockBlobs(2, VALID_FILENAME);
+    when(analysisQueue.add(anyListOf(TaskOptions.class)))
+        .thenThrow(new TransientFailureException("unavailable"));
+
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    CallDeadline.callWithDeadline(deadlineNanos, () -> {
+      servlet.doPost(request, response);
+      return null;
+    });
+
+    Assert.assertTrue(getReceipts().isEmpty());
+    for (JsonObject line : getResponseLines()) {
+      Assert.assertEquals("FAILED", line.get("status").getAsString());
+    }
+    for (BlobKey blobKey : blobKeys) {
+      verify(blobstoreService).delete(blobKey);
+    }
+  }
+
+  @Test
+  public void doPost_interruptedWithAnalysesInFlight_reportsEveryImage() throws Exception {
+    List<BlobKey> blobKeys = createMockBlobs(6, VALID_FILENAME);
+    // Each analysis blocks until it is stopped, and the request thread is interrupted once the
+    // first four images are being analyzed.
+    Thread requestThread = Thread.currentThread();
+    CountDownLatch started = new CountDownLatch(4);
+    CountDownLatch never = new CountDownLatch(1);
+    when(ReceiptAnalysis.analyzeImageAtOrThrow(any(BlobKey.class))).thenAnswer(invocation -> {
+      started.countDown();
+      if (started.getCount() == 0) {
+        requestThread.interrupt();
+      }
+      try {
+        never.await();
+      } catch (InterruptedException e) {
+        throw new IOException("Analysis was stopped.", e);
+      }
+      return ANALYSIS_RESULTS;
+    });
+
+    try {
+      servlet.doPost(request, response);
+      Assert.fail("Expected the import to fail.");
+    } catch (IOException expected) {
+      // The interrupted import reports what it finished before failing.
+    }
+    Assert.assertTrue(Thread.interrupted());
+
+    Map<Integer, String> statuses = new HashMap<>();
+    for (JsonObject line : getResponseLines()) {
+      statuses.put(line.get("index").getAsInt(), line.get("status").getAsString());
+    }
+    Map<Integer, String> expectedStatuses = ImmutableMap.<Integer, String>builder()
+                                                .put(0, "FAILED")
+                                                .put(1, "FAILED")
+                                                .put(2, "FAILED")
+                                                .put(3, "FAILED")
+                                                .put(4, "PENDING")
+                                                .put(5, "PENDING")
+                                                .build();
+    Assert.assertEquals(expectedStatuses, statuses);
+    for (BlobKey blobKey : blobKeys.subList(0, 4)) {
+      verify(blobstoreService, atLeastOnce()).delete(blobKey);
+    }
+    for (BlobKey blobKey : blobKeys.subList(4, 6)) {
+      verify(blobstoreService, never()).delete(blobKey);
+    }
+    // Only the images that were not started are stored, as pending receipts.
+    List<Entity> receipts = getReceipts();
+    Assert.assertEquals(2, receipts.size());
+    for (Entity receipt : receipts) {
+      Assert.assertEquals(ReceiptStatus.PENDING.name(), receipt.getProperty("status"));
+    }
+    verify(analysisQueue).add(anyListOf(TaskOptions.class));
+  }
+
+  @Test
+  public void doPost_userNotLoggedIn_deletesBlobs() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+    List<BlobKey> blobKeys = createMockBlobs(2, VALID_FILENAME);
+
+    servlet.doPost(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    for (BlobKey blobKey : blobKeys) {
+      verify(blobstoreService).delete(blobKey);
+    }
+    Assert.assertTrue(getReceipts().isEmpty());
+  }
+
+  @Test
+  public void doPost_noFiles_returnsBadRequest() throws IOException {
+    when(blobstoreService.getBlobInfos(request)).thenReturn(new HashMap<>());
+
+    servlet.doPost(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  /**
+   * Adds the given number of mock blobs with the given filename to the upload of the mocked
+   * Blobstore.
+   */
+  private List<BlobKey> createMockBlobs(int count, String filename) {
+    List<BlobKey> blobKeys = new ArrayList<>();
+    uploadedBlobInfos = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      BlobKey blobKey = new BlobKey("blobKey" + i);
+      uploadedBlobInfos.add(createBlobInfo(blobKey, filename, IMAGE_SIZE_1MB));
+      blobKeys.add(blobKey);
+    }
+
+    Map<String, List<BlobInfo>> blobs = new HashMap<>();
+    blobs.put("receipt-images", uploadedBlobInfos);
+    when(blobstoreService.getBlobInfos(request)).thenReturn(blobs);
+    return blobKeys;
+  }
+
+  /** Replaces the upload information of a blob added by createMockBlobs. */
+  private void stubBlobInfo(BlobKey blobKey, String filename, long size) {
+    for (int i = 0; i < uploadedBlobInfos.size(); i++) {
+      if (uploadedBlobInfos.get(i).getBlobKey().equals(blobKey)) {
+        uploadedBlobInfos.set(i, createBlobInfo(blobKey, filename, size));
+      }
+    }
+  }
+
+  private static BlobInfo createBlobInfo(BlobKey blobKey, String filename, long size) {
+    return new BlobInfo(blobKey, CONTENT_TYPE, new Date(), filename, size, HASH, null);
+  }
+
+  private List<Entity> getReceipts() {
+    return datastore.prepare(new Query("Receipt")).asList(FetchOptions.Builder.withDefaults());
+  }
+
+  private List<JsonObject> getResponseLines() {
+    writer.flush();
+    List<JsonObject> lines = new ArrayList<>();
+    for (String line : stringWriter.toString().split("\n")) {
+      if (!line.isEmpty()) {
+        lines.add(JsonParser.parseString(line).getAsJsonObject());
+      }
+    }
+    return lines;
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.servlets.LatencyHistogram;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class LatencyHistogramTest {
+  @Test
+  public void snapshot_empty_returnsZero() {
+    LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+
+    Assert.assertEquals(0, snapshot.getCount());
+    Assert.assertEquals(0, snapshot.getSumNanos());
+    Assert.assertEquals(0, snapshot.getQuantileNanos(0.5));
+  }
+
+  @Test
+  public void getQuantileNanos_estimatesWithinBucketError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    // Records 1 ms through 1000 ms, so the exact quantiles are 500, 900 and 990 ms.
+    for (int millis = 1; millis <= 1000; millis++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+    Assert.assertEquals(1000, snapshot.getCount());
+    Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(500500), snapshot.getSumNanos());
+    assertWithinQuarter(TimeUnit.MILLISECONDS.toNanos(500), snapshot.getQuantileNanos(0.5));
+    assertWithinQuarter(TimeUnit.MILLISECONDS.toNanos(900), snapshot.getQuantileNanos(0.9));
+    assertWithinQuarter(TimeUnit.MILLISECONDS.toNanos(990), snapshot.getQuantileNanos(0.99));
+  }
+
+  @Test
+  public void getQuantileNanos_neverExceedsMax() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1_100_000);
+    histogram.record(TimeUnit.MINUTES.toNanos(10));
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+    Assert.assertEquals(TimeUnit.MINUTES.toNanos(10), snapshot.getMaxNanos());
+    Assert.assertEquals(TimeUnit.MINUTES.toNanos(10), snapshot.getQuantileNanos(1));
+    Assert.assertTrue(snapshot.getQuantileNanos(0.5) <= 1_100_000 * 5 / 4);
+  }
+
+  @Test
+  public void record_negativeAndTinyValues_areCountedInFirstBucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(10);
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+
+    Assert.assertEquals(2, snapshot.getCount());
+    Assert.assertEquals(10, snapshot.getSumNanos());
+    Assert.assertTrue(snapshot.getQuantileNanos(0.99) <= 10);
+  }
+
+  @Test
+  public void record_concurrently_countsEveryValue() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    for (int thread = 0; thread < 4; thread++) {
+      executor.execute(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          histogram.record(i * 1_000L);
+        }
+      });
+    }
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    Assert.assertEquals(40_000, histogram.snapshot().getCount());
+  }
+
+  private static void assertWithinQuarter(long expected, long actual) {
+    Assert.assertTrue(expected + " != " + actual, Math.abs(actual - expected) <= expected / 4);
+  }
+}
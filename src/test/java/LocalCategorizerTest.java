@@ -0,0 +1,261 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TransientFailureException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.LocalCategorizer;
+import com.google.sps.servlets.NaiveBayesClassifier;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class LocalCategorizerTest {
+  private static final String GROCERY_TEXT = "WALMART bananas milk bread eggs TOTAL $8.39";
+  private static final String PHARMACY_TEXT = "CVS pharmacy prescription vitamins RX";
+  private static final ImmutableSet<String> GROCERIES = ImmutableSet.of("food", "groceries");
+  private static final ImmutableSet<String> PHARMACY = ImmutableSet.of("health", "pharmacy");
+  // Default number of receipts the categorizer must learn before it is used.
+  private static final int MIN_RECEIPTS = 50;
+  // Default number of confident classifications after which the API is called anyway.
+  private static final int VERIFY_INTERVAL = 20;
+
+  // Uses local Datastore.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  // Queue that save tasks are added to, and the number of its tasks that have been run.
+  private Queue queue;
+  private int savedTaskCount;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    queue = mock(Queue.class);
+  }
+
+  @After
+  public void tearDown() {
+    LocalCategorizer.clear();
+    helper.tearDown();
+  }
+
+  @Test
+  public void classify_tooFewReceipts_returnsEmpty() {
+    learnReceipts(MIN_RECEIPTS / 2 - 1);
+
+    Assert.assertEquals(Optional.empty(), LocalCategorizer.classify(GROCERY_TEXT));
+  }
+
+  @Test
+  public void classify_enoughReceipts_returnsConfidentCategories() {
+    learnReceipts(MIN_RECEIPTS / 2);
+    long hits = LocalCategorizer.getHitCount();
+
+    Assert.assertEquals(Optional.of(PHARMACY), LocalCategorizer.classify("vitamins prescription"));
+    Assert.assertEquals(hits + 1, LocalCategorizer.getHitCount());
+  }
+
+  @Test
+  public void classify_wrongConfidentCategories_areCorrectedByVerification() {
+    learnReceipts(MIN_RECEIPTS / 2);
+    // Mostly grocery words, but the API categorizes the receipt as a pharmacy receipt.
+    String text = "bananas milk bread vitamins";
+    Assert.assertEquals(Optional.of(GROCERIES), LocalCategorizer.classify(text));
+
+    // Like an upload, the API is called whenever the categorizer does not answer, and the
+    // categorizer learns its categories.
+    Optional<ImmutableSet<String>> categories = Optional.empty();
+    int apiCalls = 0;
+    for (int i = 0; i < 10 * VERIFY_INTERVAL && !categories.equals(Optional.of(PHARMACY)); i++) {
+      categories = LocalCategorizer.classify(text);
+      if (!categories.isPresent()) {
+        apiCalls++;
+        LocalCategorizer.learn(text, PHARMACY, queue);
+      }
+    }
+
+    Assert.assertEquals(Optional.of(PHARMACY), categories);
+    Assert.assertTrue(apiCalls > 0);
+  }
+
+  @Test
+  public void classify_singleSetOfCategories_returnsEmpty() {
+    for (int i = 0; i < MIN_RECEIPTS; i++) {
+      LocalCategorizer.learn(GROCERY_TEXT, GROCERIES, queue);
+    }
+
+    Assert.assertEquals(Optional.empty(), LocalCategorizer.classify(GROCERY_TEXT));
+  }
+
+  @Test
+  public void learn_unsanitizedCategories_learnsSanitizedCategories() {
+    for (int i = 0; i < MIN_RECEIPTS / 2; i++) {
+      LocalCategorizer.learn(GROCERY_TEXT, ImmutableSet.of("Food", "Groceries"), queue);
+      LocalCategorizer.learn(PHARMACY_TEXT, ImmutableSet.of("Health", "Pharmacy"), queue);
+    }
+
+    Assert.assertEquals(Optional.of(GROCERIES), LocalCategorizer.classify("bananas and milk"));
+  }
+
+  @Test
+  public void learn_enoughReceipts_queuesSaveForNewInstances() throws IOException {
+    // The categorizer is saved every 50 receipts.
+    learnReceipts(MIN_RECEIPTS / 2, queue);
+    runSaveTasks(1);
+    LocalCategorizer.clear();
+
+    Assert.assertEquals(Optional.of(GROCERIES), LocalCategorizer.classify("bananas and milk"));
+  }
+
+  @Test
+  public void learn_queueingSaveFails_savesReceiptsWithNextOnes() throws IOException {
+    Queue failingQueue = mock(Queue.class);
+    when(failingQueue.add(any(TaskOptions.class)))
+        .thenThrow(new TransientFailureException("unavailable"));
+    learnReceipts(MIN_RECEIPTS / 2, failingQueue);
+
+    learnReceipts(MIN_RECEIPTS / 2, queue);
+    runSaveTasks(1);
+
+    Assert.assertEquals(2 * MIN_RECEIPTS, getSavedReceiptCount());
+  }
+
+  @Test
+  public void warmUp_nothingSaved_queuesTraining() {
+    LocalCategorizer.warmUp(queue);
+
+    ArgumentCaptor<TaskOptions> task = ArgumentCaptor.forClass(TaskOptions.class);
+    verify(queue).add(task.capture());
+    Assert.assertEquals("/train-categorizer", task.getValue().getUrl());
+    Assert.assertEquals(Optional.empty(), LocalCategorizer.classify(GROCERY_TEXT));
+  }
+
+  @Test
+  public void learn_classifierSavedByAnotherInstance_mergesReceipts() throws IOException {
+    // Another instance saves its receipts after this instance loaded the saved classifier.
+    learnReceipts(MIN_RECEIPTS / 2, queue);
+    runSaveTasks(1);
+    LocalCategorizer.clear();
+    LocalCategorizer.classify(GROCERY_TEXT);
+    LocalCategorizer.saveLearned(createLearned(MIN_RECEIPTS).toBytes());
+
+    learnReceipts(MIN_RECEIPTS / 2, queue);
+    runSaveTasks(2);
+
+    Assert.assertEquals(3L, getSavedClassifier().getProperty("version"));
+    Assert.assertEquals(3 * MIN_RECEIPTS, getSavedReceiptCount());
+  }
+
+  @Test
+  public void train_nothingSaved_trainsOnStoredReceipts() throws IOException {
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    for (int i = 0; i < MIN_RECEIPTS / 2; i++) {
+      datastore.put(createReceipt(GROCERY_TEXT, GROCERIES));
+      datastore.put(createReceipt(PHARMACY_TEXT, PHARMACY));
+    }
+    // Receipts without text, such as ones that are still being analyzed, are skipped.
+    datastore.put(new Entity("Receipt"));
+
+    LocalCategorizer.train();
+    LocalCategorizer.clear();
+
+    Assert.assertEquals(Optional.of(GROCERIES), LocalCategorizer.classify("bananas and milk"));
+  }
+
+  private static Entity getSavedClassifier() {
+    try {
+      return DatastoreServiceFactory.getDatastoreService().get(
+          KeyFactory.createKey("CategoryModel", "receipts"));
+    } catch (EntityNotFoundException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** Learns the given number of grocery receipts and of pharmacy receipts. */
+  private static void learnReceipts(int receiptsPerCategory) {
+    learnReceipts(receiptsPerCategory, mock(Queue.class));
+  }
+
+  /**
+   * Learns the given number of grocery receipts and of pharmacy receipts, queuing save tasks on the
+   * given queue.
+   */
+  private static void learnReceipts(int receiptsPerCategory, Queue queue) {
+    for (int i = 0; i < receiptsPerCategory; i++) {
+      LocalCategorizer.learn(GROCERY_TEXT, GROCERIES, queue);
+      LocalCategorizer.learn(PHARMACY_TEXT, PHARMACY, queue);
+    }
+  }
+
+  /**
+   * Runs the save tasks added to the queue, like the task queue would. The given number of tasks
+   * must have been added so far.
+   */
+  private void runSaveTasks(int taskCount) throws IOException {
+    ArgumentCaptor<TaskOptions> tasks = ArgumentCaptor.forClass(TaskOptions.class);
+    verify(queue, times(taskCount)).add(tasks.capture());
+    for (TaskOptions task : tasks.getAllValues().subList(savedTaskCount, taskCount)) {
+      Assert.assertEquals("/save-categorizer", task.getUrl());
+      LocalCategorizer.saveLearned(task.getPayload());
+    }
+    savedTaskCount = taskCount;
+  }
+
+  /** Returns a classifier that learned the given number of grocery receipts. */
+  private static NaiveBayesClassifier createLearned(int receiptCount) {
+    NaiveBayesClassifier learned = new NaiveBayesClassifier(1000);
+    for (int i = 0; i < receiptCount; i++) {
+      learned.learn(GROCERY_TEXT, GROCERIES);
+    }
+    return learned;
+  }
+
+  private static long getSavedReceiptCount() throws IOException {
+    byte[] bytes = ((Blob) getSavedClassifier().getProperty("classifier")).getBytes();
+    return NaiveBayesClassifier.fromBytes(bytes, 1000).getReceiptCount();
+  }
+
+  private static Entity createReceipt(String rawText, ImmutableSet<String> categories) {
+    Entity receipt = new Entity("Receipt");
+    receipt.setUnindexedProperty("rawText", new Text(rawText));
+    receipt.setProperty("categories", categories.asList());
+    return receipt;
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableMap;
+import com.google.sps.servlets.Metrics;
+import com.google.sps.servlets.MetricsServlet;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@PowerMockIgnore("jdk.internal.reflect.*")
+@RunWith(PowerMockRunner.class)
+public final class MetricsServletTest {
+  private static final String DOMAIN_NAME = "gmail.com";
+  private static final String USER_EMAIL = "test@gmail.com";
+  private static final String USER_ID = "testID";
+  private static final String SCRAPE_TOKEN = "scrape-token";
+
+  // Uses local UserService.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalUserServiceTestConfig())
+          .setEnvEmail(USER_EMAIL)
+          .setEnvAuthDomain(DOMAIN_NAME)
+          .setEnvAttributes(new HashMap(
+              ImmutableMap.of("com.google.appengine.api.users.UserService.user_id_key", USER_ID)));
+
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+
+  private MetricsServlet servlet;
+  private StringWriter stringWriter;
+
+  @Before
+  public void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    helper.setUp();
+
+    stringWriter = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(stringWriter, true));
+    System.setProperty("receiptAnalysis.metricsToken", SCRAPE_TOKEN);
+    servlet = new MetricsServlet();
+    Metrics.clear();
+    Metrics.counter("test_total", "Test counter.").increment();
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty("receiptAnalysis.metricsToken");
+    Metrics.clear();
+    helper.tearDown();
+  }
+
+  @Test
+  public void doGet_userIsAdmin_writesMetrics() throws IOException {
+    helper.setEnvIsLoggedIn(true);
+    helper.setEnvIsAdmin(true);
+
+    servlet.doGet(request, response);
+
+    verify(response, never()).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    Assert.assertTrue(stringWriter.toString().contains("test_total"));
+  }
+
+  @Test
+  public void doGet_scrapeToken_writesMetrics() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+    when(request.getHeader("Authorization")).thenReturn("Bearer " + SCRAPE_TOKEN);
+
+    servlet.doGet(request, response);
+
+    verify(response, never()).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    Assert.assertTrue(stringWriter.toString().contains("test_total"));
+  }
+
+  @Test
+  public void doGet_wrongScrapeToken_returnsForbidden() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+    when(request.getHeader("Authorization")).thenReturn("Bearer wrong-token");
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    Assert.assertFalse(stringWriter.toString().contains("test_total"));
+  }
+
+  @Test
+  public void doGet_noScrapeTokenSet_rejectsEmptyBearerToken() throws IOException {
+    System.clearProperty("receiptAnalysis.metricsToken");
+    servlet = new MetricsServlet();
+    helper.setEnvIsLoggedIn(false);
+    when(request.getHeader("Authorization")).thenReturn("Bearer ");
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+  }
+
+  @Test
+  public void doGet_userNotAdmin_returnsForbidden() throws IOException {
+    helper.setEnvIsLoggedIn(true);
+    helper.setEnvIsAdmin(false);
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    Assert.assertFalse(stringWriter.toString().contains("test_total"));
+  }
+
+  @Test
+  public void doGet_userNotLoggedIn_returnsForbidden() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    Assert.assertFalse(stringWriter.toString().contains("test_total"));
+  }
+}
@@ -0,0 +1,141 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.sps.servlets.Metrics;
+import com.google.sps.servlets.MetricsFilter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class MetricsTest {
+  private HttpServletRequest request;
+  private HttpServletResponse response;
+
+  @Before
+  public void setUp() {
+    Metrics.clear();
+    request = mock(HttpServletRequest.class);
+    response = mock(HttpServletResponse.class);
+  }
+
+  @After
+  public void tearDown() {
+    Metrics.clear();
+  }
+
+  @Test
+  public void writeTo_histogram_writesSummaryInSeconds() {
+    Metrics.histogram("test_seconds", "Test latency.", "stage", "text")
+        .record(TimeUnit.MILLISECONDS.toNanos(1500));
+
+    String output = getOutput();
+
+    Assert.assertTrue(output.contains("# HELP test_seconds Test latency.\n"));
+    Assert.assertTrue(output.contains("# TYPE test_seconds summary\n"));
+    Assert.assertTrue(output.contains("test_seconds{stage=\"text\",quantile=\"0.5\"} 1.5\n"));
+    Assert.assertTrue(output.contains("test_seconds{stage=\"text\",quantile=\"0.99\"} 1.5\n"));
+    Assert.assertTrue(output.contains("test_seconds_sum{stage=\"text\"} 1.5\n"));
+    Assert.assertTrue(output.contains("test_seconds_count{stage=\"text\"} 1\n"));
+  }
+
+  @Test
+  public void writeTo_countersAndRegisteredFunctions_writesCurrentValues() {
+    AtomicLong hits = new AtomicLong();
+    Metrics.counter("test_total", "Test counter.", "code", "2xx").add(3);
+    Metrics.registerCounter("test_hits_total", "Test hits.", hits::get);
+    Metrics.registerGauge("test_open", "Test gauge.", () -> 0.5, "api", "say \"hi\"");
+    hits.set(7);
+
+    String output = getOutput();
+
+    Assert.assertTrue(output.contains("# TYPE test_total counter\ntest_total{code=\"2xx\"} 3\n"));
+    Assert.assertTrue(output.contains("test_hits_total 7\n"));
+    Assert.assertTrue(output.contains("# TYPE test_open gauge\n"));
+    Assert.assertTrue(output.contains("test_open{api=\"say \\\"hi\\\"\"} 0.5\n"));
+  }
+
+  @Test
+  public void counter_sameLabels_returnsSameCounter() {
+    LongAdder counter = Metrics.counter("test_total", "Test counter.", "code", "2xx");
+
+    Assert.assertSame(counter, Metrics.counter("test_total", "Test counter.", "code", "2xx"));
+    Assert.assertNotSame(counter, Metrics.counter("test_total", "Test counter.", "code", "5xx"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void counter_nameOfHistogram_throws() {
+    Metrics.histogram("test_seconds", "Test latency.");
+    Metrics.counter("test_seconds", "Test counter.");
+  }
+
+  @Test
+  public void doFilter_recordsEndpointLatencyAndStatusClass() throws Exception {
+    when(request.getServletPath()).thenReturn("/search-receipts");
+    when(request.getMethod()).thenReturn("GET");
+    when(response.getStatus()).thenReturn(HttpServletResponse.SC_FORBIDDEN);
+
+    new MetricsFilter().doFilter(request, response, mock(FilterChain.class));
+
+    String output = getOutput();
+    Assert.assertTrue(output.contains(
+        "receipt_roundup_request_seconds_count{endpoint=\"/search-receipts\",method=\"GET\"} 1\n"));
+    Assert.assertTrue(output.contains("receipt_roundup_requests_total{"
+        + "endpoint=\"/search-receipts\",method=\"GET\",code=\"4xx\"} 1\n"));
+  }
+
+  @Test
+  public void doFilter_servletThrows_recordsServerError() throws Exception {
+    when(request.getServletPath()).thenReturn("/upload-receipt");
+    when(request.getMethod()).thenReturn("PATCH");
+    FilterChain chain = mock(FilterChain.class);
+    doThrow(new ServletException()).when(chain).doFilter(request, response);
+
+    try {
+      new MetricsFilter().doFilter(request, response, chain);
+      Assert.fail();
+    } catch (ServletException expected) {
+    }
+
+    Assert.assertTrue(getOutput().contains("receipt_roundup_requests_total{"
+        + "endpoint=\"/upload-receipt\",method=\"other\",code=\"5xx\"} 1\n"));
+  }
+
+  /** Returns the metrics in the text format served by the metrics servlet. */
+  private String getOutput() {
+    StringWriter stringWriter = new StringWriter();
+    PrintWriter writer = new PrintWriter(stringWriter);
+    Metrics.writeTo(writer);
+    writer.flush();
+    return stringWriter.toString();
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.NaiveBayesClassifier;
+import com.google.sps.servlets.NaiveBayesClassifier.Prediction;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class NaiveBayesClassifierTest {
+  private static final ImmutableSet<String> GROCERIES = ImmutableSet.of("food", "groceries");
+  private static final ImmutableSet<String> RESTAURANTS = ImmutableSet.of("food", "restaurants");
+  private static final ImmutableSet<String> PHARMACY = ImmutableSet.of("health", "pharmacy");
+
+  private NaiveBayesClassifier classifier;
+
+  @Before
+  public void setUp() {
+    classifier = new NaiveBayesClassifier(1000);
+    for (int i = 0; i < 10; i++) {
+      classifier.learn("WALMART bananas milk bread eggs TOTAL $8.39", GROCERIES);
+      classifier.learn("Burger fries soda tip server table 12", RESTAURANTS);
+      classifier.learn("CVS pharmacy prescription vitamins RX 555", PHARMACY);
+    }
+  }
+
+  @Test
+  public void classify_familiarText_predictsCategoriesConfidently() {
+    Prediction prediction = classifier.classify("bananas and bread and milk $4.20").get();
+
+    Assert.assertEquals(GROCERIES, prediction.getCategories());
+    Assert.assertTrue(prediction.getConfidence() > 0.95);
+  }
+
+  @Test
+  public void classify_ambiguousText_hasLowConfidence() {
+    Prediction prediction = classifier.classify("milk fries vitamins").get();
+
+    Assert.assertTrue(prediction.getConfidence() < 0.6);
+  }
+
+  @Test
+  public void classify_unknownWords_predictsMostCommonCategories() {
+    classifier.learn("eggs", GROCERIES);
+
+    Prediction prediction = classifier.classify("nothing seen before").get();
+
+    Assert.assertEquals(GROCERIES, prediction.getCategories());
+  }
+
+  @Test
+  public void classify_nothingLearned_returnsEmpty() {
+    Assert.assertEquals(Optional.empty(), new NaiveBayesClassifier(1000).classify("milk"));
+  }
+
+  @Test
+  public void learn_emptyCategories_isIgnored() {
+    classifier.learn("milk", ImmutableSet.of());
+
+    Assert.assertEquals(30, classifier.getReceiptCount());
+    Assert.assertEquals(3, classifier.getCategorySetCount());
+  }
+
+  @Test
+  public void learn_vocabularyFull_ignoresNewWords() {
+    NaiveBayesClassifier small = new NaiveBayesClassifier(2);
+    small.learn("bananas milk", GROCERIES);
+    small.learn("burger", RESTAURANTS);
+
+    // "burger" was never learned, so both classes are equally likely.
+    Assert.assertEquals(0.5, small.classify("burger").get().getConfidence(), 1e-9);
+  }
+
+  @Test
+  public void merge_otherClassifier_addsItsReceipts() {
+    NaiveBayesClassifier other = new NaiveBayesClassifier(1000);
+    for (int i = 0; i < 20; i++) {
+      other.learn("Starbucks latte espresso muffin", ImmutableSet.of("coffee"));
+    }
+
+    classifier.merge(other);
+
+    Assert.assertEquals(50, classifier.getReceiptCount());
+    Assert.assertEquals(4, classifier.getCategorySetCount());
+    Assert.assertEquals(ImmutableSet.of("coffee"),
+        classifier.classify("latte and muffin").get().getCategories());
+    Assert.assertEquals(20, other.getReceiptCount());
+  }
+
+  @Test
+  public void fromBytes_roundTrip_predictsTheSame() throws IOException {
+    NaiveBayesClassifier copy = NaiveBayesClassifier.fromBytes(classifier.toBytes(), 1000);
+
+    Prediction original = classifier.classify("prescription vitamins").get();
+    Prediction restored = copy.classify("prescription vitamins").get();
+
+    Assert.assertEquals(original.getCategories(), restored.getCategories());
+    Assert.assertEquals(original.getConfidence(), restored.getConfidence(), 1e-12);
+    Assert.assertEquals(classifier.getReceiptCount(), copy.getReceiptCount());
+  }
+
+  @Test(expected = IOException.class)
+  public void fromBytes_corruptBytes_throwsException() throws IOException {
+    NaiveBayesClassifier.fromBytes(new byte[] {1, 2, 3}, 1000);
+  }
+}
@@ -0,0 +1,208 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.data.ReceiptStatus;
+import com.google.sps.servlets.ProcessReceiptServlet;
+import com.google.sps.servlets.ReceiptAnalysis;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PowerMockIgnore;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+@PowerMockIgnore("jdk.internal.reflect.*")
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(ReceiptAnalysis.class)
+public final class ProcessReceiptServletTest {
+  private static final String INSTANT = "2020-06-22T10:15:30Z";
+  private static final long PAST_TIMESTAMP =
+      Instant.parse(INSTANT).minusMillis(1234).toEpochMilli();
+
+  private static final BlobKey BLOB_KEY = new BlobKey("blobKey");
+  private static final String IMAGE_URL = "/serve-image?blob-key=" + BLOB_KEY.getKeyString();
+  private static final String USER_ID = "testID";
+
+  private static final Text RAW_TEXT = new Text("raw text");
+  private static final double PRICE = 5.89;
+  private static final String STORE = "mcdonald's";
+  private static final AnalysisResults ANALYSIS_RESULTS =
+      new AnalysisResults.Builder()
+          .setRawText(RAW_TEXT.getValue())
+          .setCategories(ImmutableSet.of("burger", "fast food"))
+          .setTransactionTimestamp(PAST_TIMESTAMP)
+          .setPrice(PRICE)
+          .setStore(STORE)
+          .build();
+
+  // Uses local Datastore.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Mock private BlobstoreService blobstoreService;
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+
+  private ProcessReceiptServlet servlet;
+  private DatastoreService datastore;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+
+    Clock clock = Clock.fixed(Instant.parse(INSTANT), ZoneId.systemDefault());
+    servlet = new ProcessReceiptServlet(blobstoreService, datastore, clock);
+
+    when(request.getHeader("X-AppEngine-QueueName")).thenReturn("receipt-analysis");
+    when(request.getParameter("blob-key")).thenReturn(BLOB_KEY.getKeyString());
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void doPost_pendingReceipt_addsAnalysisResults()
+      throws IOException, EntityNotFoundException {
+    Entity receipt = addReceipt(ReceiptStatus.PENDING);
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImageAtOrThrow(BLOB_KEY)).thenReturn(ANALYSIS_RESULTS);
+
+    servlet.doPost(request, response);
+
+    Entity processed = datastore.get(receipt.getKey());
+    Assert.assertEquals(ReceiptStatus.DONE.name(), processed.getProperty("status"));
+    Assert.assertEquals(IMAGE_URL, processed.getProperty("imageUrl"));
+    Assert.assertEquals(PRICE, processed.getProperty("price"));
+    Assert.assertEquals(STORE, processed.getProperty("store"));
+    Assert.assertEquals(RAW_TEXT, processed.getProperty("rawText"));
+    Assert.assertEquals(PAST_TIMESTAMP, processed.getProperty("timestamp"));
+    Assert.assertEquals(
+        ImmutableList.of("burger", "fast food"), processed.getProperty("categories"));
+    Assert.assertEquals(USER_ID, processed.getProperty("userId"));
+  }
+
+  @Test
+  public void doPost_analysisFailsTemporarily_returnsErrorForRetry()
+      throws IOException, EntityNotFoundException {
+    Entity receipt = addReceipt(ReceiptStatus.PENDING);
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImageAtOrThrow(BLOB_KEY)).thenThrow(IOException.class);
+
+    servlet.doPost(request, response);
+
+    Entity processed = datastore.get(receipt.getKey());
+    Assert.assertEquals(ReceiptStatus.ANALYZING.name(), processed.getProperty("status"));
+    verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    verify(blobstoreService, never()).delete(BLOB_KEY);
+  }
+
+  @Test
+  public void doPost_analysisFailsOnLastRetry_marksReceiptFailedAndDeletesImage()
+      throws IOException, EntityNotFoundException {
+    Entity receipt = addReceipt(ReceiptStatus.ANALYZING);
+    when(request.getHeader("X-AppEngine-TaskRetryCount")).thenReturn("6");
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImageAtOrThrow(BLOB_KEY)).thenThrow(IOException.class);
+
+    servlet.doPost(request, response);
+
+    Entity processed = datastore.get(receipt.getKey());
+    Assert.assertEquals(ReceiptStatus.FAILED.name(), processed.getProperty("status"));
+    verify(blobstoreService).delete(BLOB_KEY);
+  }
+
+  @Test
+  public void doPost_analysisThrowsRuntimeException_marksReceiptFailedAndDeletesImage()
+      throws IOException, EntityNotFoundException {
+    Entity receipt = addReceipt(ReceiptStatus.PENDING);
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImageAtOrThrow(BLOB_KEY)).thenThrow(IllegalStateException.class);
+
+    servlet.doPost(request, response);
+
+    Entity processed = datastore.get(receipt.getKey());
+    Assert.assertEquals(ReceiptStatus.FAILED.name(), processed.getProperty("status"));
+    verify(blobstoreService).delete(BLOB_KEY);
+  }
+
+  @Test
+  public void doPost_receiptAlreadyDone_skipsAnalysis() throws IOException {
+    addReceipt(ReceiptStatus.DONE);
+    mockStatic(ReceiptAnalysis.class);
+
+    servlet.doPost(request, response);
+
+    PowerMockito.verifyStatic(ReceiptAnalysis.class, never());
+    ReceiptAnalysis.analyzeImageAtOrThrow(any(BlobKey.class));
+  }
+
+  @Test
+  public void doPost_notFromTaskQueue_returnsForbidden() throws IOException {
+    addReceipt(ReceiptStatus.PENDING);
+    when(request.getHeader("X-AppEngine-QueueName")).thenReturn(null);
+
+    servlet.doPost(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+  }
+
+  /**
+   * Adds a receipt with the given status to Datastore and stubs the request with its ID.
+   */
+  private Entity addReceipt(ReceiptStatus status) {
+    Entity receipt = new Entity("Receipt");
+    receipt.setUnindexedProperty("imageUrl", IMAGE_URL);
+    receipt.setProperty("userId", USER_ID);
+    receipt.setProperty("status", status.name());
+    datastore.put(receipt);
+
+    when(request.getParameter("id")).thenReturn(Long.toString(receipt.getKey().getId()));
+    return receipt;
+  }
+}
@@ -89,6 +89,14 @@ public final class QueryInformationTest {
     Assert.assertEquals(ImmutableSet.of(), queryInformation.getCategory());
   }
 
+  @Test
+  public void commaSeparatedCategoriesAndStoresSplit() throws ParseException {
+    QueryInformation queryInformation = new QueryInformation(CST_TIMEZONE_ID,
+        " Breakfast, LUNCH,,lunch ", DATE_RANGE, "McDonald's ,Wendy's", MIN_PRICE, MAX_PRICE);
+    Assert.assertEquals(ImmutableSet.of("breakfast", "lunch"), queryInformation.getCategory());
+    Assert.assertEquals(ImmutableSet.of("mcdonald's", "wendy's"), queryInformation.getStores());
+  }
+
   @Test
   public void validDateRangeParse() throws ParseException {
     QueryInformation queryInformation =
@@ -109,14 +117,14 @@ public final class QueryInformationTest {
   public void storeCorrectlySet() throws ParseException {
     QueryInformation queryInformation =
         new QueryInformation(CST_TIMEZONE_ID, CATEGORY, DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
-    Assert.assertEquals(EXPECTED_STORE, queryInformation.getStore());
+    Assert.assertEquals(ImmutableSet.of(EXPECTED_STORE), queryInformation.getStores());
   }
 
   @Test
   public void storeLowercasedAndWhitespaceRemoved() throws ParseException {
     QueryInformation queryInformation = new QueryInformation(
         CST_TIMEZONE_ID, CATEGORY, DATE_RANGE, EDGE_CASE_STORE, MIN_PRICE, MAX_PRICE);
-    Assert.assertEquals(EXPECTED_STORE, queryInformation.getStore());
+    Assert.assertEquals(ImmutableSet.of(EXPECTED_STORE), queryInformation.getStores());
   }
 
   @Test
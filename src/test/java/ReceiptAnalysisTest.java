@@ -15,56 +15,86 @@
 package com.google.sps;
 
 import static org.mockito.Mockito.any;
-import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.verifyStatic;
+import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiCallContext;
 import com.google.api.gax.rpc.ApiException;
 import com.google.api.gax.rpc.StatusCode;
 import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.cloud.language.v1.ClassificationCategory;
 import com.google.cloud.language.v1.ClassifyTextRequest;
 import com.google.cloud.language.v1.ClassifyTextResponse;
 import com.google.cloud.language.v1.Document;
 import com.google.cloud.language.v1.Document.Type;
 import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.cloud.language.v1.LanguageServiceSettings;
 import com.google.cloud.vision.v1.AnnotateImageRequest;
 import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesRequest;
 import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
 import com.google.cloud.vision.v1.EntityAnnotation;
 import com.google.cloud.vision.v1.Feature;
 import com.google.cloud.vision.v1.Image;
 import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageAnnotatorSettings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.ByteString;
 import com.google.rpc.Status;
 import com.google.sps.data.AnalysisResults;
+import com.google.sps.servlets.AnalysisBackends;
+import com.google.sps.servlets.AnalysisResultsCache;
+import com.google.sps.servlets.ImageFetcher;
+import com.google.sps.servlets.LocalCategorizer;
+import com.google.sps.servlets.Metrics;
 import com.google.sps.servlets.ReceiptAnalysis;
 import com.google.sps.servlets.ReceiptAnalysis.ReceiptAnalysisException;
+import com.google.sps.servlets.ReceiptAnalysisClients;
+import com.google.sps.servlets.StoreCategoryMemo;
+import com.google.sps.servlets.UrlResultsCache;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
 import java.util.Optional;
+import java.util.Random;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.jupiter.api.Assertions;
 import org.junit.runner.RunWith;
 import org.mockito.MockitoAnnotations;
+import org.mockito.stubbing.OngoingStubbing;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 @PowerMockIgnore("jdk.internal.reflect.*")
 @RunWith(PowerMockRunner.class)
-@PrepareForTest(
-    {ImageAnnotatorClient.class, LanguageServiceClient.class, ReceiptAnalysis.class, URL.class})
+@PrepareForTest({BlobstoreServiceFactory.class, ImageAnnotatorClient.class, ImageFetcher.class,
+    LanguageServiceClient.class, ReceiptAnalysis.class, URL.class, UrlResultsCache.class})
 public final class ReceiptAnalysisTest {
   private static final ByteString IMAGE_BYTES = ByteString.copyFromUtf8("byte string");
   private static final Optional<String> RAW_TEXT = Optional.of("raw text");
@@ -91,25 +121,50 @@ public final class ReceiptAnalysisTest {
   private static final double PRICE_VALUE = 12.77;
   private static final Optional<Double> PRICE = Optional.of(Double.valueOf(PRICE_VALUE));
 
+  // Uses local Datastore for the analysis results cache.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
   private URL url;
   private ImageAnnotatorClient imageClient;
   private LanguageServiceClient languageClient;
+  private UnaryCallable<BatchAnnotateImagesRequest, BatchAnnotateImagesResponse> imageCallable;
+  private UnaryCallable<ClassifyTextRequest, ClassifyTextResponse> languageCallable;
 
   @Before
+  @SuppressWarnings("unchecked")
   public void setUp() throws IOException {
     MockitoAnnotations.initMocks(this);
+    helper.setUp();
 
     url = mock(URL.class);
-    InputStream inputStream = new ByteArrayInputStream(IMAGE_BYTES.toByteArray());
-    when(url.openStream()).thenReturn(inputStream);
+    stubUrlImage(IMAGE_BYTES.toByteArray());
 
     imageClient = mock(ImageAnnotatorClient.class);
     mockStatic(ImageAnnotatorClient.class);
-    when(ImageAnnotatorClient.create()).thenReturn(imageClient);
+    when(ImageAnnotatorClient.create(any(ImageAnnotatorSettings.class))).thenReturn(imageClient);
+    // Requests are sent through the clients' callables so that each call gets a timeout.
+    imageCallable = mock(UnaryCallable.class);
+    when(imageClient.batchAnnotateImagesCallable()).thenReturn(imageCallable);
 
     languageClient = mock(LanguageServiceClient.class);
     mockStatic(LanguageServiceClient.class);
-    when(LanguageServiceClient.create()).thenReturn(languageClient);
+    when(LanguageServiceClient.create(any(LanguageServiceSettings.class)))
+        .thenReturn(languageClient);
+    languageCallable = mock(UnaryCallable.class);
+    when(languageClient.classifyTextCallable()).thenReturn(languageCallable);
+  }
+
+  @After
+  public void tearDown() {
+    // Shared clients, circuit breakers, and cached results would otherwise leak from one test into
+    // the next.
+    AnalysisBackends.close();
+    ReceiptAnalysisClients.close();
+    AnalysisResultsCache.clearMemory();
+    StoreCategoryMemo.clearMemory();
+    LocalCategorizer.clear();
+    helper.tearDown();
   }
 
   @Test
@@ -127,8 +182,150 @@ public final class ReceiptAnalysisTest {
     Assert.assertEquals(STORE, results.getStore());
     Assert.assertEquals(Optional.empty(), results.getTransactionTimestamp());
     Assert.assertEquals(Optional.empty(), results.getPrice());
-    verify(imageClient).batchAnnotateImages(imageRequests);
-    verify(languageClient).classifyText(classifyRequest);
+    verify(imageCallable).call(eq(createBatchRequest(imageRequests)), any(ApiCallContext.class));
+    verify(languageCallable).call(eq(classifyRequest), any(ApiCallContext.class));
+  }
+
+  @Test
+  public void analyzeImageAt_blobKey_readsEveryFragment() throws Exception {
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    stubTextClassification();
+
+    // A blob that spans three fragments, the last of which is partial.
+    byte[] blob = new byte[2 * BlobstoreService.MAX_BLOB_FETCH_SIZE + 10];
+    new Random(1).nextBytes(blob);
+    BlobKey blobKey = new BlobKey("blobKey");
+    stubBlob(blobKey, blob);
+    long fragments = getBlobFragmentCount();
+    long reads = getBlobReadCount();
+
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(blobKey);
+
+    Assert.assertEquals(RAW_TEXT, results.getRawText());
+    Assert.assertEquals(fragments + 3, getBlobFragmentCount());
+    Assert.assertEquals(reads + 1, getBlobReadCount());
+    BatchAnnotateImagesRequest batchRequest =
+        createBatchRequest(createImageRequest(ByteString.copyFrom(blob)));
+    verify(imageCallable).call(eq(batchRequest), any(ApiCallContext.class));
+  }
+
+  @Test
+  public void analyzeImageAt_blobKey_fetchesEachFragmentOnce() throws Exception {
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    stubTextClassification();
+    int fetchSize = BlobstoreService.MAX_BLOB_FETCH_SIZE;
+    BlobKey blobKey = new BlobKey("blobKey");
+    BlobstoreService blobstoreService = stubBlob(blobKey, new byte[2 * fetchSize + 10]);
+
+    ReceiptAnalysis.analyzeImageAt(blobKey);
+
+    verify(blobstoreService).fetchData(blobKey, 0, fetchSize - 1);
+    verify(blobstoreService).fetchData(blobKey, fetchSize, 2 * fetchSize - 1);
+    verify(blobstoreService).fetchData(blobKey, 2 * fetchSize, 2 * fetchSize + 9);
+  }
+
+  @Test
+  public void analyzeImageAt_truncatedBlobFragment_throwsExceptionAndRecordsFailure()
+      throws Exception {
+    BlobKey blobKey = new BlobKey("blobKey");
+    BlobstoreService blobstoreService =
+        stubBlob(blobKey, new byte[2 * BlobstoreService.MAX_BLOB_FETCH_SIZE]);
+    when(blobstoreService.fetchData(blobKey, 0, BlobstoreService.MAX_BLOB_FETCH_SIZE - 1))
+        .thenReturn(new byte[10]);
+    long failures = getBlobReadFailureCount();
+    long reads = getBlobReadCount();
+
+    try {
+      ReceiptAnalysis.analyzeImageAt(blobKey);
+      Assert.fail("Expected the blob read to fail.");
+    } catch (IOException expected) {
+      // The first fragment is shorter than requested.
+    }
+
+    Assert.assertEquals(failures + 1, getBlobReadFailureCount());
+    Assert.assertEquals(reads + 1, getBlobReadCount());
+  }
+
+  @Test
+  public void analyzeImageAt_multipleImages_reusesClients()
+      throws IOException, ReceiptAnalysisException {
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    stubTextClassification();
+
+    ReceiptAnalysis.analyzeImageAt(url);
+    stubUrlImage("other image".getBytes());
+    ReceiptAnalysis.analyzeImageAt(url);
+
+    verifyStatic(ImageAnnotatorClient.class, times(1));
+    ImageAnnotatorClient.create(any(ImageAnnotatorSettings.class));
+    verifyStatic(LanguageServiceClient.class, times(1));
+    LanguageServiceClient.create(any(LanguageServiceSettings.class));
+  }
+
+  @Test
+  public void analyzeImageAt_sameImageTwice_returnsCachedResults()
+      throws IOException, ReceiptAnalysisException {
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    stubTextClassification();
+
+    ReceiptAnalysis.analyzeImageAt(url);
+    stubUrlImage(IMAGE_BYTES.toByteArray());
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+
+    Assert.assertEquals(RAW_TEXT, results.getRawText());
+    Assert.assertEquals(CATEGORIES, results.getCategories());
+    Assert.assertEquals(STORE, results.getStore());
+    verify(imageCallable, times(1))
+        .call(any(BatchAnnotateImagesRequest.class), any(ApiCallContext.class));
+    verify(languageCallable, times(1))
+        .call(any(ClassifyTextRequest.class), any(ApiCallContext.class));
+  }
+
+  @Test
+  public void analyzeCachedImageAt_sameUrlTwice_fetchesOnce()
+      throws IOException, ReceiptAnalysisException {
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    stubTextClassification();
+
+    ReceiptAnalysis.analyzeCachedImageAt(url);
+    // The cached results are still fresh, so fetching the image again would be a bug.
+    when(url.openConnection()).thenThrow(new IOException("Image was fetched again."));
+    AnalysisResults results = ReceiptAnalysis.analyzeCachedImageAt(url);
+
+    Assert.assertEquals(RAW_TEXT, results.getRawText());
+    Assert.assertEquals(CATEGORIES, results.getCategories());
+  }
+
+  @Test
+  public void analyzeImageAt_textRequestFailure_doesNotCacheResults()
+      throws IOException, ReceiptAnalysisException {
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    StatusCode statusCode = GrpcStatusCode.of(io.grpc.Status.INTERNAL.getCode());
+    whenClassifyText().thenThrow(new ApiException(null, statusCode, false));
+
+    ReceiptAnalysis.analyzeImageAt(url);
+    stubUrlImage(IMAGE_BYTES.toByteArray());
+    ReceiptAnalysis.analyzeImageAt(url);
+
+    verify(imageCallable, times(2))
+        .call(any(BatchAnnotateImagesRequest.class), any(ApiCallContext.class));
+  }
+
+  @Test
+  public void analyzeImageAt_storeWithConsistentCategories_skipsTextClassification()
+      throws IOException, ReceiptAnalysisException {
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    stubTextClassification();
+
+    // Five different images from the same store are needed before its categories are memoized.
+    for (int i = 0; i < 6; i++) {
+      stubUrlImage(("image " + i).getBytes());
+      AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+      Assert.assertEquals(CATEGORIES, results.getCategories());
+    }
+
+    verify(languageCallable, times(5))
+        .call(any(ClassifyTextRequest.class), any(ApiCallContext.class));
   }
 
   @Test
@@ -137,7 +334,7 @@ public final class ReceiptAnalysisTest {
     AnnotateImageResponse imageResponse = createImageResponseWithText(RAW_TEXT.get()).build();
     BatchAnnotateImagesResponse batchResponse =
         BatchAnnotateImagesResponse.newBuilder().addResponses(imageResponse).build();
-    when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
+    whenAnnotateImages().thenReturn(batchResponse);
 
     stubTextClassification();
 
@@ -272,7 +469,7 @@ public final class ReceiptAnalysisTest {
   public void analyzeImageAt_emptyBatchResponse_returnsEmptyAnalysisResults()
       throws IOException, ReceiptAnalysisException {
     BatchAnnotateImagesResponse batchResponse = BatchAnnotateImagesResponse.newBuilder().build();
-    when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
+    whenAnnotateImages().thenReturn(batchResponse);
 
     AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
 
@@ -288,7 +485,7 @@ public final class ReceiptAnalysisTest {
         AnnotateImageResponse.newBuilder().setError(Status.getDefaultInstance()).build();
     BatchAnnotateImagesResponse batchResponse =
         BatchAnnotateImagesResponse.newBuilder().addResponses(response).build();
-    when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
+    whenAnnotateImages().thenReturn(batchResponse);
 
     AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
 
@@ -303,7 +500,7 @@ public final class ReceiptAnalysisTest {
     AnnotateImageResponse response = AnnotateImageResponse.newBuilder().build();
     BatchAnnotateImagesResponse batchResponse =
         BatchAnnotateImagesResponse.newBuilder().addResponses(response).build();
-    when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
+    whenAnnotateImages().thenReturn(batchResponse);
 
     AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
 
@@ -321,7 +518,7 @@ public final class ReceiptAnalysisTest {
         AnnotateImageResponse.newBuilder().addLogoAnnotations(logoAnnotation).build();
     BatchAnnotateImagesResponse batchResponse =
         BatchAnnotateImagesResponse.newBuilder().addResponses(response).build();
-    when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
+    whenAnnotateImages().thenReturn(batchResponse);
 
     AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
 
@@ -335,7 +532,7 @@ public final class ReceiptAnalysisTest {
       throws IOException, ReceiptAnalysisException {
     StatusCode statusCode = GrpcStatusCode.of(io.grpc.Status.INTERNAL.getCode());
     ApiException clientException = new ApiException(null, statusCode, false);
-    when(imageClient.batchAnnotateImages(anyList())).thenThrow(clientException);
+    whenAnnotateImages().thenThrow(clientException);
 
     AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
 
@@ -353,17 +550,58 @@ public final class ReceiptAnalysisTest {
         AnnotateImageResponse.newBuilder().addTextAnnotations(annotation).build();
     BatchAnnotateImagesResponse batchResponse =
         BatchAnnotateImagesResponse.newBuilder().addResponses(imageResponse).build();
-    when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
+    whenAnnotateImages().thenReturn(batchResponse);
 
     StatusCode statusCode = GrpcStatusCode.of(io.grpc.Status.INTERNAL.getCode());
     ApiException clientException = new ApiException(null, statusCode, false);
-    when(languageClient.classifyText(any(ClassifyTextRequest.class))).thenThrow(clientException);
+    whenClassifyText().thenThrow(clientException);
 
     AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
 
     Assert.assertEquals(ImmutableSet.of(), results.getCategories());
   }
 
+  @Test
+  public void analyzeImageAtOrThrow_imageRequestFailure_throwsException() throws Exception {
+    BlobKey blobKey = new BlobKey("blobKey");
+    stubBlob(blobKey, IMAGE_BYTES.toByteArray());
+    StatusCode statusCode = GrpcStatusCode.of(io.grpc.Status.UNAVAILABLE.getCode());
+    whenAnnotateImages().thenThrow(new ApiException(null, statusCode, true));
+
+    try {
+      ReceiptAnalysis.analyzeImageAtOrThrow(blobKey);
+      Assert.fail("Expected the analysis to fail.");
+    } catch (IOException expected) {
+      Assert.assertTrue(expected.getCause() instanceof ApiException);
+    }
+  }
+
+  @Test
+  public void analyzeImageAtOrThrow_textRequestFailure_throwsException() throws Exception {
+    BlobKey blobKey = new BlobKey("blobKey");
+    stubBlob(blobKey, IMAGE_BYTES.toByteArray());
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    StatusCode statusCode = GrpcStatusCode.of(io.grpc.Status.UNAVAILABLE.getCode());
+    whenClassifyText().thenThrow(new ApiException(null, statusCode, true));
+
+    try {
+      ReceiptAnalysis.analyzeImageAtOrThrow(blobKey);
+      Assert.fail("Expected the analysis to fail.");
+    } catch (IOException expected) {
+      Assert.assertTrue(expected.getCause() instanceof ApiException);
+    }
+  }
+
+  /**
+   * Stubs the URL so that fetching it returns the given image with a successful HTTP status.
+   */
+  private void stubUrlImage(byte[] image) throws IOException {
+    HttpURLConnection connection = mock(HttpURLConnection.class);
+    when(connection.getResponseCode()).thenReturn(HttpURLConnection.HTTP_OK);
+    when(connection.getInputStream()).thenReturn(new ByteArrayInputStream(image));
+    when(url.openConnection()).thenReturn(connection);
+  }
+
   private void stubAnnotationResponse(float confidenceScore, String rawText) {
     EntityAnnotation logoAnnotation =
         EntityAnnotation.newBuilder().setDescription(STORE.get()).setScore(confidenceScore).build();
@@ -371,7 +609,7 @@ public final class ReceiptAnalysisTest {
         createImageResponseWithText(rawText).addLogoAnnotations(logoAnnotation).build();
     BatchAnnotateImagesResponse batchResponse =
         BatchAnnotateImagesResponse.newBuilder().addResponses(imageResponse).build();
-    when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
+    whenAnnotateImages().thenReturn(batchResponse);
   }
 
   private AnnotateImageResponse.Builder createImageResponseWithText(String rawText) {
@@ -384,11 +622,67 @@ public final class ReceiptAnalysisTest {
         ClassificationCategory.newBuilder().setName(CATEGORY_NAME).build();
     ClassifyTextResponse classifyResponse =
         ClassifyTextResponse.newBuilder().addCategories(category).build();
-    when(languageClient.classifyText(any(ClassifyTextRequest.class))).thenReturn(classifyResponse);
+    whenClassifyText().thenReturn(classifyResponse);
+  }
+
+  /** Returns the number of blob fragments fetched by every test so far. */
+  private static long getBlobFragmentCount() {
+    return Metrics.counter("receipt_roundup_blob_fragments_total", "").sum();
+  }
+
+  /** Returns the number of blob reads recorded in the stage latencies so far. */
+  private static long getBlobReadCount() {
+    return Metrics.histogram(Metrics.STAGE_SECONDS, "", "stage", "blob_read")
+        .snapshot()
+        .getCount();
+  }
+
+  /** Returns the number of blob reads that failed so far. */
+  private static long getBlobReadFailureCount() {
+    return Metrics.counter(Metrics.STAGE_FAILURES, "", "stage", "blob_read").sum();
+  }
+
+  /**
+   * Stubs Blobstore so that the blob key points to a blob with the given content, which is fetched
+   * in ranges with an inclusive end index. Returns the mocked Blobstore service.
+   */
+  private BlobstoreService stubBlob(BlobKey blobKey, byte[] blob) throws Exception {
+    BlobInfoFactory blobInfoFactory = mock(BlobInfoFactory.class);
+    whenNew(BlobInfoFactory.class).withNoArguments().thenReturn(blobInfoFactory);
+    BlobInfo blobInfo = new BlobInfo(blobKey, "image/jpeg", new Date(), "image.jpg", blob.length);
+    when(blobInfoFactory.loadBlobInfo(blobKey)).thenReturn(blobInfo);
+
+    BlobstoreService blobstoreService = mock(BlobstoreService.class);
+    mockStatic(BlobstoreServiceFactory.class);
+    when(BlobstoreServiceFactory.getBlobstoreService()).thenReturn(blobstoreService);
+    when(blobstoreService.fetchData(eq(blobKey), anyLong(), anyLong())).thenAnswer(invocation -> {
+      int start = (int) (long) invocation.getArgumentAt(1, Long.class);
+      int end = (int) Math.min((long) invocation.getArgumentAt(2, Long.class), blob.length - 1);
+      return Arrays.copyOfRange(blob, start, end + 1);
+    });
+
+    return blobstoreService;
+  }
+
+  private OngoingStubbing<BatchAnnotateImagesResponse> whenAnnotateImages() {
+    return when(
+        imageCallable.call(any(BatchAnnotateImagesRequest.class), any(ApiCallContext.class)));
+  }
+
+  private OngoingStubbing<ClassifyTextResponse> whenClassifyText() {
+    return when(languageCallable.call(any(ClassifyTextRequest.class), any(ApiCallContext.class)));
+  }
+
+  private BatchAnnotateImagesRequest createBatchRequest(List<AnnotateImageRequest> requests) {
+    return BatchAnnotateImagesRequest.newBuilder().addAllRequests(requests).build();
   }
 
   private ImmutableList<AnnotateImageRequest> createImageRequest() {
-    Image image = Image.newBuilder().setContent(IMAGE_BYTES).build();
+    return createImageRequest(IMAGE_BYTES);
+  }
+
+  private ImmutableList<AnnotateImageRequest> createImageRequest(ByteString imageBytes) {
+    Image image = Image.newBuilder().setContent(imageBytes).build();
     ImmutableList<Feature> features =
         ImmutableList.of(Feature.newBuilder().setType(Feature.Type.TEXT_DETECTION).build(),
             Feature.newBuilder().setType(Feature.Type.LOGO_DETECTION).build());
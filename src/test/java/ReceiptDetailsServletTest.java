@@ -0,0 +1,138 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.ReceiptDetailsServlet;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public final class ReceiptDetailsServletTest {
+  private static final String RECEIPT_NOT_FOUND_WARNING = "Receipt not found.";
+
+  private static final String USER_ID = "testID";
+  private static final String RAW_TEXT = "Walmart\nAlways Low Prices At Walmart\n";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalUserServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvEmail("test@gmail.com")
+          .setEnvAuthDomain("gmail.com")
+          .setEnvAttributes(new HashMap(
+              ImmutableMap.of("com.google.appengine.api.users.UserService.user_id_key", USER_ID)));
+
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+
+  private ReceiptDetailsServlet servlet;
+  private DatastoreService datastore;
+  private StringWriter stringWriter;
+  private PrintWriter writer;
+
+  @Before
+  public void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    servlet = new ReceiptDetailsServlet(datastore);
+
+    stringWriter = new StringWriter();
+    writer = new PrintWriter(stringWriter);
+    when(response.getWriter()).thenReturn(writer);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void doGet_returnsReceiptWithRawText() throws IOException {
+    Entity receipt = TestUtils.createEntity(USER_ID, 1045237591000L, "img/walmart-receipt.jpg",
+        26.12, "walmart", ImmutableSet.of("candy"), "");
+    receipt.setUnindexedProperty("rawText", new Text(RAW_TEXT));
+    datastore.put(receipt);
+    when(request.getParameter("id")).thenReturn(Long.toString(receipt.getKey().getId()));
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject json = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(receipt.getKey().getId(), json.getLong("id"));
+    Assert.assertEquals(RAW_TEXT, json.getString("rawText"));
+    Assert.assertEquals("walmart", json.getString("store"));
+  }
+
+  @Test
+  public void doGet_receiptOfOtherUser_returnsNotFound() throws IOException {
+    Entity receipt = TestUtils.addTestReceipt(datastore, "otherID", 1045237591000L,
+        "img/walmart-receipt.jpg", 26.12, "walmart", ImmutableSet.of("candy"), RAW_TEXT);
+    when(request.getParameter("id")).thenReturn(Long.toString(receipt.getKey().getId()));
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+    Assert.assertTrue(stringWriter.toString().contains(RECEIPT_NOT_FOUND_WARNING));
+  }
+
+  @Test
+  public void doGet_pendingReceipt_returnsNotFound() throws IOException {
+    Entity receipt = new Entity("Receipt");
+    receipt.setProperty("userId", USER_ID);
+    receipt.setProperty("status", "PENDING");
+    datastore.put(receipt);
+    when(request.getParameter("id")).thenReturn(Long.toString(receipt.getKey().getId()));
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+  }
+
+  @Test
+  public void doGet_userNotLoggedIn_returnsForbidden() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+    when(request.getParameter("id")).thenReturn("1");
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+  }
+}
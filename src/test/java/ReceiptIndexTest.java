@@ -0,0 +1,201 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.QueryInformation;
+import com.google.sps.data.Receipt;
+import com.google.sps.data.ReceiptSummary;
+import com.google.sps.data.SearchServletResponse;
+import com.google.sps.servlets.ReceiptIndex;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class ReceiptIndexTest {
+  private static final String CST_TIMEZONE_ID = "America/Chicago";
+  private static final String JUNE_2020 = "June 1, 2020 - June 30, 2020";
+  private static final long JUNE_10_2020 = 1591765200000L;
+  private static final long JULY_10_2020 = 1594357200000L;
+  private static final long DAY = 24L * 60 * 60 * 1000;
+
+  @Test
+  public void getFirstPage_withoutQueryInformation_returnsNewestFirst() {
+    ReceiptIndex index = ReceiptIndex.of(ImmutableList.of(
+        createReceipt(1, JUNE_10_2020, 5, "walmart", "food"),
+        createReceipt(3, JUNE_10_2020, 5, "walmart", "food"),
+        createReceipt(2, JUNE_10_2020 + DAY, 5, "walmart", "food")));
+
+    SearchServletResponse page = index.getFirstPage(null, 10);
+
+    Assert.assertEquals(ImmutableList.of(2L, 3L, 1L), getIds(page));
+  }
+
+  @Test
+  public void getFirstPage_appliesEveryFilter() throws ParseException {
+    ReceiptIndex index = ReceiptIndex.of(ImmutableList.of(
+        createReceipt(1, JUNE_10_2020, 10, "walmart", "food"),
+        createReceipt(2, JUNE_10_2020, 10, "target", "food"),
+        createReceipt(3, JUNE_10_2020, 10, "walmart", "drink"),
+        createReceipt(4, JUNE_10_2020, 50, "walmart", "food"),
+        createReceipt(5, JULY_10_2020, 10, "walmart", "food"),
+        createReceipt(6, JUNE_10_2020 + DAY, 20, "walmart", "food")));
+    QueryInformation queryInformation =
+        new QueryInformation(CST_TIMEZONE_ID, "Food", JUNE_2020, "Walmart", "5", "20");
+
+    SearchServletResponse page = index.getFirstPage(queryInformation, 10);
+
+    Assert.assertEquals(ImmutableList.of(6L, 1L), getIds(page));
+  }
+
+  @Test
+  public void getFirstPage_severalCategoriesAndStores_matchesAnyOfEach() throws ParseException {
+    ReceiptIndex index = ReceiptIndex.of(ImmutableList.of(
+        createReceipt(1, JUNE_10_2020, 10, "walmart", "food"),
+        createReceipt(2, JUNE_10_2020, 10, "target", "drink"),
+        createReceipt(3, JUNE_10_2020, 10, "costco", "food"),
+        createReceipt(4, JUNE_10_2020, 10, "target", "candy")));
+    QueryInformation queryInformation = new QueryInformation(
+        CST_TIMEZONE_ID, "Food, Drink", JUNE_2020, "Walmart, Target, Aldi", "0", "100");
+
+    SearchServletResponse page = index.getFirstPage(queryInformation, 10);
+
+    Assert.assertEquals(ImmutableList.of(2L, 1L), getIds(page));
+  }
+
+  @Test
+  public void getFirstPage_unknownStore_returnsNothing() throws ParseException {
+    ReceiptIndex index =
+        ReceiptIndex.of(ImmutableList.of(createReceipt(1, JUNE_10_2020, 10, "walmart", "food")));
+    QueryInformation queryInformation =
+        new QueryInformation(CST_TIMEZONE_ID, "", JUNE_2020, "target", "0", "100");
+
+    Assert.assertTrue(index.getFirstPage(queryInformation, 10).getMatchingReceipts().isEmpty());
+  }
+
+  @Test
+  public void getPageAfterAndBefore_followCursors() {
+    ReceiptIndex index = ReceiptIndex.of(createReceipts(25));
+
+    SearchServletResponse firstPage = index.getFirstPage(null, 10);
+    SearchServletResponse secondPage = index.getPageAfter(null, firstPage.getEncodedCursor(), 10);
+    SearchServletResponse thirdPage = index.getPageAfter(null, secondPage.getEncodedCursor(), 10);
+    SearchServletResponse lastPage = index.getPageAfter(null, thirdPage.getEncodedCursor(), 10);
+    SearchServletResponse previousPage =
+        index.getPageBefore(null, secondPage.getEncodedCursor(), 10);
+
+    Assert.assertTrue(ReceiptIndex.isIndexCursor(firstPage.getEncodedCursor()));
+    Assert.assertEquals(getIdsNewestFirst(15, 25), getIds(firstPage));
+    Assert.assertEquals(getIdsNewestFirst(5, 15), getIds(secondPage));
+    Assert.assertEquals(getIdsNewestFirst(0, 5), getIds(thirdPage));
+    Assert.assertTrue(lastPage.getMatchingReceipts().isEmpty());
+    Assert.assertEquals(getIds(firstPage), getIds(previousPage));
+  }
+
+  @Test
+  public void withReceiptAndWithoutReceipt_keepCursorsValid() {
+    ReceiptIndex index = ReceiptIndex.of(createReceipts(12));
+    String cursor = index.getFirstPage(null, 10).getEncodedCursor();
+
+    // Replaces receipt 5 with a newer version, and removes receipt 1.
+    ReceiptIndex changedIndex = index.withReceipt(createReceipt(5, JULY_10_2020, 1, "a", "b"))
+                                    .withoutReceipt(1);
+    SearchServletResponse nextPage = changedIndex.getPageAfter(null, cursor, 10);
+
+    Assert.assertEquals(12, index.size());
+    Assert.assertEquals(11, changedIndex.size());
+    Assert.assertFalse(changedIndex.contains(1));
+    Assert.assertEquals(5L, getIds(changedIndex.getFirstPage(null, 10)).get(0).longValue());
+    Assert.assertEquals(ImmutableList.of(0L), getIds(nextPage));
+  }
+
+  @Test
+  public void getFirstPage_withTextQuery_matchesLikeTextQuery() throws ParseException {
+    // Builds texts from few words so that terms, prefixes and phrases often match.
+    String[] words = {"avocado", "avocados", "apple", "receipt", "1234", "12", "total", "tax"};
+    Random random = new Random(42);
+    List<Receipt> receipts = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = random.nextInt(8); j > 0; j--) {
+        text.append(words[random.nextInt(words.length)]).append(j % 3 == 0 ? "\n" : " #");
+      }
+      receipts.add(new Receipt(i, "testID", JUNE_10_2020 + i, "img/receipt.jpg", 10, "walmart",
+          ImmutableSet.of("food"), text.toString()));
+    }
+    ReceiptIndex index = ReceiptIndex.of(receipts);
+
+    for (String text : new String[] {"avocado", "avoc*", "\"receipt 1234\"", "\"receipt 12*\"",
+             "apple tax", "\"tax total apple\" avocados", "missing", "a*"}) {
+      QueryInformation queryInformation =
+          new QueryInformation(CST_TIMEZONE_ID, "", JUNE_2020, "", "0", "100", text);
+      List<Long> expectedIds = receipts.stream()
+          .filter(receipt -> queryInformation.getTextQuery().matches(receipt.getRawText()))
+          .sorted(Comparator.comparingLong(Receipt::getTimestamp).reversed())
+          .map(Receipt::getId)
+          .collect(Collectors.toList());
+
+      Assert.assertEquals(text, expectedIds, getAllIds(index, queryInformation));
+    }
+  }
+
+  /** Returns receipts with IDs 0 to count - 1, where receipts with larger IDs are newer. */
+  private static ImmutableList<Receipt> createReceipts(int count) {
+    List<Receipt> receipts = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      receipts.add(createReceipt(i, JUNE_10_2020 + i, 10, "walmart", "food"));
+    }
+    return ImmutableList.copyOf(receipts);
+  }
+
+  private static Receipt createReceipt(
+      long id, long timestamp, double price, String store, String category) {
+    return new Receipt(id, "testID", timestamp, "img/receipt.jpg", price, store,
+        ImmutableSet.of(category), "");
+  }
+
+  /** Returns the IDs of every page of the search. */
+  private static List<Long> getAllIds(ReceiptIndex index, QueryInformation queryInformation) {
+    List<Long> ids = new ArrayList<>();
+    SearchServletResponse page = index.getFirstPage(queryInformation, 10);
+    while (!page.getMatchingReceipts().isEmpty()) {
+      ids.addAll(getIds(page));
+      page = index.getPageAfter(queryInformation, page.getEncodedCursor(), 10);
+    }
+    return ids;
+  }
+
+  private static List<Long> getIds(SearchServletResponse page) {
+    return page.getMatchingReceipts().stream()
+        .map(ReceiptSummary::getId)
+        .collect(Collectors.toList());
+  }
+
+  /** Returns the IDs from start to end, exclusive, of receipts made by createReceipts. */
+  private static List<Long> getIdsNewestFirst(long start, long end) {
+    return LongStream.range(start, end).map(id -> start + end - 1 - id).boxed()
+        .collect(Collectors.toList());
+  }
+}
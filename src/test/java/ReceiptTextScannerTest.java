@@ -0,0 +1,85 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.servlets.ReceiptTextScanner;
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class ReceiptTextScannerTest {
+  // The regex the scanner replaced, used to check that it finds the same prices.
+  private static final Pattern PRICE_REGEX = Pattern.compile("\\$?\\d+\\.\\d\\d");
+
+  @Test
+  public void scan_returnsLargestPriceInCents() {
+    ReceiptTextScanner scanner = ReceiptTextScanner.scan("Burger $5.89\nFries 2.10\tTotal $12.77");
+
+    Assert.assertTrue(scanner.hasPrice());
+    Assert.assertEquals(1277, scanner.getLargestPriceCents());
+  }
+
+  @Test
+  public void scan_malformedPrices_returnsNoPrice() {
+    ReceiptTextScanner scanner = ReceiptTextScanner.scan("$.99 5.9 $5.999 5,99 $$5.99 5.99$");
+
+    Assert.assertFalse(scanner.hasPrice());
+  }
+
+  @Test
+  public void scan_emptyText_returnsNoPrice() {
+    ReceiptTextScanner scanner = ReceiptTextScanner.scan("");
+
+    Assert.assertFalse(scanner.hasPrice());
+  }
+
+  @Test
+  public void scan_randomText_matchesRegexTokenization() {
+    // Builds text from characters that appear in prices so that many tokens nearly match.
+    String alphabet = "0123456789.$ \n\ta";
+    Random random = new Random(42);
+
+    for (int i = 0; i < 2000; i++) {
+      StringBuilder text = new StringBuilder();
+      int length = random.nextInt(40);
+      for (int j = 0; j < length; j++) {
+        text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+      }
+
+      assertMatchesRegex(text.toString());
+    }
+  }
+
+  /** Checks that the scanner finds the same largest price as the regex. */
+  private static void assertMatchesRegex(String text) {
+    ReceiptTextScanner scanner = ReceiptTextScanner.scan(text);
+
+    double expectedPrice = Stream.of(text.split("\\s"))
+                               .filter(token -> PRICE_REGEX.matcher(token).matches())
+                               .mapToDouble(token -> Double.parseDouble(token.replace("$", "")))
+                               .reduce(Double.NEGATIVE_INFINITY, Double::max);
+
+    if (expectedPrice == Double.NEGATIVE_INFINITY) {
+      Assert.assertFalse(text, scanner.hasPrice());
+    } else {
+      Assert.assertEquals(text, expectedPrice, scanner.getLargestPriceCents() / 100.0, 0);
+    }
+  }
+}
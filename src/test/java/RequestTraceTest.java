@@ -0,0 +1,166 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.sps.servlets.RequestTrace;
+import com.google.sps.servlets.RequestTracer;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class RequestTraceTest {
+  private static final long NEVER_SLOW_MILLIS = Long.MAX_VALUE / 1_000_000;
+
+  private Optional<RequestTrace> trace = Optional.empty();
+
+  @After
+  public void tearDown() {
+    // Removes the trace from the test thread if a test failed before finishing it.
+    trace.ifPresent(unfinishedTrace -> new RequestTracer(0, 0, () -> 0).finish(unfinishedTrace, 0));
+  }
+
+  @Test
+  public void startSpan_noTrace_recordsNothing() {
+    int span = RequestTrace.startSpan("query");
+    RequestTrace.endSpan(span);
+
+    Assert.assertEquals(RequestTrace.NO_SPAN, span);
+  }
+
+  @Test
+  public void begin_notSampledAndNoThreshold_returnsEmpty() {
+    RequestTracer tracer = new RequestTracer(0, 0.5, () -> 0.7);
+
+    Assert.assertFalse(tracer.begin("GET /search-receipts").isPresent());
+    Assert.assertEquals(RequestTrace.NO_SPAN, RequestTrace.startSpan("query"));
+  }
+
+  @Test
+  public void finish_fastRequestNotSampled_returnsEmpty() {
+    RequestTracer tracer = new RequestTracer(NEVER_SLOW_MILLIS, 0, () -> 0);
+    trace = tracer.begin("GET /search-receipts");
+
+    RequestTrace.endSpan(RequestTrace.startSpan("query"));
+
+    Assert.assertFalse(tracer.finish(trace.get(), 200).isPresent());
+    Assert.assertEquals(RequestTrace.NO_SPAN, RequestTrace.startSpan("query"));
+  }
+
+  @Test
+  public void finish_sampled_returnsSpanTree() {
+    RequestTracer tracer = new RequestTracer(NEVER_SLOW_MILLIS, 0.5, () -> 0.2);
+    trace = tracer.begin("POST /upload-receipt");
+
+    int analysisSpan = RequestTrace.startSpan("analysis");
+    RequestTrace.endSpan(RequestTrace.startSpan("blob_read"));
+    RequestTrace.endSpan(analysisSpan);
+    RequestTrace.endSpan(RequestTrace.startSpan("json"));
+    JsonObject json = parse(tracer.finish(trace.get(), 200));
+
+    Assert.assertEquals("POST /upload-receipt", json.get("trace").getAsString());
+    Assert.assertEquals(200, json.get("status").getAsInt());
+    Assert.assertTrue(json.get("sampled").getAsBoolean());
+    JsonArray spans = json.getAsJsonArray("spans");
+    Assert.assertEquals(2, spans.size());
+    JsonObject analysis = spans.get(0).getAsJsonObject();
+    Assert.assertEquals("analysis", analysis.get("name").getAsString());
+    Assert.assertTrue(analysis.has("durationMs"));
+    Assert.assertEquals("blob_read",
+        analysis.getAsJsonArray("spans").get(0).getAsJsonObject().get("name").getAsString());
+    Assert.assertEquals("json", spans.get(1).getAsJsonObject().get("name").getAsString());
+    Assert.assertFalse(spans.get(1).getAsJsonObject().has("spans"));
+  }
+
+  @Test
+  public void finish_slowRequest_marksUnfinishedSpans() {
+    RequestTracer tracer = new RequestTracer(1, 0, () -> 0);
+    trace = tracer.begin("GET /compute-analytics");
+
+    RequestTrace.startSpan("analytics_query");
+    sleep(5);
+    JsonObject json = parse(tracer.finish(trace.get(), 500));
+
+    Assert.assertFalse(json.get("sampled").getAsBoolean());
+    Assert.assertTrue(json.get("durationMs").getAsDouble() >= 5);
+    JsonObject span = json.getAsJsonArray("spans").get(0).getAsJsonObject();
+    Assert.assertTrue(span.get("unfinished").getAsBoolean());
+  }
+
+  @Test
+  public void callInSpan_otherThread_nestsUnderParent() throws Exception {
+    RequestTracer tracer = new RequestTracer(NEVER_SLOW_MILLIS, 1, () -> 0);
+    trace = tracer.begin("POST /upload-receipt");
+
+    int analysisSpan = RequestTrace.startSpan("analysis");
+    RequestTrace.Parent parent = RequestTrace.currentParent();
+    CompletableFuture
+        .supplyAsync(() -> {
+          try {
+            return RequestTrace.callInSpan(parent, "text", () -> {
+              RequestTrace.endSpan(RequestTrace.startSpan("vision_call"));
+              return null;
+            });
+          } catch (Exception e) {
+            throw new AssertionError(e);
+          }
+        })
+        .get();
+    RequestTrace.endSpan(analysisSpan);
+    JsonObject json = parse(tracer.finish(trace.get(), 200));
+
+    JsonObject analysis = json.getAsJsonArray("spans").get(0).getAsJsonObject();
+    JsonObject text = analysis.getAsJsonArray("spans").get(0).getAsJsonObject();
+    Assert.assertEquals("text", text.get("name").getAsString());
+    Assert.assertEquals("vision_call",
+        text.getAsJsonArray("spans").get(0).getAsJsonObject().get("name").getAsString());
+  }
+
+  @Test
+  public void startSpan_beyondLimit_countsDroppedSpans() {
+    RequestTracer tracer = new RequestTracer(NEVER_SLOW_MILLIS, 1, () -> 0);
+    trace = tracer.begin("GET /search-receipts");
+
+    for (int i = 0; i < 300; i++) {
+      RequestTrace.endSpan(RequestTrace.startSpan("query"));
+    }
+    JsonObject json = parse(tracer.finish(trace.get(), 200));
+
+    Assert.assertEquals(256, json.getAsJsonArray("spans").size());
+    Assert.assertEquals(44, json.get("droppedSpans").getAsInt());
+  }
+
+  private JsonObject parse(Optional<String> line) {
+    trace = Optional.empty();
+    Assert.assertTrue(line.isPresent());
+    Assert.assertFalse(line.get().contains("\n"));
+    return JsonParser.parseString(line.get()).getAsJsonObject();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,239 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.language.v1.ClassifyTextRequest;
+import com.google.cloud.language.v1.ClassifyTextResponse;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.common.collect.ImmutableList;
+import com.google.sps.servlets.AnalysisBackend;
+import com.google.sps.servlets.CallDeadline;
+import com.google.sps.servlets.CircuitBreaker;
+import com.google.sps.servlets.ResilientAnalysisBackend;
+import io.grpc.Status;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class ResilientAnalysisBackendTest {
+  private static final List<AnnotateImageRequest> IMAGE_REQUESTS =
+      ImmutableList.of(AnnotateImageRequest.getDefaultInstance());
+  private static final ClassifyTextRequest TEXT_REQUEST = ClassifyTextRequest.getDefaultInstance();
+  private static final Duration TIMEOUT = Duration.ofSeconds(10);
+  private static final long RESERVE_MILLIS = 2000;
+
+  private final StubBackend stub = new StubBackend();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private ResilientAnalysisBackend backend;
+
+  @After
+  public void tearDown() {
+    stub.release.countDown();
+    executor.shutdownNow();
+    if (backend != null) {
+      backend.close();
+    }
+  }
+
+  @Test
+  public void classifyText_noRequestDeadline_usesGivenTimeout() throws IOException {
+    backend = createBackend(/* bulkheadSize = */ 4, /* hedgeDelayMillis = */ 0);
+
+    backend.classifyText(TEXT_REQUEST, TIMEOUT);
+
+    Assert.assertEquals(TIMEOUT, stub.lastTimeout);
+  }
+
+  @Test
+  public void classifyText_requestDeadline_cutsTimeoutToLeaveReserve() throws Exception {
+    backend = createBackend(4, 0);
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+    CallDeadline.callWithDeadline(deadlineNanos, () -> backend.classifyText(TEXT_REQUEST, TIMEOUT));
+
+    Assert.assertTrue(stub.lastTimeout.toMillis() <= 5000 - RESERVE_MILLIS);
+    Assert.assertTrue(stub.lastTimeout.toMillis() > 0);
+  }
+
+  @Test
+  public void classifyText_requestOutOfTime_failsWithoutCalling() throws Exception {
+    backend = createBackend(4, 0);
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RESERVE_MILLIS);
+
+    try {
+      CallDeadline.callWithDeadline(
+          deadlineNanos, () -> backend.classifyText(TEXT_REQUEST, TIMEOUT));
+      Assert.fail("Expected the call to be rejected.");
+    } catch (ApiException e) {
+      Assert.assertEquals(StatusCode.Code.DEADLINE_EXCEEDED, e.getStatusCode().getCode());
+    }
+
+    Assert.assertEquals(0, stub.calls.get());
+  }
+
+  @Test
+  public void classifyText_breakerOpen_failsFastWithoutCalling() throws IOException {
+    backend = createBackend(4, 0);
+    stub.failure = Status.Code.UNAVAILABLE;
+    for (int i = 0; i < 2; i++) {
+      assertFailsWith(StatusCode.Code.UNAVAILABLE);
+    }
+
+    assertFailsWith(StatusCode.Code.UNAVAILABLE);
+
+    Assert.assertEquals(2, stub.calls.get());
+    // Cloud Vision has its own breaker, which is still closed.
+    stub.failure = null;
+    backend.batchAnnotateImages(IMAGE_REQUESTS, TIMEOUT);
+  }
+
+  @Test
+  public void classifyText_clientErrors_doNotOpenBreaker() throws IOException {
+    backend = createBackend(4, 0);
+    stub.failure = Status.Code.INVALID_ARGUMENT;
+
+    for (int i = 0; i < 4; i++) {
+      assertFailsWith(StatusCode.Code.INVALID_ARGUMENT);
+    }
+
+    Assert.assertEquals(4, stub.calls.get());
+  }
+
+  @Test
+  public void classifyText_bulkheadFull_rejectsCall() throws Exception {
+    backend = createBackend(2, 0);
+    stub.blockCalls = true;
+    for (int i = 0; i < 2; i++) {
+      executor.submit(() -> backend.classifyText(TEXT_REQUEST, TIMEOUT));
+    }
+    Assert.assertTrue(stub.started.await(5, TimeUnit.SECONDS));
+
+    assertFailsWith(StatusCode.Code.RESOURCE_EXHAUSTED);
+
+    Assert.assertEquals(2, stub.calls.get());
+  }
+
+  @Test
+  public void batchAnnotateImages_slowCall_returnsHedgedResponse() throws IOException {
+    backend = createBackend(4, /* hedgeDelayMillis = */ 20);
+    // Only the first call blocks, so the hedged call answers first.
+    stub.blockFirstCall = true;
+
+    long start = System.nanoTime();
+    BatchAnnotateImagesResponse response = backend.batchAnnotateImages(IMAGE_REQUESTS, TIMEOUT);
+
+    Assert.assertEquals(1, response.getResponsesCount());
+    Assert.assertEquals(2, stub.calls.get());
+    Assert.assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+  }
+
+  @Test
+  public void batchAnnotateImages_hedgedCalls_runWithRequestDeadline() throws Exception {
+    backend = createBackend(4, /* hedgeDelayMillis = */ 20);
+    stub.blockFirstCall = true;
+    long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+
+    CallDeadline.callWithDeadline(
+        deadlineNanos, () -> backend.batchAnnotateImages(IMAGE_REQUESTS, TIMEOUT));
+
+    Assert.assertEquals(deadlineNanos, stub.lastDeadlineNanos);
+  }
+
+  private ResilientAnalysisBackend createBackend(int bulkheadSize, long hedgeDelayMillis) {
+    // Each breaker opens once two of its calls failed.
+    // Tests do not run in a request, so hedged calls run on plain threads.
+    return new ResilientAnalysisBackend(stub, createBreaker("Vision"), bulkheadSize,
+        createBreaker("Language"), bulkheadSize, RESERVE_MILLIS, hedgeDelayMillis,
+        Executors::defaultThreadFactory);
+  }
+
+  private static CircuitBreaker createBreaker(String name) {
+    return new CircuitBreaker(name, 10, 2, 1, 60_000, System::nanoTime);
+  }
+
+  private void assertFailsWith(StatusCode.Code code) throws IOException {
+    try {
+      backend.classifyText(TEXT_REQUEST, TIMEOUT);
+      Assert.fail("Expected the call to fail with " + code);
+    } catch (ApiException e) {
+      Assert.assertEquals(code, e.getStatusCode().getCode());
+    }
+  }
+
+  /** Backend that records its calls and can fail or block them. */
+  private static class StubBackend implements AnalysisBackend {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch started = new CountDownLatch(2);
+    // Blocked calls wait for this latch or for an interrupt.
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile Duration lastTimeout;
+    private volatile long lastDeadlineNanos;
+    private volatile Status.Code failure;
+    private volatile boolean blockCalls;
+    private volatile boolean blockFirstCall;
+
+    @Override
+    public BatchAnnotateImagesResponse batchAnnotateImages(
+        List<AnnotateImageRequest> requests, Duration timeout) throws IOException {
+      simulateCall(timeout);
+      return BatchAnnotateImagesResponse.newBuilder()
+          .addResponses(AnnotateImageResponse.getDefaultInstance())
+          .build();
+    }
+
+    @Override
+    public ClassifyTextResponse classifyText(ClassifyTextRequest request, Duration timeout)
+        throws IOException {
+      simulateCall(timeout);
+      return ClassifyTextResponse.getDefaultInstance();
+    }
+
+    private void simulateCall(Duration timeout) throws IOException {
+      int call = calls.incrementAndGet();
+      lastTimeout = timeout;
+      lastDeadlineNanos = CallDeadline.getDeadlineNanos();
+      started.countDown();
+
+      if (blockCalls || (blockFirstCall && call == 1)) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Call was cancelled.", e);
+        }
+      }
+
+      if (failure != null) {
+        throw new ApiException(null, GrpcStatusCode.of(failure), false);
+      }
+    }
+  }
+}
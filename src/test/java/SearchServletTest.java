@@ -14,6 +14,9 @@
 
 package com.google.sps;
 
+import static java.util.stream.Collectors.toList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -22,6 +25,7 @@ import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
 import com.google.common.collect.ImmutableList;
@@ -30,14 +34,21 @@ import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.sps.data.Receipt;
+import com.google.sps.servlets.DeleteReceiptServlet;
+import com.google.sps.servlets.ReceiptIndexes;
+import com.google.sps.servlets.SearchResultsCache;
 import com.google.sps.servlets.SearchServlet;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -73,7 +84,8 @@ public final class SearchServletTest {
   // Local Datastore
   private final LocalServiceTestHelper helper =
       new LocalServiceTestHelper(
-          new LocalDatastoreServiceTestConfig(), new LocalUserServiceTestConfig())
+          new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig(),
+          new LocalUserServiceTestConfig())
           .setEnvIsLoggedIn(true)
           .setEnvEmail(USER_EMAIL)
           .setEnvAuthDomain(DOMAIN_NAME)
@@ -107,6 +119,10 @@ public final class SearchServletTest {
   @After
   public void tearDown() {
     helper.tearDown();
+    System.clearProperty("receiptAnalysis.searchIndexBudgetBytes");
+    ReceiptIndexes.clear();
+    System.clearProperty("receiptAnalysis.searchCacheTtlSeconds");
+    SearchResultsCache.clear();
   }
 
   @Test
@@ -406,4 +422,315 @@ public final class SearchServletTest {
 
     Assert.assertTrue(TestUtils.checkIdsMatch(expectedFirstPage, returnedFirstPage));
   }
+
+  @Test
+  public void paginationWithPriceRange_fillsEveryPage() throws IOException {
+    // Adds 30 receipts that alternate between prices inside and outside of $5.00-$30.00, so a
+    // batch of 10 entities only holds 5 matching receipts.
+    ImmutableList.Builder<Entity> matchingReceipts = ImmutableList.builder();
+    for (int i = 0; i < 30; i++) {
+      double price = i % 2 == 0 ? 10.00 : 50.00;
+      Entity receipt = TestUtils.addTestReceipt(datastore, USER_ID,
+          /* timestamp = */ 1045237591000L - i, "img/walmart-receipt.jpg", price, STORE,
+          ImmutableSet.of(CATEGORY), "");
+      if (price == 10.00) {
+        matchingReceipts.add(receipt);
+      }
+    }
+    ImmutableList<Entity> expectedReceipts = matchingReceipts.build();
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, "", SHORT_DATE_RANGE, "", MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    String firstResponse = stringWriter.toString();
+    Receipt[] returnedFirstPage =
+        gson.fromJson(TestUtils.getReceiptsString(firstResponse), Receipt[].class);
+    Assert.assertTrue(TestUtils.checkIdsMatch(expectedReceipts.subList(0, 10), returnedFirstPage));
+    Assert.assertFalse(new JSONObject(firstResponse).getBoolean("scanLimitReached"));
+
+    // The next page starts right after the last receipt read for the first page.
+    when(request.getParameter("getNextPage")).thenReturn("true");
+    when(request.getParameter("encodedCursor"))
+        .thenReturn(new JSONObject(firstResponse).getString("encodedCursor"));
+
+    stringWriter.getBuffer().setLength(0); // Clear stringwriter of last receipts.
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Receipt[] returnedSecondPage =
+        gson.fromJson(TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertTrue(
+        TestUtils.checkIdsMatch(expectedReceipts.subList(10, 15), returnedSecondPage));
+  }
+
+  @Test
+  public void pageEndsAtScanLimit_marksScanLimitReached() throws IOException {
+    // No receipt is in the price range, so the page reads the default limit of 1000 entities.
+    List<Entity> receipts = new ArrayList<>();
+    for (int i = 0; i < 1001; i++) {
+      receipts.add(TestUtils.createEntity(USER_ID, /* timestamp = */ 1045237591000L - i,
+          "img/walmart-receipt.jpg", 50.00, STORE, ImmutableSet.of(CATEGORY), ""));
+    }
+    datastore.put(receipts);
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, "", SHORT_DATE_RANGE, "", MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject page = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(0, page.getJSONArray("matchingReceipts").length());
+    Assert.assertTrue(page.getBoolean("scanLimitReached"));
+  }
+
+  @Test
+  public void queryWithText_returnsReceiptsWithMatchingText() throws IOException {
+    Entity avocadoReceipt = TestUtils.addTestReceipt(datastore, USER_ID, 1045237591000L,
+        "img/walmart-receipt.jpg", 10.00, STORE, ImmutableSet.of(CATEGORY),
+        "Organic Avocados $2.50\nReceipt #1234");
+    TestUtils.addTestReceipt(datastore, USER_ID, 1045237591001L, "img/walmart-receipt.jpg",
+        10.00, STORE, ImmutableSet.of(CATEGORY), "Bananas $1.50\nReceipt #1235");
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, "", SHORT_DATE_RANGE, "", MIN_PRICE, MAX_PRICE);
+    when(request.getParameter("text")).thenReturn("avoc* \"receipt 1234\"");
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Receipt[] returnedReceipts =
+        gson.fromJson(TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertTrue(
+        TestUtils.checkIdsMatch(ImmutableList.of(avocadoReceipt), returnedReceipts));
+    // Search results leave out the raw text, which is loaded with the receipt's details.
+    Assert.assertFalse(stringWriter.toString().contains("rawText"));
+  }
+
+  @Test
+  public void searchIndex_pagesWithFiltersAndSeesChanges() throws IOException {
+    System.setProperty("receiptAnalysis.searchIndexBudgetBytes", "1000000");
+    ReceiptIndexes.clear();
+
+    // Same receipts as paginationWithPriceRange_fillsEveryPage.
+    ImmutableList.Builder<Entity> matchingReceipts = ImmutableList.builder();
+    for (int i = 0; i < 30; i++) {
+      double price = i % 2 == 0 ? 10.00 : 50.00;
+      Entity receipt = TestUtils.addTestReceipt(datastore, USER_ID,
+          /* timestamp = */ 1045237591000L - i, "img/walmart-receipt.jpg", price, STORE,
+          ImmutableSet.of(CATEGORY), "");
+      if (price == 10.00) {
+        matchingReceipts.add(receipt);
+      }
+    }
+    ImmutableList<Entity> expectedReceipts = matchingReceipts.build();
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    String firstResponse = stringWriter.toString();
+    Receipt[] returnedFirstPage =
+        gson.fromJson(TestUtils.getReceiptsString(firstResponse), Receipt[].class);
+    Assert.assertTrue(TestUtils.checkIdsMatch(expectedReceipts.subList(0, 10), returnedFirstPage));
+
+    // The first receipt of the next page is deleted after the index was loaded.
+    long deletedId = expectedReceipts.get(10).getKey().getId();
+    datastore.delete(expectedReceipts.get(10).getKey());
+    ReceiptIndexes.removeReceipt(deletedId);
+
+    when(request.getParameter("getNextPage")).thenReturn("true");
+    when(request.getParameter("encodedCursor"))
+        .thenReturn(new JSONObject(firstResponse).getString("encodedCursor"));
+
+    stringWriter.getBuffer().setLength(0); // Clear stringwriter of last receipts.
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Receipt[] returnedSecondPage =
+        gson.fromJson(TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertTrue(
+        TestUtils.checkIdsMatch(expectedReceipts.subList(11, 15), returnedSecondPage));
+    Assert.assertEquals(1, ReceiptIndexes.getMissCount());
+    Assert.assertEquals(1, ReceiptIndexes.getHitCount());
+  }
+
+  @Test
+  public void tooManyCategoryAndStorePairs_returnsBadRequestFromDatastore() throws IOException {
+    // 6 categories and 6 stores make 36 queries, more than Datastore merges.
+    TestUtils.setSearchServletRequestParameters(request, CST_TIMEZONE_ID, "a,b,c,d,e,f",
+        SHORT_DATE_RANGE, "g,h,i,j,k,l", MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Assert.assertTrue(stringWriter.toString().contains("Too Many Filters"));
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Test
+  public void tooManyCategoryAndStorePairs_searchesIndex() throws IOException {
+    System.setProperty("receiptAnalysis.searchIndexBudgetBytes", "1000000");
+    ReceiptIndexes.clear();
+    Entity expectedReceipt = TestUtils.addTestReceipt(datastore, USER_ID, 1045237591000L,
+        "img/walmart-receipt.jpg", 10.00, STORE, ImmutableSet.of(CATEGORY), "");
+
+    // 6 categories and 6 stores, which the index searches without a query per pair.
+    TestUtils.setSearchServletRequestParameters(request, CST_TIMEZONE_ID,
+        CATEGORY + ",b,c,d,e,f", SHORT_DATE_RANGE, STORE + ",h,i,j,k,l", MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Receipt[] returnedReceipts =
+        gson.fromJson(TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertTrue(
+        TestUtils.checkIdsMatch(ImmutableList.of(expectedReceipt), returnedReceipts));
+    verify(response, never()).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Test
+  public void searchIndex_malformedCursor_returnsFirstPage() throws IOException {
+    System.setProperty("receiptAnalysis.searchIndexBudgetBytes", "1000000");
+    ReceiptIndexes.clear();
+    Entity expectedReceipt = TestUtils.addTestReceipt(datastore, USER_ID, 1045237591000L,
+        "img/walmart-receipt.jpg", 10.00, STORE, ImmutableSet.of(CATEGORY), "");
+
+    for (String cursor : ImmutableList.of("index:x", "index:1", "index:1:y")) {
+      TestUtils.setSearchServletRequestParameters(
+          request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
+      when(request.getParameter("getNextPage")).thenReturn("true");
+      when(request.getParameter("encodedCursor")).thenReturn(cursor);
+      stringWriter.getBuffer().setLength(0);
+
+      servlet.doGet(request, response);
+      writer.flush();
+
+      Receipt[] returnedReceipts =
+          gson.fromJson(TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+      Assert.assertTrue(
+          TestUtils.checkIdsMatch(ImmutableList.of(expectedReceipt), returnedReceipts));
+    }
+    verify(response, never()).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Test
+  public void searchCache_repeatedSearchIsCachedUntilReceiptsChange() throws IOException {
+    System.setProperty("receiptAnalysis.searchCacheTtlSeconds", "60");
+    SearchResultsCache.clear();
+
+    Entity walmartReceipt = TestUtils.addTestReceipt(datastore, USER_ID, 1045237591000L,
+        "img/walmart-receipt.jpg", 10.00, STORE, ImmutableSet.of(CATEGORY), "");
+    Entity targetReceipt = TestUtils.addTestReceipt(datastore, USER_ID, 1045237592000L,
+        "img/target-receipt.jpg", 20.00, "target", ImmutableSet.of(CATEGORY), "");
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, "", MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+    String firstResponse = stringWriter.toString();
+
+    // A receipt deleted without going through a servlet is still returned from the cache.
+    datastore.delete(targetReceipt.getKey());
+    stringWriter.getBuffer().setLength(0);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Assert.assertEquals(firstResponse, stringWriter.toString());
+    Assert.assertEquals(1, SearchResultsCache.getMissCount());
+    Assert.assertEquals(1, SearchResultsCache.getMemoryHitCount());
+
+    // Deleting a receipt through the servlet makes the cached pages stale.
+    HttpServletRequest deleteRequest = mock(HttpServletRequest.class);
+    when(deleteRequest.getParameter("id"))
+        .thenReturn(String.valueOf(walmartReceipt.getKey().getId()));
+    new DeleteReceiptServlet(datastore).doPost(deleteRequest, response);
+
+    stringWriter.getBuffer().setLength(0);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Receipt[] returnedReceipts =
+        gson.fromJson(TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertEquals(0, returnedReceipts.length);
+    Assert.assertEquals(2, SearchResultsCache.getMissCount());
+  }
+
+  @Test
+  public void severalCategories_pagesMergedQueriesNewestFirstWithoutDuplicates()
+      throws IOException {
+    // Receipts two at a time share a timestamp, and every third receipt has both categories.
+    ImmutableList<ImmutableSet<String>> categories = ImmutableList.of(ImmutableSet.of("drink"),
+        ImmutableSet.of("food"), ImmutableSet.of("drink", "food"), ImmutableSet.of("candy"));
+    List<Entity> matchingReceipts = new ArrayList<>();
+    for (int i = 0; i < 28; i++) {
+      Entity receipt = TestUtils.addTestReceipt(datastore, USER_ID,
+          /* timestamp = */ 1045237591000L - i / 2, "img/walmart-receipt.jpg", 10.00, STORE,
+          categories.get(i % 4), "");
+      if (i % 4 != 3) {
+        matchingReceipts.add(receipt);
+      }
+    }
+    matchingReceipts.sort(Comparator.comparing((Entity receipt) -> (Long) receipt.getProperty(
+        "timestamp")).thenComparing(Entity::getKey).reversed());
+    List<Long> expectedIds =
+        matchingReceipts.stream().map(receipt -> receipt.getKey().getId()).collect(toList());
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, "drink, food", SHORT_DATE_RANGE, "", MIN_PRICE, MAX_PRICE);
+    List<Long> returnedIds = new ArrayList<>();
+    List<String> cursors = new ArrayList<>();
+
+    for (int page = 0; page < 3; page++) {
+      stringWriter.getBuffer().setLength(0);
+      servlet.doGet(request, response);
+      writer.flush();
+
+      String cursor = new JSONObject(stringWriter.toString()).getString("encodedCursor");
+      for (Receipt receipt : gson.fromJson(
+               TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class)) {
+        returnedIds.add(receipt.getId());
+      }
+      cursors.add(cursor);
+      when(request.getParameter("getNextPage")).thenReturn("true");
+      when(request.getParameter("encodedCursor")).thenReturn(cursor);
+    }
+
+    Assert.assertEquals(expectedIds, returnedIds);
+
+    // The previous page is the first page up to the cursor, like for a single query.
+    when(request.getParameter("getNextPage")).thenReturn("false");
+    when(request.getParameter("getPreviousPage")).thenReturn("true");
+    when(request.getParameter("encodedCursor")).thenReturn(cursors.get(1));
+    stringWriter.getBuffer().setLength(0);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Receipt[] returnedPreviousPage =
+        gson.fromJson(TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertEquals(expectedIds.subList(0, 10),
+        Arrays.stream(returnedPreviousPage).map(Receipt::getId).collect(toList()));
+  }
+
+  @Test
+  public void severalCategoriesAndStores_matchesAnyCategoryAtAnyStore() throws IOException {
+    Entity walmartDrink = TestUtils.addTestReceipt(datastore, USER_ID, 1045237591000L,
+        "img/walmart-receipt.jpg", 10.00, "walmart", ImmutableSet.of("drink"), "");
+    Entity targetFood = TestUtils.addTestReceipt(datastore, USER_ID, 1045237592000L,
+        "img/target-receipt.jpg", 10.00, "target", ImmutableSet.of("food"), "");
+    TestUtils.addTestReceipt(datastore, USER_ID, 1045237593000L, "img/target-receipt.jpg", 10.00,
+        "target", ImmutableSet.of("candy"), "");
+    TestUtils.addTestReceipt(datastore, USER_ID, 1045237594000L, "img/costco-receipt.jpg", 10.00,
+        "costco", ImmutableSet.of("drink"), "");
+
+    TestUtils.setSearchServletRequestParameters(request, CST_TIMEZONE_ID, "food,drink",
+        SHORT_DATE_RANGE, "walmart, target", MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Receipt[] returnedReceipts =
+        gson.fromJson(TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertEquals(
+        ImmutableList.of(targetFood.getKey().getId(), walmartDrink.getKey().getId()),
+        Arrays.stream(returnedReceipts).map(Receipt::getId).collect(toList()));
+  }
 }
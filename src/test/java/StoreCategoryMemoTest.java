@@ -0,0 +1,134 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.StoreCategoryMemo;
+import java.util.Optional;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class StoreCategoryMemoTest {
+  private static final String STORE = "Walmart";
+  private static final ImmutableSet<String> CATEGORIES = ImmutableSet.of("Food", "Groceries");
+  // Default number of receipts a store needs before it is memoized.
+  private static final int MIN_OBSERVATIONS = 5;
+
+  // Uses local Datastore.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    StoreCategoryMemo.clearMemory();
+    helper.tearDown();
+  }
+
+  @Test
+  public void lookup_tooFewReceipts_returnsEmptyAndCountsMiss() {
+    record(STORE, CATEGORIES, MIN_OBSERVATIONS - 1);
+    long misses = StoreCategoryMemo.getMissCount();
+
+    Assert.assertEquals(Optional.empty(), StoreCategoryMemo.lookup(STORE).getCategories());
+    Assert.assertEquals(misses + 1, StoreCategoryMemo.getMissCount());
+  }
+
+  @Test
+  public void lookup_consistentCategories_returnsCategoriesAndCountsHit() {
+    record(STORE, CATEGORIES, MIN_OBSERVATIONS);
+    long hits = StoreCategoryMemo.getHitCount();
+
+    Assert.assertEquals(Optional.of(CATEGORIES), StoreCategoryMemo.lookup(STORE).getCategories());
+    Assert.assertEquals(hits + 1, StoreCategoryMemo.getHitCount());
+    Assert.assertTrue(StoreCategoryMemo.getHitRate() > 0);
+  }
+
+  @Test
+  public void lookup_unsanitizedStoreName_usesSanitizedKey() {
+    record("  WALMART ", CATEGORIES, MIN_OBSERVATIONS);
+
+    Assert.assertEquals(
+        Optional.of(CATEGORIES), StoreCategoryMemo.lookup("walmart").getCategories());
+  }
+
+  @Test
+  public void lookup_rareCategory_returnsCommonCategories() {
+    record(STORE, CATEGORIES, 9);
+    record(STORE, ImmutableSet.of("Food", "Groceries", "Pharmacy"), 1);
+
+    Assert.assertEquals(Optional.of(CATEGORIES), StoreCategoryMemo.lookup(STORE).getCategories());
+  }
+
+  @Test
+  public void lookup_inconsistentCategories_returnsEmpty() {
+    record(STORE, CATEGORIES, 3);
+    record(STORE, ImmutableSet.of("Pharmacy"), 3);
+
+    Assert.assertEquals(Optional.empty(), StoreCategoryMemo.lookup(STORE).getCategories());
+  }
+
+  @Test
+  public void lookup_afterMemoryCleared_readsDatastore() {
+    record(STORE, CATEGORIES, MIN_OBSERVATIONS);
+    StoreCategoryMemo.clearMemory();
+
+    Assert.assertEquals(Optional.of(CATEGORIES), StoreCategoryMemo.lookup(STORE).getCategories());
+  }
+
+  @Test
+  public void lookup_memoizedStore_callsApiEveryTwentiethLookup() {
+    record(STORE, CATEGORIES, MIN_OBSERVATIONS);
+
+    int misses = 0;
+    for (int i = 0; i < 40; i++) {
+      if (StoreCategoryMemo.lookup(STORE).isVerificationDue()) {
+        misses++;
+      }
+    }
+
+    Assert.assertEquals(2, misses);
+  }
+
+  @Test
+  public void lookup_unknownStore_isNotDueForVerification() {
+    Assert.assertFalse(StoreCategoryMemo.lookup(STORE).isVerificationDue());
+  }
+
+  @Test
+  public void record_emptyCategories_isIgnored() {
+    record(STORE, CATEGORIES, MIN_OBSERVATIONS);
+    record(STORE, ImmutableSet.of(), MIN_OBSERVATIONS);
+
+    Assert.assertEquals(Optional.of(CATEGORIES), StoreCategoryMemo.lookup(STORE).getCategories());
+  }
+
+  private static void record(String store, ImmutableSet<String> categories, int times) {
+    for (int i = 0; i < times; i++) {
+      StoreCategoryMemo.record(store, categories);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.common.collect.ImmutableList;
+import com.google.sps.data.TextQuery;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class TextQueryTest {
+  private static final String RAW_TEXT = "CAFÉ Mercado\nOrganic Avocados 2 @ $1.25\nReceipt #1234";
+
+  @Test
+  public void tokenize_splitsAtSymbolsAndNormalizes() {
+    Assert.assertEquals(ImmutableList.of("cafe", "mercado", "organic", "avocados", "2", "1", "25",
+                            "receipt", "1234"),
+        TextQuery.tokenize(RAW_TEXT));
+  }
+
+  @Test
+  public void parse_readsTermsPrefixesAndPhrases() {
+    TextQuery query = TextQuery.parse("avocado  \"receipt #12*\" t-shirt \"\" caf*");
+
+    Assert.assertEquals(4, query.getClauses().size());
+    assertClause(query.getClauses().get(0), false, "avocado");
+    assertClause(query.getClauses().get(1), true, "receipt", "12");
+    assertClause(query.getClauses().get(2), false, "t", "shirt");
+    assertClause(query.getClauses().get(3), true, "caf");
+  }
+
+  @Test
+  public void matches_requiresEveryClause() {
+    Assert.assertTrue(TextQuery.parse("avocados").matches(RAW_TEXT));
+    Assert.assertTrue(TextQuery.parse("avoc* \"receipt 1234\"").matches(RAW_TEXT));
+    Assert.assertTrue(TextQuery.parse("\"organic avoc*\" café").matches(RAW_TEXT));
+    Assert.assertTrue(TextQuery.parse("$1.25").matches(RAW_TEXT));
+    Assert.assertFalse(TextQuery.parse("avocado").matches(RAW_TEXT));
+    Assert.assertFalse(TextQuery.parse("avocados bananas").matches(RAW_TEXT));
+    Assert.assertFalse(TextQuery.parse("\"avocados organic\"").matches(RAW_TEXT));
+  }
+
+  @Test
+  public void emptyQuery_matchesEverything() {
+    Assert.assertTrue(TextQuery.parse(" \"\" # ").isEmpty());
+    Assert.assertTrue(TextQuery.empty().matches(""));
+  }
+
+  private static void assertClause(
+      TextQuery.Clause clause, boolean isPrefix, String... tokens) {
+    Assert.assertEquals(ImmutableList.copyOf(tokens), clause.getTokens());
+    Assert.assertEquals(isPrefix, clause.isPrefix());
+  }
+}
@@ -14,6 +14,9 @@
 
 package com.google.sps;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -30,6 +33,9 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
@@ -38,6 +44,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
 import com.google.sps.data.AnalysisResults;
+import com.google.sps.data.ReceiptStatus;
 import com.google.sps.servlets.ReceiptAnalysis;
 import com.google.sps.servlets.ReceiptAnalysis.ReceiptAnalysisException;
 import com.google.sps.servlets.UploadReceiptServlet;
@@ -67,6 +74,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -148,6 +156,7 @@ public final class UploadReceiptServletTest {
 
   @Mock private BlobstoreService blobstoreService;
   @Mock private BlobInfoFactory blobInfoFactory;
+  @Mock private Queue analysisQueue;
   @Mock private HttpServletRequest request;
   @Mock private HttpServletResponse response;
 
@@ -171,7 +180,8 @@ public final class UploadReceiptServletTest {
     writer = new PrintWriter(stringWriter);
     when(response.getWriter()).thenReturn(writer);
 
-    servlet = new UploadReceiptServlet(blobstoreService, blobInfoFactory, datastore, clock);
+    servlet = new UploadReceiptServlet(
+        blobstoreService, blobInfoFactory, datastore, analysisQueue, clock);
   }
 
   @After
@@ -472,6 +482,51 @@ public final class UploadReceiptServletTest {
     Assert.assertEquals(roundedPrice, receipt.getProperty("price"));
   }
 
+  @Test
+  public void doPost_async_storesPendingReceiptAndQueuesAnalysis() throws IOException {
+    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
+    stubUrlComponents(
+        request, LIVE_SERVER_SCHEME, LIVE_SERVER_NAME, LIVE_SERVER_PORT, LIVE_SERVER_CONTEXT_PATH);
+    when(request.getParameter("async")).thenReturn("true");
+    mockStatic(ReceiptAnalysis.class);
+
+    servlet.doPost(request, response);
+
+    Query query = new Query("Receipt");
+    PreparedQuery results = datastore.prepare(query);
+    Entity receipt = results.asSingleEntity();
+
+    Assert.assertEquals(IMAGE_URL, receipt.getProperty("imageUrl"));
+    Assert.assertEquals(USER_ID, receipt.getProperty("userId"));
+    Assert.assertEquals(ReceiptStatus.PENDING.name(), receipt.getProperty("status"));
+    Assert.assertFalse(receipt.hasProperty("categories"));
+    verify(response).setStatus(HttpServletResponse.SC_ACCEPTED);
+
+    TaskOptions expectedTask = TaskOptions.Builder.withUrl("/process-receipt")
+                                   .param("id", Long.toString(receipt.getKey().getId()))
+                                   .param("blob-key", BLOB_KEY.getKeyString());
+    verify(analysisQueue).add(any(Transaction.class), eq(expectedTask));
+
+    // The image is analyzed by the task instead of during the upload.
+    PowerMockito.verifyStatic(ReceiptAnalysis.class, never());
+    ReceiptAnalysis.analyzeImageAt(any(BlobKey.class));
+  }
+
+  @Test
+  public void doPost_asyncUserNotLoggedIn_throwsException() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
+    when(request.getParameter("async")).thenReturn("true");
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    Assert.assertEquals(USER_NOT_LOGGED_IN_WARNING, stringWriter.toString());
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    verify(blobstoreService).delete(BLOB_KEY);
+    verify(analysisQueue, never()).add(any(Transaction.class), any(TaskOptions.class));
+  }
+
   /**
    * Adds a mock blob with the given content type, filename, and size to the mocked Blobstore.
    */
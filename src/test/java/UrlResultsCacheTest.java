@@ -0,0 +1,127 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.servlets.ImageFetcher;
+import com.google.sps.servlets.UrlResultsCache;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class UrlResultsCacheTest {
+  private static final long TTL_MILLIS = 1000;
+  private static final ByteString IMAGE = ByteString.copyFromUtf8("image");
+  private static final Optional<String> ETAG = Optional.of("\"abc\"");
+  private static final AnalysisResults COMPLETE_RESULTS =
+      new AnalysisResults.Builder()
+          .setRawText("text")
+          .setCategories(ImmutableSet.of("food"))
+          .build();
+  private static final AnalysisResults EMPTY_RESULTS = new AnalysisResults.Builder().build();
+
+  private final AtomicInteger analysisCount = new AtomicInteger();
+  private long nowNanos;
+  private URL url;
+  private ImageFetcher fetcher;
+  private UrlResultsCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    url = new URL("https://example.com/receipt.jpg");
+    fetcher = mock(ImageFetcher.class);
+    when(fetcher.fetch(url)).thenReturn(ImageFetcher.Response.of(IMAGE, ETAG, Optional.empty()));
+    cache = new UrlResultsCache(10, TTL_MILLIS, () -> nowNanos);
+  }
+
+  @Test
+  public void analyze_freshResults_skipsFetch() throws IOException {
+    cache.analyze(url, fetcher, this::analyzeComplete);
+    advanceMillis(TTL_MILLIS - 1);
+    AnalysisResults results = cache.analyze(url, fetcher, this::analyzeComplete);
+
+    Assert.assertSame(COMPLETE_RESULTS, results);
+    Assert.assertEquals(1, analysisCount.get());
+    Assert.assertEquals(1, cache.getHitCount());
+    verify(fetcher, times(1)).fetch(url);
+  }
+
+  @Test
+  public void analyze_staleUnchangedImage_revalidatesWithoutAnalysis() throws IOException {
+    when(fetcher.fetch(url, ETAG, Optional.empty()))
+        .thenReturn(ImageFetcher.Response.notModified());
+
+    cache.analyze(url, fetcher, this::analyzeComplete);
+    advanceMillis(TTL_MILLIS);
+    AnalysisResults results = cache.analyze(url, fetcher, this::analyzeComplete);
+
+    Assert.assertSame(COMPLETE_RESULTS, results);
+    Assert.assertEquals(1, analysisCount.get());
+    Assert.assertEquals(1, cache.getRevalidatedCount());
+
+    // Revalidation makes the results fresh again.
+    cache.analyze(url, fetcher, this::analyzeComplete);
+    Assert.assertEquals(1, cache.getHitCount());
+  }
+
+  @Test
+  public void analyze_staleChangedImage_analyzesAgain() throws IOException {
+    when(fetcher.fetch(url, ETAG, Optional.empty()))
+        .thenReturn(ImageFetcher.Response.of(IMAGE, Optional.of("\"def\""), Optional.empty()));
+
+    cache.analyze(url, fetcher, this::analyzeComplete);
+    advanceMillis(TTL_MILLIS);
+    cache.analyze(url, fetcher, this::analyzeComplete);
+
+    Assert.assertEquals(2, analysisCount.get());
+    Assert.assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void analyze_incompleteResults_areNotCached() throws IOException {
+    cache.analyze(url, fetcher, bytes -> EMPTY_RESULTS);
+    cache.analyze(url, fetcher, this::analyzeComplete);
+
+    Assert.assertEquals(0, cache.getHitCount());
+    verify(fetcher, times(2)).fetch(url);
+    verify(fetcher, never()).fetch(any(URL.class), any(Optional.class), any(Optional.class));
+  }
+
+  private AnalysisResults analyzeComplete(ByteString imageBytes) {
+    analysisCount.incrementAndGet();
+    return COMPLETE_RESULTS;
+  }
+
+  private void advanceMillis(long millis) {
+    nowNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
@@ -0,0 +1,286 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.cloud.vision.v1.AnnotateImageRequest;
+import com.google.cloud.vision.v1.AnnotateImageResponse;
+import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
+import com.google.cloud.vision.v1.EntityAnnotation;
+import com.google.cloud.vision.v1.Image;
+import com.google.common.collect.ImmutableList;
+import com.google.protobuf.ByteString;
+import com.google.sps.servlets.CallDeadline;
+import com.google.sps.servlets.VisionBatcher;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class VisionBatcherTest {
+  // Long enough that batches in these tests are only closed by filling up.
+  private static final long LONG_WINDOW_MILLIS = 10000;
+  private static final long SHORT_WINDOW_MILLIS = 10;
+
+  private ExecutorService executor;
+  // Sizes of the batches sent to the annotator, in the order they were sent.
+  private List<Integer> batchSizes;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+    batchSizes = Collections.synchronizedList(new ArrayList<>());
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void annotate_singleRequest_sendsBatchAfterWindow() throws IOException {
+    VisionBatcher batcher = new VisionBatcher(
+        this::echoImageContent, SHORT_WINDOW_MILLIS, VisionBatcher.MAX_BATCH_SIZE);
+
+    AnnotateImageResponse response = batcher.annotate(createRequest("receipt"));
+
+    Assert.assertEquals("receipt", getText(response));
+    Assert.assertEquals(ImmutableList.of(1), batchSizes);
+  }
+
+  @Test
+  public void annotate_concurrentRequests_sendsOneBatch()
+      throws InterruptedException, ExecutionException {
+    int numRequests = 4;
+    VisionBatcher batcher =
+        new VisionBatcher(this::echoImageContent, LONG_WINDOW_MILLIS, numRequests);
+
+    List<Future<AnnotateImageResponse>> responses = annotateConcurrently(batcher, numRequests);
+
+    for (int i = 0; i < numRequests; i++) {
+      Assert.assertEquals("receipt " + i, getText(responses.get(i).get()));
+    }
+    Assert.assertEquals(ImmutableList.of(numRequests), batchSizes);
+  }
+
+  @Test
+  public void annotate_moreRequestsThanMaxBatchSize_sendsMultipleBatches()
+      throws InterruptedException, ExecutionException {
+    VisionBatcher batcher = new VisionBatcher(this::echoImageContent, LONG_WINDOW_MILLIS, 2);
+
+    List<Future<AnnotateImageResponse>> responses = annotateConcurrently(batcher, 6);
+
+    for (int i = 0; i < 6; i++) {
+      Assert.assertEquals("receipt " + i, getText(responses.get(i).get()));
+    }
+    Assert.assertEquals(ImmutableList.of(2, 2, 2), batchSizes);
+  }
+
+  @Test
+  public void annotate_batchingDisabled_sendsEachRequestAlone() throws IOException {
+    VisionBatcher batcher = new VisionBatcher(
+        this::echoImageContent, /* windowMillis = */ 0, VisionBatcher.MAX_BATCH_SIZE);
+
+    batcher.annotate(createRequest("first"));
+    batcher.annotate(createRequest("second"));
+
+    Assert.assertEquals(ImmutableList.of(1, 1), batchSizes);
+  }
+
+  @Test
+  public void annotate_missingResponse_returnsEmptyResponse() throws IOException {
+    VisionBatcher batcher = new VisionBatcher(requests
+        -> BatchAnnotateImagesResponse.getDefaultInstance(),
+        SHORT_WINDOW_MILLIS, VisionBatcher.MAX_BATCH_SIZE);
+
+    AnnotateImageResponse response = batcher.annotate(createRequest("receipt"));
+
+    Assert.assertEquals(AnnotateImageResponse.getDefaultInstance(), response);
+  }
+
+  @Test
+  public void annotate_batchRequestFails_throwsToEveryCaller() throws InterruptedException {
+    StatusCode statusCode = GrpcStatusCode.of(io.grpc.Status.INTERNAL.getCode());
+    int numRequests = 3;
+    VisionBatcher batcher = new VisionBatcher(requests -> {
+      throw new ApiException(null, statusCode, false);
+    }, LONG_WINDOW_MILLIS, numRequests);
+
+    List<Future<AnnotateImageResponse>> responses = annotateConcurrently(batcher, numRequests);
+
+    for (Future<AnnotateImageResponse> response : responses) {
+      try {
+        response.get();
+        Assert.fail("Expected the batch failure to be rethrown.");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof ApiException);
+      }
+    }
+  }
+
+  @Test
+  public void annotate_requestsPastMaxBatchBytes_sendsMultipleBatches()
+      throws InterruptedException, ExecutionException {
+    // Each request is 13 bytes, so a 26 byte batch is full after two requests.
+    VisionBatcher batcher = new VisionBatcher(
+        this::echoImageContent, LONG_WINDOW_MILLIS, VisionBatcher.MAX_BATCH_SIZE, 26);
+
+    List<Future<AnnotateImageResponse>> responses = annotateConcurrently(batcher, 4);
+
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals("receipt " + i, getText(responses.get(i).get()));
+    }
+    Assert.assertEquals(ImmutableList.of(2, 2), batchSizes);
+  }
+
+  @Test
+  public void annotate_callersWithDifferentDeadlines_sendsBatchWithLatestDeadline()
+      throws InterruptedException, ExecutionException {
+    AtomicLong sentDeadline = new AtomicLong();
+    VisionBatcher batcher = new VisionBatcher(requests -> {
+      sentDeadline.set(CallDeadline.getDeadlineNanos());
+      return echoImageContent(requests);
+    }, LONG_WINDOW_MILLIS, 2);
+    long earlyDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    long lateDeadline = earlyDeadline + TimeUnit.SECONDS.toNanos(10);
+
+    Future<AnnotateImageResponse> first = executor.submit(() -> CallDeadline.callWithDeadline(
+        earlyDeadline, () -> batcher.annotate(createRequest("first"))));
+    Thread.sleep(20);
+    Future<AnnotateImageResponse> second = executor.submit(() -> CallDeadline.callWithDeadline(
+        lateDeadline, () -> batcher.annotate(createRequest("second"))));
+
+    Assert.assertEquals("first", getText(first.get()));
+    Assert.assertEquals("second", getText(second.get()));
+    Assert.assertEquals(lateDeadline, sentDeadline.get());
+  }
+
+  @Test
+  public void annotate_firstCallerInterrupted_sendsBatchToEveryCaller()
+      throws InterruptedException, ExecutionException {
+    List<Boolean> sentWhileInterrupted = Collections.synchronizedList(new ArrayList<>());
+    VisionBatcher batcher = new VisionBatcher(requests -> {
+      sentWhileInterrupted.add(Thread.currentThread().isInterrupted());
+      return echoImageContent(requests);
+    }, LONG_WINDOW_MILLIS, 3);
+
+    List<Future<AnnotateImageResponse>> responses = annotateConcurrently(batcher, 2);
+    // Interrupts the first caller, which is waiting for the batch to fill up.
+    responses.get(0).cancel(true);
+
+    Assert.assertEquals("receipt 1", getText(responses.get(1).get()));
+    Assert.assertEquals(ImmutableList.of(false), sentWhileInterrupted);
+  }
+
+  @Test
+  public void annotate_batchRequestThrowsError_throwsToEveryCaller()
+      throws InterruptedException {
+    int numRequests = 2;
+    VisionBatcher batcher = new VisionBatcher(requests -> {
+      throw new OutOfMemoryError();
+    }, LONG_WINDOW_MILLIS, numRequests);
+
+    List<Future<AnnotateImageResponse>> responses = annotateConcurrently(batcher, numRequests);
+
+    for (Future<AnnotateImageResponse> response : responses) {
+      try {
+        response.get(10, TimeUnit.SECONDS);
+        Assert.fail("Expected the batch failure to be rethrown.");
+      } catch (ExecutionException e) {
+        Assert.assertTrue(e.getCause() instanceof OutOfMemoryError);
+      } catch (TimeoutException e) {
+        Assert.fail("Caller was left waiting for the failed batch.");
+      }
+    }
+  }
+
+  @Test
+  public void annotate_batchOutlastsCallerDeadline_throwsToCaller()
+      throws InterruptedException {
+    VisionBatcher batcher = new VisionBatcher(
+        this::echoImageContent, LONG_WINDOW_MILLIS, VisionBatcher.MAX_BATCH_SIZE);
+    annotateConcurrently(batcher, 1);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+
+    Future<AnnotateImageResponse> response = executor.submit(() -> CallDeadline.callWithDeadline(
+        deadline, () -> batcher.annotate(createRequest("late"))));
+
+    try {
+      response.get(5, TimeUnit.SECONDS);
+      Assert.fail("Expected the caller to stop waiting at its deadline.");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof IOException);
+    } catch (TimeoutException e) {
+      Assert.fail("Caller waited past its deadline.");
+    }
+  }
+
+  /**
+   * Submits requests from separate threads, waiting for each request to join its batch before
+   * submitting the next one so that responses can be matched to the order of the requests.
+   */
+  private List<Future<AnnotateImageResponse>> annotateConcurrently(
+      VisionBatcher batcher, int numRequests) throws InterruptedException {
+    List<Future<AnnotateImageResponse>> responses = new ArrayList<>();
+
+    for (int i = 0; i < numRequests; i++) {
+      AnnotateImageRequest request = createRequest("receipt " + i);
+      responses.add(executor.submit(() -> batcher.annotate(request)));
+      // Gives the request time to join the open batch before the next one is submitted.
+      Thread.sleep(20);
+    }
+
+    return responses;
+  }
+
+  /** Returns a response for each request with the image content as the detected text. */
+  private BatchAnnotateImagesResponse echoImageContent(List<AnnotateImageRequest> requests) {
+    batchSizes.add(requests.size());
+    BatchAnnotateImagesResponse.Builder batchResponse = BatchAnnotateImagesResponse.newBuilder();
+
+    for (AnnotateImageRequest request : requests) {
+      String text = request.getImage().getContent().toStringUtf8();
+      EntityAnnotation annotation = EntityAnnotation.newBuilder().setDescription(text).build();
+      batchResponse.addResponses(AnnotateImageResponse.newBuilder().addTextAnnotations(annotation));
+    }
+
+    return batchResponse.build();
+  }
+
+  private static AnnotateImageRequest createRequest(String content) {
+    Image image = Image.newBuilder().setContent(ByteString.copyFromUtf8(content)).build();
+    return AnnotateImageRequest.newBuilder().setImage(image).build();
+  }
+
+  private static String getText(AnnotateImageResponse response) {
+    return response.getTextAnnotations(0).getDescription();
+  }
+}